@@ -0,0 +1,143 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.attribute;
+
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+import org.ice4j.stack.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the decoding of the attributes of a connectivity check and the
+ * FINGERPRINT and MESSAGE-INTEGRITY calculations over it.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class AttributeCodecBenchmark
+{
+    /**
+     * The encoded connectivity check.
+     */
+    private byte[] check;
+
+    /**
+     * The offset of the USERNAME attribute in {@link #check}.
+     */
+    private char usernameOffset;
+
+    /**
+     * The offset of the PRIORITY attribute in {@link #check}.
+     */
+    private char priorityOffset;
+
+    /**
+     * The offset of the MESSAGE-INTEGRITY attribute in {@link #check}.
+     */
+    private int messageIntegrityOffset;
+
+    /**
+     * The offset of the FINGERPRINT attribute in {@link #check}.
+     */
+    private int fingerprintOffset;
+
+    /**
+     * Encodes a connectivity check and finds its attributes.
+     *
+     * @throws Exception if the check cannot be created.
+     */
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        StunStack stunStack = BenchmarkMessages.createStunStack();
+
+        try
+        {
+            check
+                = BenchmarkMessages.create(BenchmarkMessages.ICE_CHECK)
+                    .encode(stunStack);
+        }
+        finally
+        {
+            stunStack.shutDown();
+        }
+
+        Message message
+            = Message.decode(check, (char) 0, (char) check.length);
+
+        usernameOffset = (char)
+            message.getAttribute(Attribute.USERNAME).getLocationInMessage();
+        priorityOffset = (char)
+            message.getAttribute(Attribute.PRIORITY).getLocationInMessage();
+        messageIntegrityOffset
+            = message.getAttribute(Attribute.MESSAGE_INTEGRITY)
+                .getLocationInMessage();
+        fingerprintOffset
+            = message.getAttribute(Attribute.FINGERPRINT)
+                .getLocationInMessage();
+    }
+
+    /**
+     * Decodes the USERNAME attribute.
+     *
+     * @return the decoded attribute.
+     *
+     * @throws StunException if decoding fails.
+     */
+    @Benchmark
+    public Attribute decodeUsername()
+        throws StunException
+    {
+        return AttributeDecoder.decode(
+                check, usernameOffset, (char) (check.length - usernameOffset));
+    }
+
+    /**
+     * Decodes the PRIORITY attribute.
+     *
+     * @return the decoded attribute.
+     *
+     * @throws StunException if decoding fails.
+     */
+    @Benchmark
+    public Attribute decodePriority()
+        throws StunException
+    {
+        return AttributeDecoder.decode(
+                check, priorityOffset, (char) (check.length - priorityOffset));
+    }
+
+    /**
+     * Calculates the FINGERPRINT CRC of the check.
+     *
+     * @return the CRC.
+     */
+    @Benchmark
+    public byte[] fingerprintCrc()
+    {
+        return FingerprintAttribute.calculateXorCRC32(
+                check, 0, fingerprintOffset);
+    }
+
+    /**
+     * Calculates the MESSAGE-INTEGRITY HMAC of the check the way a receiver
+     * validates it.
+     *
+     * @return the HMAC.
+     */
+    @Benchmark
+    public byte[] messageIntegrity()
+    {
+        return MessageIntegrityAttribute.calculateHmacSha1ForValidation(
+                check, 0, messageIntegrityOffset, BenchmarkMessages.PASSWORD);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.message;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.security.*;
+import org.ice4j.stack.*;
+
+/**
+ * Creates the representative messages that the benchmarks measure: ICE
+ * connectivity checks, TURN Data indications and error responses, together
+ * with a <tt>StunStack</tt> that has the credentials to sign and verify them.
+ *
+ * @author agent
+ */
+public final class BenchmarkMessages
+{
+    /**
+     * A connectivity check: a binding request with USERNAME, PRIORITY,
+     * ICE-CONTROLLING, MESSAGE-INTEGRITY and FINGERPRINT.
+     */
+    public static final String ICE_CHECK = "ICE_CHECK";
+
+    /**
+     * A TURN Data indication with XOR-PEER-ADDRESS and a typical RTP sized
+     * DATA attribute.
+     */
+    public static final String DATA_INDICATION = "DATA_INDICATION";
+
+    /**
+     * A 401 binding error response with SOFTWARE and FINGERPRINT.
+     */
+    public static final String ERROR_RESPONSE = "ERROR_RESPONSE";
+
+    /**
+     * The local ICE user fragment that {@link #ICE_CHECK}s are addressed to.
+     */
+    public static final String LOCAL_UFRAG = "L0c4";
+
+    /**
+     * The USERNAME of {@link #ICE_CHECK}s.
+     */
+    public static final String USERNAME = LOCAL_UFRAG + ":r3Mt";
+
+    /**
+     * The ICE password that {@link #ICE_CHECK}s are signed with.
+     */
+    public static final byte[] PASSWORD = "xDi7Pk2v8fQ1sB0aC4tyJ9".getBytes();
+
+    /**
+     * The address that benchmark messages are sent from.
+     */
+    public static final TransportAddress REMOTE_ADDRESS
+        = new TransportAddress("192.0.2.1", 40000, Transport.UDP);
+
+    /**
+     * The address that benchmark messages are received on.
+     */
+    public static final TransportAddress LOCAL_ADDRESS
+        = new TransportAddress("198.51.100.2", 3478, Transport.UDP);
+
+    /**
+     * Prevents the creation of instances.
+     */
+    private BenchmarkMessages()
+    {
+    }
+
+    /**
+     * Creates a <tt>StunStack</tt> that knows {@link #PASSWORD} as both the
+     * local and the remote key of {@link #USERNAME}.
+     *
+     * @return a new <tt>StunStack</tt>. It should be shut down when the
+     * benchmark is over.
+     */
+    public static StunStack createStunStack()
+    {
+        StunStack stunStack = new StunStack();
+
+        stunStack.getCredentialsManager().registerAuthority(
+                new CredentialsAuthority()
+                {
+                    public byte[] getLocalKey(String username)
+                    {
+                        return PASSWORD;
+                    }
+
+                    public byte[] getRemoteKey(String username, String media)
+                    {
+                        return PASSWORD;
+                    }
+
+                    public boolean checkLocalUserName(String username)
+                    {
+                        return LOCAL_UFRAG.equals(username);
+                    }
+                });
+        return stunStack;
+    }
+
+    /**
+     * Creates a message of a specific kind with a new transaction ID.
+     *
+     * @param kind {@link #ICE_CHECK}, {@link #DATA_INDICATION} or
+     * {@link #ERROR_RESPONSE}.
+     *
+     * @return a new message of kind <tt>kind</tt>.
+     *
+     * @throws Exception if the message cannot be created.
+     */
+    public static Message create(String kind)
+        throws Exception
+    {
+        byte[] tranID = TransactionID.createNewTransactionID().getBytes();
+        Message message;
+
+        if (ICE_CHECK.equals(kind))
+        {
+            message
+                = MessageFactory.createBindingRequest(
+                        0x6e7f1eff, true, 0x932ff9b151263b36L);
+            message.setTransactionID(tranID);
+            message.addAttribute(
+                    AttributeFactory.createUsernameAttribute(USERNAME));
+            message.addAttribute(
+                    AttributeFactory.createMessageIntegrityAttribute(
+                            USERNAME));
+        }
+        else if (DATA_INDICATION.equals(kind))
+        {
+            byte[] data = new byte[172];
+
+            for (int i = 0; i < data.length; i++)
+                data[i] = (byte) i;
+
+            message = new Indication();
+            message.setMessageType(Message.DATA_INDICATION);
+            message.setTransactionID(tranID);
+            message.addAttribute(
+                    AttributeFactory.createXorPeerAddressAttribute(
+                            REMOTE_ADDRESS, tranID));
+            message.addAttribute(AttributeFactory.createDataAttribute(data));
+        }
+        else if (ERROR_RESPONSE.equals(kind))
+        {
+            message
+                = MessageFactory.createBindingErrorResponse(
+                        ErrorCodeAttribute.UNAUTHORIZED,
+                        "Unauthorized");
+            message.setTransactionID(tranID);
+            message.addAttribute(
+                    AttributeFactory.createSoftwareAttribute(
+                            "ice4j.org".getBytes()));
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unknown message kind " + kind);
+        }
+
+        if (!DATA_INDICATION.equals(kind))
+            message.addAttribute(AttributeFactory.createFingerprintAttribute());
+        return message;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.message;
+
+import java.nio.*;
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.stack.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures decoding and encoding of whole STUN messages of every kind in
+ * {@link BenchmarkMessages}.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class MessageCodecBenchmark
+{
+    /**
+     * The kind of message to measure.
+     */
+    @Param({
+            BenchmarkMessages.ICE_CHECK,
+            BenchmarkMessages.DATA_INDICATION,
+            BenchmarkMessages.ERROR_RESPONSE
+        })
+    public String kind;
+
+    /**
+     * The stack that provides the credentials for MESSAGE-INTEGRITY.
+     */
+    private StunStack stunStack;
+
+    /**
+     * The message we encode.
+     */
+    private Message message;
+
+    /**
+     * The encoded {@link #message}.
+     */
+    private byte[] bytes;
+
+    /**
+     * The buffer we encode into.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Creates the message of kind {@link #kind}.
+     *
+     * @throws Exception if the message cannot be created.
+     */
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        stunStack = BenchmarkMessages.createStunStack();
+        message = BenchmarkMessages.create(kind);
+        bytes = message.encode(stunStack);
+        buffer = ByteBuffer.allocate(1500);
+    }
+
+    /**
+     * Shuts the stack down.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        stunStack.shutDown();
+    }
+
+    /**
+     * Decodes the message and all of its attributes.
+     *
+     * @return the decoded message.
+     *
+     * @throws StunException if decoding fails.
+     */
+    @Benchmark
+    public Message decode()
+        throws StunException
+    {
+        return Message.decode(bytes, (char) 0, (char) bytes.length);
+    }
+
+    /**
+     * Decodes the message and all of its attributes into pooled objects and
+     * recycles them.
+     *
+     * @return the type of the decoded message.
+     *
+     * @throws StunException if decoding fails.
+     */
+    @Benchmark
+    public char decodePooled()
+        throws StunException
+    {
+        Message decoded
+            = Message.decode(
+                    bytes, (char) 0, (char) bytes.length,
+                    MessagePool.getInstance());
+        char type = decoded.getMessageType();
+
+        MessagePool.recycle(decoded);
+        return type;
+    }
+
+    /**
+     * Decodes the message lazily and then looks up the attribute that a
+     * handler of its kind would need first.
+     *
+     * @return the attribute that was looked up.
+     *
+     * @throws StunException if decoding fails.
+     */
+    @Benchmark
+    public Attribute decodeLazilyAndGetAttribute()
+        throws StunException
+    {
+        Message decoded = Message.decodeLazily(bytes, 0, bytes.length);
+
+        return decoded.getAttribute(
+                (decoded instanceof Request)
+                    ? Attribute.USERNAME
+                    : (decoded instanceof Indication)
+                        ? Attribute.DATA
+                        : Attribute.ERROR_CODE);
+    }
+
+    /**
+     * Encodes the message into a new array.
+     *
+     * @return the encoded message.
+     */
+    @Benchmark
+    public byte[] encode()
+    {
+        return message.encode(stunStack);
+    }
+
+    /**
+     * Encodes the message into a reused buffer.
+     *
+     * @return the number of bytes written.
+     */
+    @Benchmark
+    public int encodeIntoBuffer()
+    {
+        buffer.clear();
+        message.encode(stunStack, buffer);
+        return buffer.position();
+    }
+}
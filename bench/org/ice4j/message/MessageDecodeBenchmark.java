@@ -0,0 +1,102 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.message;
+
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.stack.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares {@link Message#decode(byte[], char, char)} with
+ * {@link Message#decodeLazily(byte[], int, int)} on an ICE connectivity
+ * check of which the handler only reads the <tt>USERNAME</tt> and
+ * <tt>PRIORITY</tt> attributes.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class MessageDecodeBenchmark
+{
+    /**
+     * The encoded connectivity check.
+     */
+    private byte[] bytes;
+
+    /**
+     * Creates the connectivity check.
+     *
+     * @throws Exception if the check cannot be created.
+     */
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        StunStack stunStack = BenchmarkMessages.createStunStack();
+
+        try
+        {
+            bytes
+                = BenchmarkMessages.create(BenchmarkMessages.ICE_CHECK)
+                    .encode(stunStack);
+        }
+        finally
+        {
+            stunStack.shutDown();
+        }
+    }
+
+    /**
+     * Decodes the check and all of its attributes and reads its
+     * <tt>USERNAME</tt> and <tt>PRIORITY</tt>.
+     *
+     * @return the priority of the check.
+     *
+     * @throws StunException if decoding fails.
+     */
+    @Benchmark
+    public long eager()
+        throws StunException
+    {
+        return readCheck(
+                Message.decode(bytes, (char) 0, (char) bytes.length));
+    }
+
+    /**
+     * Decodes the check lazily and reads its <tt>USERNAME</tt> and
+     * <tt>PRIORITY</tt>.
+     *
+     * @return the priority of the check.
+     *
+     * @throws StunException if decoding fails.
+     */
+    @Benchmark
+    public long lazy()
+        throws StunException
+    {
+        return readCheck(Message.decodeLazily(bytes, 0, bytes.length));
+    }
+
+    /**
+     * Reads the attributes that a handler of connectivity checks needs.
+     *
+     * @param message the decoded check.
+     *
+     * @return the priority of the check.
+     */
+    private static long readCheck(Message message)
+    {
+        if (message.getAttribute(Attribute.USERNAME) == null)
+            throw new IllegalStateException("no USERNAME");
+        return ((PriorityAttribute) message.getAttribute(Attribute.PRIORITY))
+            .getPriority();
+    }
+}
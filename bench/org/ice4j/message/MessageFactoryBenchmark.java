@@ -0,0 +1,87 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.message;
+
+import java.util.concurrent.*;
+
+import org.ice4j.stack.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the creation of the success responses that answer connectivity
+ * checks, both with the <tt>Response</tt> API and by rendering a
+ * {@link BindingResponseTemplate}.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class MessageFactoryBenchmark
+{
+    /**
+     * The connectivity check we respond to.
+     */
+    private Request request;
+
+    /**
+     * The template for the responses to {@link #request}.
+     */
+    private BindingResponseTemplate template;
+
+    /**
+     * The buffer responses are rendered into.
+     */
+    private byte[] buffer;
+
+    /**
+     * Creates the connectivity check and the template for its responses.
+     *
+     * @throws Exception if the request cannot be created.
+     */
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        request = (Request) BenchmarkMessages.create(
+                BenchmarkMessages.ICE_CHECK);
+        template
+            = new BindingResponseTemplate(
+                    BenchmarkMessages.USERNAME.getBytes(),
+                    BenchmarkMessages.PASSWORD,
+                    BenchmarkMessages.REMOTE_ADDRESS.isIPv6(),
+                    new StackConfiguration());
+        buffer = new byte[1500];
+    }
+
+    /**
+     * Creates a binding success response with an XOR-MAPPED-ADDRESS.
+     *
+     * @return the response.
+     */
+    @Benchmark
+    public Response createBindingResponse()
+    {
+        return MessageFactory.createBindingResponse(
+                request, BenchmarkMessages.REMOTE_ADDRESS);
+    }
+
+    /**
+     * Renders a complete, signed binding success response from a template.
+     *
+     * @return the number of bytes rendered.
+     */
+    @Benchmark
+    public int renderBindingResponse()
+    {
+        return template.render(
+                request.getTransactionID(),
+                BenchmarkMessages.REMOTE_ADDRESS,
+                buffer,
+                0);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the RFC 4571 framing of ICE-TCP for small frames, the size of
+ * STUN connectivity checks, and for frames of a full MTU, the size of media.
+ * Every operation handles {@link #FRAMES} frames so the results are in
+ * thousands of frames per millisecond.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class TCPFramingBenchmark
+{
+    /**
+     * The number of frames every operation reads or writes.
+     */
+    private static final int FRAMES = 1000;
+
+    /**
+     * The length of the payload of the frames.
+     */
+    @Param({ "108", "1400" })
+    public int frameLength;
+
+    /**
+     * The payload of the frames.
+     */
+    private byte[] payload;
+
+    /**
+     * The stream of {@link #FRAMES} frames that we read.
+     */
+    private ByteArrayInputStream in;
+
+    /**
+     * The reader of {@link #in}.
+     */
+    private TCPFrameReader reader;
+
+    /**
+     * The stream that we write frames to.
+     */
+    private ByteArrayOutputStream out;
+
+    /**
+     * The writer to {@link #out}.
+     */
+    private TCPFrameWriter writer;
+
+    /**
+     * The packet that frames are read into.
+     */
+    private DatagramPacket packet;
+
+    /**
+     * The address set on read packets.
+     */
+    private InetAddress address;
+
+    /**
+     * Encodes {@link #FRAMES} frames of {@link #frameLength} bytes.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        payload = new byte[frameLength];
+        out = new ByteArrayOutputStream(FRAMES * (frameLength + 2));
+        writer = new TCPFrameWriter(out);
+        for (int i = 0; i < FRAMES; i++)
+            writer.writeFrame(payload, 0, payload.length);
+        in = new ByteArrayInputStream(out.toByteArray());
+        reader = new TCPFrameReader(in);
+        packet = new DatagramPacket(new byte[1500], 1500);
+        address = InetAddress.getByName("127.0.0.1");
+    }
+
+    /**
+     * Writes {@link #FRAMES} frames.
+     *
+     * @return the number of bytes written.
+     *
+     * @throws IOException if writing fails.
+     */
+    @Benchmark
+    public int writeFrames()
+        throws IOException
+    {
+        out.reset();
+        for (int i = 0; i < FRAMES; i++)
+            writer.writeFrame(payload, 0, payload.length);
+        return out.size();
+    }
+
+    /**
+     * Reads {@link #FRAMES} frames through a <tt>TCPFrameReader</tt>.
+     *
+     * @return the length of the last frame.
+     *
+     * @throws IOException if reading fails.
+     */
+    @Benchmark
+    public int readFrames()
+        throws IOException
+    {
+        in.reset();
+        for (int i = 0; i < FRAMES; i++)
+            reader.readFrame(packet, address, 5000);
+        return packet.getLength();
+    }
+
+    /**
+     * Reads {@link #FRAMES} frames one read at a time with
+     * <tt>DelegatingSocket.receiveFromNetwork</tt>, for comparison.
+     *
+     * @return the length of the last frame.
+     *
+     * @throws IOException if reading fails.
+     */
+    @Benchmark
+    public int readFramesUnbuffered()
+        throws IOException
+    {
+        in.reset();
+        for (int i = 0; i < FRAMES; i++)
+            DelegatingSocket.receiveFromNetwork(packet, in, address, 5000);
+        return packet.getLength();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the handling of decoded incoming messages by
+ * {@link StunStack#handleMessageEvent(StunMessageEvent)}: for connectivity
+ * checks that is the creation of a server transaction, the validation of
+ * USERNAME and MESSAGE-INTEGRITY and the dispatch to request listeners, and
+ * for Data indications the dispatch to indication listeners.
+ * <p>
+ * Every check has a transaction ID of its own so that it is handled as a new
+ * request rather than a retransmission. The server transaction of a check is
+ * removed right after it has been handled to keep the transaction table at a
+ * constant size.
+ * </p>
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class StunStackBenchmark
+{
+    /**
+     * The number of distinct messages we cycle through.
+     */
+    private static final int MESSAGES = 1024;
+
+    /**
+     * The kind of message to measure.
+     */
+    @Param({
+            BenchmarkMessages.ICE_CHECK,
+            BenchmarkMessages.DATA_INDICATION
+        })
+    public String kind;
+
+    /**
+     * The stack that handles the messages.
+     */
+    private StunStack stunStack;
+
+    /**
+     * The messages as they were received.
+     */
+    private RawMessage[] rawMessages;
+
+    /**
+     * The decoded {@link #rawMessages}.
+     */
+    private Message[] messages;
+
+    /**
+     * The index of the next message to handle.
+     */
+    private int next = 0;
+
+    /**
+     * Creates the stack and {@link #MESSAGES} messages of kind {@link #kind}.
+     *
+     * @throws Exception if the messages cannot be created.
+     */
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        stunStack = BenchmarkMessages.createStunStack();
+        stunStack.addRequestListener(
+                new RequestListener()
+                {
+                    public void processRequest(StunMessageEvent evt)
+                    {
+                    }
+                });
+
+        rawMessages = new RawMessage[MESSAGES];
+        messages = new Message[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++)
+        {
+            byte[] bytes
+                = BenchmarkMessages.create(kind).encode(stunStack);
+
+            rawMessages[i]
+                = new RawMessage(
+                        bytes, bytes.length,
+                        BenchmarkMessages.REMOTE_ADDRESS,
+                        BenchmarkMessages.LOCAL_ADDRESS);
+            messages[i]
+                = Message.decode(bytes, (char) 0, (char) bytes.length);
+        }
+    }
+
+    /**
+     * Shuts the stack down.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        stunStack.shutDown();
+    }
+
+    /**
+     * Hands the next message to the stack.
+     */
+    @Benchmark
+    public void handleMessageEvent()
+    {
+        int i = next;
+        Message message = messages[i];
+
+        next = (i + 1) % MESSAGES;
+        stunStack.handleMessageEvent(
+                new StunMessageEvent(stunStack, rawMessages[i], message));
+
+        if (message instanceof Request)
+        {
+            StunServerTransaction transaction
+                = stunStack.getServerTransaction(message.getTransactionID());
+
+            transaction.expire();
+            stunStack.removeServerTransaction(transaction);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures looking up a transaction in a <tt>TransactionIndex</tt> from the
+ * raw bytes of a message for an increasing number of live transactions. The
+ * cost of a lookup is expected to stay flat.
+ *
+ * @author agent
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TransactionIndexBenchmark
+{
+    /**
+     * The number of live transactions in the index.
+     */
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    public int size;
+
+    /**
+     * The index we look transactions up in.
+     */
+    private TransactionIndex<TransactionID> index;
+
+    /**
+     * The raw messages carrying the IDs of the transactions in
+     * {@link #index} at offset 8.
+     */
+    private byte[][] messages;
+
+    /**
+     * The index of the next message to look up.
+     */
+    private int next = 0;
+
+    /**
+     * Fills the index with {@link #size} transactions.
+     */
+    @Setup
+    public void setUp()
+    {
+        index = new TransactionIndex<TransactionID>();
+        messages = new byte[size][20];
+        for (int i = 0; i < size; i++)
+        {
+            TransactionID tid = TransactionID.createNewTransactionID();
+
+            index.put(tid, tid);
+            System.arraycopy(tid.getBytes(), 0, messages[i], 8, 12);
+        }
+    }
+
+    /**
+     * Looks up the transaction of the next message.
+     *
+     * @return the transaction that was found.
+     */
+    @Benchmark
+    public TransactionID get()
+    {
+        byte[] message = messages[next];
+
+        if (++next == messages.length)
+            next = 0;
+        return index.get(message, 8, 12);
+    }
+}
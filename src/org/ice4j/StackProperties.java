@@ -125,6 +125,148 @@ public class StackProperties
     public static final String NOMINATION_TIMER
                                     = "org.ice4j.NOMINATION_TIMER";
 
+    /**
+     * The name of the property that specifies the maximum number of received
+     * messages that a <tt>StunStack</tt> would queue for processing.
+     */
+    public static final String MESSAGE_QUEUE_CAPACITY
+                                    = "org.ice4j.MESSAGE_QUEUE_CAPACITY";
+
+    /**
+     * The name of the property that specifies what a <tt>StunStack</tt> does
+     * with received messages when its message queue is full. One of
+     * <tt>DROP_NEWEST</tt> (the default), <tt>DROP_OLDEST</tt> or
+     * <tt>DROP_NON_RESPONSES_FIRST</tt>.
+     */
+    public static final String MESSAGE_QUEUE_OVERFLOW_POLICY
+                                = "org.ice4j.MESSAGE_QUEUE_OVERFLOW_POLICY";
+
+    /**
+     * The name of the property that specifies the maximum number of selector
+     * threads a <tt>StunStack</tt> uses to read sockets backed by a
+     * <tt>DatagramChannel</tt>. The default, <tt>0</tt>, has every socket read
+     * by a thread of its own. Values larger than the number of available
+     * processors are reduced to it.
+     */
+    public static final String SELECTOR_THREADS
+                                    = "org.ice4j.SELECTOR_THREADS";
+
+    /**
+     * The name of the property that specifies the maximum number of receive
+     * buffers that a <tt>StunStack</tt> keeps for reuse. Every buffer holds one
+     * datagram until it has been processed.
+     */
+    public static final String RECEIVE_BUFFER_POOL_SIZE
+                                    = "org.ice4j.RECEIVE_BUFFER_POOL_SIZE";
+
+    /**
+     * The name of the property that tells a <tt>StunStack</tt> to give every
+     * message processor a queue of its own and to always process the messages
+     * exchanged between a given pair of local and remote addresses in the same
+     * queue, in the order they were received. The default is <tt>false</tt>.
+     */
+    public static final String PARTITIONED_MESSAGE_PROCESSING
+                                = "org.ice4j.PARTITIONED_MESSAGE_PROCESSING";
+
+    /**
+     * The name of the property that specifies the maximum number of datagrams
+     * that a selector thread drains from a socket and hands over to the
+     * message processors as a single batch. The default is <tt>64</tt>.
+     */
+    public static final String RECEIVE_BATCH_SIZE
+                                    = "org.ice4j.RECEIVE_BATCH_SIZE";
+
+    /**
+     * The name of the property that specifies the maximum number of bytes that
+     * the server transactions of a <tt>StunStack</tt> may use to keep the
+     * encoded responses they retransmit when a request is received again.
+     * <tt>0</tt> disables the cache.
+     */
+    public static final String RESPONSE_CACHE_SIZE
+                                    = "org.ice4j.RESPONSE_CACHE_SIZE";
+
+    /**
+     * The name of the boolean property that tells a <tt>StunStack</tt> to
+     * only index the attributes of incoming messages and to decode each of
+     * them the first time it is asked for. The default is <tt>false</tt>.
+     */
+    public static final String LAZY_MESSAGE_DECODING
+                                    = "org.ice4j.LAZY_MESSAGE_DECODING";
+
+    /**
+     * The name of the boolean property that tells a <tt>StunStack</tt> to
+     * decode incoming messages into objects taken from per-thread pools and
+     * to recycle them once they have been dispatched. Listeners that keep a
+     * message after they have handled it must retain it first. The default
+     * is <tt>false</tt>.
+     */
+    public static final String MESSAGE_RECYCLING
+                                    = "org.ice4j.MESSAGE_RECYCLING";
+
+    /**
+     * The name of the property that specifies how many new requests per
+     * second a <tt>StunStack</tt> accepts from a single remote address.
+     * Requests beyond that rate are dropped before a server transaction is
+     * created for them. The default is <tt>0</tt>, which disables the limit.
+     */
+    public static final String REQUEST_RATE_LIMIT
+                                    = "org.ice4j.REQUEST_RATE_LIMIT";
+
+    /**
+     * The name of the property that specifies how many new requests a single
+     * remote address may send in a burst when {@link #REQUEST_RATE_LIMIT} is
+     * set. The default is the value of {@link #REQUEST_RATE_LIMIT}.
+     */
+    public static final String REQUEST_BURST_SIZE
+                                    = "org.ice4j.REQUEST_BURST_SIZE";
+
+    /**
+     * The name of the property that specifies the maximum number of live
+     * server transactions of a <tt>StunStack</tt>. When a new request would
+     * exceed it, the least recently used transaction is evicted. The default
+     * is <tt>16384</tt> and <tt>0</tt> removes the limit.
+     */
+    public static final String MAX_SERVER_TRANSACTIONS
+                                    = "org.ice4j.MAX_SERVER_TRANSACTIONS";
+
+    /**
+     * The name of the boolean property that tells a <tt>StunStack</tt> to
+     * estimate the retransmission timeout of every destination from the round
+     * trip times of its previous transactions (RFC 5389 section 7.2.1) rather
+     * than to always start with {@link #FIRST_CTRAN_RETRANS_AFTER}. The
+     * default is <tt>false</tt>.
+     */
+    public static final String ADAPTIVE_RTO = "org.ice4j.ADAPTIVE_RTO";
+
+    /**
+     * The name of the property that specifies the maximum number of packets
+     * that a <tt>MultiplexingDatagramSocket</tt> keeps for itself and for each
+     * of its <tt>MultiplexedDatagramSocket</tt>s until they are received. The
+     * default is <tt>256</tt>.
+     */
+    public static final String MULTIPLEXED_QUEUE_CAPACITY
+                                = "org.ice4j.MULTIPLEXED_QUEUE_CAPACITY";
+
+    /**
+     * The name of the property that specifies what a
+     * <tt>MultiplexingDatagramSocket</tt> does with a packet when the queue of
+     * a socket that should receive it is full. One of <tt>DROP_OLDEST</tt>
+     * (the default) or <tt>DROP_NEWEST</tt>.
+     */
+    public static final String MULTIPLEXED_QUEUE_OVERFLOW_POLICY
+                            = "org.ice4j.MULTIPLEXED_QUEUE_OVERFLOW_POLICY";
+
+    /**
+     * The name of the boolean property that tells a
+     * <tt>HostCandidateHarvester</tt> to create its UDP sockets on top of
+     * <tt>DatagramChannel</tt>s so that they can also be used through
+     * <tt>ByteBuffer</tt>s (see
+     * {@link org.ice4j.socket.IceUdpChannelWrapper}). The default is
+     * <tt>false</tt>.
+     */
+    public static final String USE_DATAGRAM_CHANNELS
+                                    = "org.ice4j.USE_DATAGRAM_CHANNELS";
+
     /**
      * The name of the property used to disabled IPv6 support.
      */
@@ -196,6 +338,46 @@ public class StackProperties
         return intValue;
     }
 
+    /**
+     * Returns the value of a specific property as a signed decimal long. If a
+     * property with the specified property name exists, its string
+     * representation is parsed into a signed decimal long according to the
+     * rules of {@link Long#parseLong(String)}. If parsing the value as a
+     * signed decimal long fails or there is no value associated with the
+     * specified property name, <tt>defaultValue</tt> is returned.
+     *
+     * @param propertyName the name of the property to get the value of as a
+     * signed decimal long
+     * @param defaultValue the value to be returned if parsing the value of the
+     * specified property name as a signed decimal long fails or there is no
+     * value associated with the specified property name in the System
+     * properties.
+     * @return the value of the property with the specified name in the System
+     * properties as a signed decimal long;
+     * <tt>defaultValue</tt> if parsing the value of the specified property name
+     * fails or no value is associated among the System properties.
+     */
+    public static long getLong(String propertyName, long defaultValue)
+    {
+        String stringValue = getString(propertyName);
+        long longValue = defaultValue;
+
+        if ((stringValue != null) && (stringValue.length() > 0))
+        {
+            try
+            {
+                longValue = Long.parseLong(stringValue);
+            }
+            catch (NumberFormatException ex)
+            {
+                logger.log(Level.FINE, propertyName
+                    + " does not appear to be a long. " + "Defaulting to "
+                    + defaultValue + ".", ex);
+            }
+        }
+        return longValue;
+    }
+
     /**
      * Gets the value of a specific property as a boolean. If the specified
      * property name is associated with a value in this
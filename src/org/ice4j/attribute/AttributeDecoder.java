@@ -34,6 +34,30 @@ public class AttributeDecoder
                                    char   offset,
                                    char   length)
         throws StunException
+    {
+        return decode(bytes, offset, length, null);
+    }
+
+    /**
+     * Decodes the specified binary array into <tt>recycled</tt> if it is of
+     * the type of the encoded attribute or into a new attribute otherwise.
+     *
+     * @param bytes the binary array that should be decoded.
+     * @param offset the index where the message starts.
+     * @param length the number of bytes that the message is long.
+     * @param recycled an attribute that is no longer in use and may be
+     * decoded into, or <tt>null</tt>.
+     *
+     * @return An object representing the attribute encoded in bytes or null if
+     * the attribute was not recognized.
+     *
+     * @throws StunException if bytes is not a valid STUN attribute.
+     */
+    public static Attribute decode(byte[]    bytes,
+                                   char      offset,
+                                   char      length,
+                                   Attribute recycled)
+        throws StunException
     {
         if(bytes == null || bytes.length < Attribute.HEADER_LENGTH)
         {
@@ -51,7 +75,33 @@ public class AttributeDecoder
             throw new StunException( StunException.ILLEGAL_ARGUMENT,
                             "Could not decode the specified binary array.");
 
-        Attribute decodedAttribute = null;
+        Attribute decodedAttribute;
+
+        if (recycled != null && recycled.getAttributeType() == attributeType)
+            decodedAttribute = recycled;
+        else
+            decodedAttribute = createAttribute(attributeType);
+
+        decodedAttribute.setAttributeType(attributeType);
+        decodedAttribute.setLocationInMessage(offset);
+
+        decodedAttribute.decodeAttributeBody(bytes,
+                (char)(Attribute.HEADER_LENGTH + offset), attributeLength);
+
+        return decodedAttribute;
+    }
+
+    /**
+     * Creates an empty attribute of a specific type to decode into.
+     *
+     * @param attributeType the type of the attribute.
+     *
+     * @return an empty attribute of type <tt>attributeType</tt> or an
+     * <tt>OptionalAttribute</tt> if the type is not recognized.
+     */
+    private static Attribute createAttribute(char attributeType)
+    {
+        Attribute decodedAttribute;
 
         switch(attributeType)
         {
@@ -123,13 +173,6 @@ public class AttributeDecoder
                 = new OptionalAttribute( Attribute.UNKNOWN_OPTIONAL_ATTRIBUTE);
                 break;
         }
-
-        decodedAttribute.setAttributeType(attributeType);
-        decodedAttribute.setLocationInMessage(offset);
-
-        decodedAttribute.decodeAttributeBody(bytes,
-                (char)(Attribute.HEADER_LENGTH + offset), attributeLength);
-
         return decodedAttribute;
     }
 }
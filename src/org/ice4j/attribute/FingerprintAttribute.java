@@ -229,6 +229,31 @@ public class FingerprintAttribute
      * attribute traveling in the <tt>message</tt> message.
      */
     public static byte[] calculateXorCRC32(byte[] message, int offset, int len)
+    {
+        byte[] xorCRC32 = new byte[4];
+
+        calculateXorCRC32(message, offset, len, xorCRC32, 0);
+        return xorCRC32;
+    }
+
+    /**
+     * Calculates the CRC32 checksum for <tt>message</tt> after applying the
+     * <tt>XOR_MASK</tt> specified by RFC 5389 and writes its 4 bytes into
+     * <tt>xorCRC32</tt>, which may be the array that holds the message.
+     *
+     * @param message the message whose checksum we'd like to have
+     * @param offset the location in <tt>message</tt> where the actual message
+     * starts.
+     * @param len the number of message bytes in <tt>message</tt>
+     * @param xorCRC32 the array to write the checksum into.
+     * @param crcOffset the index in <tt>xorCRC32</tt> to write the checksum
+     * at.
+     */
+    public static void calculateXorCRC32(byte[] message,
+                                         int    offset,
+                                         int    len,
+                                         byte[] xorCRC32,
+                                         int    crcOffset)
     {
         //now check whether the CRC really is what it's supposed to be.
         //re calculate the check sum
@@ -236,13 +261,14 @@ public class FingerprintAttribute
         checksum.update(message, offset, len);
 
         long crc = checksum.getValue();
-        byte[] xorCRC32 = new byte[4];
 
-        xorCRC32[0] = (byte)((byte)((crc >> 24) & 0xff) ^ XOR_MASK[0]);
-        xorCRC32[1] = (byte)((byte)((crc >> 16) & 0xff) ^ XOR_MASK[1]);
-        xorCRC32[2] = (byte)((byte)((crc >> 8)  & 0xff) ^ XOR_MASK[2]);
-        xorCRC32[3] = (byte)((byte) (crc        & 0xff) ^ XOR_MASK[3]);
-
-        return xorCRC32;
+        xorCRC32[crcOffset]
+            = (byte)((byte)((crc >> 24) & 0xff) ^ XOR_MASK[0]);
+        xorCRC32[crcOffset + 1]
+            = (byte)((byte)((crc >> 16) & 0xff) ^ XOR_MASK[1]);
+        xorCRC32[crcOffset + 2]
+            = (byte)((byte)((crc >> 8)  & 0xff) ^ XOR_MASK[2]);
+        xorCRC32[crcOffset + 3]
+            = (byte)((byte) (crc        & 0xff) ^ XOR_MASK[3]);
     }
 }
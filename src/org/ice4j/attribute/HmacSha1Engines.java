@@ -0,0 +1,130 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.attribute;
+
+import java.security.*;
+import java.util.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * A small per-thread cache of HMAC-SHA1 <tt>Mac</tt> instances that have
+ * already been initialized with the keys they were last used with. Looking
+ * up a <tt>Mac</tt> provider and initializing it with a key are by far the
+ * most expensive steps of computing a MESSAGE-INTEGRITY value, and an agent
+ * normally signs and verifies all messages of a session with the same couple
+ * of keys, so reusing initialized engines saves most of that work.
+ * <p>
+ * A <tt>Mac</tt> returns to its initialized state after <tt>doFinal</tt> so a
+ * cached engine can be used again right away. Every thread has its own
+ * engines and once all of them are in use the least recently initialized
+ * one is re-keyed.
+ * </p>
+ *
+ * @author agent
+ */
+final class HmacSha1Engines
+{
+    /**
+     * The number of keys a thread keeps initialized engines for.
+     */
+    private static final int SIZE = 8;
+
+    /**
+     * The engines of the current thread.
+     */
+    private static final ThreadLocal<HmacSha1Engines> engines
+        = new ThreadLocal<HmacSha1Engines>()
+        {
+            protected HmacSha1Engines initialValue()
+            {
+                return new HmacSha1Engines();
+            }
+        };
+
+    /**
+     * The keys that the engines in {@link #macs} have been initialized with.
+     */
+    private final byte[][] keys = new byte[SIZE][];
+
+    /**
+     * The engines, initialized with the keys in {@link #keys} at the same
+     * index.
+     */
+    private final Mac[] macs = new Mac[SIZE];
+
+    /**
+     * The index of the engine to re-key next.
+     */
+    private int next = 0;
+
+    /**
+     * Prevents the creation of instances outside of {@link #engines}.
+     */
+    private HmacSha1Engines()
+    {
+    }
+
+    /**
+     * Returns an HMAC-SHA1 engine of the current thread that is initialized
+     * with <tt>key</tt>. The engine must not be handed to other threads and
+     * must be reset (e.g. by <tt>doFinal</tt>) before it is asked for again.
+     *
+     * @param key the key the engine should be initialized with.
+     *
+     * @return an HMAC-SHA1 engine initialized with <tt>key</tt>.
+     *
+     * @throws GeneralSecurityException if HMAC-SHA1 is not available or
+     * <tt>key</tt> is not a valid key.
+     * @throws IllegalArgumentException if <tt>key</tt> is empty.
+     */
+    static Mac getMac(byte[] key)
+        throws GeneralSecurityException,
+               IllegalArgumentException
+    {
+        return engines.get().get(key);
+    }
+
+    /**
+     * Returns an engine initialized with <tt>key</tt>, re-keying the least
+     * recently initialized one if none is.
+     *
+     * @param key the key the engine should be initialized with.
+     *
+     * @return an HMAC-SHA1 engine initialized with <tt>key</tt>.
+     *
+     * @throws GeneralSecurityException if HMAC-SHA1 is not available or
+     * <tt>key</tt> is not a valid key.
+     */
+    private Mac get(byte[] key)
+        throws GeneralSecurityException
+    {
+        for (int i = 0; i < SIZE; i++)
+        {
+            if (keys[i] != null && Arrays.equals(keys[i], key))
+                return macs[i];
+        }
+
+        int i = next;
+        Mac mac = macs[i];
+
+        if (mac == null)
+            mac = Mac.getInstance(MessageIntegrityAttribute.HMAC_SHA1_ALGORITHM);
+
+        //forget the old key first in case the new one turns out to be invalid
+        keys[i] = null;
+        mac.init(
+                new SecretKeySpec(
+                        key,
+                        MessageIntegrityAttribute.HMAC_SHA1_ALGORITHM));
+        macs[i] = mac;
+        keys[i] = key.clone();
+        next = (i + 1) % SIZE;
+        return mac;
+    }
+}
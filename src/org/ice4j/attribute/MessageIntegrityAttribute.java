@@ -9,7 +9,6 @@ package org.ice4j.attribute;
 import java.util.*;
 
 import javax.crypto.*;
-import javax.crypto.spec.*;
 
 import org.ice4j.message.*;
 import org.ice4j.stack.*;
@@ -181,22 +180,116 @@ public class MessageIntegrityAttribute
 
         try
         {
-            // get an HMAC-SHA1 key from the raw key bytes
-            SecretKeySpec signingKey
-                = new SecretKeySpec(key, HMAC_SHA1_ALGORITHM);
-            // get an HMAC-SHA1 Mac instance and initialize it with the key
-            Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
-
-            mac.init(signingKey);
+            // get an HMAC-SHA1 Mac instance initialized with the key
+            Mac mac = HmacSha1Engines.getMac(key);
 
             // compute the hmac on input data bytes
-            byte[] macInput = new byte[length];
+            mac.update(message, offset, length);
+            hmac = mac.doFinal();
+        }
+        catch (Exception exc)
+        {
+            throw new IllegalArgumentException(
+                        "Could not create HMAC-SHA1 request encoding: ", exc);
+        }
+        return hmac;
+    }
+
+    /**
+     * Encodes <tt>message</tt> using <tt>key</tt> and the HMAC-SHA1 algorithm
+     * as per RFC 2104 and writes the resulting {@link #DATA_LENGTH} bytes
+     * into <tt>hmac</tt> rather than allocating an array for them. The
+     * output may be written into the very array that holds the message (e.g.
+     * into the value of the MESSAGE-INTEGRITY attribute that follows the
+     * signed part).
+     *
+     * @param message the STUN message that the resulting content will need to
+     * travel in.
+     * @param offset the index where data starts in <tt>message</tt>.
+     * @param length the length of the data in <tt>message</tt> that the method
+     * should consider.
+     * @param key the key that we should be using for the encoding (which
+     * depends on whether we are using short or long term credentials).
+     * @param hmac the array to write the HMAC into.
+     * @param hmacOffset the index in <tt>hmac</tt> to write the HMAC at.
+     *
+     * @throws IllegalArgumentException if the encoding fails for some reason.
+     */
+    public static void calculateHmacSha1(byte[] message,
+                                         int    offset,
+                                         int    length,
+                                         byte[] key,
+                                         byte[] hmac,
+                                         int    hmacOffset)
+        throws IllegalArgumentException
+    {
+        try
+        {
+            Mac mac = HmacSha1Engines.getMac(key);
 
-            //doFinal seems incapable to only work with a part of an array
-            //so we'd need to create an array that only contains what we
-            //actually need to work with.
-            System.arraycopy(message, offset, macInput, 0, length);
-            hmac = mac.doFinal(macInput);
+            mac.update(message, offset, length);
+            mac.doFinal(hmac, hmacOffset);
+        }
+        catch (Exception exc)
+        {
+            throw new IllegalArgumentException(
+                        "Could not create HMAC-SHA1 request encoding: ", exc);
+        }
+    }
+
+    /**
+     * Calculates the HMAC-SHA1 of the part of a received STUN message that
+     * precedes its MESSAGE-INTEGRITY attribute, as it has to be done when
+     * validating the attribute: the "Message Length" field of the header is
+     * taken to point to the end of the MESSAGE-INTEGRITY attribute regardless
+     * of what follows it (e.g. a FINGERPRINT). The HMAC is fed straight from
+     * <tt>message</tt> with the length field substituted on the fly so the
+     * message is neither copied nor modified.
+     *
+     * @param message the array that holds the received STUN message.
+     * @param offset the index where the message starts in <tt>message</tt>.
+     * @param length the number of bytes of the message that precede the
+     * MESSAGE-INTEGRITY attribute, including the STUN header.
+     * @param key the key that we should be using for the encoding (which
+     * depends on whether we are using short or long term credentials).
+     *
+     * @return the HMAC that the MESSAGE-INTEGRITY attribute of
+     * <tt>message</tt> should contain.
+     *
+     * @throws IllegalArgumentException if the encoding fails for some reason.
+     */
+    public static byte[] calculateHmacSha1ForValidation(byte[] message,
+                                                        int    offset,
+                                                        int    length,
+                                                        byte[] key)
+        throws IllegalArgumentException
+    {
+        if (length < Message.HEADER_LENGTH)
+        {
+            throw new IllegalArgumentException(
+                        "Not a STUN message: " + length + " bytes");
+        }
+
+        char messageLength
+            = (char)
+                (length
+                    + HEADER_LENGTH
+                    + DATA_LENGTH
+                    - Message.HEADER_LENGTH);
+        byte[] hmac;
+
+        try
+        {
+            Mac mac = HmacSha1Engines.getMac(key);
+
+            //message type
+            mac.update(message, offset, 2);
+            //message length as if MESSAGE-INTEGRITY was the last attribute
+            mac.update((byte) (messageLength >> 8));
+            mac.update((byte) (messageLength & 0xFF));
+            //the rest of the header and the attributes
+            mac.update(message, offset + 4, length - 4);
+            hmac = mac.doFinal();
         }
         catch (Exception exc)
         {
@@ -271,7 +364,9 @@ public class MessageIntegrityAttribute
         binValue[3] = (byte)(getDataLength() & 0x00FF);
 
         byte[] key = null;
-        char msgType = (char)((content[0] << 8) + content[1]);
+        char msgType
+            = (char)(((content[offset] & 0xFF) << 8)
+                        | (content[offset + 1] & 0xFF));
 
         if(Message.isRequestType(msgType))
         {
@@ -6,6 +6,7 @@
  */
 package org.ice4j.ice;
 
+import java.util.*;
 import java.util.logging.*;
 
 import org.ice4j.*;
@@ -48,6 +49,40 @@ class ConnectivityCheckServer
      */
     private final StunStack stunStack;
 
+    /**
+     * The maximum number of {@link BindingResponseTemplate}s that we keep in
+     * {@link #responseTemplates}.
+     */
+    private static final int MAX_RESPONSE_TEMPLATES = 32;
+
+    /**
+     * The templates that we render the success responses to connectivity
+     * checks from, mapped to the USERNAME of the checks followed by the
+     * address family they came from. Least recently used templates are
+     * dropped once there are more than {@link #MAX_RESPONSE_TEMPLATES}.
+     */
+    private final Map<String, BindingResponseTemplate> responseTemplates
+        = new LinkedHashMap<String, BindingResponseTemplate>(16, 0.75f, true)
+        {
+            /**
+             * Serial version UID for this Serializable class.
+             */
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, BindingResponseTemplate> eldest)
+            {
+                return size() > MAX_RESPONSE_TEMPLATES;
+            }
+        };
+
+    /**
+     * The configuration of {@link #stunStack} that the
+     * {@link #responseTemplates} were created with.
+     */
+    private StackConfiguration responseTemplatesConfiguration;
+
     /**
      * Creates a new <tt>ConnectivityCheckServer</tt> setting
      * <tt>parentAgent</tt> as the agent that will be used for retrieving
@@ -180,6 +215,18 @@ class ConnectivityCheckServer
                 evt.getLocalAddress(), priority, remoteUfrag, localUFrag,
                 useCandidate);
 
+        if(parentAgent.getCompatibilityMode() != CompatibilityMode.GTALK)
+        {
+            BindingResponseTemplate template
+                = getResponseTemplate(evt, uname.getUsername());
+
+            if (template != null)
+            {
+                sendResponse(evt, template);
+                return;
+            }
+        }
+
         Response response = MessageFactory.createBindingResponse(
                         request, evt.getRemoteAddress());
 
@@ -227,6 +274,87 @@ class ConnectivityCheckServer
         }
     }
 
+    /**
+     * Returns the template that the success response to the connectivity
+     * check in <tt>evt</tt> can be rendered from, creating it if necessary.
+     *
+     * @param evt the {@link StunMessageEvent} containing the check.
+     * @param username the value of the USERNAME attribute of the check.
+     *
+     * @return the template for the response to the check in <tt>evt</tt> or
+     * <tt>null</tt> if the check is not an RFC 5389 one or there is no local
+     * password for <tt>username</tt>.
+     */
+    private BindingResponseTemplate getResponseTemplate(
+            StunMessageEvent evt,
+            byte[] username)
+    {
+        if (evt.getTransactionID().getBytes().length
+                != Message.TRANSACTION_ID_LENGTH)
+            return null;
+
+        String usernameStr = new String(username);
+        boolean ipv6 = evt.getRemoteAddress().isIPv6();
+        String key = usernameStr + (ipv6 ? "/6" : "/4");
+        StackConfiguration configuration = stunStack.getConfiguration();
+
+        synchronized (responseTemplates)
+        {
+            //templates depend on the configuration so drop them on reload
+            if (responseTemplatesConfiguration != configuration)
+            {
+                responseTemplates.clear();
+                responseTemplatesConfiguration = configuration;
+            }
+
+            BindingResponseTemplate template = responseTemplates.get(key);
+
+            if (template == null)
+            {
+                byte[] localKey
+                    = stunStack.getCredentialsManager().getLocalKey(
+                            usernameStr);
+
+                if (localKey == null)
+                    return null;
+
+                template
+                    = new BindingResponseTemplate(
+                            username, localKey, ipv6, configuration);
+                responseTemplates.put(key, template);
+            }
+            return template;
+        }
+    }
+
+    /**
+     * Sends the success response to the connectivity check in <tt>evt</tt>
+     * rendered from <tt>template</tt>.
+     *
+     * @param evt the {@link StunMessageEvent} containing the check.
+     * @param template the template to render the response from.
+     */
+    private void sendResponse(StunMessageEvent evt,
+                              BindingResponseTemplate template)
+    {
+        try
+        {
+            stunStack.sendResponse(evt.getTransactionID().getBytes(),
+                    template, evt.getLocalAddress(), evt.getRemoteAddress());
+        }
+        catch (Exception e)
+        {
+            logger.log(
+                    Level.INFO,
+                    "Failed to send a binding response through "
+                        + evt.getLocalAddress(),
+                    e);
+            //try to trigger a 500 response although if this one failed,
+            //then chances are the 500 will fail too.
+            throw new RuntimeException("Failed to send a response", e);
+        }
+    }
+
     /**
      * Returns the value of the {@link PriorityAttribute} in <tt>request</tt> if
      * there is one or throws an <tt>IllegalArgumentException</tt> with the
@@ -271,7 +271,9 @@ public class HostCandidateHarvester
      * until we succeed or reach the bind retries limit. If we reach the
      * <tt>maxPort</tt> port number before the bind retries limit, we will then
      * start over again at <tt>minPort</tt> and keep going until we run out of
-     * retries.
+     * retries. If {@link StackProperties#USE_DATAGRAM_CHANNELS} is set, the
+     * socket is backed by a <tt>DatagramChannel</tt> (see
+     * {@link IceUdpChannelWrapper}).
      *
      * @param laddr the address that we'd like to bind the socket on.
      * @param preferredPort the port number that we should try to bind to first.
@@ -306,14 +308,21 @@ public class HostCandidateHarvester
                         StackProperties.BIND_RETRIES,
                         StackProperties.BIND_RETRIES_DEFAULT_VALUE);
 
+        boolean useChannels = StackProperties.getBoolean(
+                        StackProperties.USE_DATAGRAM_CHANNELS,
+                        false);
+
         int port = preferredPort;
         for (int i = 0; i < bindRetries; i++)
         {
             try
             {
                 IceSocketWrapper sock
-                                = new IceUdpSocketWrapper(new
-                                    MultiplexingDatagramSocket(port, laddr));
+                    = useChannels
+                        ? new IceUdpChannelWrapper(
+                                new InetSocketAddress(laddr, port))
+                        : new IceUdpSocketWrapper(
+                                new MultiplexingDatagramSocket(port, laddr));
 
                 if(logger.isLoggable(Level.FINEST))
                 {
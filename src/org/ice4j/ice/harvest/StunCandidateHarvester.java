@@ -107,6 +107,30 @@ public class StunCandidateHarvester
             System.setProperty(StackProperties.MAX_CTRAN_RETRANSMISSIONS, "3");
     }
 
+    /**
+     * Determines whether the retransmission settings in the configuration of
+     * <tt>stunStack</tt> differ from the current values of the system
+     * properties, e.g. because the stack was created before a harvester set
+     * them.
+     *
+     * @param stunStack the stack to check.
+     *
+     * @return <tt>true</tt> if <tt>stunStack</tt> has to reload its
+     * configuration to pick up the current retransmission settings.
+     */
+    private static boolean isRetransmissionConfigurationStale(
+            StunStack stunStack)
+    {
+        StackConfiguration configuration = stunStack.getConfiguration();
+        StackConfiguration current = new StackConfiguration();
+
+        return
+            (configuration.getMaxWaitInterval()
+                    != current.getMaxWaitInterval())
+                || (configuration.getMaxRetransmissions()
+                    != current.getMaxRetransmissions());
+    }
+
     /**
      * Notifies this <tt>StunCandidateHarvester</tt> that a specific
      * <tt>StunCandidateHarvest</tt> has been completed. If the specified
@@ -230,6 +254,12 @@ public class StunCandidateHarvester
                 + component.getParentStream().getName() + " / " +
                 component.getComponentID());
         stunStack = component.getParentStream().getParentAgent().getStunStack();
+        //pick up the retransmission settings from our constructor in case
+        //the stack was created before us (or before any harvester). Reloading
+        //replaces the whole configuration of the stack so we only do it when
+        //it is out of date.
+        if (isRetransmissionConfigurationStale(stunStack))
+            stunStack.reloadConfiguration();
 
         for (Candidate cand : component.getLocalCandidates())
             if (cand instanceof HostCandidate &&
@@ -0,0 +1,425 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.message;
+
+import java.util.logging.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+
+/**
+ * The attributes of a <tt>Message</tt>, kept in insertion order in a pair of
+ * parallel arrays indexed by position: one with the 16-bit attribute types
+ * and one with the attributes themselves. Messages rarely carry more than a
+ * handful of attributes so a linear scan over the types is faster than
+ * hashing and the whole table of a typical message fits in a couple of cache
+ * lines. Iterating over the table by index allocates nothing.
+ * <p>
+ * The attributes of a message that was decoded lazily (see
+ * {@link Message#decodeLazily(byte[], int, int)}) are only recorded by type
+ * and offset in the bytes of the message and are decoded the first time they
+ * are asked for. The bytes of the message are referenced rather than copied
+ * so they must not change while the message is in use, unless the table has
+ * been detached from them (see {@link #detachBytes()}).
+ * </p>
+ * <p>
+ * The table of a message that was decoded from a {@link MessagePool} takes
+ * the attributes it decodes from that pool and hands them back when the
+ * message is recycled.
+ * </p>
+ * <p>
+ * The table is not thread-safe. <tt>Message</tt> synchronizes on it.
+ * </p>
+ *
+ * @author agent
+ */
+class AttributeTable
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(AttributeTable.class.getName());
+
+    /**
+     * The number of attributes a new table has room for.
+     */
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * The types of the attributes, in insertion order.
+     */
+    private char[] types = new char[INITIAL_CAPACITY];
+
+    /**
+     * The attributes, or <tt>null</tt> for the ones that have not been decoded
+     * yet.
+     */
+    private Attribute[] attributes = new Attribute[INITIAL_CAPACITY];
+
+    /**
+     * The offsets in the bytes of the message of the attributes that have not
+     * been decoded yet or <tt>-1</tt> for attributes that need no decoding.
+     * <tt>null</tt> unless the table belongs to a message that was decoded
+     * lazily.
+     */
+    private int[] offsets;
+
+    /**
+     * The bytes of the lazily decoded message that the attributes in this
+     * table come from or, once the table has been detached from them, a copy
+     * of the part of them that starts at {@link #base}.
+     */
+    private byte[] bytes;
+
+    /**
+     * The offset in the bytes of the message of the first byte in
+     * {@link #bytes}. It is <tt>0</tt> until the table has been detached
+     * from the bytes of the message.
+     */
+    private int base;
+
+    /**
+     * The offset in the bytes of the message past the last byte of the
+     * message.
+     */
+    private int limit;
+
+    /**
+     * The number of attributes in the table.
+     */
+    private int count = 0;
+
+    /**
+     * The pool that the message of this table was decoded from or
+     * <tt>null</tt> if the message is not pooled or has been retained.
+     */
+    private MessagePool pool;
+
+    /**
+     * Returns the pool that the message of this table was decoded from.
+     *
+     * @return the pool that the message of this table was decoded from or
+     * <tt>null</tt> if the message is not pooled or has been retained.
+     */
+    MessagePool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Sets the pool that the message of this table was decoded from.
+     *
+     * @param pool the pool that the message of this table was decoded from or
+     * <tt>null</tt> if the message is not pooled or has been retained.
+     */
+    void setPool(MessagePool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Removes all attributes from this table, handing the ones that have been
+     * decoded to <tt>pool</tt>, and forgets the bytes and the pool of the
+     * message.
+     *
+     * @param pool the pool to hand the attributes to.
+     */
+    void recycle(MessagePool pool)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            Attribute attribute = attributes[i];
+
+            if (attribute != null)
+            {
+                pool.releaseAttribute(attribute);
+                attributes[i] = null;
+            }
+        }
+        count = 0;
+        bytes = null;
+        base = 0;
+        limit = 0;
+        this.pool = null;
+    }
+
+    /**
+     * Makes this table decode attributes added with
+     * {@link #put(char, int)} from <tt>bytes</tt>.
+     *
+     * @param bytes the bytes of the message.
+     * @param limit the index in <tt>bytes</tt> past the last byte of the
+     * message.
+     */
+    void setBytes(byte[] bytes, int limit)
+    {
+        this.bytes = bytes;
+        base = 0;
+        this.limit = limit;
+        if (offsets == null)
+            offsets = new int[types.length];
+    }
+
+    /**
+     * Stops this table from referencing the bytes passed to
+     * {@link #setBytes(byte[], int)} so that they may be reused. The part of
+     * them that the attributes which have not been decoded yet are in is
+     * copied, which is nothing if all of them have been decoded. The offsets
+     * of the attributes stay relative to the bytes of the message so that
+     * the attributes decoded from the copy report their location in the
+     * message (see {@link Attribute#getLocationInMessage()}).
+     */
+    void detachBytes()
+    {
+        if (bytes == null)
+            return;
+
+        int start = limit;
+
+        for (int i = 0; i < count; i++)
+        {
+            if (attributes[i] == null && offsets[i] >= 0)
+                start = Math.min(start, offsets[i]);
+        }
+
+        if (start >= limit)
+        {
+            bytes = null;
+            base = 0;
+            limit = 0;
+        }
+        else
+        {
+            byte[] copy = new byte[limit - start];
+
+            System.arraycopy(bytes, start - base, copy, 0, copy.length);
+            bytes = copy;
+            base = start;
+        }
+    }
+
+    /**
+     * Adds <tt>attribute</tt> to the end of the table. An attribute of a type
+     * that is already in the table replaces the previous one but keeps its
+     * position.
+     *
+     * @param attribute the attribute to add.
+     */
+    void put(Attribute attribute)
+    {
+        int index = indexOfOrAdd(attribute.getAttributeType());
+
+        attributes[index] = attribute;
+        if (offsets != null)
+            offsets[index] = -1;
+    }
+
+    /**
+     * Records that an attribute of type <tt>type</tt> starts at
+     * <tt>offset</tt> in the bytes of a lazily decoded message.
+     *
+     * @param type the type of the attribute.
+     * @param offset the offset of the attribute in the bytes passed to
+     * {@link #setBytes(byte[], int)}.
+     */
+    void put(char type, int offset)
+    {
+        int index = indexOfOrAdd(type);
+
+        attributes[index] = null;
+        offsets[index] = offset;
+    }
+
+    /**
+     * Returns the index of the attribute of type <tt>type</tt>, appending an
+     * empty entry for it if it is not in the table yet.
+     *
+     * @param type the type of the attribute.
+     *
+     * @return the index of the attribute of type <tt>type</tt>.
+     */
+    private int indexOfOrAdd(char type)
+    {
+        int index = indexOf(type);
+
+        if (index >= 0)
+            return index;
+
+        if (count == types.length)
+        {
+            int capacity = count * 2;
+            char[] newTypes = new char[capacity];
+            Attribute[] newAttributes = new Attribute[capacity];
+
+            System.arraycopy(types, 0, newTypes, 0, count);
+            System.arraycopy(attributes, 0, newAttributes, 0, count);
+            types = newTypes;
+            attributes = newAttributes;
+
+            if (offsets != null)
+            {
+                int[] newOffsets = new int[capacity];
+
+                System.arraycopy(offsets, 0, newOffsets, 0, count);
+                offsets = newOffsets;
+            }
+        }
+        types[count] = type;
+        return count++;
+    }
+
+    /**
+     * Removes the attribute of type <tt>type</tt>, shifting the attributes
+     * after it one position down.
+     *
+     * @param type the type of the attribute to remove.
+     *
+     * @return the attribute that was removed or <tt>null</tt> if there was no
+     * such attribute.
+     */
+    Attribute remove(char type)
+    {
+        int index = indexOf(type);
+
+        if (index < 0)
+            return null;
+
+        Attribute attribute = get(index);
+
+        //an attribute that failed to decode has been removed already.
+        if (attribute != null)
+            removeAt(index);
+        return attribute;
+    }
+
+    /**
+     * Removes the attribute at <tt>index</tt>, shifting the attributes after
+     * it one position down.
+     *
+     * @param index the index of the attribute to remove.
+     */
+    private void removeAt(int index)
+    {
+        int tail = count - index - 1;
+
+        System.arraycopy(types, index + 1, types, index, tail);
+        System.arraycopy(attributes, index + 1, attributes, index, tail);
+        if (offsets != null)
+            System.arraycopy(offsets, index + 1, offsets, index, tail);
+        attributes[--count] = null;
+    }
+
+    /**
+     * Decodes all attributes that have not been decoded yet, removing the
+     * ones that fail to decode, so that {@link #size()} only counts valid
+     * attributes.
+     */
+    void decodeAll()
+    {
+        if (offsets == null)
+            return;
+
+        for (int i = 0; i < count;)
+        {
+            //a failed attribute is removed and the next one takes its index.
+            if (get(i) != null)
+                i++;
+        }
+    }
+
+    /**
+     * Returns the number of attributes in the table, which includes the
+     * ones that have not been decoded yet and may still fail to decode (see
+     * {@link #decodeAll()}).
+     *
+     * @return the number of attributes in the table.
+     */
+    int size()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the index of the attribute of type <tt>type</tt>.
+     *
+     * @param type the type of the attribute.
+     *
+     * @return the index of the attribute of type <tt>type</tt> or <tt>-1</tt>
+     * if there is no such attribute in the table.
+     */
+    int indexOf(char type)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            if (types[i] == type)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the attribute of type <tt>type</tt>.
+     *
+     * @param type the type of the attribute.
+     *
+     * @return the attribute of type <tt>type</tt> or <tt>null</tt> if there is
+     * no such attribute in the table or it could not be decoded.
+     */
+    Attribute get(char type)
+    {
+        int index = indexOf(type);
+
+        return (index < 0) ? null : get(index);
+    }
+
+    /**
+     * Returns the attribute at <tt>index</tt>, decoding it if this is the
+     * first time it is asked for. An attribute that fails to decode is
+     * removed from the table and the attributes after it are shifted one
+     * position down.
+     *
+     * @param index the index of the attribute.
+     *
+     * @return the attribute at <tt>index</tt> or <tt>null</tt> if it could not
+     * be decoded.
+     */
+    Attribute get(int index)
+    {
+        Attribute attribute = attributes[index];
+
+        if (attribute == null && offsets != null && offsets[index] >= 0)
+        {
+            int offset = offsets[index];
+
+            offsets[index] = -1;
+            try
+            {
+                attribute
+                    = AttributeDecoder.decode(
+                            bytes,
+                            (char) (offset - base),
+                            (char) (limit - offset),
+                            (pool == null)
+                                ? null
+                                : pool.acquireAttribute(types[index]));
+                //report the location in the message rather than in the copy.
+                attribute.setLocationInMessage(offset);
+                attributes[index] = attribute;
+            }
+            catch (StunException ex)
+            {
+                logger.log(Level.FINE,
+                           "Failed to decode attribute of type 0x"
+                               + Integer.toHexString(types[index]),
+                           ex);
+                removeAt(index);
+            }
+        }
+        return attribute;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.message;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.stack.*;
+
+/**
+ * A pre-encoded Binding success response to ICE connectivity checks that
+ * carry a specific USERNAME. Such responses contain an XOR-MAPPED-ADDRESS,
+ * the USERNAME of the check, a MESSAGE-INTEGRITY signed with the local
+ * password and, just like any other message we encode, a SOFTWARE and a
+ * FINGERPRINT attribute if the {@link StackConfiguration} of the stack
+ * says so. Their layout only depends on
+ * the USERNAME and the address family of the checking peer, so the template
+ * encodes everything else once and {@link #render(byte[], TransportAddress,
+ * byte[], int)} only has to copy it, patch in the transaction ID and the
+ * XOR-MAPPED-ADDRESS and compute the MESSAGE-INTEGRITY and FINGERPRINT
+ * values in place. The resulting bytes are identical to the ones that
+ * encoding the equivalent <tt>Response</tt> would produce.
+ * <p>
+ * Templates are immutable and may be rendered by several threads at once.
+ * They have to be created again when the configuration of the stack is
+ * reloaded.
+ * </p>
+ *
+ * @author agent
+ */
+public class BindingResponseTemplate
+{
+    /**
+     * The length of the value of an XOR-MAPPED-ADDRESS for an IPv4 address.
+     */
+    private static final int IPV4_ADDRESS_VALUE_LENGTH = 8;
+
+    /**
+     * The length of the value of an XOR-MAPPED-ADDRESS for an IPv6 address.
+     */
+    private static final int IPV6_ADDRESS_VALUE_LENGTH = 20;
+
+    /**
+     * The address family of IPv4 addresses in address attributes.
+     */
+    private static final byte ADDRESS_FAMILY_IPV4 = 0x01;
+
+    /**
+     * The address family of IPv6 addresses in address attributes.
+     */
+    private static final byte ADDRESS_FAMILY_IPV6 = 0x02;
+
+    /**
+     * The encoded response with a zero transaction ID, address and
+     * MESSAGE-INTEGRITY and FINGERPRINT values.
+     */
+    private final byte[] template;
+
+    /**
+     * Whether this template is for IPv6 peers.
+     */
+    private final boolean ipv6;
+
+    /**
+     * The key that MESSAGE-INTEGRITY is calculated with.
+     */
+    private final byte[] key;
+
+    /**
+     * The offset of the MESSAGE-INTEGRITY attribute in {@link #template}.
+     */
+    private final int messageIntegrityOffset;
+
+    /**
+     * The offset of the FINGERPRINT attribute in {@link #template} or
+     * <tt>-1</tt> if responses have no FINGERPRINT.
+     */
+    private final int fingerprintOffset;
+
+    /**
+     * Creates a template for the responses to the checks that carry
+     * <tt>username</tt> and come from addresses of a specific family.
+     *
+     * @param username the value of the USERNAME attribute of the checks.
+     * @param key the key to calculate MESSAGE-INTEGRITY with (i.e. the local
+     * password).
+     * @param ipv6 <tt>true</tt> if the template is for IPv6 peers and
+     * <tt>false</tt> for IPv4 ones.
+     * @param configuration the configuration of the stack that sends the
+     * responses.
+     */
+    public BindingResponseTemplate(byte[]             username,
+                                   byte[]             key,
+                                   boolean            ipv6,
+                                   StackConfiguration configuration)
+    {
+        String software = configuration.getSoftware();
+        byte[] softwareBytes = (software == null) ? null : software.getBytes();
+        boolean fingerprint = configuration.isAlwaysSign();
+        int addressValueLength
+            = ipv6 ? IPV6_ADDRESS_VALUE_LENGTH : IPV4_ADDRESS_VALUE_LENGTH;
+
+        int length
+            = Message.HEADER_LENGTH
+                + Attribute.HEADER_LENGTH + addressValueLength
+                + paddedLength(username.length);
+
+        if (softwareBytes != null)
+            length += paddedLength(softwareBytes.length);
+
+        int messageIntegrityOffset = length;
+
+        length
+            += Attribute.HEADER_LENGTH
+                + MessageIntegrityAttribute.DATA_LENGTH;
+
+        int fingerprintOffset = -1;
+
+        if (fingerprint)
+        {
+            fingerprintOffset = length;
+            length += Attribute.HEADER_LENGTH + 4;
+        }
+
+        byte[] template = new byte[length];
+        int offset = 0;
+
+        //header
+        offset
+            = putHeader(template, offset, Message.BINDING_SUCCESS_RESPONSE,
+                    length - Message.HEADER_LENGTH);
+        System.arraycopy(Message.MAGIC_COOKIE, 0, template, offset, 4);
+        offset += 4 + Message.TRANSACTION_ID_LENGTH;
+
+        //XOR-MAPPED-ADDRESS
+        offset
+            = putHeader(template, offset, Attribute.XOR_MAPPED_ADDRESS,
+                    addressValueLength);
+        template[offset + 1]
+            = ipv6 ? ADDRESS_FAMILY_IPV6 : ADDRESS_FAMILY_IPV4;
+        offset += addressValueLength;
+
+        offset = putAttribute(template, offset, Attribute.USERNAME, username);
+        if (softwareBytes != null)
+        {
+            offset
+                = putAttribute(template, offset, Attribute.SOFTWARE,
+                        softwareBytes);
+        }
+
+        putHeader(template, offset, Attribute.MESSAGE_INTEGRITY,
+                MessageIntegrityAttribute.DATA_LENGTH);
+        if (fingerprint)
+            putHeader(template, fingerprintOffset, Attribute.FINGERPRINT, 4);
+
+        this.template = template;
+        this.ipv6 = ipv6;
+        this.key = key.clone();
+        this.messageIntegrityOffset = messageIntegrityOffset;
+        this.fingerprintOffset = fingerprintOffset;
+    }
+
+    /**
+     * Returns the length of an attribute including its header and padding.
+     *
+     * @param valueLength the length of the value of the attribute.
+     *
+     * @return the length of the attribute including its header and padding.
+     */
+    private static int paddedLength(int valueLength)
+    {
+        return
+            Attribute.HEADER_LENGTH + valueLength + (4 - valueLength % 4) % 4;
+    }
+
+    /**
+     * Writes a 16-bit type and a 16-bit length (the layout shared by the
+     * message header and attribute headers).
+     *
+     * @param bytes the array to write into.
+     * @param offset the index to write at.
+     * @param type the type.
+     * @param length the length.
+     *
+     * @return the index after the length.
+     */
+    private static int putHeader(byte[] bytes, int offset, int type, int length)
+    {
+        bytes[offset++] = (byte) (type >> 8);
+        bytes[offset++] = (byte) (type & 0xFF);
+        bytes[offset++] = (byte) (length >> 8);
+        bytes[offset++] = (byte) (length & 0xFF);
+        return offset;
+    }
+
+    /**
+     * Writes an attribute with a constant value and zero padding.
+     *
+     * @param bytes the array to write into.
+     * @param offset the index to write at.
+     * @param type the type of the attribute.
+     * @param value the value of the attribute.
+     *
+     * @return the index after the padding of the attribute.
+     */
+    private static int putAttribute(byte[] bytes,
+                                    int    offset,
+                                    int    type,
+                                    byte[] value)
+    {
+        offset = putHeader(bytes, offset, type, value.length);
+        System.arraycopy(value, 0, bytes, offset, value.length);
+        return offset + value.length + (4 - value.length % 4) % 4;
+    }
+
+    /**
+     * Returns the length of the responses rendered from this template.
+     *
+     * @return the length of the responses rendered from this template.
+     */
+    public int getLength()
+    {
+        return template.length;
+    }
+
+    /**
+     * Determines whether this template is for peers with IPv6 addresses.
+     *
+     * @return <tt>true</tt> if this template is for IPv6 peers and
+     * <tt>false</tt> if it is for IPv4 ones.
+     */
+    public boolean isIPv6()
+    {
+        return ipv6;
+    }
+
+    /**
+     * Writes a response with a specific transaction ID and mapped address
+     * into <tt>buffer</tt>.
+     *
+     * @param transactionID the 12 byte RFC 5389 transaction ID of the check.
+     * @param mappedAddress the address the check came from.
+     * @param buffer the array to write the response into. It must have room
+     * for {@link #getLength()} bytes after <tt>offset</tt>.
+     * @param offset the index in <tt>buffer</tt> to write the response at.
+     *
+     * @return the number of bytes written, i.e. {@link #getLength()}.
+     *
+     * @throws IllegalArgumentException if <tt>transactionID</tt> is not an
+     * RFC 5389 transaction ID or <tt>mappedAddress</tt> is not of the address
+     * family of this template.
+     */
+    public int render(byte[]           transactionID,
+                      TransportAddress mappedAddress,
+                      byte[]           buffer,
+                      int              offset)
+        throws IllegalArgumentException
+    {
+        if (transactionID.length != Message.TRANSACTION_ID_LENGTH)
+        {
+            throw new IllegalArgumentException(
+                    "Not an RFC 5389 transaction ID");
+        }
+        if (mappedAddress.isIPv6() != ipv6)
+        {
+            throw new IllegalArgumentException(
+                    mappedAddress + " is not of the address family of this"
+                        + " template");
+        }
+
+        int length = template.length;
+
+        System.arraycopy(template, 0, buffer, offset, length);
+        System.arraycopy(transactionID, 0, buffer, offset + 8,
+                Message.TRANSACTION_ID_LENGTH);
+
+        //XOR-MAPPED-ADDRESS: the port is XOR-ed with the most significant
+        //half of the cookie and the address with the cookie and, for IPv6,
+        //the transaction ID that follows it in the header.
+        int addressOffset
+            = offset + Message.HEADER_LENGTH + Attribute.HEADER_LENGTH;
+        int port = mappedAddress.getPort();
+        byte[] address = mappedAddress.getAddressBytes();
+
+        buffer[addressOffset + 2]
+            = (byte) ((port >> 8) ^ Message.MAGIC_COOKIE[0]);
+        buffer[addressOffset + 3]
+            = (byte) ((port & 0xFF) ^ Message.MAGIC_COOKIE[1]);
+        for (int i = 0; i < address.length; i++)
+        {
+            buffer[addressOffset + 4 + i]
+                = (byte) (address[i] ^ buffer[offset + 4 + i]);
+        }
+
+        //MESSAGE-INTEGRITY covers a message length that ends with it
+        int messageLength = length - Message.HEADER_LENGTH;
+
+        if (fingerprintOffset >= 0)
+        {
+            putHeader(buffer, offset, Message.BINDING_SUCCESS_RESPONSE,
+                    fingerprintOffset - Message.HEADER_LENGTH);
+        }
+        MessageIntegrityAttribute.calculateHmacSha1(
+                buffer, offset, messageIntegrityOffset,
+                key,
+                buffer,
+                offset + messageIntegrityOffset + Attribute.HEADER_LENGTH);
+
+        if (fingerprintOffset >= 0)
+        {
+            putHeader(buffer, offset, Message.BINDING_SUCCESS_RESPONSE,
+                    messageLength);
+            FingerprintAttribute.calculateXorCRC32(
+                    buffer, offset, fingerprintOffset,
+                    buffer,
+                    offset + fingerprintOffset + Attribute.HEADER_LENGTH);
+        }
+        return length;
+    }
+}
@@ -6,6 +6,7 @@
  */
 package org.ice4j.message;
 
+import java.nio.*;
 import java.util.*;
 import java.util.logging.*;
 
@@ -261,14 +262,12 @@ public abstract class Message
     public static final byte RFC3489_TRANSACTION_ID_LENGTH = 16;
 
     /**
-     * The list of attributes contained by the message. We are using a Map
-     * rather than a uni-dimensional list, in order to facilitate attribute
-     * search (even though it introduces some redundancies). Order is important
-     * so we'll be using a <tt>LinkedHashMap</tt>
+     * The attributes contained by the message, in the order they were added
+     * (which is the order they are encoded in). The table is also the lock
+     * that guards them. It replaces the protected <tt>LinkedHashMap</tt> that
+     * subclasses used to access directly (see {@link #getAttributeMap()}).
      */
-    //not sure this is the best solution but I'm trying to keep entry order
-    protected LinkedHashMap<Character, Attribute> attributes
-                                = new LinkedHashMap<Character, Attribute>();
+    private final AttributeTable attributes = new AttributeTable();
 
     /**
      * Attribute presentity is a thing of RFC 3489 and no longer exists in
@@ -446,15 +445,26 @@ public abstract class Message
     {
         char length = 0;
 
-        List<Attribute> attrs = getAttributes();
-        for (Attribute att : attrs)
+        synchronized(attributes)
         {
-            int attLen = att.getDataLength() + Attribute.HEADER_LENGTH;
+            attributes.decodeAll();
+
+            int count = attributes.size();
+
+            for (int i = 0; i < count; i++)
+            {
+                Attribute att = attributes.get(i);
+
+                if (att == null)
+                    continue;
 
-            //take attribute padding into account:
-            attLen += (4 - (attLen % 4)) % 4;
+                int attLen = att.getDataLength() + Attribute.HEADER_LENGTH;
 
-            length += attLen;
+                //take attribute padding into account:
+                attLen += (4 - (attLen % 4)) % 4;
+
+                length += attLen;
+            }
         }
         return length;
     }
@@ -469,12 +479,19 @@ public abstract class Message
     {
         char length = 0;
 
-        List<Attribute> attrs = getAttributes();
-
-        for (Attribute att : attrs)
+        synchronized(attributes)
         {
-            int attLen = att.getDataLength() + Attribute.HEADER_LENGTH;
-            length += attLen;
+            attributes.decodeAll();
+
+            int count = attributes.size();
+
+            for (int i = 0; i < count; i++)
+            {
+                Attribute att = attributes.get(i);
+
+                if (att != null)
+                    length += att.getDataLength() + Attribute.HEADER_LENGTH;
+            }
         }
         return length;
     }
@@ -502,7 +519,7 @@ public abstract class Message
 
         synchronized(attributes)
         {
-            attributes.put(attribute.getAttributeType(), attribute);
+            attributes.put(attribute);
         }
     }
 
@@ -517,7 +534,10 @@ public abstract class Message
      */
     public boolean containsAttribute(char attributeType)
     {
-        return attributes.containsKey(attributeType);
+        synchronized(attributes)
+        {
+            return attributes.get(attributeType) != null;
+        }
     }
 
     /**
@@ -545,7 +565,47 @@ public abstract class Message
     {
         synchronized(attributes)
         {
-            return new LinkedList<Attribute>(attributes.values());
+            attributes.decodeAll();
+
+            int count = attributes.size();
+            List<Attribute> list = new LinkedList<Attribute>();
+
+            for (int i = 0; i < count; i++)
+            {
+                Attribute attribute = attributes.get(i);
+
+                if (attribute != null)
+                    list.add(attribute);
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Returns the attributes of this message by type, in the order they were
+     * added. The returned map is a copy so changes to it do not affect the
+     * message, which has to be modified through
+     * {@link #addAttribute(Attribute)} and {@link #removeAttribute(char)}.
+     *
+     * @return a copy of the attributes of this message by type.
+     */
+    protected Map<Character, Attribute> getAttributeMap()
+    {
+        synchronized(attributes)
+        {
+            attributes.decodeAll();
+
+            int count = attributes.size();
+            Map<Character, Attribute> map
+                = new LinkedHashMap<Character, Attribute>(count * 2);
+
+            for (int i = 0; i < count; i++)
+            {
+                Attribute attribute = attributes.get(i);
+
+                map.put(attribute.getAttributeType(), attribute);
+            }
+            return map;
         }
     }
 
@@ -571,7 +631,58 @@ public abstract class Message
      */
     public int getAttributeCount()
     {
-        return  attributes.size();
+        synchronized(attributes)
+        {
+            attributes.decodeAll();
+            return attributes.size();
+        }
+    }
+
+    /**
+     * Takes this message out of the {@link MessagePool} it was decoded from
+     * so that it and its attributes remain valid after the stack has finished
+     * dispatching it. Listeners that keep a received message (or any of its
+     * attributes) beyond the call that delivered it, or that pass it to
+     * another thread, must call this method before they return.
+     * <p>
+     * A message that was decoded lazily also stops referencing the array it
+     * was decoded from, which may then be reused, by copying the part of it
+     * that the attributes which have not been decoded yet are in.
+     * </p>
+     *
+     * @return this message.
+     */
+    public Message retain()
+    {
+        synchronized(attributes)
+        {
+            attributes.setPool(null);
+            attributes.detachBytes();
+        }
+        return this;
+    }
+
+    /**
+     * Empties this message and hands its attributes to <tt>pool</tt> if it
+     * was decoded from a {@link MessagePool} and has not been retained.
+     *
+     * @param pool the pool to hand the attributes of this message to.
+     *
+     * @return <tt>true</tt> if the message has been emptied and may be
+     * reused and <tt>false</tt> if it has to be left alone.
+     */
+    boolean recycle(MessagePool pool)
+    {
+        synchronized(attributes)
+        {
+            if (attributes.getPool() == null)
+                return false;
+
+            attributes.recycle(pool);
+            messageType = 0x0000;
+            transactionID = null;
+            return true;
+        }
     }
 
     /**
@@ -806,7 +917,7 @@ public abstract class Message
             return false;
 
         //compare attributes
-        for (Attribute localAtt : attributes.values())
+        for (Attribute localAtt : getAttributes())
         {
             if(!localAtt.equals(msg.getAttribute(localAtt.getAttributeType())))
                 return false;
@@ -828,12 +939,76 @@ public abstract class Message
     public byte[] encode(StunStack stunStack)
         throws IllegalStateException
     {
-        prepareForEncoding();
+        char dataLength = prepareForEncoding(stunStack);
+        byte binMsg[] = new byte[HEADER_LENGTH + dataLength];
+
+        encode(stunStack, binMsg, 0, dataLength);
+        return binMsg;
+    }
+
+    /**
+     * Writes a binary representation of this message into <tt>buffer</tt>,
+     * starting at its current position, and advances the position of
+     * <tt>buffer</tt> past the message. When <tt>buffer</tt> is backed by an
+     * accessible array the message is encoded straight into it.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>Message</tt> is being made
+     * @param buffer the buffer to write the message into.
+     *
+     * @throws IllegalStateException if the message does not have all
+     * required attributes.
+     * @throws BufferOverflowException if there is not enough room for the
+     * message in <tt>buffer</tt>. The buffer is left unchanged.
+     */
+    public void encode(StunStack stunStack, ByteBuffer buffer)
+        throws IllegalStateException,
+               BufferOverflowException
+    {
+        char dataLength = prepareForEncoding(stunStack);
+        int length = HEADER_LENGTH + dataLength;
+
+        if (buffer.remaining() < length)
+            throw new BufferOverflowException();
+
+        if (buffer.hasArray())
+        {
+            encode(stunStack,
+                   buffer.array(),
+                   buffer.arrayOffset() + buffer.position(),
+                   dataLength);
+            buffer.position(buffer.position() + length);
+        }
+        else
+        {
+            byte binMsg[] = new byte[length];
+
+            encode(stunStack, binMsg, 0, dataLength);
+            buffer.put(binMsg);
+        }
+    }
+
+    /**
+     * Adds the attributes requested through configuration properties, checks
+     * that the message can be encoded and returns the length of its data.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>Message</tt> is being made
+     *
+     * @return the length of the data of this message as it is going to be
+     * encoded.
+     *
+     * @throws IllegalStateException if the message does not have all
+     * required attributes.
+     */
+    private char prepareForEncoding(StunStack stunStack)
+        throws IllegalStateException
+    {
+        prepareForEncoding(stunStack.getConfiguration());
 
         //make sure we have everything necessary to encode a proper message
         validateAttributePresentity();
 
-        final char dataLength;
         if(stunStack.getCompatibilityMode() == CompatibilityMode.GTALK)
         {
             /* Google Talk will return error response if it sees unknown
@@ -845,15 +1020,33 @@ public abstract class Message
             if(getAttribute(Attribute.FINGERPRINT) != null)
                 removeAttribute(Attribute.FINGERPRINT);
 
-            dataLength = getDataLengthWithoutPadding();
+            return getDataLengthWithoutPadding();
         }
         else
         {
-            dataLength = getDataLength();
+            return getDataLength();
         }
+    }
 
-        byte binMsg[] = new byte[HEADER_LENGTH + dataLength];
-        int offset    = 0;
+    /**
+     * Encodes this message into <tt>binMsg</tt>.
+     *
+     * @param stunStack the <tt>StunStack</tt> in the context of which the
+     * request to encode this <tt>Message</tt> is being made
+     * @param binMsg the array to encode the message into.
+     * @param start the index in <tt>binMsg</tt> where the message starts.
+     * There must be room for {@link #HEADER_LENGTH} plus
+     * <tt>dataLength</tt> bytes.
+     * @param dataLength the length of the data of the message as returned by
+     * {@link #prepareForEncoding(StunStack)}.
+     */
+    private void encode(StunStack stunStack,
+                        byte[]    binMsg,
+                        int       start,
+                        char      dataLength)
+    {
+        int offset    = start;
+        final int end = start + HEADER_LENGTH + dataLength;
 
         // STUN Message Type
         binMsg[offset++] = (byte)(getMessageType() >> 8);
@@ -881,72 +1074,87 @@ public abstract class Message
             offset += RFC3489_TRANSACTION_ID_LENGTH;
         }
 
-        Vector<Map.Entry<Character, Attribute>> v =
-            new Vector<Map.Entry<Character, Attribute>>();
-        Iterator<Map.Entry<Character, Attribute>> iter = null;
         char dataLengthForContentDependentAttribute = 0;
 
         synchronized (attributes)
         {
-            v.addAll(attributes.entrySet());
-        }
+            attributes.decodeAll();
 
-        iter = v.iterator();
+            int count = attributes.size();
 
-        while (iter.hasNext())
-        {
-            Attribute attribute = iter.next().getValue();
-            int attributeLength
-                = attribute.getDataLength() + Attribute.HEADER_LENGTH;
+            for (int index = 0; index < count; index++)
+            {
+                Attribute attribute = attributes.get(index);
 
-            //take attribute padding into account:
-            attributeLength += (4 - attributeLength % 4) % 4;
-            dataLengthForContentDependentAttribute += attributeLength;
+                if (attribute == null)
+                    continue;
 
-            //special handling for message integrity and fingerprint values
-            byte[] binAtt;
+                int attributeLength
+                    = attribute.getDataLength() + Attribute.HEADER_LENGTH;
+
+                //take attribute padding into account:
+                attributeLength += (4 - attributeLength % 4) % 4;
+                dataLengthForContentDependentAttribute += attributeLength;
+
+                //special handling for message integrity and fingerprint values
+                byte[] binAtt;
+
+                if (attribute instanceof ContentDependentAttribute)
+                {
+                    /*
+                     * The "Message Length" seen by a ContentDependentAttribute
+                     * is up to and including the very Attribute but without any
+                     * other Attribute instances after it.
+                     */
+                    binMsg[messageLengthOffset]
+                        = (byte)(dataLengthForContentDependentAttribute >> 8);
+                    binMsg[messageLengthOffset + 1]
+                        = (byte)(dataLengthForContentDependentAttribute & 0xFF);
+                    binAtt
+                        = ((ContentDependentAttribute)attribute)
+                                .encode(stunStack, binMsg, start,
+                                        offset - start);
+                }
+                else
+                {
+                    binAtt = attribute.encode();
+                }
+
+                System.arraycopy(binAtt, 0, binMsg, offset, binAtt.length);
 
-            if (attribute instanceof ContentDependentAttribute)
-            {
                 /*
-                 * The "Message Length" seen by a ContentDependentAttribute is
-                 * up to and including the very Attribute but without any other
-                 * Attribute instances after it.
+                 * The array may be reused so clear the padding rather than
+                 * rely on it being zeroed. Note that the message may end
+                 * without the padding of its last attribute (see
+                 * getDataLengthWithoutPadding()).
                  */
-                binMsg[messageLengthOffset]
-                    = (byte)(dataLengthForContentDependentAttribute >> 8);
-                binMsg[messageLengthOffset + 1]
-                    = (byte)(dataLengthForContentDependentAttribute & 0xFF);
-                binAtt
-                    = ((ContentDependentAttribute)attribute)
-                            .encode(stunStack, binMsg, 0, offset);
-            }
-            else
-            {
-                binAtt = attribute.encode();
-            }
+                for (int i = offset + binAtt.length;
+                        i < offset + attributeLength && i < end;
+                        i++)
+                    binMsg[i] = 0;
 
-            System.arraycopy(binAtt, 0, binMsg, offset, binAtt.length);
-            /*
-             * Offset by attributeLength and not by binAtt.length because
-             * attributeLength takes the attribute padding into account and
-             * binAtt.length does not.
-             */
-            offset += attributeLength;
+                /*
+                 * Offset by attributeLength and not by binAtt.length because
+                 * attributeLength takes the attribute padding into account and
+                 * binAtt.length does not.
+                 */
+                offset += attributeLength;
+            }
         }
 
         // Message Length
         binMsg[messageLengthOffset]     = (byte)(dataLength >> 8);
         binMsg[messageLengthOffset + 1] = (byte)(dataLength & 0xFF);
-
-        return binMsg;
     }
 
     /**
      * Adds attributes that have been requested vis configuration properties.
      * Asserts attribute order where necessary.
+     *
+     * @param configuration the configuration of the stack that the message
+     * is being encoded for.
      */
-    private void prepareForEncoding()
+    private void prepareForEncoding(StackConfiguration configuration)
     {
         //remove MESSAGE-INTEGRITY and FINGERPRINT attributes so that we can
         //make sure they are added at the end.
@@ -955,10 +1163,9 @@ public abstract class Message
 
         //add a SOFTWARE attribute if the user said so, and unless they did it
         //themselves.
-        String software = System.getProperty(StackProperties.SOFTWARE);
+        String software = configuration.getSoftware();
 
-        if (getAttribute(Attribute.SOFTWARE) == null
-            && software != null && software.length() > 0)
+        if (getAttribute(Attribute.SOFTWARE) == null && software != null)
         {
             addAttribute(AttributeFactory
                             .createSoftwareAttribute(software.getBytes()));
@@ -973,7 +1180,7 @@ public abstract class Message
         //add FINGERPRINT if there was one or if user told us to add it
         //everywhere.
         if (fingerprint == null
-            && Boolean.getBoolean(StackProperties.ALWAYS_SIGN))
+            && configuration.isAlwaysSign())
         {
             fingerprint = AttributeFactory.createFingerprintAttribute();
         }
@@ -996,10 +1203,224 @@ public abstract class Message
      */
     public static Message decode(byte binMessage[], char offset, char arrayLen)
         throws StunException
+    {
+        return decode(binMessage, offset, arrayLen, null);
+    }
+
+    /**
+     * Constructs a message from its binary representation, taking the message
+     * and its most common attributes from <tt>pool</tt>. The message has to
+     * be handed back with {@link MessagePool#recycle(Message)} once it has
+     * been dispatched.
+     *
+     * @param binMessage the binary array that contains the encoded message
+     * @param offset the index where the message starts.
+     * @param arrayLen the length of the message
+     * @param pool the pool of the current thread or <tt>null</tt> to create
+     * a new message.
+     * @return a Message object constructed from the binMessage array
+     *
+     * @throws StunException <tt>ILLEGAL_ARGUMENT</tt> if one or more of the
+     * arguments have invalid values.
+     */
+    public static Message decode(byte        binMessage[],
+                                 char        offset,
+                                 char        arrayLen,
+                                 MessagePool pool)
+        throws StunException
     {
         int originalOffset = offset;
         arrayLen = (char)Math.min(binMessage.length, arrayLen);
 
+        Message message = decodeHeader(binMessage, offset, arrayLen, pool);
+        int length = getDataLength(binMessage, offset);
+
+        offset += HEADER_LENGTH;
+
+        while(offset - Message.HEADER_LENGTH < length)
+        {
+            Attribute att = AttributeDecoder.decode(
+                binMessage, offset, (char)(length - offset),
+                (pool == null)
+                    ? null
+                    : pool.acquireAttribute(
+                            (char)((binMessage[offset] << 8)
+                                    | binMessage[offset + 1])));
+
+            performAttributeSpecificActions(att, binMessage,
+                originalOffset, offset);
+
+            message.addAttribute(att);
+            offset += att.getDataLength() + Attribute.HEADER_LENGTH;
+
+            //now also skip any potential padding that might have come with
+            //this attribute.
+            if((att.getDataLength() % 4) > 0)
+            {
+                offset += (4 - (att.getDataLength() % 4));
+            }
+        }
+
+        return message;
+    }
+
+    /**
+     * Constructs a message from its binary representation without decoding
+     * its attributes. The attributes are only indexed by type and offset and
+     * each of them is decoded the first time it is asked for through
+     * {@link #getAttribute(char)}, so a message whose handler only looks at a
+     * couple of its attributes costs a fraction of what
+     * {@link #decode(byte[], char, char)} does. <tt>FINGERPRINT</tt> is the
+     * exception and is decoded and validated right away.
+     * <p>
+     * The returned message references <tt>binMessage</tt> rather than copying
+     * it so the array must not be modified or reused for as long as the
+     * message is in use, or until it has been retained (see
+     * {@link #retain()}). Attributes that turn out to be malformed when they
+     * are eventually decoded are logged and removed from the message.
+     * </p>
+     *
+     * @param binMessage the binary array that contains the encoded message
+     * @param offset the index where the message starts.
+     * @param length the number of bytes of the message in <tt>binMessage</tt>.
+     * @return a Message object constructed from the binMessage array
+     *
+     * @throws StunException <tt>ILLEGAL_ARGUMENT</tt> if one or more of the
+     * arguments have invalid values or if the <tt>FINGERPRINT</tt> of the
+     * message is wrong.
+     */
+    public static Message decodeLazily(byte[] binMessage, int offset, int length)
+        throws StunException
+    {
+        return decodeLazily(binMessage, offset, length, null);
+    }
+
+    /**
+     * Constructs a message from its binary representation without decoding
+     * its attributes (see {@link #decodeLazily(byte[], int, int)}), taking
+     * the message and the most common attributes it decodes from
+     * <tt>pool</tt>. The message has to be handed back with
+     * {@link MessagePool#recycle(Message)} once it has been dispatched.
+     *
+     * @param binMessage the binary array that contains the encoded message
+     * @param offset the index where the message starts.
+     * @param length the number of bytes of the message in <tt>binMessage</tt>.
+     * @param pool the pool of the current thread or <tt>null</tt> to create
+     * a new message.
+     * @return a Message object constructed from the binMessage array
+     *
+     * @throws StunException <tt>ILLEGAL_ARGUMENT</tt> if one or more of the
+     * arguments have invalid values or if the <tt>FINGERPRINT</tt> of the
+     * message is wrong.
+     */
+    public static Message decodeLazily(byte[]      binMessage,
+                                       int         offset,
+                                       int         length,
+                                       MessagePool pool)
+        throws StunException
+    {
+        if (binMessage == null)
+        {
+            throw new StunException( StunException.ILLEGAL_ARGUMENT,
+                         "The given binary array is not a valid StunMessage");
+        }
+
+        int arrayLen = Math.min(binMessage.length, offset + length);
+        Message message = decodeHeader(binMessage, offset, arrayLen, pool);
+        int attOffset = offset + HEADER_LENGTH;
+        int end = attOffset + getDataLength(binMessage, offset);
+        AttributeTable attributes = message.attributes;
+
+        attributes.setBytes(binMessage, end);
+
+        while (attOffset < end)
+        {
+            if (end - attOffset < Attribute.HEADER_LENGTH)
+            {
+                throw new StunException(StunException.ILLEGAL_ARGUMENT,
+                        "Truncated attribute header at " + attOffset);
+            }
+
+            //same arithmetic as AttributeDecoder so that types match
+            char attType = (char)((binMessage[attOffset] << 8)
+                                    | binMessage[attOffset + 1]);
+            int attLen = ((binMessage[attOffset + 2] & 0xFF) << 8)
+                            | (binMessage[attOffset + 3] & 0xFF);
+
+            if (end - attOffset - Attribute.HEADER_LENGTH < attLen)
+            {
+                throw new StunException(StunException.ILLEGAL_ARGUMENT,
+                        "Truncated attribute at " + attOffset);
+            }
+
+            if (message.getAttributePresentity(attType) == N_A)
+            {
+                throw new IllegalArgumentException(
+                        "The attribute 0x" + Integer.toHexString(attType)
+                            + " is not allowed in a " + message.getName());
+            }
+
+            if (attType == Attribute.FINGERPRINT)
+            {
+                Attribute att = AttributeDecoder.decode(
+                        binMessage, (char)attOffset, (char)(end - attOffset),
+                        (pool == null) ? null : pool.acquireAttribute(attType));
+
+                performAttributeSpecificActions(att, binMessage,
+                    offset, attOffset - offset);
+                attributes.put(att);
+            }
+            else
+            {
+                attributes.put(attType, attOffset);
+            }
+
+            attOffset += Attribute.HEADER_LENGTH + attLen;
+
+            //now also skip any potential padding that might have come with
+            //this attribute.
+            attOffset += (4 - (attLen % 4)) % 4;
+        }
+
+        return message;
+    }
+
+    /**
+     * Returns the value of the message length field of a message.
+     *
+     * @param binMessage the binary array that contains the encoded message
+     * @param offset the index where the message starts.
+     *
+     * @return the length of the data of the message.
+     */
+    private static int getDataLength(byte[] binMessage, int offset)
+    {
+        return (char)((binMessage[offset + 2] << 8)
+                        | (binMessage[offset + 3]  & 0xFF));
+    }
+
+    /**
+     * Creates a message of the type and with the transaction ID found in the
+     * header of its binary representation and makes sure that the array holds
+     * the whole message.
+     *
+     * @param binMessage the binary array that contains the encoded message
+     * @param offset the index where the message starts.
+     * @param arrayLen the index in <tt>binMessage</tt> past the last byte that
+     * may belong to the message.
+     * @param pool the pool to take the message from or <tt>null</tt> to
+     * create a new one.
+     * @return a Message object with no attributes.
+     *
+     * @throws StunException <tt>ILLEGAL_ARGUMENT</tt> if one or more of the
+     * arguments have invalid values.
+     */
+    private static Message decodeHeader(byte[]      binMessage,
+                                        int         offset,
+                                        int         arrayLen,
+                                        MessagePool pool)
+        throws StunException
+    {
         if(binMessage == null || arrayLen - offset < Message.HEADER_LENGTH)
         {
             throw new StunException( StunException.ILLEGAL_ARGUMENT,
@@ -1013,28 +1434,34 @@ public abstract class Message
         /* 0x0115 is a old TURN DATA indication message type */
         if (Message.isResponseType(messageType) &&
                 messageType != OLD_DATA_INDICATION)
-            message = new Response();
+            message = (pool == null) ? new Response() : pool.acquireResponse();
         else if(Message.isRequestType(messageType))
-            message = new Request();
+            message = (pool == null) ? new Request() : pool.acquireRequest();
         else /* indication */
-            message = new Indication();
+        {
+            message
+                = (pool == null) ? new Indication() : pool.acquireIndication();
+        }
 
         message.setMessageType(messageType);
+        if (pool != null)
+            message.attributes.setPool(pool);
 
         int length = (char)((binMessage[offset++] << 8)
                           | (binMessage[offset++]  & 0xFF));
 
-        /* copy the cookie */
-        byte cookie[] = new byte[4];
-        System.arraycopy(binMessage, offset, cookie, 0, 4);
-        offset += 4;
-
+        /* compare the cookie in place rather than copying it */
         boolean rfc3489Compat = false;
 
-        if(!Arrays.equals(MAGIC_COOKIE, cookie))
+        for (int i = 0; i < MAGIC_COOKIE.length; i++)
         {
-            rfc3489Compat = true;
+            if (binMessage[offset + i] != MAGIC_COOKIE[i])
+            {
+                rfc3489Compat = true;
+                break;
+            }
         }
+        offset += 4;
 
         if(arrayLen - offset - TRANSACTION_ID_LENGTH < length)
         {
@@ -1043,29 +1470,27 @@ public abstract class Message
                         StunException.ILLEGAL_ARGUMENT,
                         "The given binary array does not seem to contain"
                             + " a whole StunMessage: given "
-                            + ((int) arrayLen)
+                            + arrayLen
                             + " bytes of "
                             + message.getName()
                             + " but expecting "
                             + (offset + TRANSACTION_ID_LENGTH + length));
         }
 
-        byte tranID[] = new byte[TRANSACTION_ID_LENGTH];
-        System.arraycopy(binMessage, offset, tranID, 0, TRANSACTION_ID_LENGTH);
         try
         {
-            if(rfc3489Compat)
-            {
-                byte rfc3489TranID[] = new byte[TRANSACTION_ID_LENGTH + 4];
-                System.arraycopy(cookie, 0, rfc3489TranID, 0, 4);
-                System.arraycopy(tranID, 0, rfc3489TranID, 4,
-                        TRANSACTION_ID_LENGTH);
-                message.setTransactionID(rfc3489TranID);
-            }
-            else
-            {
-                message.setTransactionID(tranID);
-            }
+            /*
+             * The message keeps the array so this is the only copy we make.
+             * RFC 3489 transaction IDs include the 4 bytes that would have
+             * been the cookie.
+             */
+            int tranIDOffset = rfc3489Compat ? (offset - 4) : offset;
+            byte tranID[]
+                = new byte[TRANSACTION_ID_LENGTH + (rfc3489Compat ? 4 : 0)];
+
+            System.arraycopy(binMessage, tranIDOffset, tranID, 0,
+                    tranID.length);
+            message.setTransactionID(tranID);
         }
         catch (StunException exc)
         {
@@ -1074,27 +1499,6 @@ public abstract class Message
                             + "contain a whole StunMessage", exc);
         }
 
-        offset += TRANSACTION_ID_LENGTH;
-
-        while(offset - Message.HEADER_LENGTH < length)
-        {
-            Attribute att = AttributeDecoder.decode(
-                binMessage, offset, (char)(length - offset));
-
-            performAttributeSpecificActions(att, binMessage,
-                originalOffset, offset);
-
-            message.addAttribute(att);
-            offset += att.getDataLength() + Attribute.HEADER_LENGTH;
-
-            //now also skip any potential padding that might have come with
-            //this attribute.
-            if((att.getDataLength() % 4) > 0)
-            {
-                offset += (4 - (att.getDataLength() % 4));
-            }
-        }
-
         return message;
     }
 
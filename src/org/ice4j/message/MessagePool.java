@@ -0,0 +1,264 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.message;
+
+import org.ice4j.attribute.*;
+
+/**
+ * A per-thread pool of the <tt>Message</tt>s and of the attributes that
+ * almost every incoming message carries (USERNAME, PRIORITY,
+ * XOR-MAPPED-ADDRESS, MESSAGE-INTEGRITY and FINGERPRINT) so that a stack
+ * which decodes and dispatches messages on the same thread does not have to
+ * allocate new ones for every datagram.
+ * <p>
+ * Messages decoded with {@link Message#decode(byte[], char, char,
+ * MessagePool)} or {@link Message#decodeLazily(byte[], int, int,
+ * MessagePool)} belong to the pool until they are handed back with
+ * {@link #recycle(Message)}, which empties them so they must not be used
+ * afterwards. Code that needs a message (or one of its attributes) after it
+ * has been recycled has to {@link Message#retain()} it first. Retained
+ * messages never go back to a pool. The values returned by the attributes
+ * of a message (addresses, byte arrays) are never reused so they remain
+ * valid either way.
+ * </p>
+ * <p>
+ * Pools are not thread-safe. Each of them may only be used by the thread
+ * that {@link #getInstance()} returned it to.
+ * </p>
+ *
+ * @author agent
+ */
+public final class MessagePool
+{
+    /**
+     * The maximum number of instances of every kind that a pool keeps.
+     */
+    private static final int CAPACITY = 8;
+
+    /**
+     * The index in {@link #free} of the pooled <tt>Request</tt>s.
+     */
+    private static final int REQUEST = 0;
+
+    /**
+     * The index in {@link #free} of the pooled <tt>Response</tt>s.
+     */
+    private static final int RESPONSE = 1;
+
+    /**
+     * The index in {@link #free} of the pooled <tt>Indication</tt>s.
+     */
+    private static final int INDICATION = 2;
+
+    /**
+     * The types of the attributes that we pool. The pooled attributes of
+     * <tt>ATTRIBUTE_TYPES[i]</tt> are at index <tt>INDICATION + 1 + i</tt> in
+     * {@link #free}.
+     */
+    private static final char[] ATTRIBUTE_TYPES
+        = new char[]
+        {
+            Attribute.USERNAME,
+            Attribute.PRIORITY,
+            Attribute.XOR_MAPPED_ADDRESS,
+            Attribute.MESSAGE_INTEGRITY,
+            Attribute.FINGERPRINT
+        };
+
+    /**
+     * The pool of every thread.
+     */
+    private static final ThreadLocal<MessagePool> pools
+        = new ThreadLocal<MessagePool>()
+        {
+            @Override
+            protected MessagePool initialValue()
+            {
+                return new MessagePool();
+            }
+        };
+
+    /**
+     * The free instances of every kind, indexed as described at
+     * {@link #REQUEST}, {@link #RESPONSE}, {@link #INDICATION} and
+     * {@link #ATTRIBUTE_TYPES}.
+     */
+    private final Object[][] free
+        = new Object[INDICATION + 1 + ATTRIBUTE_TYPES.length][CAPACITY];
+
+    /**
+     * The number of free instances of every kind in {@link #free}.
+     */
+    private final int[] freeCounts = new int[free.length];
+
+    /**
+     * Creates a pool. Use {@link #getInstance()} to get the pool of the
+     * current thread.
+     */
+    private MessagePool()
+    {
+    }
+
+    /**
+     * Returns the pool of the current thread.
+     *
+     * @return the pool of the current thread.
+     */
+    public static MessagePool getInstance()
+    {
+        return pools.get();
+    }
+
+    /**
+     * Empties <tt>message</tt> and hands it and its pooled attributes back to
+     * the pool of the current thread, unless it was not decoded from a pool
+     * or has been retained, in which case nothing happens.
+     *
+     * @param message the message to recycle.
+     *
+     * @return <tt>true</tt> if <tt>message</tt> has been recycled and
+     * <tt>false</tt> if it has been left alone.
+     */
+    public static boolean recycle(Message message)
+    {
+        MessagePool pool = getInstance();
+
+        if (!message.recycle(pool))
+            return false;
+
+        if (message instanceof Request)
+            pool.put(REQUEST, message);
+        else if (message instanceof Response)
+            pool.put(RESPONSE, message);
+        else
+            pool.put(INDICATION, message);
+        return true;
+    }
+
+    /**
+     * Returns a pooled <tt>Request</tt> or a new one if there is none.
+     *
+     * @return an empty <tt>Request</tt>.
+     */
+    Request acquireRequest()
+    {
+        Request request = (Request) take(REQUEST);
+
+        return (request == null) ? new Request() : request;
+    }
+
+    /**
+     * Returns a pooled <tt>Response</tt> or a new one if there is none.
+     *
+     * @return an empty <tt>Response</tt>.
+     */
+    Response acquireResponse()
+    {
+        Response response = (Response) take(RESPONSE);
+
+        return (response == null) ? new Response() : response;
+    }
+
+    /**
+     * Returns a pooled <tt>Indication</tt> or a new one if there is none.
+     *
+     * @return an empty <tt>Indication</tt>.
+     */
+    Indication acquireIndication()
+    {
+        Indication indication = (Indication) take(INDICATION);
+
+        return (indication == null) ? new Indication() : indication;
+    }
+
+    /**
+     * Returns a pooled attribute of type <tt>type</tt> to decode into.
+     *
+     * @param type the type of the attribute.
+     *
+     * @return a pooled attribute of type <tt>type</tt> or <tt>null</tt> if
+     * there is none or we don't pool attributes of that type.
+     */
+    Attribute acquireAttribute(char type)
+    {
+        int index = indexOf(type);
+
+        return (index < 0) ? null : (Attribute) take(index);
+    }
+
+    /**
+     * Hands an attribute of a message that is being recycled back to this
+     * pool if it is of a type that we pool.
+     *
+     * @param attribute the attribute.
+     */
+    void releaseAttribute(Attribute attribute)
+    {
+        int index = indexOf(attribute.getAttributeType());
+
+        if (index >= 0)
+            put(index, attribute);
+    }
+
+    /**
+     * Returns the index in {@link #free} of the attributes of type
+     * <tt>type</tt>.
+     *
+     * @param type the type of the attributes.
+     *
+     * @return the index in {@link #free} of the attributes of type
+     * <tt>type</tt> or <tt>-1</tt> if we don't pool them.
+     */
+    private static int indexOf(char type)
+    {
+        for (int i = 0; i < ATTRIBUTE_TYPES.length; i++)
+        {
+            if (ATTRIBUTE_TYPES[i] == type)
+                return INDICATION + 1 + i;
+        }
+        return -1;
+    }
+
+    /**
+     * Removes a free instance of a specific kind from this pool.
+     *
+     * @param kind the index of the kind in {@link #free}.
+     *
+     * @return a free instance or <tt>null</tt> if there is none.
+     */
+    private Object take(int kind)
+    {
+        int count = freeCounts[kind];
+
+        if (count == 0)
+            return null;
+
+        Object[] instances = free[kind];
+        Object instance = instances[--count];
+
+        instances[count] = null;
+        freeCounts[kind] = count;
+        return instance;
+    }
+
+    /**
+     * Adds a free instance of a specific kind to this pool unless it is full.
+     *
+     * @param kind the index of the kind in {@link #free}.
+     * @param instance the free instance.
+     */
+    private void put(int kind, Object instance)
+    {
+        int count = freeCounts[kind];
+
+        if (count < CAPACITY)
+        {
+            free[kind][count] = instance;
+            freeCounts[kind] = count + 1;
+        }
+    }
+}
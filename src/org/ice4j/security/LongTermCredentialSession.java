@@ -30,6 +30,14 @@ public class LongTermCredentialSession
      */
     private final LongTermCredential longTermCredential;
 
+    /**
+     * The key derived from the username, realm and password of this session
+     * (i.e. MD5(username ":" realm ":" SASLprep(password))) or <tt>null</tt>
+     * if it has not been asked for yet. Neither of them can change so the key
+     * is only computed once.
+     */
+    private volatile byte[] localKey;
+
     /**
      * The value of the NONCE attribute currently associated with the use of
      * {@link #longTermCredential} represented by this instance.
@@ -116,6 +124,21 @@ public class LongTermCredentialSession
         if (!checkLocalUserName(username))
             return null;
 
+        byte[] localKey = this.localKey;
+
+        if (localKey == null)
+            this.localKey = localKey = computeLocalKey(username);
+        return localKey.clone();
+    }
+
+    /**
+     * Computes the key that corresponds to the username of this session.
+     *
+     * @param username the local user name
+     * @return MD5(username ":" realm ":" SASLprep(password))
+     */
+    private byte[] computeLocalKey(String username)
+    {
         // MD5(username ":" realm ":" SASLprep(password))
         StringBuilder localKeyBuilder = new StringBuilder();
 
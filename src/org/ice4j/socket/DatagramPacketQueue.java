@@ -0,0 +1,331 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+import java.net.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
+
+/**
+ * A bounded ring of the <tt>DatagramPacket</tt>s that a
+ * <tt>MultiplexingDatagramSocket</tt> has read from the network and that wait
+ * to be received through it or through one of its
+ * <tt>MultiplexedDatagramSocket</tt>s. Only the payload of a packet is copied
+ * into the queue, into an array that belongs to the slot it is stored in and
+ * that is reused by every packet stored in that slot afterwards, so a queue
+ * does not allocate once its slots have seen packets of the usual size.
+ * <p>
+ * When the queue is full, new packets are handled according to the
+ * {@link OverflowPolicy} of the queue and every dropped packet is counted.
+ * </p>
+ * <p>
+ * Queues are not thread-safe. The <tt>MultiplexingDatagramSocket</tt> that
+ * owns a queue only accesses it while it holds its receive lock.
+ * </p>
+ *
+ * @author agent
+ */
+class DatagramPacketQueue
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>DatagramPacketQueue</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(DatagramPacketQueue.class.getName());
+
+    /**
+     * The capacity of a queue if no explicit value has been specified by
+     * {@link StackProperties#MULTIPLEXED_QUEUE_CAPACITY}.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The smallest array we allocate for a slot, large enough for any packet
+     * that fits in an Ethernet frame, so that slots rarely have to grow.
+     */
+    private static final int MIN_BUFFER_SIZE = 1500;
+
+    /**
+     * Determines what the queue does with a new packet when it is full.
+     */
+    enum OverflowPolicy
+    {
+        /**
+         * Drop the packet that is being added.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Drop the oldest packet in the queue to make room for the one being
+         * added.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * The payloads of the packets in the queue. The arrays are kept when
+     * packets are removed and reused for the next packets in the same slots.
+     */
+    private final byte[][] buffers;
+
+    /**
+     * The lengths of the payloads in {@link #buffers}.
+     */
+    private final int[] lengths;
+
+    /**
+     * The addresses the packets in the queue came from.
+     */
+    private final InetAddress[] addresses;
+
+    /**
+     * The ports the packets in the queue came from.
+     */
+    private final int[] ports;
+
+    /**
+     * What we do with new packets when the queue is full.
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * The slot of the oldest packet in the queue.
+     */
+    private int head = 0;
+
+    /**
+     * The number of packets in the queue.
+     */
+    private volatile int size = 0;
+
+    /**
+     * The number of packets dropped because the queue was full.
+     */
+    private volatile long dropped = 0;
+
+    /**
+     * Creates an empty queue with the capacity and the overflow policy
+     * specified in the <tt>System</tt> properties.
+     */
+    DatagramPacketQueue()
+    {
+        this(StackProperties.getInt(
+                    StackProperties.MULTIPLEXED_QUEUE_CAPACITY,
+                    DEFAULT_CAPACITY),
+             parseOverflowPolicy(StackProperties.getString(
+                    StackProperties.MULTIPLEXED_QUEUE_OVERFLOW_POLICY)));
+    }
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param capacity the maximum number of packets in the queue.
+     * @param overflowPolicy what to do with new packets when the queue is
+     * full.
+     *
+     * @throws IllegalArgumentException if <tt>capacity</tt> is not positive.
+     */
+    DatagramPacketQueue(int capacity, OverflowPolicy overflowPolicy)
+        throws IllegalArgumentException
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException(
+                    capacity + " is not a legal queue capacity.");
+
+        this.buffers = new byte[capacity][];
+        this.lengths = new int[capacity];
+        this.addresses = new InetAddress[capacity];
+        this.ports = new int[capacity];
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Adds a copy of the payload, address and port of <tt>p</tt> to the
+     * queue.
+     *
+     * @param p the packet to add.
+     *
+     * @return <tt>true</tt> if <tt>p</tt> was added or <tt>false</tt> if it
+     * was dropped because the queue was full.
+     */
+    boolean add(DatagramPacket p)
+    {
+        int capacity = buffers.length;
+        int slot;
+
+        if (size < capacity)
+        {
+            slot = (head + size) % capacity;
+            size++;
+        }
+        else if (overflowPolicy == OverflowPolicy.DROP_OLDEST)
+        {
+            //overwrite the oldest packet, which makes the next one the oldest
+            slot = head;
+            head = (head + 1) % capacity;
+            dropped++;
+        }
+        else
+        {
+            dropped++;
+            return false;
+        }
+
+        synchronized (p)
+        {
+            byte[] data = p.getData();
+            int length = (data == null) ? 0 : p.getLength();
+            byte[] buffer = buffers[slot];
+
+            if (buffer == null || buffer.length < length)
+            {
+                buffer = new byte[Math.max(length, MIN_BUFFER_SIZE)];
+                buffers[slot] = buffer;
+            }
+            if (length != 0)
+                System.arraycopy(data, p.getOffset(), buffer, 0, length);
+            lengths[slot] = length;
+            addresses[slot] = p.getAddress();
+            ports[slot] = p.getPort();
+        }
+        return true;
+    }
+
+    /**
+     * Removes the oldest packet from the queue and copies it into
+     * <tt>dest</tt> the way {@link MultiplexingDatagramSocket#copy(
+     * DatagramPacket, DatagramPacket)} would.
+     *
+     * @param dest the packet to copy the oldest packet into.
+     *
+     * @return <tt>true</tt> if a packet was copied into <tt>dest</tt> or
+     * <tt>false</tt> if the queue was empty.
+     */
+    boolean poll(DatagramPacket dest)
+    {
+        if (size == 0)
+            return false;
+
+        int slot = head;
+
+        head = (head + 1) % buffers.length;
+        size--;
+
+        InetAddress address = addresses[slot];
+
+        addresses[slot] = null;
+
+        synchronized (dest)
+        {
+            dest.setAddress(address);
+            dest.setPort(ports[slot]);
+
+            byte[] destData = dest.getData();
+
+            if (destData == null)
+                dest.setLength(0);
+            else
+            {
+                int destOffset = dest.getOffset();
+                int destLength = destData.length - destOffset;
+                int srcLength = lengths[slot];
+
+                if (destLength >= srcLength)
+                    destLength = srcLength;
+                else if (logger.isLoggable(Level.WARNING))
+                {
+                    logger.log(
+                            Level.WARNING,
+                            "Truncating received DatagramPacket data!");
+                }
+                System.arraycopy(
+                        buffers[slot], 0,
+                        destData, destOffset,
+                        destLength);
+                dest.setLength(destLength);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes all packets from the queue and lets go of the arrays of its
+     * slots.
+     */
+    void clear()
+    {
+        for (int i = 0; i < buffers.length; i++)
+        {
+            buffers[i] = null;
+            addresses[i] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Determines whether the queue is empty.
+     *
+     * @return <tt>true</tt> if the queue is empty and <tt>false</tt>
+     * otherwise.
+     */
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Returns the number of packets in the queue.
+     *
+     * @return the number of packets in the queue.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the number of packets dropped because the queue was full.
+     *
+     * @return the number of packets dropped because the queue was full.
+     */
+    long getDropped()
+    {
+        return dropped;
+    }
+
+    /**
+     * Parses the name of an overflow policy.
+     *
+     * @param name the name of the policy or <tt>null</tt>.
+     *
+     * @return the policy with the specified name or
+     * {@link OverflowPolicy#DROP_OLDEST} if <tt>name</tt> is <tt>null</tt> or
+     * not a valid policy name.
+     */
+    private static OverflowPolicy parseOverflowPolicy(String name)
+    {
+        if (name != null)
+        {
+            try
+            {
+                return OverflowPolicy.valueOf(name.toUpperCase());
+            }
+            catch (IllegalArgumentException ex)
+            {
+                logger.log(Level.WARNING,
+                           "Unknown multiplexed queue overflow policy: "
+                               + name,
+                           ex);
+            }
+        }
+        return OverflowPolicy.DROP_OLDEST;
+    }
+}
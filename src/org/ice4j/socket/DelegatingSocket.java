@@ -31,6 +31,11 @@ public class DelegatingSocket
      */
     private InputStream inputStream = null;
 
+    /**
+     * The reader which reads the frames of {@link #inputStream}.
+     */
+    private TCPFrameReader frameReader = null;
+
     /**
      * OutputStream for this socket.
      */
@@ -828,16 +833,16 @@ public class DelegatingSocket
         }
         else
         {
-            if (inputStream == null)
+            if (frameReader == null)
             {
-                inputStream = this.getInputStream();
+                if (inputStream == null)
+                {
+                    inputStream = this.getInputStream();
+                }
+                frameReader = new TCPFrameReader(inputStream);
             }
 
-            DelegatingSocket.receiveFromNetwork(
-                    p,
-                    inputStream,
-                    this.getInetAddress(),
-                    this.getPort());
+            frameReader.readFrame(p, this.getInetAddress(), this.getPort());
 
             // no exception packet is successfully received, log it.
             // If this is not a STUN/TURN packet, then this is a RTP packet.
@@ -861,7 +866,10 @@ public class DelegatingSocket
 
     /**
      * Reads TCP stream and fit corresponding bytes to the datagram given in
-     * parameter.
+     * parameter. Exactly one frame is read from the stream and nothing beyond
+     * it, which takes several reads from the stream, so callers that read
+     * more than one frame should use a {@link TCPFrameReader} instead. If the
+     * frame does not fit in the datagram, it is truncated.
      *
      * @param p the <tt>DatagramPacket</tt> into which to place the incoming
      * data.
@@ -880,46 +888,47 @@ public class DelegatingSocket
             int port)
         throws IOException
     {
-        byte data[] = p.getData();
-        int len = 0;
-
         int fb = inputStream.read();
-        int sb = inputStream.read();
+        int sb = (fb == -1) ? -1 : inputStream.read();
 
-        // If we do not achieve to read the first bytes, then it was just an
-        // hole punch packet.
         if(fb == -1 || sb == -1)
-        {
-            p.setLength(-1);
-            return;
-        }
+            throw new SocketException("read failed");
 
         int desiredLength = (((fb & 0xff) << 8) | (sb & 0xff));
+        byte data[] = p.getData();
+        int offset = p.getOffset();
+        int room = data.length - offset;
         int readLen = 0;
-        int offset = 0;
+        byte discarded[] = null;
 
         while(readLen < desiredLength)
         {
-            len = inputStream.read(data, offset, desiredLength - offset);
+            int len;
+
+            if (readLen < room)
+            {
+                len
+                    = inputStream.read(
+                            data,
+                            offset + readLen,
+                            Math.min(desiredLength, room) - readLen);
+            }
+            else
+            {
+                // the frame does not fit so we drop the rest of it
+                if (discarded == null)
+                    discarded = new byte[desiredLength - readLen];
+                len = inputStream.read(
+                        discarded, 0, desiredLength - readLen);
+            }
             if(len == -1)
                 throw new SocketException("read failed");
-            offset += len;
             readLen += len;
         }
 
-        if (readLen == desiredLength)
-        {
-            p.setData(data);
-            p.setLength(len);
-            p.setAddress(inetAddress);
-            p.setPort(port);
-        }
-        else
-        {
-            throw new SocketException("Failed to receive data from socket");
-        }
-
-        data = null;
+        p.setLength(Math.min(desiredLength, room));
+        p.setAddress(inetAddress);
+        p.setPort(port);
     }
 
     /**
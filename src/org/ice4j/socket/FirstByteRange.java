@@ -0,0 +1,79 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+/**
+ * The ranges of values of the first byte of a packet that RFC 7983
+ * "Multiplexing Scheme Updates for Secure Real-time Transport Protocol (SRTP)
+ * Extension for Datagram Transport Layer Security (DTLS)" uses to tell the
+ * protocols that share a port apart.
+ *
+ * @author agent
+ */
+public enum FirstByteRange
+{
+    /**
+     * STUN messages.
+     */
+    STUN(0, 3),
+
+    /**
+     * ZRTP packets.
+     */
+    ZRTP(16, 19),
+
+    /**
+     * DTLS records.
+     */
+    DTLS(20, 63),
+
+    /**
+     * TURN ChannelData messages.
+     */
+    TURN_CHANNEL(64, 79),
+
+    /**
+     * RTP and RTCP packets.
+     */
+    RTP(128, 191);
+
+    /**
+     * The smallest first byte in this range.
+     */
+    private final int low;
+
+    /**
+     * The largest first byte in this range.
+     */
+    private final int high;
+
+    /**
+     * Creates a range.
+     *
+     * @param low the smallest first byte in the range.
+     * @param high the largest first byte in the range.
+     */
+    private FirstByteRange(int low, int high)
+    {
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * Determines whether a specific first byte is in this range.
+     *
+     * @param b the first byte of a packet as an unsigned value.
+     *
+     * @return <tt>true</tt> if <tt>b</tt> is in this range and
+     * <tt>false</tt> otherwise.
+     */
+    public boolean contains(int b)
+    {
+        return (low <= b) && (b <= high);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+import java.util.*;
+
+/**
+ * Represents a <tt>DatagramPacketFilter</tt> which only accepts packets whose
+ * first byte is in specific {@link FirstByteRange}s. A
+ * <tt>MultiplexingDatagramSocket</tt> only asks such a filter about packets
+ * whose first byte is in one of these ranges and routes all other packets
+ * past it without calling {@link #accept(java.net.DatagramPacket)}.
+ *
+ * @author agent
+ */
+public interface FirstByteRangeFilter
+    extends DatagramPacketFilter
+{
+    /**
+     * Returns the ranges of the first bytes of the packets that this filter
+     * may accept. The ranges must not change once the filter has been handed
+     * to a <tt>MultiplexingDatagramSocket</tt>.
+     *
+     * @return the ranges of the first bytes of the packets that this filter
+     * may accept or <tt>null</tt> if it may accept packets with any first
+     * byte, in which case it is treated like any other
+     * <tt>DatagramPacketFilter</tt>.
+     */
+    public Set<FirstByteRange> getFirstByteRanges();
+}
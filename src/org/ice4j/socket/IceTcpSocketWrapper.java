@@ -23,14 +23,14 @@ public class IceTcpSocketWrapper
     private final Socket socket;
 
     /**
-     * InputStream for this socket.
+     * The reader of the frames of the <tt>InputStream</tt> of this socket.
      */
-    private InputStream inputStream = null;
+    private TCPFrameReader frameReader = null;
 
     /**
-     * OutputStream for this socket.
+     * The writer of the frames of the <tt>OutputStream</tt> of this socket.
      */
-    private OutputStream outputStream = null;
+    private TCPFrameWriter frameWriter = null;
 
     /**
      * Constructor.
@@ -45,8 +45,11 @@ public class IceTcpSocketWrapper
         this.socket = delegate;
         if(!(delegate instanceof DelegatingSocket))
         {
-            inputStream = socket.getInputStream();
-            outputStream = socket.getOutputStream();
+            frameReader = new TCPFrameReader(socket.getInputStream());
+            frameWriter
+                = new TCPFrameWriter(
+                        socket.getOutputStream(),
+                        socket.getChannel());
         }
     }
 
@@ -63,14 +66,7 @@ public class IceTcpSocketWrapper
             return;
         }
 
-        int len = p.getLength();
-        int off = p.getOffset();
-        byte data[] = new byte[len + 2];
-        data[0] = (byte)((len >> 8) & 0xff);
-        data[1] = (byte)(len & 0xff);
-        System.arraycopy(p.getData(), off, data, 2, len);
-        outputStream.write(data, 0, len + 2);
-        data = null;
+        frameWriter.writeFrame(p.getData(), p.getOffset(), p.getLength());
     }
 
     /**
@@ -85,11 +81,7 @@ public class IceTcpSocketWrapper
             return;
         }
 
-        DelegatingSocket.receiveFromNetwork(
-                p,
-                inputStream,
-                this.getLocalAddress(),
-                this.getLocalPort());
+        frameReader.readFrame(p, this.getLocalAddress(), this.getLocalPort());
     }
 
     /**
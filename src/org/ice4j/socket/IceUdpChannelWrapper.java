@@ -0,0 +1,282 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * UDP implementation of the <tt>IceSocketWrapper</tt> built around a
+ * <tt>DatagramChannel</tt>. Besides the <tt>DatagramPacket</tt> methods of
+ * every wrapper, it sends and receives straight from and into
+ * <tt>ByteBuffer</tt>s, direct ones included, so that callers which work with
+ * buffers do not have to allocate packets and copy arrays, and it can be put
+ * in non-blocking mode.
+ * <p>
+ * The <tt>DatagramSocket</tt> of the wrapper is a
+ * <tt>MultiplexingDatagramSocket</tt> on top of the socket of the channel so
+ * that candidates can filter their STUN traffic away from it as usual.
+ * <tt>DatagramPacket</tt>s are received through that socket, which only
+ * works in blocking mode, whereas the <tt>ByteBuffer</tt> methods use the
+ * channel directly and bypass the filters. A wrapper is therefore meant to
+ * be read either one way or the other.
+ * </p>
+ *
+ * @author agent
+ */
+public class IceUdpChannelWrapper
+    extends IceSocketWrapper
+{
+    /**
+     * The channel that we send through and receive from.
+     */
+    private final DatagramChannel channel;
+
+    /**
+     * The socket that <tt>DatagramPacket</tt>s are received through.
+     */
+    private final MultiplexingDatagramSocket socket;
+
+    /**
+     * Creates a wrapper around a new <tt>DatagramChannel</tt> bound to a
+     * specific local address.
+     *
+     * @param bindaddr the local address to bind the channel to or
+     * <tt>null</tt> for an ephemeral port on the wildcard address.
+     *
+     * @throws IOException if the channel could not be opened or bound.
+     */
+    public IceUdpChannelWrapper(SocketAddress bindaddr)
+        throws IOException
+    {
+        this(openChannel(bindaddr));
+    }
+
+    /**
+     * Creates a wrapper around a specific <tt>DatagramChannel</tt>.
+     *
+     * @param channel the channel to wrap.
+     *
+     * @throws SocketException if the <tt>MultiplexingDatagramSocket</tt> of
+     * the wrapper could not be created.
+     */
+    public IceUdpChannelWrapper(DatagramChannel channel)
+        throws SocketException
+    {
+        if (channel == null)
+            throw new NullPointerException("channel");
+
+        this.channel = channel;
+        this.socket = new MultiplexingDatagramSocket(channel.socket());
+    }
+
+    /**
+     * Opens a <tt>DatagramChannel</tt> and binds it to a specific local
+     * address, closing it again if the address cannot be bound.
+     *
+     * @param bindaddr the local address to bind the channel to.
+     *
+     * @return the new channel.
+     *
+     * @throws IOException if the channel could not be opened or bound.
+     */
+    private static DatagramChannel openChannel(SocketAddress bindaddr)
+        throws IOException
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        boolean bound = false;
+
+        try
+        {
+            channel.socket().bind(bindaddr);
+            bound = true;
+        }
+        finally
+        {
+            if (!bound)
+                channel.close();
+        }
+        return channel;
+    }
+
+    /**
+     * Sends the remaining bytes of a buffer as one datagram.
+     *
+     * @param src the buffer holding the datagram. Direct buffers are handed
+     * to the network without being copied.
+     * @param target the address to send the datagram to.
+     *
+     * @return the number of bytes sent, which is either the number of bytes
+     * that were remaining in <tt>src</tt> or, in non-blocking mode, zero if
+     * there was no room for the datagram in the send buffer of the socket.
+     *
+     * @throws IOException if something goes wrong.
+     */
+    public int send(ByteBuffer src, SocketAddress target)
+        throws IOException
+    {
+        return channel.send(src, target);
+    }
+
+    /**
+     * Receives a datagram into a buffer. The datagram is copied to the
+     * position of <tt>dst</tt> and bytes that do not fit are discarded. The
+     * filters of the <tt>MultiplexingDatagramSocket</tt> of this wrapper are
+     * not applied.
+     *
+     * @param dst the buffer to receive the datagram into.
+     *
+     * @return the address the datagram came from or, in non-blocking mode,
+     * <tt>null</tt> if no datagram was available.
+     *
+     * @throws IOException if something goes wrong.
+     */
+    public SocketAddress receive(ByteBuffer dst)
+        throws IOException
+    {
+        return channel.receive(dst);
+    }
+
+    /**
+     * Puts this wrapper in blocking or non-blocking mode.
+     *
+     * @param block <tt>true</tt> for blocking mode and <tt>false</tt> for
+     * non-blocking mode.
+     *
+     * @throws IOException if something goes wrong.
+     */
+    public void configureBlocking(boolean block)
+        throws IOException
+    {
+        channel.configureBlocking(block);
+    }
+
+    /**
+     * Determines whether this wrapper is in blocking mode.
+     *
+     * @return <tt>true</tt> if this wrapper is in blocking mode and
+     * <tt>false</tt> otherwise.
+     */
+    public boolean isBlocking()
+    {
+        return channel.isBlocking();
+    }
+
+    /**
+     * Returns the channel that this wrapper sends through and receives from.
+     *
+     * @return the channel of this wrapper.
+     */
+    public DatagramChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * Sends a <tt>DatagramPacket</tt> through the channel without copying its
+     * data into another array.
+     *
+     * @param p <tt>DatagramPacket</tt> to sent
+     * @throws IOException if something goes wrong
+     */
+    @Override
+    public void send(DatagramPacket p) throws IOException
+    {
+        ByteBuffer src;
+        SocketAddress target;
+
+        synchronized (p)
+        {
+            src = ByteBuffer.wrap(p.getData(), p.getOffset(), p.getLength());
+            target = p.getSocketAddress();
+        }
+        channel.send(src, target);
+    }
+
+    /**
+     * Receives a <tt>DatagramPacket</tt> through the
+     * <tt>MultiplexingDatagramSocket</tt> of this wrapper, which requires
+     * blocking mode.
+     *
+     * @param p <tt>DatagramPacket</tt>
+     * @throws IOException if something goes wrong
+     */
+    @Override
+    public void receive(DatagramPacket p) throws IOException
+    {
+        socket.receive(p);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        socket.close();
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ioe)
+        {
+            //the socket of the channel is closed already
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InetAddress getLocalAddress()
+    {
+        return socket.getLocalAddress();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLocalPort()
+    {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SocketAddress getLocalSocketAddress()
+    {
+        return socket.getLocalSocketAddress();
+    }
+
+    /**
+     * Returns Socket object if the delegate socket is a TCP ones, null
+     * otherwise.
+     *
+     * @return Socket object if the delegate socket is a TCP ones, null
+     * otherwise
+     */
+    public Socket getTCPSocket()
+    {
+        return null;
+    }
+
+    /**
+     * Returns the <tt>MultiplexingDatagramSocket</tt> on top of the socket of
+     * the channel of this wrapper.
+     *
+     * @return the <tt>MultiplexingDatagramSocket</tt> of this wrapper
+     */
+    public DatagramSocket getUDPSocket()
+    {
+        return socket;
+    }
+}
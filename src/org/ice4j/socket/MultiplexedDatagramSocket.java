@@ -9,7 +9,7 @@ package org.ice4j.socket;
 
 import java.io.*;
 import java.net.*;
-import java.util.*;
+import java.nio.channels.*;
 
 /**
  * Represents a <tt>DatagramSocket</tt> which receives <tt>DatagramPacket</tt>s
@@ -42,11 +42,11 @@ public class MultiplexedDatagramSocket
     private final MultiplexingDatagramSocket multiplexing;
 
     /**
-     * The list of <tt>DatagramPacket</tt>s to be received through this
-     * <tt>DatagramSocket</tt> i.e. accepted by {@link #filter}.
+     * The queue of <tt>DatagramPacket</tt>s to be received through this
+     * <tt>DatagramSocket</tt> i.e. accepted by {@link #filter}. Guarded by the
+     * receive lock of {@link #multiplexing}.
      */
-    final List<DatagramPacket> received
-        = new LinkedList<DatagramPacket>();
+    final DatagramPacketQueue received = new DatagramPacketQueue();
 
     /**
      * Initializes a new <tt>MultiplexedDatagramSocket</tt> which is unbound and
@@ -99,6 +99,21 @@ public class MultiplexedDatagramSocket
         multiplexing.close(this);
     }
 
+    /**
+     * Returns <tt>null</tt> because this socket only receives the packets its
+     * filter accepts and reading from the channel of the
+     * <tt>MultiplexingDatagramSocket</tt> would bypass the filter and take
+     * packets away from the other sockets.
+     *
+     * @return <tt>null</tt>
+     * @see DatagramSocket#getChannel()
+     */
+    @Override
+    public DatagramChannel getChannel()
+    {
+        return null;
+    }
+
     /**
      * Gets the <tt>DatagramPacketFilter</tt> which determines which
      * <tt>DatagramPacket</tt>s read from the network are to be received through
@@ -113,6 +128,31 @@ public class MultiplexedDatagramSocket
         return filter;
     }
 
+    /**
+     * Returns the number of packets accepted by the filter of this socket
+     * that wait to be received through it.
+     *
+     * @return the number of packets that wait to be received through this
+     * socket.
+     */
+    public int getReceiveQueueDepth()
+    {
+        return received.size();
+    }
+
+    /**
+     * Returns the number of packets accepted by the filter of this socket
+     * that were dropped because too many packets were already waiting to be
+     * received through it (see
+     * {@link org.ice4j.StackProperties#MULTIPLEXED_QUEUE_CAPACITY}).
+     *
+     * @return the number of packets dropped by this socket.
+     */
+    public long getReceiveQueueDropped()
+    {
+        return received.getDropped();
+    }
+
     /**
      * Receives a datagram packet from this socket. When this method returns,
      * the <tt>DatagramPacket</tt>'s buffer is filled with the data received.
@@ -18,6 +18,22 @@ import java.util.logging.*;
  * <tt>DatagramPacketFilter</tt>s so that the <tt>DatagramPacket</tt>s do not
  * get received through it but through associated
  * <tt>MultiplexedDatagramSocket</tt>s.
+ * <p>
+ * Packets read from the network wait in a bounded queue per socket until they
+ * are received (see
+ * {@link org.ice4j.StackProperties#MULTIPLEXED_QUEUE_CAPACITY} and
+ * {@link org.ice4j.StackProperties#MULTIPLEXED_QUEUE_OVERFLOW_POLICY}), so a
+ * socket that nobody reads from anymore only costs a fixed amount of memory
+ * and drops the packets it does not have room for.
+ * </p>
+ * <p>
+ * Packets are routed by their first byte, using the ranges that RFC 7983
+ * assigns to STUN, DTLS, TURN ChannelData, RTP and so on, through a table
+ * which is rebuilt whenever a <tt>MultiplexedDatagramSocket</tt> is added or
+ * closed. Only the filters which may accept packets with the first byte of a
+ * packet (see {@link FirstByteRangeFilter}) are asked about it and they are
+ * asked without holding any lock.
+ * </p>
  *
  * @author Lubomir Marinov
  */
@@ -40,6 +56,35 @@ public class MultiplexingDatagramSocket
     private static final MultiplexedDatagramSocket[] NO_SOCKETS
         = new MultiplexedDatagramSocket[0];
 
+    /**
+     * The row of a dispatch table that lists the sockets which may accept
+     * empty packets. The rows before it are indexed by first byte.
+     */
+    private static final int EMPTY_PACKET_ROW = 256;
+
+    /**
+     * The dispatch table of a socket which has no
+     * <tt>MultiplexedDatagramSocket</tt>s.
+     */
+    private static final MultiplexedDatagramSocket[][] NO_DISPATCH_TABLE
+        = createDispatchTable(NO_SOCKETS);
+
+    /**
+     * The sockets that {@link #dispatchTable} lists for the last packet read
+     * from the network and whose filters accepted it. Only used by the thread
+     * which has set {@link #inReceive}.
+     */
+    private MultiplexedDatagramSocket[] accepted = NO_SOCKETS;
+
+    /**
+     * The <tt>MultiplexedDatagramSocket</tt>s whose filters may accept a
+     * packet, indexed by the first byte of the packet, in the order they
+     * were added to this instance. Replaced as a whole whenever
+     * {@link #sockets} changes so that it can be read without a lock.
+     */
+    private volatile MultiplexedDatagramSocket[][] dispatchTable
+        = NO_DISPATCH_TABLE;
+
     /**
      * The indicator which determines whether this <tt>DatagramSocket</tt> is
      * currently reading from the network  using
@@ -50,15 +95,16 @@ public class MultiplexingDatagramSocket
     private boolean inReceive = false;
 
     /**
-     * The list of <tt>DatagramPacket</tt>s to be received through this
+     * The queue of <tt>DatagramPacket</tt>s to be received through this
      * <tt>DatagramSocket</tt> i.e. not accepted by the <tt>DatagramFilter</tt>s
      * of {@link #sockets} at the time of the reading from the network.
      */
-    private final List<DatagramPacket> received
-        = new LinkedList<DatagramPacket>();
+    private final DatagramPacketQueue received = new DatagramPacketQueue();
 
     /**
-     * The <tt>Object</tt> which synchronizes the access to {@link #inReceive}.
+     * The <tt>Object</tt> which synchronizes the access to {@link #inReceive}
+     * and to the queues of this socket and of its
+     * <tt>MultiplexedDatagramSocket</tt>s.
      */
     private final Object receiveSyncRoot = new Object();
 
@@ -167,7 +213,9 @@ public class MultiplexingDatagramSocket
      * Initializes a new <tt>DatagramPacket</tt> instance which is a clone of a
      * specific <tt>DatagramPacket</tt> i.e. the properties of the clone
      * <tt>DatagramPacket</tt> are clones of the specified
-     * <tt>DatagramPacket</tt>.
+     * <tt>DatagramPacket</tt>. Only the <tt>length</tt> bytes of data of the
+     * specified <tt>DatagramPacket</tt> are copied, to the beginning of the
+     * data of the clone.
      *
      * @param p the <tt>DatagramPacket</tt> to clone
      * @return a new <tt>DatagramPacket</tt> instance which is a clone of the
@@ -178,11 +226,22 @@ public class MultiplexingDatagramSocket
         synchronized (p)
         {
             byte[] pData = p.getData();
-            byte[] cData = (pData == null) ? null : pData.clone();
 
+            if (pData == null)
+            {
+                return
+                    new DatagramPacket(
+                            null, 0, 0,
+                            p.getAddress(), p.getPort());
+            }
+
+            int length = p.getLength();
+            byte[] cData = new byte[length];
+
+            System.arraycopy(pData, p.getOffset(), cData, 0, length);
             return
                 new DatagramPacket(
-                        cData, p.getOffset(), p.getLength(),
+                        cData, 0, length,
                         p.getAddress(), p.getPort());
         }
     }
@@ -216,9 +275,40 @@ public class MultiplexingDatagramSocket
                                 newSockets.length - i);
                         sockets = newSockets;
                     }
+                    dispatchTable = createDispatchTable(sockets);
                     break;
                 }
         }
+        /*
+         * A packet being routed through the previous dispatch table is either
+         * added before we clear the queue or sees the new table and skips the
+         * closed socket.
+         */
+        synchronized (receiveSyncRoot)
+        {
+            multiplexed.received.clear();
+        }
+    }
+
+    /**
+     * Determines whether a specific array of
+     * <tt>MultiplexedDatagramSocket</tt>s contains a specific
+     * <tt>MultiplexedDatagramSocket</tt>.
+     *
+     * @param sockets the array to search.
+     * @param socket the socket to look for.
+     *
+     * @return <tt>true</tt> if <tt>sockets</tt> contains <tt>socket</tt> and
+     * <tt>false</tt> otherwise.
+     */
+    private static boolean contains(
+            MultiplexedDatagramSocket[] sockets,
+            MultiplexedDatagramSocket socket)
+    {
+        for (MultiplexedDatagramSocket s : sockets)
+            if (s == socket)
+                return true;
+        return false;
     }
 
     /**
@@ -271,6 +361,75 @@ public class MultiplexingDatagramSocket
         }
     }
 
+    /**
+     * Creates the dispatch table of a specific set of
+     * <tt>MultiplexedDatagramSocket</tt>s: for every first byte and for empty
+     * packets, the sockets whose filters may accept such packets, in the
+     * order of <tt>sockets</tt>. Consecutive first bytes with the same
+     * sockets share their row.
+     *
+     * @param sockets the sockets to create the dispatch table of.
+     *
+     * @return the dispatch table of <tt>sockets</tt>.
+     */
+    private static MultiplexedDatagramSocket[][] createDispatchTable(
+            MultiplexedDatagramSocket[] sockets)
+    {
+        MultiplexedDatagramSocket[][] table
+            = new MultiplexedDatagramSocket[EMPTY_PACKET_ROW + 1][];
+        List<MultiplexedDatagramSocket> row
+            = new ArrayList<MultiplexedDatagramSocket>(sockets.length);
+        MultiplexedDatagramSocket[] previous = null;
+
+        for (int b = 0; b < table.length; b++)
+        {
+            row.clear();
+            for (MultiplexedDatagramSocket socket : sockets)
+                if (mayAccept(socket.getFilter(), b))
+                    row.add(socket);
+
+            if (previous == null || !row.equals(Arrays.asList(previous)))
+            {
+                previous
+                    = row.isEmpty()
+                        ? NO_SOCKETS
+                        : row.toArray(
+                                new MultiplexedDatagramSocket[row.size()]);
+            }
+            table[b] = previous;
+        }
+        return table;
+    }
+
+    /**
+     * Determines whether a specific <tt>DatagramPacketFilter</tt> may accept
+     * packets with a specific first byte.
+     *
+     * @param filter the filter.
+     * @param b the first byte of the packets as an unsigned value or
+     * {@link #EMPTY_PACKET_ROW} for empty packets.
+     *
+     * @return <tt>true</tt> if <tt>filter</tt> may accept packets that start
+     * with <tt>b</tt> and <tt>false</tt> otherwise.
+     */
+    private static boolean mayAccept(DatagramPacketFilter filter, int b)
+    {
+        if (!(filter instanceof FirstByteRangeFilter))
+            return true;
+
+        Set<FirstByteRange> ranges
+            = ((FirstByteRangeFilter) filter).getFirstByteRanges();
+
+        if (ranges == null)
+            return true;
+        if (b == EMPTY_PACKET_ROW)
+            return false;
+        for (FirstByteRange range : ranges)
+            if (range.contains(b))
+                return true;
+        return false;
+    }
+
     /**
      * Gets a <tt>MultiplexedDatagramSocket</tt> which filters
      * <tt>DatagramPacket</tt>s away from this <tt>DatagramSocket</tt> using a
@@ -321,11 +480,38 @@ public class MultiplexingDatagramSocket
                 newSockets[socketCount] = socket;
                 sockets = newSockets;
             }
+            dispatchTable = createDispatchTable(sockets);
 
             return socket;
         }
     }
 
+    /**
+     * Returns the number of packets not accepted by any of the filters of the
+     * <tt>MultiplexedDatagramSocket</tt>s of this instance that wait to be
+     * received through it.
+     *
+     * @return the number of packets that wait to be received through this
+     * socket.
+     */
+    public int getReceiveQueueDepth()
+    {
+        return received.size();
+    }
+
+    /**
+     * Returns the number of packets not accepted by any of the filters of the
+     * <tt>MultiplexedDatagramSocket</tt>s of this instance that were dropped
+     * because too many packets were already waiting to be received through
+     * it.
+     *
+     * @return the number of packets dropped by this socket.
+     */
+    public long getReceiveQueueDropped()
+    {
+        return received.getDropped();
+    }
+
     /**
      * Receives a datagram packet from this socket. The <tt>DatagramPacket</tt>s
      * returned by this method do not match any of the
@@ -354,99 +540,135 @@ public class MultiplexingDatagramSocket
     }
 
     /**
-     * Receives a <tt>DatagramPacket</tt> from a specific list of
+     * Receives a <tt>DatagramPacket</tt> from a specific queue of
      * <tt>DatagramPacket</tt>s if it is not empty or from the network if the
-     * specified list is empty. When this method returns, the
+     * specified queue is empty. When this method returns, the
      * <tt>DatagramPacket</tt>'s buffer is filled with the data received. The
      * datagram packet also contains the sender's IP address, and the port
      * number on the sender's machine.
      *
-     * @param received the list of previously received <tt>DatagramPacket</tt>
-     * from which the first is to be removed and returned if available
+     * @param received the queue of previously received
+     * <tt>DatagramPacket</tt>s from which the first is to be removed and
+     * returned if available
      * @param p the <tt>DatagramPacket</tt> into which to place the incoming
      * data
      * @throws IOException if an I/O error occurs
      */
-    private void receive(List<DatagramPacket> received, DatagramPacket p)
+    private void receive(DatagramPacketQueue received, DatagramPacket p)
         throws IOException
     {
-        DatagramPacket r = null;
-
-        do
+        while (true)
         {
-            boolean doReceive;
-
             synchronized (receiveSyncRoot)
             {
-                if (received.isEmpty())
+                if (received.poll(p))
+                    return;
+
+                if (inReceive)
                 {
-                    if (inReceive)
+                    try
                     {
-                        doReceive = false;
-                        try
-                        {
-                            receiveSyncRoot.wait();
-                        }
-                        catch (InterruptedException iex)
-                        {
-                            continue;
-                        }
+                        receiveSyncRoot.wait();
                     }
-                    else
+                    catch (InterruptedException iex)
                     {
-                        doReceive = true;
-                        inReceive = true;
                     }
+                    continue;
                 }
+                inReceive = true;
+            }
+
+            try
+            {
+                super.receive(p);
+
+                /*
+                 * Ask the filters which may accept the packet before taking
+                 * the receive lock so that the readers of the queues do not
+                 * wait for them.
+                 */
+                MultiplexedDatagramSocket[][] dispatchTable
+                    = this.dispatchTable;
+                int row;
+
+                if (p.getData() == null || p.getLength() == 0)
+                    row = EMPTY_PACKET_ROW;
                 else
+                    row = p.getData()[p.getOffset()] & 0xFF;
+
+                MultiplexedDatagramSocket[] candidates = dispatchTable[row];
+                MultiplexedDatagramSocket[] accepted = this.accepted;
+                int acceptedCount = 0;
+
+                if (accepted.length < candidates.length)
                 {
-                    doReceive = false;
-                    r = received.remove(0);
+                    accepted
+                        = new MultiplexedDatagramSocket[candidates.length];
+                    this.accepted = accepted;
                 }
-            }
-            if (doReceive)
-            {
-                try
+                for (MultiplexedDatagramSocket socket : candidates)
+                    if (socket.getFilter().accept(p))
+                    {
+                        /*
+                         * Emil: Don't break because we want all filtering
+                         * sockets to get this.
+                         */
+                        accepted[acceptedCount++] = socket;
+                    }
+
+                synchronized (receiveSyncRoot)
                 {
-                    super.receive(p);
+                    /*
+                     * Sockets closed since we looked the packet up have
+                     * cleared their queues already and must not get it.
+                     */
+                    MultiplexedDatagramSocket[] current
+                        = (dispatchTable == this.dispatchTable)
+                            ? null
+                            : this.dispatchTable[row];
+
+                    /*
+                     * The packet is handed to every queue it belongs to but,
+                     * if one of them is ours and empty, we simply keep it
+                     * instead of copying it in and out.
+                     */
+                    boolean keep = false;
+
+                    for (int i = 0; i < acceptedCount; i++)
+                    {
+                        MultiplexedDatagramSocket socket = accepted[i];
 
-                    synchronized (receiveSyncRoot)
+                        accepted[i] = null;
+                        if (current != null && !contains(current, socket))
+                            continue;
+                        if (socket.received == received
+                                && received.isEmpty())
+                            keep = true;
+                        else
+                            socket.received.add(p);
+                    }
+
+                    if (acceptedCount == 0)
                     {
-                        synchronized (socketsSyncRoot)
-                        {
-                            boolean accepted = false;
-
-                            for (MultiplexedDatagramSocket socket : sockets)
-                                if (socket.getFilter().accept(p))
-                                {
-                                    socket.received.add(clone(p));
-                                    accepted = true;
-
-                                    /*
-                                     * Emil: Don't break because we want all
-                                     * filtering sockets to get this.
-                                     */
-                                    //break;
-                                }
-
-                            if (!accepted)
-                                this.received.add(clone(p));
-                        }
+                        if (this.received == received && received.isEmpty())
+                            keep = true;
+                        else
+                            this.received.add(p);
                     }
+
+                    if (keep)
+                        return;
                 }
-                finally
+            }
+            finally
+            {
+                synchronized (receiveSyncRoot)
                 {
-                    synchronized (receiveSyncRoot)
-                    {
-                        inReceive = false;
-                        receiveSyncRoot.notify();
-                    }
+                    inReceive = false;
+                    receiveSyncRoot.notifyAll();
                 }
             }
         }
-        while (r == null);
-
-        copy(r, p);
     }
 
     /**
@@ -369,6 +369,11 @@ public class MultiplexingSocket
                                     //break;
                                 }
 
+                            /*
+                             * Does not block so that the multiplexed sockets
+                             * keep receiving while the application is not
+                             * reading from our input stream.
+                             */
                             if (!accepted)
                                 addReceivedPacket(p);
                         }
@@ -401,6 +406,7 @@ public class MultiplexingSocket
         catch(IOException e)
         {
         }
+        inputStream.close();
     }
 
     /**
@@ -495,18 +501,22 @@ public class MultiplexingSocket
     }
 
     /**
-     * Add received packet.
+     * Add received packet to the <tt>InputStream</tt> of this socket or drop
+     * it if the application has not read enough from the stream for it to
+     * fit (see {@link TCPInputStream#offerPacket(byte[], int, int)}).
      *
      * @param p <tt>DatagramPacket</tt>
      */
     public void addReceivedPacket(DatagramPacket p)
     {
-        byte data[] = p.getData();
-        int len = p.getLength();
-        byte newData[] = new byte[len];
-
-        System.arraycopy(data, p.getOffset(), newData, 0, len);
-        inputStream.addPacket(newData);
+        if (!inputStream.offerPacket(p.getData(), p.getOffset(), p.getLength())
+                && logger.isLoggable(Level.FINE))
+        {
+            logger.fine(
+                    "Dropped a packet of " + p.getLength() + " bytes because"
+                        + " the InputStream of " + this + " is full or closed ("
+                        + inputStream.getDroppedPacketCount() + " so far).");
+        }
     }
 
     /**
@@ -526,7 +536,8 @@ public class MultiplexingSocket
     {
         if(outputStream == null)
         {
-            outputStream = new TCPOutputStream(super.getOutputStream());
+            outputStream
+                = new TCPOutputStream(super.getOutputStream(), getChannel());
         }
 
         return outputStream;
@@ -221,6 +221,17 @@ public class RelayedCandidateDatagramSocket
                             {
                                 return channelDataSocketAcceptMethod(method);
                             }
+
+                            /**
+                             * ChannelData messages may use the channel
+                             * numbers reserved beyond the TURN range too so
+                             * ask us about packets with any first byte.
+                             */
+                            @Override
+                            public Set<FirstByteRange> getFirstByteRanges()
+                            {
+                                return null;
+                            }
                         });
         }
         else
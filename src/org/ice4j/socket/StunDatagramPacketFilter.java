@@ -8,6 +8,7 @@
 package org.ice4j.socket;
 
 import java.net.*;
+import java.util.*;
 
 import org.ice4j.*;
 import org.ice4j.message.*;
@@ -17,12 +18,23 @@ import org.ice4j.message.*;
  * <tt>DatagramPacket</tt>s which represent STUN messages defined in RFC 5389
  * "Session Traversal Utilities for NAT (STUN)" i.e. with method Binding or the
  * reserved method 0x000 and 0x002/SharedSecret.
+ * <p>
+ * STUN messages are in the {@link FirstByteRange#STUN} range so that is the
+ * only one a <tt>MultiplexingDatagramSocket</tt> asks the filter about.
+ * Extensions which accept other packets have to override
+ * {@link #getFirstByteRanges()} as well.
+ * </p>
  *
  * @author Lubomir Marinov
  */
 public class StunDatagramPacketFilter
-    implements DatagramPacketFilter
+    implements FirstByteRangeFilter
 {
+    /**
+     * The ranges of first bytes that STUN messages are in.
+     */
+    private static final Set<FirstByteRange> STUN_RANGES
+        = Collections.unmodifiableSet(EnumSet.of(FirstByteRange.STUN));
 
     /**
      * The <tt>TransportAddress</tt> of the STUN server <tt>DatagramPacket</tt>s
@@ -105,6 +117,18 @@ public class StunDatagramPacketFilter
         return false;
     }
 
+    /**
+     * Returns the ranges of the first bytes of the packets that this filter
+     * may accept, i.e. {@link FirstByteRange#STUN}.
+     *
+     * @return the ranges of the first bytes of the packets that this filter
+     * may accept.
+     */
+    public Set<FirstByteRange> getFirstByteRanges()
+    {
+        return STUN_RANGES;
+    }
+
     /**
      * Determines whether this <tt>DatagramPacketFilter</tt> accepts a
      * <tt>DatagramPacket</tt> which represents a STUN message with a specific
@@ -0,0 +1,205 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * Reads the frames of RFC 4571 "Framing Real-time Transport Protocol (RTP)
+ * and RTP Control Protocol (RTCP) Packets over Connection-Oriented Transport",
+ * which ICE-TCP uses, from a stream into <tt>DatagramPacket</tt>s. Every
+ * frame is a 16-bit length in network byte order followed by that many bytes.
+ * <p>
+ * The stream is read in large chunks into a buffer of the reader, so a read
+ * usually brings in several small frames at once, or the whole of a large
+ * one, and the following frames are then returned without reading from the
+ * stream again. The stream must therefore not be read other than through the
+ * reader once the reader has been created.
+ * </p>
+ *
+ * @author agent
+ */
+public class TCPFrameReader
+{
+    /**
+     * The size of the buffer of a reader if no other is specified.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * The number of bytes of the length of a frame.
+     */
+    static final int HEADER_LENGTH = 2;
+
+    /**
+     * The largest number of bytes a frame may carry.
+     */
+    public static final int MAX_FRAME_LENGTH = 0xFFFF;
+
+    /**
+     * The stream the frames are read from.
+     */
+    private final InputStream inputStream;
+
+    /**
+     * The bytes read from {@link #inputStream} ahead of the frames we have
+     * returned.
+     */
+    private final byte[] buffer;
+
+    /**
+     * The index of the first byte in {@link #buffer} that has not been
+     * returned yet.
+     */
+    private int position = 0;
+
+    /**
+     * The index after the last byte read into {@link #buffer}.
+     */
+    private int limit = 0;
+
+    /**
+     * Creates a reader with a buffer of {@link #DEFAULT_BUFFER_SIZE} bytes.
+     *
+     * @param inputStream the stream to read frames from.
+     */
+    public TCPFrameReader(InputStream inputStream)
+    {
+        this(inputStream, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a reader.
+     *
+     * @param inputStream the stream to read frames from.
+     * @param bufferSize the number of bytes to read from the stream at most
+     * at once.
+     *
+     * @throws IllegalArgumentException if <tt>bufferSize</tt> is smaller
+     * than the length of a frame header.
+     */
+    public TCPFrameReader(InputStream inputStream, int bufferSize)
+        throws IllegalArgumentException
+    {
+        if (inputStream == null)
+            throw new NullPointerException("inputStream");
+        if (bufferSize < HEADER_LENGTH)
+            throw new IllegalArgumentException(
+                    bufferSize + " is not a legal buffer size.");
+
+        this.inputStream = inputStream;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Returns the stream that this reader reads frames from.
+     *
+     * @return the stream that this reader reads frames from.
+     */
+    public InputStream getInputStream()
+    {
+        return inputStream;
+    }
+
+    /**
+     * Reads the next frame into a <tt>DatagramPacket</tt>. The payload of the
+     * frame is copied to the offset of <tt>p</tt> and the length of
+     * <tt>p</tt> is set to the length of the payload. If the payload does not
+     * fit, it is truncated the way a datagram would be and the rest of it is
+     * skipped.
+     *
+     * @param p the packet to read the frame into.
+     * @param address the address to set on <tt>p</tt>.
+     * @param port the port to set on <tt>p</tt>.
+     *
+     * @throws IOException if the stream fails or ends, in which case a
+     * <tt>SocketException</tt> is thrown.
+     */
+    public synchronized void readFrame(
+            DatagramPacket p,
+            InetAddress address,
+            int port)
+        throws IOException
+    {
+        if (limit - position < HEADER_LENGTH)
+            fill(HEADER_LENGTH);
+
+        int remaining
+            = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+
+        position += HEADER_LENGTH;
+
+        synchronized (p)
+        {
+            byte[] data = p.getData();
+            int offset = p.getOffset();
+            int room = (data == null) ? 0 : (data.length - offset);
+            int length = 0;
+
+            while (remaining > 0)
+            {
+                if (position == limit)
+                    fill(1);
+
+                int count = Math.min(remaining, limit - position);
+                int copy = Math.min(count, room - length);
+
+                if (copy > 0)
+                {
+                    System.arraycopy(
+                            buffer, position,
+                            data, offset + length,
+                            copy);
+                    length += copy;
+                }
+                position += count;
+                remaining -= count;
+            }
+
+            if (data != null)
+                p.setLength(length);
+            p.setAddress(address);
+            p.setPort(port);
+        }
+    }
+
+    /**
+     * Reads from the stream until at least <tt>count</tt> bytes that have
+     * not been returned yet are in the buffer, moving them to its start first
+     * if they would not fit otherwise.
+     *
+     * @param count the number of bytes we need in the buffer.
+     *
+     * @throws IOException if the stream fails or ends.
+     */
+    private void fill(int count)
+        throws IOException
+    {
+        if (position == limit)
+        {
+            position = 0;
+            limit = 0;
+        }
+        else if (buffer.length - position < count)
+        {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+
+        while (limit - position < count)
+        {
+            int read = inputStream.read(buffer, limit, buffer.length - limit);
+
+            if (read == -1)
+                throw new SocketException("read failed");
+            limit += read;
+        }
+    }
+}
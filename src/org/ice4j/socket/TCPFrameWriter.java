@@ -0,0 +1,146 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Writes RFC 4571 frames, the framing ICE-TCP uses, to a stream or to a
+ * channel. Every frame is a 16-bit length in network byte order followed by
+ * that many bytes and is written with a single call so that frames written
+ * by different threads do not interleave.
+ * <p>
+ * When the writer has a <tt>GatheringByteChannel</tt> in blocking mode, the
+ * length and the payload are handed to it together and the payload is not
+ * copied. Otherwise they are put together in a buffer of the writer, which
+ * is reused by the following frames.
+ * </p>
+ *
+ * @author agent
+ */
+public class TCPFrameWriter
+{
+    /**
+     * The stream the frames are written to.
+     */
+    private final OutputStream outputStream;
+
+    /**
+     * The channel the frames are written to if it is in blocking mode or
+     * <tt>null</tt> if they are always written to {@link #outputStream}.
+     */
+    private final GatheringByteChannel channel;
+
+    /**
+     * The length of the frame being written to {@link #channel}.
+     */
+    private final ByteBuffer header
+        = ByteBuffer.allocate(TCPFrameReader.HEADER_LENGTH);
+
+    /**
+     * The buffers handed to {@link #channel}: {@link #header} and the
+     * payload of the frame.
+     */
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    /**
+     * The buffer frames written to {@link #outputStream} are put together in.
+     */
+    private byte[] frame = new byte[1500 + TCPFrameReader.HEADER_LENGTH];
+
+    /**
+     * Creates a writer which writes to a stream.
+     *
+     * @param outputStream the stream to write frames to.
+     */
+    public TCPFrameWriter(OutputStream outputStream)
+    {
+        this(outputStream, null);
+    }
+
+    /**
+     * Creates a writer which writes to a channel when it is in blocking mode
+     * and to a stream otherwise.
+     *
+     * @param outputStream the stream to write frames to.
+     * @param channel the channel to write frames to or <tt>null</tt> to
+     * always write them to <tt>outputStream</tt>. It has to be a
+     * <tt>SelectableChannel</tt> as well to be used.
+     */
+    public TCPFrameWriter(
+            OutputStream outputStream,
+            GatheringByteChannel channel)
+    {
+        if (outputStream == null)
+            throw new NullPointerException("outputStream");
+
+        this.outputStream = outputStream;
+        this.channel
+            = (channel instanceof SelectableChannel) ? channel : null;
+        gather[0] = header;
+    }
+
+    /**
+     * Returns the stream that this writer writes frames to.
+     *
+     * @return the stream that this writer writes frames to.
+     */
+    public OutputStream getOutputStream()
+    {
+        return outputStream;
+    }
+
+    /**
+     * Writes a frame.
+     *
+     * @param b the array holding the payload of the frame.
+     * @param off the offset of the payload in <tt>b</tt>.
+     * @param len the length of the payload.
+     *
+     * @throws IOException if writing fails or if <tt>len</tt> is larger than
+     * {@link TCPFrameReader#MAX_FRAME_LENGTH}.
+     */
+    public synchronized void writeFrame(byte[] b, int off, int len)
+        throws IOException
+    {
+        if (len > TCPFrameReader.MAX_FRAME_LENGTH)
+            throw new IOException("Frame too long: " + len);
+
+        if (channel != null && ((SelectableChannel) channel).isBlocking())
+        {
+            header.clear();
+            header.put((byte) (len >> 8)).put((byte) len).flip();
+
+            ByteBuffer payload = ByteBuffer.wrap(b, off, len);
+
+            gather[1] = payload;
+            try
+            {
+                while (header.hasRemaining() || payload.hasRemaining())
+                    channel.write(gather);
+            }
+            finally
+            {
+                gather[1] = null;
+            }
+        }
+        else
+        {
+            int frameLength = len + TCPFrameReader.HEADER_LENGTH;
+
+            if (frame.length < frameLength)
+                frame = new byte[frameLength];
+            frame[0] = (byte) (len >> 8);
+            frame[1] = (byte) len;
+            System.arraycopy(b, off, frame, TCPFrameReader.HEADER_LENGTH, len);
+            outputStream.write(frame, 0, frameLength);
+        }
+    }
+}
@@ -8,11 +8,19 @@
 package org.ice4j.socket;
 
 import java.io.*;
-import java.util.*;
+import java.util.logging.*;
 
 /**
  * TCP input stream for TCP socket. It is used to multiplex sockets and keep
  * the <tt>InputStream</tt> interface to users.
+ * <p>
+ * The packets added to the stream are kept in a ring of a fixed capacity,
+ * each of them preceded by its 16-bit length, so that a read never returns
+ * bytes of more than one packet. When the ring is full,
+ * {@link #addPacket(byte[], int, int)} blocks until the application has read
+ * enough to make room, and {@link #offerPacket(byte[], int, int)} drops the
+ * packet and counts it.
+ * </p>
  *
  * @author Sebastien Vincent
  */
@@ -20,56 +28,153 @@ public class TCPInputStream
     extends InputStream
 {
     /**
-     * List of packets.
+     * The <tt>Logger</tt> used by the <tt>TCPInputStream</tt> class and its
+     * instances for logging output.
      */
-    private final List<byte[]> packets = new ArrayList<byte[]>();
+    private static final Logger logger
+        = Logger.getLogger(TCPInputStream.class.getName());
 
     /**
-     * Current packet being processed if any.
+     * The capacity of a stream if no other is specified, enough for two of
+     * the largest RFC 4571 frames.
      */
-    private byte[] currentPacket = null;
+    public static final int DEFAULT_CAPACITY = 128 * 1024;
 
     /**
-     * Current offset.
+     * The number of bytes of the length that precedes every packet in
+     * {@link #ring}.
      */
-    private int currentPacketOffset = 0;
+    private static final int HEADER_LENGTH = 2;
 
     /**
-     * Current packet length.
+     * The largest number of bytes a packet in {@link #ring} may have.
      */
-    private int currentPacketLength = 0;
+    private static final int MAX_PACKET_LENGTH = 0xFFFF;
 
     /**
-     * Synchronization object for read operation.
+     * The ring the packets that have not been read yet are kept in.
+     */
+    private final byte[] ring;
+
+    /**
+     * The index in {@link #ring} of the next byte to read.
+     */
+    private int head = 0;
+
+    /**
+     * The number of bytes in {@link #ring} that have not been read yet,
+     * packet lengths included.
+     */
+    private int count = 0;
+
+    /**
+     * The number of packets in {@link #ring} of which the length has not been
+     * read yet.
+     */
+    private int packets = 0;
+
+    /**
+     * The number of bytes of the packet being read that have not been read
+     * yet.
+     */
+    private int packetRemaining = 0;
+
+    /**
+     * The number of threads waiting for room in {@link #ring}.
+     */
+    private int waitingWriters = 0;
+
+    /**
+     * The number of packets that {@link #offerPacket(byte[], int, int)} has
+     * dropped because there was no room for them.
+     */
+    private long droppedPackets = 0;
+
+    /**
+     * Whether this stream has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Synchronization object for the ring and the inter-thread communication
+     * between readers and writers.
      */
     private final Object readSyncRoot = new Object();
 
     /**
-     * Initializes a new <tt>TCPInputStream</tt>.
+     * Initializes a new <tt>TCPInputStream</tt> with a capacity of
+     * {@link #DEFAULT_CAPACITY} bytes.
      */
     public TCPInputStream()
     {
+        this(DEFAULT_CAPACITY);
     }
 
     /**
-     * {@inheritDoc}
+     * Initializes a new <tt>TCPInputStream</tt>.
+     *
+     * @param capacity the maximum number of bytes the stream keeps until
+     * they are read, including two bytes per packet for its length.
+     *
+     * @throws IllegalArgumentException if <tt>capacity</tt> is too small to
+     * hold a packet of one byte.
+     */
+    public TCPInputStream(int capacity)
+        throws IllegalArgumentException
+    {
+        if (capacity <= HEADER_LENGTH)
+            throw new IllegalArgumentException(
+                    capacity + " is not a legal capacity.");
+
+        ring = new byte[capacity];
+    }
+
+    /**
+     * Returns the number of bytes that can be read without blocking.
+     *
+     * @return the number of bytes that can be read without blocking.
      */
     @Override
     public int available()
     {
-        return 0;
+        synchronized(readSyncRoot)
+        {
+            return count - packets * HEADER_LENGTH;
+        }
+    }
+
+    /**
+     * Returns the number of packets that have been dropped because the
+     * stream was full.
+     *
+     * @return the number of packets that have been dropped because the
+     * stream was full.
+     */
+    public long getDroppedPacketCount()
+    {
+        synchronized(readSyncRoot)
+        {
+            return droppedPackets;
+        }
     }
 
     /**
-     * {@inheritDoc}
+     * Closes this stream, discards the bytes that have not been read and
+     * wakes up the threads blocked in it. Reads return the end of the stream
+     * and added packets are dropped from now on.
      */
     @Override
     public void close()
-        throws IOException
     {
-        packets.clear();
-        currentPacket = null;
-        currentPacketOffset = 0;
+        synchronized(readSyncRoot)
+        {
+            closed = true;
+            head = 0;
+            count = 0;
+            packets = 0;
+            packetRemaining = 0;
+            readSyncRoot.notifyAll();
+        }
     }
 
     /**
@@ -95,39 +200,46 @@ public class TCPInputStream
      */
     @Override
     public int read(byte[] b)
+        throws IOException
     {
         return read(b, 0, b.length);
     }
 
     /**
-     * {@inheritDoc}
+     * Reads up to <tt>len</tt> bytes of the current packet, blocking until a
+     * packet is available. Bytes of the next packet are only returned by the
+     * next read.
+     *
+     * @param b the array to read into.
+     * @param off the offset in <tt>b</tt> to read to.
+     * @param len the maximum number of bytes to read.
+     *
+     * @return the number of bytes read or -1 if the stream has been closed.
+     *
+     * @throws IOException if the thread is interrupted while waiting.
      */
     @Override
     public int read(byte[] b, int off, int len)
+        throws IOException
     {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+
         synchronized(readSyncRoot)
         {
-            getNextPacket();
-
-            int length = currentPacketLength;
-
-            if(len < length)
-            {
-                length = len;
-            }
-
-            System.arraycopy(currentPacket, currentPacketOffset, b, off,
-                length);
+            if (!waitForPacket())
+                return -1;
 
-            currentPacketOffset += length;
-            currentPacketLength -= length;
+            int length = Math.min(len, packetRemaining);
+            int first = Math.min(length, ring.length - head);
 
-            if(currentPacketLength <= 0)
-            {
-                currentPacket = null;
-                currentPacketOffset = 0;
-                currentPacketLength = 0;
-            }
+            System.arraycopy(ring, head, b, off, first);
+            if (first < length)
+                System.arraycopy(ring, 0, b, off + first, length - first);
+            consumed(length);
+            packetRemaining -= length;
             return length;
         }
     }
@@ -146,91 +258,260 @@ public class TCPInputStream
     }
 
     /**
-     * {@inheritDoc}
+     * Skips up to <tt>n</tt> bytes of the current packet, blocking until a
+     * packet is available.
+     *
+     * @param n the maximum number of bytes to skip.
+     *
+     * @return the number of bytes skipped.
+     *
+     * @throws IOException if the thread is interrupted while waiting.
      */
     @Override
     public long skip(long n)
         throws IOException
     {
+        if (n <= 0)
+            return 0;
+
         synchronized(readSyncRoot)
         {
-            getNextPacket();
+            if (!waitForPacket())
+                return 0;
 
-            if(n > currentPacketLength)
-            {
-                n = currentPacketLength;
-            }
-            currentPacketOffset += n;
-            currentPacketLength -= n;
-
-            if(currentPacketLength <= 0)
-            {
-                currentPacket = null;
-                currentPacketOffset = 0;
-                currentPacketLength = 0;
-            }
+            int length = (int) Math.min(n, packetRemaining);
 
-            return n;
+            consumed(length);
+            packetRemaining -= length;
+            return length;
         }
     }
 
     /**
-     * {@inheritDoc}
+     * Reads one byte, blocking until it is available.
+     *
+     * @return the byte read or -1 if the stream has been closed.
+     *
+     * @throws IOException if the thread is interrupted while waiting.
      */
     @Override
     public int read()
         throws IOException
     {
-        getNextPacket();
-        int ret = currentPacket[currentPacketOffset];
-        currentPacketOffset++;
-        currentPacketLength--;
+        synchronized(readSyncRoot)
+        {
+            if (!waitForPacket())
+                return -1;
+
+            int ret = ring[head] & 0xFF;
 
-        return ret;
+            consumed(1);
+            packetRemaining--;
+            return ret;
+        }
     }
 
     /**
-     * Get next packet. It blocks if no packets are available.
+     * Waits until there are bytes of a packet to read or this stream is
+     * closed and starts reading the next packet if the current one has been
+     * read. Must be called with {@link #readSyncRoot} held.
+     *
+     * @return <tt>true</tt> if there are bytes to read or <tt>false</tt> if
+     * this stream has been closed.
      *
-     * @return next packet
+     * @throws InterruptedIOException if the thread is interrupted while
+     * waiting.
      */
-    private byte[] getNextPacket()
+    private boolean waitForPacket()
+        throws InterruptedIOException
     {
-        synchronized(packets)
+        if (packetRemaining > 0)
+            return true;
+
+        while (count == 0)
         {
-            if(packets.size() == 0)
+            if (closed)
+                return false;
+            try
             {
-                try
-                {
-                    packets.wait();
-                }
-                catch (InterruptedException iex)
-                {
-                }
+                readSyncRoot.wait();
             }
-
-            if(currentPacket == null)
+            catch (InterruptedException iex)
             {
-                currentPacket = packets.remove(0);
-                currentPacketOffset = 0;
-                currentPacketLength = currentPacket.length;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
             }
-
         }
-        return currentPacket;
+
+        packetRemaining
+            = ((ring[head] & 0xFF) << 8)
+                | (ring[(head + 1) % ring.length] & 0xFF);
+        packets--;
+        consumed(HEADER_LENGTH);
+        return true;
+    }
+
+    /**
+     * Removes bytes that have been read from the ring and wakes up the
+     * writers waiting for room. Must be called with {@link #readSyncRoot}
+     * held.
+     *
+     * @param length the number of bytes read.
+     */
+    private void consumed(int length)
+    {
+        head = (head + length) % ring.length;
+        count -= length;
+        if (count == 0)
+            head = 0;
+        if (waitingWriters > 0)
+            readSyncRoot.notifyAll();
     }
 
     /**
-     * Add packet to this <tt>InputStream</tt>.
+     * Add packet to this <tt>InputStream</tt>, blocking until there is room
+     * for it.
      *
      * @param p packet bytes
      */
     public void addPacket(byte[] p)
     {
-        synchronized(packets)
+        addPacket(p, 0, p.length);
+    }
+
+    /**
+     * Adds a packet to this <tt>InputStream</tt>, blocking until there is
+     * room for it. A packet that is too large to ever fit is added in parts,
+     * which are read as separate packets. If the stream is closed or the
+     * thread is interrupted while waiting, the bytes that have not been added
+     * yet are dropped.
+     *
+     * @param b the array holding the packet.
+     * @param off the offset of the packet in <tt>b</tt>.
+     * @param len the length of the packet.
+     */
+    public void addPacket(byte[] b, int off, int len)
+    {
+        synchronized(readSyncRoot)
+        {
+            int maxLength = getMaxPacketLength();
+
+            while (len > 0)
+            {
+                int length = Math.min(len, maxLength);
+
+                if (!waitForRoom(HEADER_LENGTH + length))
+                    return;
+
+                add(b, off, length);
+                off += length;
+                len -= length;
+            }
+        }
+    }
+
+    /**
+     * Adds a packet to this <tt>InputStream</tt> if there is room for all of
+     * it without blocking.
+     *
+     * @param b the array holding the packet.
+     * @param off the offset of the packet in <tt>b</tt>.
+     * @param len the length of the packet.
+     *
+     * @return <tt>true</tt> if the packet has been added and <tt>false</tt>
+     * if it has been dropped because the stream is full or closed.
+     */
+    public boolean offerPacket(byte[] b, int off, int len)
+    {
+        synchronized(readSyncRoot)
+        {
+            if (closed)
+                return false;
+            if (len == 0)
+                return true;
+            if (len > getMaxPacketLength()
+                    || ring.length - count < HEADER_LENGTH + len)
+            {
+                droppedPackets++;
+                return false;
+            }
+
+            add(b, off, len);
+            return true;
+        }
+    }
+
+    /**
+     * Returns the length of the largest packet that fits in {@link #ring}.
+     *
+     * @return the length of the largest packet that fits in {@link #ring}.
+     */
+    private int getMaxPacketLength()
+    {
+        return Math.min(ring.length - HEADER_LENGTH, MAX_PACKET_LENGTH);
+    }
+
+    /**
+     * Waits until there are <tt>length</tt> free bytes in the ring. Must be
+     * called with {@link #readSyncRoot} held.
+     *
+     * @param length the number of bytes we need.
+     *
+     * @return <tt>true</tt> if there is room or <tt>false</tt> if the stream
+     * has been closed or the thread has been interrupted while waiting.
+     */
+    private boolean waitForRoom(int length)
+    {
+        while (!closed && ring.length - count < length)
         {
-            this.packets.add(p);
-            packets.notifyAll();
+            waitingWriters++;
+            try
+            {
+                readSyncRoot.wait();
+            }
+            catch (InterruptedException iex)
+            {
+                Thread.currentThread().interrupt();
+                logger.warning(
+                        "Interrupted while waiting for room, dropping a"
+                            + " packet.");
+                return false;
+            }
+            finally
+            {
+                waitingWriters--;
+            }
         }
+        return !closed;
+    }
+
+    /**
+     * Copies a packet and its length into the ring and wakes up the readers
+     * waiting for it. Must be called with {@link #readSyncRoot} held and with
+     * enough room in the ring.
+     *
+     * @param b the array holding the packet.
+     * @param off the offset of the packet in <tt>b</tt>.
+     * @param len the length of the packet.
+     */
+    private void add(byte[] b, int off, int len)
+    {
+        boolean wasEmpty = (count == 0);
+        int tail = (head + count) % ring.length;
+
+        ring[tail] = (byte) (len >> 8);
+        ring[(tail + 1) % ring.length] = (byte) len;
+        tail = (tail + HEADER_LENGTH) % ring.length;
+
+        int first = Math.min(len, ring.length - tail);
+
+        System.arraycopy(b, off, ring, tail, first);
+        if (first < len)
+            System.arraycopy(b, off + first, ring, 0, len - first);
+
+        count += HEADER_LENGTH + len;
+        packets++;
+        if (wasEmpty)
+            readSyncRoot.notifyAll();
     }
 }
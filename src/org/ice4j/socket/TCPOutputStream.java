@@ -8,10 +8,12 @@
 package org.ice4j.socket;
 
 import java.io.*;
+import java.nio.channels.*;
 
 /**
  * TCP output stream for TCP socket. It is used to multiplex sockets and keep
- * the <tt>OutputStream</tt> interface to users.
+ * the <tt>OutputStream</tt> interface to users. Every write is sent as one
+ * RFC 4571 frame (see {@link TCPFrameWriter}).
  *
  * @author Sebastien Vincent
  */
@@ -23,14 +25,36 @@ public class TCPOutputStream
      */
     private final OutputStream outputStream;
 
+    /**
+     * The writer which frames the writes to {@link #outputStream}.
+     */
+    private final TCPFrameWriter frameWriter;
+
     /**
      * Initializes a new <tt>TCPOutputStream</tt>.
      *
      * @param outputStream original <tt>OutputStream</tt>
      */
     public TCPOutputStream(OutputStream outputStream)
+    {
+        this(outputStream, null);
+    }
+
+    /**
+     * Initializes a new <tt>TCPOutputStream</tt> which writes its frames to
+     * the channel behind the original <tt>OutputStream</tt> when the channel
+     * is in blocking mode.
+     *
+     * @param outputStream original <tt>OutputStream</tt>
+     * @param channel the channel behind <tt>outputStream</tt> or
+     * <tt>null</tt>
+     */
+    public TCPOutputStream(
+            OutputStream outputStream,
+            GatheringByteChannel channel)
     {
         this.outputStream = outputStream;
+        this.frameWriter = new TCPFrameWriter(outputStream, channel);
     }
 
     /**
@@ -78,11 +102,7 @@ public class TCPOutputStream
             return;
         }
 
-        byte data[] = new byte[len + 2];
-        data[0] = (byte)((len >> 8) & 0xff);
-        data[1] = (byte)(len & 0xff);
-        System.arraycopy(b, off, data, 2, len);
-        outputStream.write(data, 0, len + 2);
+        frameWriter.writeFrame(b, off, len);
     }
 
     /**
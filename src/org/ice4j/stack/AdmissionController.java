@@ -0,0 +1,272 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+
+/**
+ * Decides whether a <tt>StunStack</tt> creates a server transaction for a new
+ * incoming request and bounds the number of live server transactions.
+ * <p>
+ * Every remote address draws from a token bucket that holds up to
+ * {@link StackConfiguration#getRequestBurstSize()} requests and is refilled
+ * at {@link StackConfiguration#getRequestRateLimit()} requests per second.
+ * The buckets live in a fixed table indexed by the hash of the address, so
+ * the table does not grow with the number of sources and addresses that
+ * collide share a bucket. A bucket is a single <tt>long</tt> that packs the
+ * time of its last update and its remaining tokens and is updated with
+ * compare-and-set, so checking a request takes constant time, takes no lock
+ * and allocates nothing.
+ * </p>
+ * <p>
+ * Admitted transactions are kept in a list in the order they were last used
+ * (created or hit by a retransmission). When there are more than
+ * {@link StackConfiguration#getMaxServerTransactions()} of them the least
+ * recently used one is evicted. The list is linked through the transactions
+ * themselves so it does not allocate either.
+ * </p>
+ *
+ * @author agent
+ */
+class AdmissionController
+{
+    /**
+     * The default maximum number of live server transactions.
+     */
+    static final int DEFAULT_MAX_SERVER_TRANSACTIONS = 16384;
+
+    /**
+     * The number of token buckets. Must be a power of two.
+     */
+    private static final int BUCKET_COUNT = 4096;
+
+    /**
+     * The value of a bucket that has not been used yet, which is full. It
+     * cannot be the value of a used bucket because those never hold that
+     * many tokens.
+     */
+    private static final long UNUSED = -1L;
+
+    /**
+     * The number of tokens a request takes. Buckets count thousandths of a
+     * request so that a rate in requests per second refills that many tokens
+     * every millisecond.
+     */
+    private static final long TOKENS_PER_REQUEST = 1000;
+
+    /**
+     * The token buckets. The most significant half of each holds the time of
+     * its last update in milliseconds since {@link #epoch} and the least
+     * significant half the number of tokens left at that time.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * The time, in nanoseconds, that bucket times are relative to.
+     */
+    private final long epoch = System.nanoTime();
+
+    /**
+     * The number of requests rejected because their source exceeded its rate.
+     */
+    private final AtomicLong rateLimited = new AtomicLong();
+
+    /**
+     * The number of transactions evicted to make room for new ones.
+     */
+    private long evicted = 0;
+
+    /**
+     * The least recently used live transaction.
+     */
+    private StunServerTransaction eldest = null;
+
+    /**
+     * The most recently used live transaction.
+     */
+    private StunServerTransaction youngest = null;
+
+    /**
+     * The number of live transactions.
+     */
+    private int size = 0;
+
+    /**
+     * Creates a controller with full buckets and no live transactions.
+     */
+    AdmissionController()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            buckets.set(i, UNUSED);
+    }
+
+    /**
+     * Takes a token for a new request from the bucket of <tt>source</tt>.
+     *
+     * @param source the address the request came from.
+     * @param configuration the configuration of the stack.
+     *
+     * @return <tt>true</tt> if the request may create a transaction and
+     * <tt>false</tt> if it must be dropped because its source has exceeded
+     * its rate.
+     */
+    boolean admit(TransportAddress source, StackConfiguration configuration)
+    {
+        int rate = configuration.getRequestRateLimit();
+
+        if (rate <= 0)
+            return true;
+
+        long capacity
+            = configuration.getRequestBurstSize() * TOKENS_PER_REQUEST;
+        int hash = source.hashCode();
+        int index = (hash ^ (hash >>> 16)) & (BUCKET_COUNT - 1);
+        int now = (int) ((System.nanoTime() - epoch) / 1000000);
+
+        while (true)
+        {
+            long bucket = buckets.get(index);
+            long tokens;
+
+            if (bucket == UNUSED)
+            {
+                tokens = capacity;
+            }
+            else
+            {
+                long elapsed = (now - (int) (bucket >>> 32)) & 0xFFFFFFFFL;
+
+                tokens
+                    = Math.min(
+                            capacity,
+                            (bucket & 0xFFFFFFFFL) + elapsed * rate);
+            }
+
+            if (tokens < TOKENS_PER_REQUEST)
+            {
+                rateLimited.incrementAndGet();
+                return false;
+            }
+
+            long update
+                = ((long) now << 32) | (tokens - TOKENS_PER_REQUEST);
+
+            if (buckets.compareAndSet(index, bucket, update))
+                return true;
+        }
+    }
+
+    /**
+     * Adds a new transaction to the live ones and evicts the least recently
+     * used one if there are too many of them now.
+     *
+     * @param transaction the new transaction.
+     * @param configuration the configuration of the stack.
+     *
+     * @return the evicted transaction, which the caller has to expire and
+     * remove, or <tt>null</tt> if there was room for <tt>transaction</tt>.
+     */
+    synchronized StunServerTransaction add(
+            StunServerTransaction transaction,
+            StackConfiguration    configuration)
+    {
+        if (transaction.admissionLinked)
+            return null;
+
+        link(transaction);
+
+        int max = configuration.getMaxServerTransactions();
+
+        if (max <= 0 || size <= max)
+            return null;
+
+        StunServerTransaction eldest = this.eldest;
+
+        unlink(eldest);
+        evicted++;
+        return eldest;
+    }
+
+    /**
+     * Marks a live transaction as the most recently used one.
+     *
+     * @param transaction the transaction.
+     */
+    synchronized void touch(StunServerTransaction transaction)
+    {
+        if (transaction.admissionLinked && transaction != youngest)
+        {
+            unlink(transaction);
+            link(transaction);
+        }
+    }
+
+    /**
+     * Removes a transaction from the live ones.
+     *
+     * @param transaction the transaction.
+     */
+    synchronized void remove(StunServerTransaction transaction)
+    {
+        if (transaction.admissionLinked)
+            unlink(transaction);
+    }
+
+    /**
+     * Appends <tt>transaction</tt> to the list of live transactions.
+     *
+     * @param transaction the transaction to append.
+     */
+    private void link(StunServerTransaction transaction)
+    {
+        transaction.admissionPrevious = youngest;
+        transaction.admissionNext = null;
+        if (youngest == null)
+            eldest = transaction;
+        else
+            youngest.admissionNext = transaction;
+        youngest = transaction;
+        transaction.admissionLinked = true;
+        size++;
+    }
+
+    /**
+     * Removes <tt>transaction</tt> from the list of live transactions.
+     *
+     * @param transaction the transaction to remove.
+     */
+    private void unlink(StunServerTransaction transaction)
+    {
+        StunServerTransaction previous = transaction.admissionPrevious;
+        StunServerTransaction next = transaction.admissionNext;
+
+        if (previous == null)
+            eldest = next;
+        else
+            previous.admissionNext = next;
+        if (next == null)
+            youngest = previous;
+        else
+            next.admissionPrevious = previous;
+        transaction.admissionPrevious = null;
+        transaction.admissionNext = null;
+        transaction.admissionLinked = false;
+        size--;
+    }
+
+    /**
+     * Returns a snapshot of the counters of this controller.
+     *
+     * @return a snapshot of the counters of this controller.
+     */
+    synchronized AdmissionStatistics getStatistics()
+    {
+        return new AdmissionStatistics(rateLimited.get(), evicted, size);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+/**
+ * A snapshot of the counters of the admission control that a
+ * <tt>StunStack</tt> applies to new incoming requests before it creates
+ * server transactions for them (see
+ * {@link org.ice4j.StackProperties#REQUEST_RATE_LIMIT} and
+ * {@link org.ice4j.StackProperties#MAX_SERVER_TRANSACTIONS}).
+ *
+ * @author agent
+ */
+public class AdmissionStatistics
+{
+    /**
+     * The number of requests dropped because their source exceeded its rate.
+     */
+    private final long rateLimited;
+
+    /**
+     * The number of live server transactions evicted to make room for new
+     * ones.
+     */
+    private final long evicted;
+
+    /**
+     * The number of live server transactions.
+     */
+    private final int serverTransactions;
+
+    /**
+     * Creates a snapshot.
+     *
+     * @param rateLimited the number of requests dropped because their source
+     * exceeded its rate.
+     * @param evicted the number of live server transactions evicted to make
+     * room for new ones.
+     * @param serverTransactions the number of live server transactions.
+     */
+    AdmissionStatistics(long rateLimited, long evicted, int serverTransactions)
+    {
+        this.rateLimited = rateLimited;
+        this.evicted = evicted;
+        this.serverTransactions = serverTransactions;
+    }
+
+    /**
+     * Returns the number of requests dropped because their source exceeded
+     * its rate.
+     *
+     * @return the number of requests dropped because their source exceeded
+     * its rate.
+     */
+    public long getRateLimited()
+    {
+        return rateLimited;
+    }
+
+    /**
+     * Returns the number of live server transactions that were evicted to
+     * make room for new ones because there were too many of them.
+     *
+     * @return the number of evicted server transactions.
+     */
+    public long getEvicted()
+    {
+        return evicted;
+    }
+
+    /**
+     * Returns the number of live server transactions.
+     *
+     * @return the number of live server transactions.
+     */
+    public int getServerTransactions()
+    {
+        return serverTransactions;
+    }
+
+    /**
+     * Returns a string representation of this snapshot.
+     *
+     * @return a string representation of this snapshot.
+     */
+    @Override
+    public String toString()
+    {
+        return
+            "rateLimited=" + rateLimited
+                + " evicted=" + evicted
+                + " serverTransactions=" + serverTransactions;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import org.ice4j.*;
+import org.ice4j.socket.*;
+
+/**
+ * A network access point built around a <tt>DatagramChannel</tt>. Unlike the
+ * base <tt>Connector</tt>, it does not have a thread of its own. Instead its
+ * channel is registered with a {@link DatagramSelector} that reads datagrams
+ * for many access points and feeds them into the same <tt>MessageQueue</tt>.
+ * <p>
+ * The channel is put in non-blocking mode so the socket it backs must only be
+ * used through this access point (or through the channel itself).
+ * </p>
+ *
+ * @author agent
+ */
+class ChannelConnector
+    extends Connector
+{
+    /**
+     * The channel this access point reads from and writes to.
+     */
+    private final DatagramChannel channel;
+
+    /**
+     * The selector that reads datagrams for us.
+     */
+    private final DatagramSelector selector;
+
+    /**
+     * Whether we are currently registered with {@link #selector}.
+     */
+    private volatile boolean registered = false;
+
+    /**
+     * Creates a channel based network access point.
+     *
+     * @param socket the socket that this access point is supposed to use for
+     * communication. Its <tt>DatagramSocket</tt> must have a channel.
+     * @param netAccessManager the <tt>NetAccessManager</tt> which is creating
+     * the new instance.
+     * @param selector the selector that is going to read datagrams for us.
+     *
+     * @throws IllegalArgumentException if <tt>socket</tt> is not backed by a
+     * <tt>DatagramChannel</tt>.
+     */
+    ChannelConnector(IceSocketWrapper socket,
+                     NetAccessManager netAccessManager,
+                     DatagramSelector selector)
+        throws IllegalArgumentException
+    {
+        super(socket, netAccessManager);
+
+        this.channel = getChannel(socket);
+        if (channel == null)
+            throw new IllegalArgumentException(
+                    "Socket is not backed by a DatagramChannel: " + socket);
+        this.selector = selector;
+    }
+
+    /**
+     * Returns the <tt>DatagramChannel</tt> behind <tt>socket</tt> if any.
+     *
+     * @param socket the socket whose channel we'd like to get.
+     *
+     * @return the <tt>DatagramChannel</tt> of <tt>socket</tt> or <tt>null</tt>
+     * if it doesn't have one.
+     */
+    static DatagramChannel getChannel(IceSocketWrapper socket)
+    {
+        return (socket.getUDPSocket() == null)
+            ? null
+            : socket.getUDPSocket().getChannel();
+    }
+
+    /**
+     * Registers our channel with our selector.
+     */
+    @Override
+    void start()
+    {
+        registered = true;
+        selector.register(this);
+    }
+
+    /**
+     * Unregisters our channel from our selector.
+     */
+    @Override
+    protected void stop()
+    {
+        super.stop();
+
+        synchronized (this)
+        {
+            if (!registered)
+                return;
+            registered = false;
+        }
+        selector.unregister(this);
+    }
+
+    /**
+     * Returns the channel that this access point reads from and writes to.
+     *
+     * @return the channel of this access point.
+     */
+    DatagramChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * Determines whether this access point is still registered with its
+     * selector.
+     *
+     * @return <tt>true</tt> if this access point has not been stopped.
+     */
+    boolean isRegistered()
+    {
+        return registered;
+    }
+
+    /**
+     * Sends message through this access point's channel.
+     *
+     * @param message the bytes to send.
+     * @param address message destination.
+     *
+     * @throws IOException if an exception occurs while sending the message.
+     */
+    @Override
+    void sendMessage(byte[] message, TransportAddress address)
+        throws IOException
+    {
+        //a full socket buffer on a non-blocking channel means that the
+        //datagram is dropped, which is what a blocking socket would do anyway
+        //on most systems once the network can't keep up.
+        channel.send(ByteBuffer.wrap(message), address);
+    }
+
+    /**
+     * Sends the remaining bytes of <tt>message</tt> through this access
+     * point's channel.
+     *
+     * @param message the buffer with the bytes to send between its position
+     * and its limit.
+     * @param address message destination.
+     *
+     * @throws IOException if an exception occurs while sending the message.
+     */
+    @Override
+    void sendMessage(ByteBuffer message, TransportAddress address)
+        throws IOException
+    {
+        channel.send(message, address);
+    }
+
+    /**
+     * Returns a String representation of the object.
+     * @return a String representation of the object.
+     */
+    @Override
+    public String toString()
+    {
+        return
+            "ice4j.ChannelConnector@" + getListenAddress()
+                + " status: " + (registered ? "" : "not ") + "registered";
+    }
+}
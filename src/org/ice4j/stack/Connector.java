@@ -8,9 +8,11 @@ package org.ice4j.stack;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
 import java.util.logging.*;
 
 import org.ice4j.*;
+import org.ice4j.message.*;
 import org.ice4j.socket.*;
 
 /**
@@ -31,9 +33,15 @@ class Connector
         Logger.getLogger(Connector.class.getName());
 
     /**
-     * The message queue is where incoming messages are added.
+     * The maximum number of bytes we read from a single datagram.
      */
-    private final MessageQueue messageQueue;
+    static final int RECEIVE_BUFFER_SIZE = 1500;
+
+    /**
+     * The <tt>NetAccessManager</tt> which created this instance and which
+     * tells us which message queue an incoming message should be added to.
+     */
+    private final NetAccessManager netAccessManager;
 
     /**
      * The socket object that used by this access point to access the network.
@@ -62,20 +70,29 @@ class Connector
      */
     private final TransportAddress listenAddress;
 
+    /**
+     * The remote address of the last datagram we received. Consecutive
+     * datagrams very often come from the same peer so we reuse it instead of
+     * creating a new <tt>TransportAddress</tt> for each of them. Only accessed
+     * by the thread that reads our socket.
+     */
+    private TransportAddress lastRemoteAddress = null;
+
     /**
      * Creates a network access point.
      * @param socket the socket that this access point is supposed to use for
      * communication.
-     * @param messageQueue the FIFO list where incoming messages should be queued
-     * @param errorHandler the instance to notify when errors occur.
+     * @param netAccessManager the <tt>NetAccessManager</tt> which is creating
+     * the new instance, specifies the <tt>MessageQueue</tt>s where incoming
+     * messages should be queued and represents the <tt>ErrorHandler</tt> to
+     * notify when errors occur.
      */
     protected Connector(IceSocketWrapper socket,
-                        MessageQueue   messageQueue,
-                        ErrorHandler   errorHandler)
+                        NetAccessManager netAccessManager)
     {
         this.sock = socket;
-        this.messageQueue = messageQueue;
-        this.errorHandler = errorHandler;
+        this.netAccessManager = netAccessManager;
+        this.errorHandler = netAccessManager;
         this.listenAddress = new TransportAddress(socket.getLocalAddress(),
                         socket.getLocalPort(), socket.getUDPSocket() != null ?
                             Transport.UDP : Transport.TCP);
@@ -103,13 +120,219 @@ class Connector
         return sock;
     }
 
+    /**
+     * Adds a message received by this access point to the message queue that
+     * is responsible for its flow unless {@link #routeDirectly(RawMessage)}
+     * takes care of it.
+     *
+     * @param rawMessage the message to add.
+     *
+     * @return <tt>true</tt> if the message was added or <tt>false</tt> if the
+     * queue was full and the message was dropped.
+     */
+    boolean enqueue(RawMessage rawMessage)
+    {
+        if (routeDirectly(rawMessage))
+        {
+            netAccessManager.recordReceiveBatch(1);
+            return true;
+        }
+
+        boolean added
+            = netAccessManager.getMessageQueue(rawMessage).add(rawMessage);
+
+        if (!added)
+            logDropped(rawMessage);
+        netAccessManager.recordReceiveBatch(1);
+        return added;
+    }
+
+    /**
+     * Adds a batch of messages received by this access point to the message
+     * queues that are responsible for their flows and then wakes up the
+     * consumers of each of these queues once. Messages that
+     * {@link #routeDirectly(RawMessage)} takes care of are not queued.
+     *
+     * @param batch the messages to add.
+     * @param count the number of messages at the beginning of <tt>batch</tt>.
+     * The elements are cleared as they are added.
+     * @param queues a scratch array of at least <tt>count</tt> elements that
+     * we use to keep track of the queues we have added to.
+     */
+    void enqueue(RawMessage[] batch, int count, MessageQueue[] queues)
+    {
+        int queueCount = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            RawMessage rawMessage = batch[i];
+
+            batch[i] = null;
+            if (routeDirectly(rawMessage))
+                continue;
+
+            MessageQueue queue = netAccessManager.getMessageQueue(rawMessage);
+
+            if (!queue.offer(rawMessage))
+            {
+                logDropped(rawMessage);
+                continue;
+            }
+
+            int q = 0;
+
+            while (q < queueCount && queues[q] != queue)
+                q++;
+            if (q == queueCount)
+                queues[queueCount++] = queue;
+        }
+
+        for (int q = 0; q < queueCount; q++)
+        {
+            queues[q].signalConsumers();
+            queues[q] = null;
+        }
+        netAccessManager.recordReceiveBatch(count);
+    }
+
+    /**
+     * Reads the STUN header of a message that was just received in place,
+     * drops the message if it is not a well-formed STUN message and hands it
+     * directly to its client transaction if it is a response that one is
+     * waiting for. Requests, indications and responses that no transaction
+     * is waiting for are left to the message queues.
+     *
+     * @param rawMessage the message that was just received.
+     *
+     * @return <tt>true</tt> if <tt>rawMessage</tt> has been dropped or handed
+     * to its transaction and must not be queued or <tt>false</tt> if it still
+     * has to be queued.
+     */
+    private boolean routeDirectly(RawMessage rawMessage)
+    {
+        byte[] bytes = rawMessage.getBytes();
+
+        if (!isStunHeader(bytes, rawMessage.getMessageLength()))
+        {
+            if (logger.isLoggable(Level.FINE))
+            {
+                logger.fine("Dropped a non-STUN message from "
+                                + rawMessage.getRemoteAddress());
+            }
+            rawMessage.release();
+            return true;
+        }
+
+        char type = (char) (((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF));
+
+        return
+            Message.isResponseType(type)
+                && (type != Message.OLD_DATA_INDICATION)
+                && netAccessManager.routeResponse(rawMessage);
+    }
+
+    /**
+     * Determines whether the first <tt>length</tt> bytes of <tt>bytes</tt>
+     * start with a STUN header: there has to be room for the header, the two
+     * most significant bits of the message type have to be zero and the
+     * message length in the header must not exceed the bytes that follow it.
+     *
+     * @param bytes the bytes of a received message.
+     * @param length the number of bytes in the message.
+     *
+     * @return <tt>true</tt> if <tt>bytes</tt> start with a STUN header and
+     * <tt>false</tt> otherwise.
+     */
+    static boolean isStunHeader(byte[] bytes, int length)
+    {
+        if (length < Message.HEADER_LENGTH || (bytes[0] & 0xC0) != 0)
+            return false;
+
+        int messageLength = ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+
+        return messageLength <= length - Message.HEADER_LENGTH;
+    }
+
+    /**
+     * Logs that a message was dropped because its queue was full.
+     *
+     * @param rawMessage the message that was dropped.
+     */
+    private void logDropped(RawMessage rawMessage)
+    {
+        if (logger.isLoggable(Level.FINE))
+        {
+            logger.fine("Message queue full. Dropped a message from "
+                            + rawMessage.getRemoteAddress());
+        }
+    }
+
+    /**
+     * Returns a <tt>TransportAddress</tt> for the remote address of a datagram
+     * that was just received, reusing the one of the previous datagram if it
+     * came from the same address. Must only be called by the thread that
+     * reads our socket.
+     *
+     * @param address the address the datagram was sent from.
+     * @param port the port the datagram was sent from.
+     *
+     * @return a <tt>TransportAddress</tt> for <tt>address</tt> and
+     * <tt>port</tt> with the transport of this access point.
+     */
+    TransportAddress getRemoteAddress(InetAddress address, int port)
+    {
+        TransportAddress remoteAddress = lastRemoteAddress;
+
+        if (remoteAddress == null
+                || remoteAddress.getPort() != port
+                || !remoteAddress.getAddress().equals(address))
+        {
+            remoteAddress
+                = new TransportAddress(
+                        address,
+                        port,
+                        listenAddress.getTransport());
+            lastRemoteAddress = remoteAddress;
+        }
+        return remoteAddress;
+    }
+
+    /**
+     * Returns the pool of the arrays that this access point receives
+     * datagrams in.
+     *
+     * @return the pool of the arrays that datagrams are received in.
+     */
+    ReceiveBufferPool getReceiveBufferPool()
+    {
+        return netAccessManager.getReceiveBufferPool();
+    }
+
+    /**
+     * Returns the instance to be notified if errors occur while receiving.
+     *
+     * @return the instance to be notified if errors occur while receiving.
+     */
+    ErrorHandler getErrorHandler()
+    {
+        return errorHandler;
+    }
+
     /**
      * The listening thread's run method.
      */
     public void run()
     {
+        ReceiveBufferPool pool = getReceiveBufferPool();
         DatagramPacket packet = null;
 
+        /*
+         * The array that we are going to receive the next datagram in. It is
+         * handed over to the RawMessage that we create for the datagram so we
+         * borrow a new one from the pool after every datagram.
+         */
+        byte[] buffer = null;
+
         while (this.running)
         {
             try
@@ -119,78 +342,63 @@ class Connector
                 synchronized (sockLock)
                 {
                     if (!running)
-                        return;
+                        break;
 
                     localSock = this.sock;
                 }
 
+                if (buffer == null)
+                    buffer = pool.acquire();
+
                 /*
-                 * Make sure localSock's receiveBufferSize is taken into
-                 * account including after it gets changed.
+                 * Tell the packet it is large enough because the socket will
+                 * not look at the length of the data array property and will
+                 * just respect the length property.
                  */
-                int receiveBufferSize = 1500;
-                /*
-                if(localSock.getTCPSocket() != null)
-                {
-                    receiveBufferSize = localSock.getTCPSocket().
-                        getReceiveBufferSize();
-                }
-                else if(localSock.getUDPSocket() != null)
-                {
-                    receiveBufferSize = localSock.getUDPSocket().
-                        getReceiveBufferSize();
-                }
-                */
-
                 if (packet == null)
-                {
-                    packet
-                        = new DatagramPacket(
-                                new byte[receiveBufferSize],
-                                receiveBufferSize);
-                }
+                    packet = new DatagramPacket(buffer, buffer.length);
                 else
-                {
-                    byte[] packetData = packet.getData();
-
-                    if ((packetData == null)
-                            || (packetData.length < receiveBufferSize))
-                    {
-                        packet.setData(
-                                new byte[receiveBufferSize],
-                                0,
-                                receiveBufferSize);
-                    }
-                    else
-                    {
-                        /*
-                         * XXX Tell the packet it is large enough because the
-                         * socket will not look at the length of the data array
-                         * property and will just respect the length property.
-                         */
-                        packet.setLength(receiveBufferSize);
-                    }
-                }
+                    packet.setData(buffer, 0, buffer.length);
 
                 localSock.receive(packet);
 
                 //get lost if we are no longer running.
                 if(!running)
-                    return;
+                    break;
 
                 logger.finest("received datagram");
 
-                RawMessage rawMessage
-                    = new RawMessage(
-                            packet.getData(),
-                            packet.getLength(),
-                            new TransportAddress(
-                                    packet.getAddress(),
-                                    packet.getPort(),
-                                    listenAddress.getTransport()),
-                            listenAddress);
-
-                messageQueue.add(rawMessage);
+                TransportAddress remoteAddress
+                    = getRemoteAddress(packet.getAddress(), packet.getPort());
+                RawMessage rawMessage;
+
+                if (packet.getData() == buffer)
+                {
+                    rawMessage
+                        = new RawMessage(
+                                pool,
+                                buffer,
+                                packet.getLength(),
+                                remoteAddress,
+                                listenAddress);
+                    buffer = null;
+                }
+                else
+                {
+                    /*
+                     * Some sockets (e.g. the TCP ones) deliver datagrams in
+                     * arrays of their own. Copy those and keep our array for
+                     * the next datagram.
+                     */
+                    rawMessage
+                        = new RawMessage(
+                                packet.getData(),
+                                packet.getLength(),
+                                remoteAddress,
+                                listenAddress);
+                }
+
+                enqueue(rawMessage);
             }
             catch (SocketException ex)
             {
@@ -235,6 +443,9 @@ class Connector
                     ex);
             }
         }
+
+        if (buffer != null)
+            pool.release(buffer);
     }
 
     /**
@@ -267,6 +478,30 @@ class Connector
         sock.send(datagramPacket);
     }
 
+    /**
+     * Sends the remaining bytes of <tt>message</tt> through this access
+     * point's socket. The bytes are consumed before the method returns so the
+     * caller may reuse the buffer afterwards.
+     *
+     * @param message the buffer with the bytes to send between its position
+     * and its limit. Must be backed by an accessible array.
+     * @param address message destination.
+     *
+     * @throws IOException if an exception occurs while sending the message.
+     */
+    void sendMessage(ByteBuffer message, TransportAddress address)
+        throws IOException
+    {
+        DatagramPacket datagramPacket = new DatagramPacket(
+                        message.array(),
+                        message.arrayOffset() + message.position(),
+                        message.remaining(),
+                        address);
+
+        sock.send(datagramPacket);
+        message.position(message.limit());
+    }
+
     /**
      * Returns a String representation of the object.
      * @return a String representation of the object.
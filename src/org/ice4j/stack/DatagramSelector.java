@@ -0,0 +1,348 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
+
+/**
+ * Reads datagrams for any number of {@link ChannelConnector}s using a single
+ * <tt>Selector</tt> and a single thread, and feeds them into the same
+ * <tt>RawMessage</tt> pipeline as the blocking <tt>Connector</tt>s.
+ *
+ * @author agent
+ */
+class DatagramSelector
+    implements Runnable
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(DatagramSelector.class.getName());
+
+    /**
+     * The maximum number of datagrams we read from one channel if no explicit
+     * value has been specified by
+     * {@link StackProperties#RECEIVE_BATCH_SIZE}.
+     */
+    public static final int DEFAULT_RECEIVE_BATCH_SIZE = 64;
+
+    /**
+     * The selector we wait on.
+     */
+    private final Selector selector;
+
+    /**
+     * Registrations and cancellations that need to be executed on the
+     * selector thread.
+     */
+    private final Queue<Runnable> pendingTasks
+        = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * The buffer we receive datagrams in. Only used by the selector thread.
+     * It is a direct one so that the channel can receive straight into it
+     * and datagrams are then copied into arrays borrowed from the
+     * {@link ReceiveBufferPool} of their connector.
+     */
+    private final ByteBuffer receiveBuffer
+        = ByteBuffer.allocateDirect(Connector.RECEIVE_BUFFER_SIZE);
+
+    /**
+     * The messages we have read from the current channel and not yet handed
+     * over to the message queue(s). Its length is the maximum number of
+     * datagrams we read from one channel before moving on to the next ready
+     * one, so that a single busy channel can't starve the others. Only used
+     * by the selector thread.
+     */
+    private final RawMessage[] batch;
+
+    /**
+     * Scratch space for {@link Connector#enqueue(RawMessage[], int,
+     * MessageQueue[])}. Only used by the selector thread.
+     */
+    private final MessageQueue[] batchQueues;
+
+    /**
+     * The number of access points registered with this selector.
+     */
+    private final AtomicInteger registrationCount = new AtomicInteger();
+
+    /**
+     * A flag that is set to false to exit the selector thread.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Creates a selector and starts its thread.
+     *
+     * @param name the name of the selector thread.
+     *
+     * @throws IOException if the <tt>Selector</tt> could not be opened.
+     */
+    DatagramSelector(String name)
+        throws IOException
+    {
+        selector = Selector.open();
+
+        int batchSize
+            = StackProperties.getInt(
+                    StackProperties.RECEIVE_BATCH_SIZE,
+                    DEFAULT_RECEIVE_BATCH_SIZE);
+
+        batch = new RawMessage[Math.max(batchSize, 1)];
+        batchQueues = new MessageQueue[batch.length];
+
+        Thread thread = new Thread(this, name);
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the number of access points registered with this selector.
+     *
+     * @return the number of access points registered with this selector.
+     */
+    int getRegistrationCount()
+    {
+        return registrationCount.get();
+    }
+
+    /**
+     * Starts reading datagrams for <tt>connector</tt>.
+     *
+     * @param connector the access point to read datagrams for.
+     */
+    void register(final ChannelConnector connector)
+    {
+        registrationCount.incrementAndGet();
+        execute(new Runnable()
+        {
+            public void run()
+            {
+                if (!connector.isRegistered())
+                    return;
+
+                try
+                {
+                    DatagramChannel channel = connector.getChannel();
+
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ, connector);
+                }
+                catch (IOException ex)
+                {
+                    logger.log(Level.WARNING,
+                               "Failed to register " + connector, ex);
+                    connector.getErrorHandler().handleFatalError(
+                            connector,
+                            "Failed to register channel with selector.",
+                            ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops reading datagrams for <tt>connector</tt>.
+     *
+     * @param connector the access point to stop reading datagrams for.
+     */
+    void unregister(final ChannelConnector connector)
+    {
+        registrationCount.decrementAndGet();
+        execute(new Runnable()
+        {
+            public void run()
+            {
+                SelectionKey key = connector.getChannel().keyFor(selector);
+
+                if (key != null)
+                    key.cancel();
+            }
+        });
+    }
+
+    /**
+     * Stops the selector thread.
+     */
+    void stop()
+    {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Schedules <tt>task</tt> for execution on the selector thread.
+     *
+     * @param task the task to execute.
+     */
+    private void execute(Runnable task)
+    {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for datagrams and reads them until {@link #stop()} is called.
+     */
+    public void run()
+    {
+        try
+        {
+            while (running)
+            {
+                Runnable task;
+
+                while ((task = pendingTasks.poll()) != null)
+                    task.run();
+
+                try
+                {
+                    selector.select();
+                }
+                catch (IOException ex)
+                {
+                    logger.log(Level.WARNING, "Select failed", ex);
+                    continue;
+                }
+
+                Iterator<SelectionKey> keys
+                    = selector.selectedKeys().iterator();
+
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+
+                    keys.remove();
+                    if (key.isValid() && key.isReadable())
+                        read((ChannelConnector) key.attachment(), key);
+                }
+            }
+        }
+        finally
+        {
+            try
+            {
+                selector.close();
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.FINE, "Failed to close selector", ex);
+            }
+        }
+    }
+
+    /**
+     * Drains the datagrams available on the channel of <tt>connector</tt> and
+     * adds them to its message queue(s) as a single batch.
+     *
+     * @param connector the access point whose channel is readable.
+     * @param key the selection key of the channel.
+     */
+    private void read(ChannelConnector connector, SelectionKey key)
+    {
+        int count = 0;
+
+        try
+        {
+            count = receive(connector, key);
+        }
+        finally
+        {
+            if (count > 0)
+                connector.enqueue(batch, count, batchQueues);
+        }
+    }
+
+    /**
+     * Reads the datagrams available on the channel of <tt>connector</tt> into
+     * {@link #batch}, until there are no more or the batch is full.
+     *
+     * @param connector the access point whose channel is readable.
+     * @param key the selection key of the channel.
+     *
+     * @return the number of messages read into {@link #batch}.
+     */
+    private int receive(ChannelConnector connector, SelectionKey key)
+    {
+        DatagramChannel channel = connector.getChannel();
+        TransportAddress listenAddress = connector.getListenAddress();
+        ReceiveBufferPool pool = connector.getReceiveBufferPool();
+        int count = 0;
+
+        while (count < batch.length)
+        {
+            SocketAddress sender;
+
+            receiveBuffer.clear();
+            try
+            {
+                sender = channel.receive(receiveBuffer);
+            }
+            catch (ClosedChannelException ex)
+            {
+                key.cancel();
+                if (connector.isRegistered())
+                {
+                    logger.log(Level.WARNING,
+                               "Connector died: " + listenAddress, ex);
+                    connector.stop();
+                    connector.getErrorHandler().handleFatalError(
+                            connector,
+                            "The channel was closed while trying to receive a"
+                                + " message.",
+                            ex);
+                }
+                break;
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.WARNING,
+                           "A net access point has gone useless:", ex);
+                connector.getErrorHandler().handleError(ex.getMessage(), ex);
+                break;
+            }
+
+            //nothing more to read for now.
+            if (sender == null)
+                break;
+
+            logger.finest("received datagram");
+
+            InetSocketAddress remote = (InetSocketAddress) sender;
+            byte[] bytes = pool.acquire();
+            int length = receiveBuffer.position();
+
+            receiveBuffer.flip();
+            receiveBuffer.get(bytes, 0, length);
+
+            RawMessage rawMessage
+                = new RawMessage(
+                        pool,
+                        bytes,
+                        length,
+                        connector.getRemoteAddress(
+                                remote.getAddress(),
+                                remote.getPort()),
+                        listenAddress);
+
+            batch[count++] = rawMessage;
+        }
+        return count;
+    }
+}
@@ -36,11 +36,6 @@ class MessageProcessor
      */
     private final MessageQueue messageQueue;
 
-    /**
-     * The listener that will be retrieving <tt>MessageEvent</tt>s
-     */
-    private final MessageEventHandler messageEventHandler;
-
     /**
      * The <tt>NetAccessManager</tt> which has created this instance and which
      * is its owner.
@@ -70,12 +65,34 @@ class MessageProcessor
      */
     MessageProcessor(NetAccessManager netAccessManager)
         throws IllegalArgumentException
+    {
+        this(netAccessManager,
+             (netAccessManager == null)
+                ? null
+                : netAccessManager.getMessageQueue());
+    }
+
+    /**
+     * Creates a Message processor that takes messages from a specific
+     * <tt>MessageQueue</tt> (e.g. one of the partitions of a
+     * <tt>NetAccessManager</tt> which processes every flow on a single
+     * thread).
+     *
+     * @param netAccessManager the <tt>NetAccessManager</tt> which is creating
+     * the new instance, is going to be its owner, specifies the
+     * <tt>MessageEventHandler</tt> and represents the <tt>ErrorHandler</tt> to
+     * handle exceptions in the new instance
+     * @param messageQueue the <tt>MessageQueue</tt> to take messages from.
+     * @throws IllegalArgumentException if <tt>messageQueue</tt> or any of the
+     * mentioned properties of <tt>netAccessManager</tt> are <tt>null</tt>
+     */
+    MessageProcessor(NetAccessManager netAccessManager,
+                     MessageQueue     messageQueue)
+        throws IllegalArgumentException
     {
         if (netAccessManager == null)
             throw new NullPointerException("netAccessManager");
 
-        MessageQueue messageQueue = netAccessManager.getMessageQueue();
-
         if (messageQueue == null)
         {
             throw new IllegalArgumentException(
@@ -93,7 +110,6 @@ class MessageProcessor
 
         this.netAccessManager = netAccessManager;
         this.messageQueue = messageQueue;
-        this.messageEventHandler = messageEventHandler;
         this.errorHandler = netAccessManager;
     }
 
@@ -106,7 +122,7 @@ class MessageProcessor
         //avoid having dead threads in our pools.
         try
         {
-            StunStack stunStack = netAccessManager.getStunStack();
+            MessagePool messagePool = MessagePool.getInstance();
 
             while (running)
             {
@@ -133,30 +149,16 @@ class MessageProcessor
                 if (rawMessage == null)
                     continue;
 
-                Message stunMessage = null;
                 try
                 {
-                    stunMessage
-                        = Message.decode(rawMessage.getBytes(),
-                                         (char) 0,
-                                         (char) rawMessage.getMessageLength());
+                    process(netAccessManager, rawMessage, messagePool);
                 }
-                catch (StunException ex)
+                finally
                 {
-                    errorHandler.handleError(
-                            "Failed to decode a stun message!",
-                            ex);
-
-                    continue; //let this one go and for better luck next time.
+                    //the bytes go back to the pool unless someone retained
+                    //them while handling the message.
+                    rawMessage.release();
                 }
-
-                logger.finest("Dispatching a StunMessageEvent.");
-
-                StunMessageEvent stunMessageEvent
-                    = new StunMessageEvent(stunStack, rawMessage,
-                            stunMessage);
-
-                messageEventHandler.handleMessageEvent(stunMessageEvent);
             }
         }
         catch(Throwable err)
@@ -166,6 +168,83 @@ class MessageProcessor
         }
     }
 
+    /**
+     * Decodes <tt>rawMessage</tt> and dispatches it to the
+     * <tt>MessageEventHandler</tt> of <tt>netAccessManager</tt>. Does not
+     * release <tt>rawMessage</tt>.
+     *
+     * @param netAccessManager the <tt>NetAccessManager</tt> that received the
+     * message.
+     * @param rawMessage the message to process.
+     * @param messagePool the pool of the current thread, which the message is
+     * decoded from and recycled into if message recycling is enabled.
+     */
+    static void process(NetAccessManager netAccessManager,
+                        RawMessage       rawMessage,
+                        MessagePool      messagePool)
+    {
+        StunStack stunStack = netAccessManager.getStunStack();
+
+        if (!stunStack.getConfiguration().isMessageRecycling())
+            messagePool = null;
+
+        Message stunMessage = null;
+        try
+        {
+            if (netAccessManager.isLazyMessageDecoding())
+            {
+                /*
+                 * A lazily decoded message keeps referencing the array of
+                 * rawMessage, which goes back to the receive pool once we are
+                 * done with it. The message is either recycled or retained
+                 * (which detaches it from the array) before that happens.
+                 */
+                stunMessage
+                    = Message.decodeLazily(
+                            rawMessage.getBytes(),
+                            0,
+                            rawMessage.getMessageLength(),
+                            messagePool);
+            }
+            else
+            {
+                stunMessage
+                    = Message.decode(rawMessage.getBytes(),
+                                     (char) 0,
+                                     (char) rawMessage.getMessageLength(),
+                                     messagePool);
+            }
+        }
+        catch (StunException ex)
+        {
+            netAccessManager.handleError(
+                    "Failed to decode a stun message!",
+                    ex);
+
+            return; //let this one go and for better luck next time.
+        }
+
+        logger.finest("Dispatching a StunMessageEvent.");
+
+        StunMessageEvent stunMessageEvent
+            = new StunMessageEvent(stunStack, rawMessage,
+                    stunMessage);
+
+        try
+        {
+            netAccessManager.getMessageEventHandler().handleMessageEvent(
+                    stunMessageEvent);
+        }
+        finally
+        {
+            //the message goes back to the pool unless someone retained it
+            //while handling it. Messages that may outlive this call are
+            //retained so that they stop referencing the bytes of rawMessage.
+            if (messagePool == null || !MessagePool.recycle(stunMessage))
+                stunMessage.retain();
+        }
+    }
+
     /**
      * Start the message processing thread.
      */
@@ -187,6 +266,16 @@ class MessageProcessor
         runningThread.interrupt();
     }
 
+    /**
+     * Returns the queue that this processor takes messages from.
+     *
+     * @return the queue that this processor takes messages from.
+     */
+    MessageQueue getMessageQueue()
+    {
+        return messageQueue;
+    }
+
     /**
      * Determines whether the processor is still running;
      *
@@ -6,13 +6,22 @@
  */
 package org.ice4j.stack;
 
-import java.util.*;
-import java.util.logging.Logger;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
 
 /**
- * The class is used as a part of the stack's thread pooling strategy. Method
- * access is synchronized and message delivery ( remove() ) is blocking in the
+ * The class is used as a part of the stack's thread pooling strategy. It is a
+ * bounded multi-producer/multi-consumer ring buffer: adding and removing
+ * messages does not lock and message delivery ( remove() ) is blocking in the
  * case of an empty queue.
+ * <p>
+ * When the queue is full, incoming messages are handled according to the
+ * {@link OverflowPolicy} of the queue and every dropped message is counted so
+ * that the queue (and the number of message processors) could be sized from
+ * actual data.
+ * </p>
  *
  * @author Emil Ivov
  */
@@ -25,19 +34,159 @@ class MessageQueue
     private static final Logger logger
         = Logger.getLogger(MessageQueue.class.getName());
 
-    // not sure whether Vector is the best choice here since we explicitly
-    //sync all methods ... review later
-    private Vector<RawMessage> queue = new Vector<RawMessage>();
+    /**
+     * The capacity of the queue if no explicit value has been specified by
+     * {@link StackProperties#MESSAGE_QUEUE_CAPACITY}.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Determines what the queue does with a new message when it is full.
+     */
+    enum OverflowPolicy
+    {
+        /**
+         * Drop the message that is being added.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Drop the oldest message in the queue to make room for the one being
+         * added.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Drop the message that is being added unless it is a response, in
+         * which case the oldest request or indication in the queue is dropped
+         * to make room for it, and the oldest response only if the queue
+         * holds nothing else. Responses complete our own outstanding
+         * transactions and are therefore more valuable than new requests and
+         * indications.
+         */
+        DROP_NON_RESPONSES_FIRST
+    }
+
+    /**
+     * The messages in the queue.
+     */
+    private final AtomicReferenceArray<RawMessage> items;
+
+    /**
+     * The sequence number of each slot in {@link #items}. A slot whose
+     * sequence is equal to the enqueue position is free, and a slot whose
+     * sequence is one more than the dequeue position is full.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The mask we use to map positions to slots.
+     */
+    private final int mask;
+
+    /**
+     * The position at which the next message will be added.
+     */
+    private final AtomicLong enqueuePosition = new AtomicLong();
+
+    /**
+     * The position from which the next message will be removed.
+     */
+    private final AtomicLong dequeuePosition = new AtomicLong();
+
+    /**
+     * What we do with new messages when the queue is full.
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * The lock that consumers wait on when the queue is empty.
+     */
+    private final Object emptyLock = new Object();
+
+    /**
+     * The number of consumers currently waiting for a message. Producers only
+     * signal when there is someone to wake up.
+     */
+    private volatile int waitingConsumers = 0;
+
+    /**
+     * The number of messages that were added to the queue.
+     */
+    private final AtomicLong enqueued = new AtomicLong();
+
+    /**
+     * The number of new messages that were dropped because the queue was full.
+     */
+    private final AtomicLong droppedNewest = new AtomicLong();
+
+    /**
+     * The number of queued messages that were dropped to make room for new
+     * ones.
+     */
+    private final AtomicLong droppedOldest = new AtomicLong();
+
+    /**
+     * The number of new non-response messages that were dropped because the
+     * queue was full (with {@link OverflowPolicy#DROP_NON_RESPONSES_FIRST}).
+     */
+    private final AtomicLong droppedNonResponses = new AtomicLong();
+
+    /**
+     * The largest number of messages that we have seen in the queue.
+     */
+    private volatile int maxDepth = 0;
+
+    /**
+     * The value of {@link #enqueued} when the enqueue rate was last computed.
+     */
+    private long lastRateEnqueued = 0;
 
-    //keep a copy of the fifo size and make it accessible for concurrent
-    // queries.
-    private int    size  = 0;
+    /**
+     * The time (in milliseconds) when the enqueue rate was last computed.
+     */
+    private long lastRateTime = System.currentTimeMillis();
 
     /**
-     * Create an empty MessageFIFO
+     * Create an empty MessageFIFO with the capacity and the overflow policy
+     * specified in the <tt>System</tt> properties.
      */
     MessageQueue()
     {
+        this(StackProperties.getInt(
+                    StackProperties.MESSAGE_QUEUE_CAPACITY, DEFAULT_CAPACITY),
+             parseOverflowPolicy(StackProperties.getString(
+                    StackProperties.MESSAGE_QUEUE_OVERFLOW_POLICY)));
+    }
+
+    /**
+     * Create an empty MessageFIFO.
+     *
+     * @param capacity the maximum number of messages in the queue. Rounded up
+     * to the closest power of two (and to no less than two).
+     * @param overflowPolicy what to do with new messages when the queue is
+     * full.
+     *
+     * @throws IllegalArgumentException if <tt>capacity</tt> is not positive.
+     */
+    MessageQueue(int capacity, OverflowPolicy overflowPolicy)
+        throws IllegalArgumentException
+    {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException(
+                    capacity + " is not a legal message queue capacity.");
+
+        //a single slot can't tell a full queue from an empty one.
+        int size = 2;
+        while (size < capacity)
+            size <<= 1;
+
+        this.items = new AtomicReferenceArray<RawMessage>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
     }
 
     /**
@@ -46,7 +195,9 @@ class MessageQueue
      */
     public int getSize()
     {
-        return size;
+        long size = enqueuePosition.get() - dequeuePosition.get();
+
+        return (int) Math.max(0, Math.min(size, items.length()));
     }
 
     /**
@@ -55,21 +206,110 @@ class MessageQueue
      */
     public boolean isEmpty()
     {
-        return (size == 0);
+        return (getSize() == 0);
+    }
+
+    /**
+     * Returns the maximum number of messages the queue can hold.
+     *
+     * @return the maximum number of messages the queue can hold.
+     */
+    public int getCapacity()
+    {
+        return items.length();
     }
 
     /**
-     * Adds the specified message to the queue.
+     * Adds the specified message to the queue. If the queue is full the
+     * message is either dropped or makes room for itself, depending on the
+     * overflow policy of the queue. Dropped messages are released (see
+     * {@link RawMessage#release()}).
      *
      * @param rawMessage the message to add.
+     *
+     * @return <tt>true</tt> if <tt>rawMessage</tt> was added and
+     * <tt>false</tt> if it was dropped.
      */
-    public synchronized void add(RawMessage rawMessage)
+    public boolean add(RawMessage rawMessage)
     {
-        logger.finest("Adding raw message to queue.");
-        queue.add(rawMessage);
-        size++;
+        boolean added = offer(rawMessage);
+
+        if (added && waitingConsumers > 0)
+        {
+            synchronized (emptyLock)
+            {
+                emptyLock.notify();
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds the specified message to the queue without waking up consumers.
+     * Callers that add several messages in a row should call
+     * {@link #signalConsumers()} once they are done. Dropped messages are
+     * released (see {@link RawMessage#release()}).
+     *
+     * @param rawMessage the message to add.
+     *
+     * @return <tt>true</tt> if <tt>rawMessage</tt> was added and
+     * <tt>false</tt> if it was dropped.
+     */
+    boolean offer(RawMessage rawMessage)
+    {
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest("Adding raw message to queue.");
+
+        while (!tryOffer(rawMessage))
+        {
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST)
+            {
+                droppedNewest.incrementAndGet();
+                rawMessage.release();
+                return false;
+            }
+            if (overflowPolicy == OverflowPolicy.DROP_NON_RESPONSES_FIRST
+                    && !isResponse(rawMessage))
+            {
+                droppedNonResponses.incrementAndGet();
+                rawMessage.release();
+                return false;
+            }
+
+            //make room by dropping the oldest message that we can spare.
+            RawMessage oldest
+                = (overflowPolicy == OverflowPolicy.DROP_NON_RESPONSES_FIRST)
+                    ? pollNonResponse()
+                    : poll();
+
+            if (oldest != null)
+            {
+                droppedOldest.incrementAndGet();
+                oldest.release();
+            }
+        }
+
+        enqueued.incrementAndGet();
+
+        int depth = getSize();
 
-        notifyAll();
+        if (depth > maxDepth)
+            maxDepth = depth;
+        return true;
+    }
+
+    /**
+     * Wakes up all consumers waiting for messages, if there are any.
+     */
+    void signalConsumers()
+    {
+        if (waitingConsumers > 0)
+        {
+            synchronized (emptyLock)
+            {
+                emptyLock.notifyAll();
+            }
+        }
     }
 
     /**
@@ -82,26 +322,199 @@ class MessageQueue
      * @throws java.lang.InterruptedException if an InterruptedException is
      * thrown wail waiting for a new message to be added.
      */
-    public synchronized RawMessage remove()
+    public RawMessage remove()
         throws InterruptedException
     {
-        waitWhileEmpty();
-        RawMessage rawMessage = queue.remove(0);
+        RawMessage rawMessage = poll();
 
-        size--;
+        if (rawMessage != null)
+            return rawMessage;
+
+        synchronized (emptyLock)
+        {
+            waitingConsumers++;
+            try
+            {
+                while ((rawMessage = poll()) == null)
+                    emptyLock.wait();
+            }
+            finally
+            {
+                waitingConsumers--;
+            }
+        }
         return rawMessage;
     }
 
     /**
-     * Blocks until there is at least one message in the queue.
+     * Removes and returns the oldest message from the fifo or <tt>null</tt> if
+     * the queue is empty. Never blocks.
      *
-     * @throws java.lang.InterruptedException if an InterruptedException is
-     * thrown wail waiting for a new message to be added.
+     * @return the oldest message in the fifo or <tt>null</tt> if the queue is
+     * empty.
      */
-    public synchronized void waitWhileEmpty()
-        throws InterruptedException
+    RawMessage poll()
+    {
+        while (true)
+        {
+            long position = dequeuePosition.get();
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+
+            if (difference == 0)
+            {
+                if (dequeuePosition.compareAndSet(position, position + 1))
+                {
+                    RawMessage rawMessage = items.get(index);
+
+                    items.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return rawMessage;
+                }
+            }
+            else if (difference < 0)
+            {
+                //empty
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the oldest message in the queue that is not a
+     * response. The responses in front of it are moved to the end of the
+     * queue so that they are not lost, which changes their order relative to
+     * the messages behind them but not among themselves. If the queue only
+     * holds responses, or if a response cannot be put back because other
+     * producers have filled the queue in the meantime, that response is
+     * returned instead. Never blocks.
+     *
+     * @return the oldest message in the queue that is not a response, a
+     * response if there is none or <tt>null</tt> if the queue is empty.
+     */
+    private RawMessage pollNonResponse()
+    {
+        for (int i = items.length(); i > 0; i--)
+        {
+            RawMessage oldest = poll();
+
+            if (oldest == null || !isResponse(oldest) || !tryOffer(oldest))
+                return oldest;
+        }
+        //there are only responses in the queue.
+        return poll();
+    }
+
+    /**
+     * Tries to add <tt>rawMessage</tt> to the queue.
+     *
+     * @param rawMessage the message to add.
+     *
+     * @return <tt>true</tt> if the message was added or <tt>false</tt> if the
+     * queue is full.
+     */
+    private boolean tryOffer(RawMessage rawMessage)
+    {
+        while (true)
+        {
+            long position = enqueuePosition.get();
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0)
+            {
+                if (enqueuePosition.compareAndSet(position, position + 1))
+                {
+                    items.set(index, rawMessage);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            }
+            else if (difference < 0)
+            {
+                //full
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Determines whether <tt>rawMessage</tt> looks like a STUN success or
+     * error response by looking at the class bits of its message type.
+     *
+     * @param rawMessage the message to check.
+     *
+     * @return <tt>true</tt> if <tt>rawMessage</tt> is a STUN response.
+     */
+    static boolean isResponse(RawMessage rawMessage)
+    {
+        byte[] bytes = rawMessage.getBytes();
+
+        //the two most significant bits of a STUN message are zeroes and the
+        //C1 class bit is set for both success and error responses.
+        return rawMessage.getMessageLength() > 0
+            && (bytes[0] & 0xC1) == 0x01;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of this queue. The enqueue rate is
+     * computed over the time since the previous call.
+     *
+     * @return a snapshot of the statistics of this queue.
+     */
+    MessageQueueStatistics getStatistics()
+    {
+        long enqueued = this.enqueued.get();
+        double enqueueRate;
+
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            long interval = now - lastRateTime;
+
+            enqueueRate
+                = (interval > 0)
+                    ? ((enqueued - lastRateEnqueued) * 1000.0) / interval
+                    : 0;
+            lastRateEnqueued = enqueued;
+            lastRateTime = now;
+        }
+
+        return new MessageQueueStatistics(
+                getCapacity(),
+                getSize(),
+                maxDepth,
+                enqueued,
+                enqueueRate,
+                droppedNewest.get(),
+                droppedOldest.get(),
+                droppedNonResponses.get());
+    }
+
+    /**
+     * Parses the name of an overflow policy.
+     *
+     * @param name the name of the policy or <tt>null</tt>.
+     *
+     * @return the policy with the specified name or
+     * {@link OverflowPolicy#DROP_NEWEST} if <tt>name</tt> is <tt>null</tt> or
+     * not a valid policy name.
+     */
+    private static OverflowPolicy parseOverflowPolicy(String name)
     {
-        while (isEmpty())
-            wait();
+        if (name != null)
+        {
+            try
+            {
+                return OverflowPolicy.valueOf(name.toUpperCase());
+            }
+            catch (IllegalArgumentException ex)
+            {
+                logger.log(Level.WARNING,
+                           "Unknown message queue overflow policy: " + name,
+                           ex);
+            }
+        }
+        return OverflowPolicy.DROP_NEWEST;
     }
 }
@@ -0,0 +1,251 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.util.*;
+
+/**
+ * A snapshot of the statistics of the queue where a <tt>StunStack</tt> keeps
+ * received messages until they are processed. Applications can use it to size
+ * the queue and the number of message processors (see
+ * {@link StunStack#setThreadPoolSize(int)}) from actual data.
+ *
+ * @author agent
+ */
+public class MessageQueueStatistics
+{
+    /**
+     * The maximum number of messages the queue can hold.
+     */
+    private final int capacity;
+
+    /**
+     * The number of messages in the queue when the snapshot was taken.
+     */
+    private final int depth;
+
+    /**
+     * The largest number of messages seen in the queue.
+     */
+    private final int maxDepth;
+
+    /**
+     * The number of messages added to the queue.
+     */
+    private final long enqueued;
+
+    /**
+     * The number of messages added per second since the previous snapshot.
+     */
+    private final double enqueueRate;
+
+    /**
+     * The number of new messages dropped because the queue was full.
+     */
+    private final long droppedNewest;
+
+    /**
+     * The number of queued messages dropped to make room for new ones.
+     */
+    private final long droppedOldest;
+
+    /**
+     * The number of new non-response messages dropped because the queue was
+     * full.
+     */
+    private final long droppedNonResponses;
+
+    /**
+     * Creates a snapshot.
+     *
+     * @param capacity the maximum number of messages the queue can hold.
+     * @param depth the number of messages currently in the queue.
+     * @param maxDepth the largest number of messages seen in the queue.
+     * @param enqueued the number of messages added to the queue.
+     * @param enqueueRate the number of messages added per second since the
+     * previous snapshot.
+     * @param droppedNewest the number of new messages dropped because the
+     * queue was full.
+     * @param droppedOldest the number of queued messages dropped to make room
+     * for new ones.
+     * @param droppedNonResponses the number of new non-response messages
+     * dropped because the queue was full.
+     */
+    MessageQueueStatistics(int    capacity,
+                           int    depth,
+                           int    maxDepth,
+                           long   enqueued,
+                           double enqueueRate,
+                           long   droppedNewest,
+                           long   droppedOldest,
+                           long   droppedNonResponses)
+    {
+        this.capacity = capacity;
+        this.depth = depth;
+        this.maxDepth = maxDepth;
+        this.enqueued = enqueued;
+        this.enqueueRate = enqueueRate;
+        this.droppedNewest = droppedNewest;
+        this.droppedOldest = droppedOldest;
+        this.droppedNonResponses = droppedNonResponses;
+    }
+
+    /**
+     * Adds up the statistics of several queues (e.g. the partitions of a
+     * <tt>NetAccessManager</tt> that processes every flow on a single thread)
+     * as if they were one queue. The maximum depth of the result is the sum of
+     * the maximum depths of the queues and is therefore an upper bound.
+     *
+     * @param statistics the snapshots to add up.
+     *
+     * @return a snapshot of the combined statistics of the queues.
+     */
+    static MessageQueueStatistics combine(
+            List<MessageQueueStatistics> statistics)
+    {
+        int capacity = 0;
+        int depth = 0;
+        int maxDepth = 0;
+        long enqueued = 0;
+        double enqueueRate = 0;
+        long droppedNewest = 0;
+        long droppedOldest = 0;
+        long droppedNonResponses = 0;
+
+        for (MessageQueueStatistics s : statistics)
+        {
+            capacity += s.capacity;
+            depth += s.depth;
+            maxDepth += s.maxDepth;
+            enqueued += s.enqueued;
+            enqueueRate += s.enqueueRate;
+            droppedNewest += s.droppedNewest;
+            droppedOldest += s.droppedOldest;
+            droppedNonResponses += s.droppedNonResponses;
+        }
+
+        return new MessageQueueStatistics(
+                capacity,
+                depth,
+                maxDepth,
+                enqueued,
+                enqueueRate,
+                droppedNewest,
+                droppedOldest,
+                droppedNonResponses);
+    }
+
+    /**
+     * Returns the maximum number of messages the queue can hold.
+     *
+     * @return the maximum number of messages the queue can hold.
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of messages in the queue when the snapshot was taken.
+     *
+     * @return the number of messages in the queue.
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * Returns the largest number of messages seen in the queue.
+     *
+     * @return the largest number of messages seen in the queue.
+     */
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the total number of messages added to the queue.
+     *
+     * @return the total number of messages added to the queue.
+     */
+    public long getEnqueued()
+    {
+        return enqueued;
+    }
+
+    /**
+     * Returns the number of messages added to the queue per second since the
+     * previous snapshot was taken.
+     *
+     * @return the number of messages added per second.
+     */
+    public double getEnqueueRate()
+    {
+        return enqueueRate;
+    }
+
+    /**
+     * Returns the number of new messages dropped because the queue was full.
+     *
+     * @return the number of new messages dropped because the queue was full.
+     */
+    public long getDroppedNewest()
+    {
+        return droppedNewest;
+    }
+
+    /**
+     * Returns the number of queued messages dropped to make room for new ones.
+     *
+     * @return the number of queued messages dropped to make room for new ones.
+     */
+    public long getDroppedOldest()
+    {
+        return droppedOldest;
+    }
+
+    /**
+     * Returns the number of new non-response messages dropped because the
+     * queue was full.
+     *
+     * @return the number of new non-response messages dropped.
+     */
+    public long getDroppedNonResponses()
+    {
+        return droppedNonResponses;
+    }
+
+    /**
+     * Returns the total number of messages dropped for any reason.
+     *
+     * @return the total number of messages dropped.
+     */
+    public long getDropped()
+    {
+        return droppedNewest + droppedOldest + droppedNonResponses;
+    }
+
+    /**
+     * Returns a <tt>String</tt> representation of this snapshot.
+     *
+     * @return a <tt>String</tt> representation of this snapshot.
+     */
+    @Override
+    public String toString()
+    {
+        return "MessageQueueStatistics[capacity=" + capacity
+            + " depth=" + depth
+            + " maxDepth=" + maxDepth
+            + " enqueued=" + enqueued
+            + " enqueueRate=" + enqueueRate
+            + " droppedNewest=" + droppedNewest
+            + " droppedOldest=" + droppedOldest
+            + " droppedNonResponses=" + droppedNonResponses + "]";
+    }
+}
@@ -7,7 +7,9 @@
 package org.ice4j.stack;
 
 import java.io.*;
+import java.nio.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
 import org.ice4j.*;
@@ -61,6 +63,47 @@ class NetAccessManager
      */
     private final MessageQueue messageQueue = new MessageQueue();
 
+    /**
+     * The arrays that our access points receive datagrams in.
+     */
+    private final ReceiveBufferPool receiveBufferPool
+        = new ReceiveBufferPool(
+                Connector.RECEIVE_BUFFER_SIZE,
+                StackProperties.getInt(
+                        StackProperties.RECEIVE_BUFFER_POOL_SIZE,
+                        ReceiveBufferPool.DEFAULT_POOL_SIZE));
+
+    /**
+     * The number of batches of received messages that our access points have
+     * handed over to the message queue(s), by size bucket (see
+     * {@link ReceiveBatchStatistics#getBucket(int)}).
+     */
+    private final AtomicLongArray receiveBatchHistogram
+        = new AtomicLongArray(ReceiveBatchStatistics.BUCKET_COUNT);
+
+    /**
+     * The total number of messages in all batches counted in
+     * {@link #receiveBatchHistogram}.
+     */
+    private final AtomicLong receiveBatchMessages = new AtomicLong();
+
+    /**
+     * The queues of the message processors when we are running in partitioned
+     * mode or <tt>null</tt> if all processors share {@link #messageQueue}.
+     * Every message is routed to the partition selected by the hash of its
+     * local and remote addresses so that each flow is processed by a single
+     * thread, in the order it was received.
+     */
+    private volatile MessageQueue[] partitions = null;
+
+    /**
+     * Whether our message processors should decode the attributes of incoming
+     * messages lazily (see {@link StackProperties#LAZY_MESSAGE_DECODING}).
+     */
+    private final boolean lazyMessageDecoding
+        = StackProperties.getBoolean(
+                StackProperties.LAZY_MESSAGE_DECODING, false);
+
     /**
      * A thread pool of message processors.
      */
@@ -73,6 +116,23 @@ class NetAccessManager
      */
     private final MessageEventHandler messageEventHandler;
 
+    /**
+     * The selectors that read datagrams for sockets backed by a
+     * <tt>DatagramChannel</tt>, created as they are needed.
+     */
+    private final List<DatagramSelector> selectors
+        = new ArrayList<DatagramSelector>();
+
+    /**
+     * The maximum number of selector threads to read channel backed sockets
+     * with. <tt>0</tt> means that every socket gets its own
+     * <tt>Connector</tt> thread.
+     */
+    private int selectorThreadCount
+        = Math.min(
+                StackProperties.getInt(StackProperties.SELECTOR_THREADS, 0),
+                Runtime.getRuntime().availableProcessors());
+
     /**
      * The size of the thread pool to start with.
      */
@@ -96,7 +156,15 @@ class NetAccessManager
         this.stunStack = stunStack;
         this.messageEventHandler = stunStack;
 
-        initThreadPool();
+        if (StackProperties.getBoolean(
+                StackProperties.PARTITIONED_MESSAGE_PROCESSING, false))
+        {
+            setPartitioned(true);
+        }
+        else
+        {
+            initThreadPool();
+        }
     }
 
     /**
@@ -125,6 +193,168 @@ class NetAccessManager
         return messageQueue;
     }
 
+    /**
+     * Gets the pool of the arrays that the access points of this
+     * <tt>NetAccessManager</tt> receive datagrams in.
+     *
+     * @return the pool of the arrays that datagrams are received in.
+     */
+    ReceiveBufferPool getReceiveBufferPool()
+    {
+        return receiveBufferPool;
+    }
+
+    /**
+     * Determines whether the message processors of this
+     * <tt>NetAccessManager</tt> decode the attributes of incoming messages
+     * only when they are asked for.
+     *
+     * @return <tt>true</tt> if incoming messages are decoded lazily.
+     */
+    boolean isLazyMessageDecoding()
+    {
+        return lazyMessageDecoding;
+    }
+
+    /**
+     * Returns the <tt>MessageQueue</tt> that <tt>rawMessage</tt> should be
+     * added to: the shared queue or, in partitioned mode, the queue of the
+     * partition that its local and remote addresses hash to.
+     *
+     * @param rawMessage the message that is about to be queued.
+     *
+     * @return the queue that <tt>rawMessage</tt> should be added to.
+     */
+    MessageQueue getMessageQueue(RawMessage rawMessage)
+    {
+        MessageQueue[] partitions = this.partitions;
+
+        if (partitions == null)
+            return messageQueue;
+
+        int hash
+            = 31 * rawMessage.getLocalAddress().hashCode()
+                + rawMessage.getRemoteAddress().hashCode();
+
+        //spread the bits so that addresses which only differ in their higher
+        //bits still land in different partitions.
+        hash ^= (hash >>> 16);
+        return partitions[(hash & 0x7FFFFFFF) % partitions.length];
+    }
+
+    /**
+     * Hands a response that was just received straight to the client
+     * transaction that is waiting for it instead of adding it to a message
+     * queue, so that responses do not have to wait behind the requests and
+     * indications that are queued before them. The transaction is looked up
+     * by the transaction ID in the bytes of <tt>rawMessage</tt> and the
+     * response is decoded and delivered on the current thread, i.e. the one
+     * that received it. Responses that no transaction is waiting for are left
+     * to the queues, which drop them as usual.
+     *
+     * @param rawMessage a message with the header of a STUN response.
+     *
+     * @return <tt>true</tt> if the response has been handed to its
+     * transaction and <tt>rawMessage</tt> has been released or <tt>false</tt>
+     * if it still has to be queued.
+     */
+    boolean routeResponse(RawMessage rawMessage)
+    {
+        byte[] bytes = rawMessage.getBytes();
+        boolean rfc3489 = false;
+
+        for (int i = 0; i < Message.MAGIC_COOKIE.length; i++)
+        {
+            if (bytes[4 + i] != Message.MAGIC_COOKIE[i])
+            {
+                rfc3489 = true;
+                break;
+            }
+        }
+
+        //RFC 3489 transaction IDs start where RFC 5389 has its magic cookie.
+        if (rfc3489)
+        {
+            if (stunStack.getClientTransaction(
+                        bytes, 4, Message.RFC3489_TRANSACTION_ID_LENGTH)
+                    == null)
+                return false;
+        }
+        else if (stunStack.getClientTransaction(
+                        bytes, 8, Message.TRANSACTION_ID_LENGTH)
+                    == null)
+            return false;
+
+        try
+        {
+            MessageProcessor.process(
+                    this,
+                    rawMessage,
+                    MessagePool.getInstance());
+        }
+        catch (Throwable t)
+        {
+            //don't let a failing collector kill the thread that receives.
+            logger.log(Level.WARNING, "Failed to handle a response", t);
+        }
+        finally
+        {
+            rawMessage.release();
+        }
+        return true;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the queue(s) where received
+     * messages wait to be processed. In partitioned mode the statistics of all
+     * partitions are added up.
+     *
+     * @return a snapshot of the statistics of our message queue(s).
+     */
+    MessageQueueStatistics getMessageQueueStatistics()
+    {
+        MessageQueue[] partitions = this.partitions;
+
+        if (partitions == null)
+            return messageQueue.getStatistics();
+
+        List<MessageQueueStatistics> statistics
+            = new ArrayList<MessageQueueStatistics>(partitions.length);
+
+        for (MessageQueue partition : partitions)
+            statistics.add(partition.getStatistics());
+        return MessageQueueStatistics.combine(statistics);
+    }
+
+    /**
+     * Records that an access point has handed a batch of <tt>size</tt>
+     * received messages over to the message queue(s).
+     *
+     * @param size the number of messages in the batch.
+     */
+    void recordReceiveBatch(int size)
+    {
+        receiveBatchHistogram.incrementAndGet(
+                ReceiveBatchStatistics.getBucket(size));
+        receiveBatchMessages.addAndGet(size);
+    }
+
+    /**
+     * Returns a snapshot of the sizes of the batches in which our access
+     * points have handed received messages over to the message queue(s).
+     *
+     * @return a snapshot of the sizes of received message batches.
+     */
+    ReceiveBatchStatistics getReceiveBatchStatistics()
+    {
+        long[] histogram = new long[receiveBatchHistogram.length()];
+
+        for (int i = 0; i < histogram.length; i++)
+            histogram[i] = receiveBatchHistogram.get(i);
+        return
+            new ReceiveBatchStatistics(histogram, receiveBatchMessages.get());
+    }
+
     /**
      * Gets the <tt>StunStack</tt> which has created this instance and is its
      * owner.
@@ -180,10 +410,17 @@ class NetAccessManager
 
             //make sure the guy's dead.
             mp.stop();
-            messageProcessors.remove(mp);
 
-            mp = new MessageProcessor(this);
-            mp.start();
+            synchronized (this)
+            {
+                //don't relaunch processors we have already let go of.
+                if (!messageProcessors.remove(mp))
+                    return;
+
+                mp = new MessageProcessor(this, mp.getMessageQueue());
+                messageProcessors.add(mp);
+                mp.start();
+            }
             logger.fine("A message processor has been relaunched because "
                         +"of an error.");
         }
@@ -209,7 +446,15 @@ class NetAccessManager
         if (socket.getUDPSocket() != null &&
             !netUDPAccessPoints.containsKey(localAddr))
         {
-            Connector ap = new Connector(socket, messageQueue, this);
+            DatagramSelector selector = null;
+
+            if (ChannelConnector.getChannel(socket) != null)
+                selector = getSelector();
+
+            Connector ap
+                = (selector == null)
+                    ? new Connector(socket, this)
+                    : new ChannelConnector(socket, this, selector);
 
             netUDPAccessPoints.put(localAddr, ap);
             ap.start();
@@ -218,7 +463,7 @@ class NetAccessManager
         if (socket.getTCPSocket() != null &&
             !netTCPAccessPoints.containsKey(localAddr))
         {
-            Connector ap = new Connector(socket, messageQueue, this);
+            Connector ap = new Connector(socket, this);
 
             netTCPAccessPoints.put(localAddr, ap);
             ap.start();
@@ -250,12 +495,94 @@ class NetAccessManager
     /**
      * Stops <tt>NetAccessManager</tt> and all of its <tt>MessageProcessor</tt>.
      */
-    public void stop()
+    public synchronized void stop()
     {
         for(MessageProcessor mp : messageProcessors)
         {
             mp.stop();
         }
+
+        synchronized (selectors)
+        {
+            for (DatagramSelector selector : selectors)
+                selector.stop();
+            selectors.clear();
+        }
+    }
+
+    //---------------selector pool implementation ------------------------------
+    /**
+     * Sets the maximum number of selector threads used to read sockets that
+     * are backed by a <tt>DatagramChannel</tt>. Only affects sockets added
+     * after the call.
+     *
+     * @param selectorThreadCount the maximum number of selector threads
+     * between <tt>1</tt> and the number of available processors, or
+     * <tt>0</tt> to read every socket with its own <tt>Connector</tt> thread.
+     * @throws IllegalArgumentException if <tt>selectorThreadCount</tt> is
+     * negative or larger than the number of available processors.
+     */
+    void setSelectorThreadCount(int selectorThreadCount)
+        throws IllegalArgumentException
+    {
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        if(selectorThreadCount < 0 || selectorThreadCount > processors)
+            throw new IllegalArgumentException(
+                selectorThreadCount
+                + " is not a legal selector thread count value.");
+
+        synchronized (selectors)
+        {
+            this.selectorThreadCount = selectorThreadCount;
+        }
+    }
+
+    /**
+     * Returns the selector that should read a newly added channel: a new one
+     * if we haven't yet created as many as we are allowed to, or otherwise the
+     * one with the fewest registered channels.
+     *
+     * @return the selector to register a new channel with or <tt>null</tt> if
+     * channels should not be read through selectors.
+     */
+    private DatagramSelector getSelector()
+    {
+        synchronized (selectors)
+        {
+            if (selectorThreadCount < 1)
+                return null;
+
+            DatagramSelector leastLoaded = null;
+
+            for (DatagramSelector selector : selectors)
+            {
+                if (leastLoaded == null
+                        || selector.getRegistrationCount()
+                            < leastLoaded.getRegistrationCount())
+                    leastLoaded = selector;
+            }
+
+            if (selectors.size() < selectorThreadCount
+                    && (leastLoaded == null
+                            || leastLoaded.getRegistrationCount() > 0))
+            {
+                try
+                {
+                    DatagramSelector selector
+                        = new DatagramSelector(
+                                "ice4j.DatagramSelector-" + selectors.size());
+
+                    selectors.add(selector);
+                    return selector;
+                }
+                catch (IOException ex)
+                {
+                    logger.log(Level.WARNING, "Failed to open a selector", ex);
+                }
+            }
+            return leastLoaded;
+        }
     }
 
     //---------------thread pool implementation --------------------------------
@@ -269,7 +596,7 @@ class NetAccessManager
      * running concurrently
      * @throws IllegalArgumentException if threadPoolSize is not a valid size.
      */
-    void setThreadPoolSize(int threadPoolSize)
+    synchronized void setThreadPoolSize(int threadPoolSize)
         throws IllegalArgumentException
     {
         if(threadPoolSize < 1)
@@ -277,6 +604,13 @@ class NetAccessManager
                 threadPoolSize
                 + " is not a legal thread pool size value.");
 
+        if (partitions != null)
+        {
+            if (partitions.length != threadPoolSize)
+                createPartitions(threadPoolSize);
+            return;
+        }
+
         //if we are not running just record the size
         //so that we could init later.
         if(messageProcessors.size() < threadPoolSize)
@@ -291,6 +625,90 @@ class NetAccessManager
         }
     }
 
+    /**
+     * Switches between partitioned mode, where every message processor has a
+     * queue of its own and each flow is always processed by the same
+     * processor, and the default mode, where all processors share a single
+     * queue. Switching to partitioned mode creates one partition per
+     * available processor. Messages that are waiting in the old queue(s) are
+     * moved to the new one(s).
+     *
+     * @param partitioned <tt>true</tt> to switch to partitioned mode and
+     * <tt>false</tt> to switch to a shared queue.
+     */
+    synchronized void setPartitioned(boolean partitioned)
+    {
+        if (partitioned == (partitions != null))
+            return;
+
+        if (partitioned)
+        {
+            createPartitions(Runtime.getRuntime().availableProcessors());
+        }
+        else
+        {
+            MessageQueue[] oldPartitions = partitions;
+            int threadPoolSize = oldPartitions.length;
+
+            shrinkThreadPool(0);
+            partitions = null;
+            fillUpThreadPool(threadPoolSize);
+            for (MessageQueue partition : oldPartitions)
+                requeue(partition);
+        }
+    }
+
+    /**
+     * Replaces the current message processors with <tt>count</tt> partitions,
+     * each with a queue and a message processor of its own.
+     *
+     * @param count the number of partitions to create.
+     */
+    private void createPartitions(int count)
+    {
+        MessageQueue[] oldPartitions = partitions;
+        MessageQueue[] newPartitions = new MessageQueue[count];
+
+        shrinkThreadPool(0);
+        messageProcessors.ensureCapacity(count);
+        for (int i = 0; i < count; i++)
+        {
+            newPartitions[i] = new MessageQueue();
+
+            MessageProcessor mp
+                = new MessageProcessor(this, newPartitions[i]);
+
+            messageProcessors.add(mp);
+            mp.start();
+        }
+        partitions = newPartitions;
+
+        //hand what's left in the old queue(s) over to the new partitions.
+        if (oldPartitions == null)
+        {
+            requeue(messageQueue);
+        }
+        else
+        {
+            for (MessageQueue partition : oldPartitions)
+                requeue(partition);
+        }
+    }
+
+    /**
+     * Moves the messages in <tt>queue</tt> to the queue that they would have
+     * been added to with the current configuration.
+     *
+     * @param queue the queue to empty.
+     */
+    private void requeue(MessageQueue queue)
+    {
+        RawMessage rawMessage;
+
+        while ((rawMessage = queue.poll()) != null)
+            getMessageQueue(rawMessage).add(rawMessage);
+    }
+
     /**
      * Fills the thread pool with the initially specified number of message
      * processors.
@@ -335,8 +753,31 @@ class NetAccessManager
     }
 
     //--------------- SENDING MESSAGES -----------------------------------------
+    /**
+     * The size of the per-thread buffers that outgoing messages are encoded
+     * into. Larger messages are encoded into arrays of their own.
+     */
+    static final int SEND_BUFFER_SIZE = 4096;
+
+    /**
+     * The buffer that the current thread encodes outgoing messages into. The
+     * bytes are sent before {@link #sendMessage(Message, TransportAddress,
+     * TransportAddress)} returns so a thread can always reuse its buffer.
+     */
+    private static final ThreadLocal<ByteBuffer> sendBuffer
+        = new ThreadLocal<ByteBuffer>()
+        {
+            @Override
+            protected ByteBuffer initialValue()
+            {
+                return ByteBuffer.allocate(SEND_BUFFER_SIZE);
+            }
+        };
+
     /**
      * Sends the specified stun message through the specified access point.
+     * The message is encoded into a buffer of the current thread and handed
+     * to the access point without further copies.
      *
      * @param stunMessage the message to send
      * @param srcAddr the access point to use to send the message
@@ -353,7 +794,94 @@ class NetAccessManager
             TransportAddress remoteAddr)
         throws IOException, IllegalArgumentException
     {
-        byte[] bytes = stunMessage.encode(stunStack);
+        Connector ap = getConnector(srcAddr);
+        ByteBuffer buffer = sendBuffer.get();
+
+        buffer.clear();
+        try
+        {
+            stunMessage.encode(stunStack, buffer);
+        }
+        catch (BufferOverflowException boex)
+        {
+            //too big for our buffer, go the old way.
+            ap.sendMessage(stunMessage.encode(stunStack), remoteAddr);
+            return;
+        }
+        buffer.flip();
+        ap.sendMessage(buffer, remoteAddr);
+    }
+
+    /**
+     * Returns the buffer that the current thread encodes outgoing messages
+     * into. It may be used to prepare a message for
+     * {@link #sendMessage(ByteBuffer, TransportAddress, TransportAddress)} as
+     * long as the message is sent before the thread encodes another one.
+     *
+     * @return the send buffer of the current thread.
+     */
+    static ByteBuffer getSendBuffer()
+    {
+        return sendBuffer.get();
+    }
+
+    /**
+     * Sends the remaining bytes of <tt>buffer</tt> through the specified
+     * access point.
+     *
+     * @param buffer the bytes to send between its position and its limit.
+     * @param srcAddr the access point to use to send the message
+     * @param remoteAddr the destination of the message.
+     *
+     * @throws IOException  if an error occurs while sending message bytes
+     * through the network socket.
+     * @throws IllegalArgumentException if the apDescriptor references an
+     * access point that had not been installed,
+     */
+    void sendMessage(
+            ByteBuffer buffer,
+            TransportAddress srcAddr,
+            TransportAddress remoteAddr)
+        throws IOException, IllegalArgumentException
+    {
+        getConnector(srcAddr).sendMessage(buffer, remoteAddr);
+    }
+
+    /**
+     * Sends the specified bytes (normally a message that has already been
+     * encoded) through the specified access point.
+     *
+     * @param bytes the bytes to send.
+     * @param srcAddr the access point to use to send the message
+     * @param remoteAddr the destination of the message.
+     *
+     * @throws IOException  if an error occurs while sending message bytes
+     * through the network socket.
+     * @throws IllegalArgumentException if the apDescriptor references an
+     * access point that had not been installed,
+     */
+    void sendMessage(
+            byte[] bytes,
+            TransportAddress srcAddr,
+            TransportAddress remoteAddr)
+        throws IOException, IllegalArgumentException
+    {
+        getConnector(srcAddr).sendMessage(bytes, remoteAddr);
+    }
+
+    /**
+     * Returns the access point bound on <tt>srcAddr</tt>.
+     *
+     * @param srcAddr the address of the access point.
+     *
+     * @return the access point bound on <tt>srcAddr</tt>.
+     *
+     * @throws IllegalArgumentException if no access point has been installed
+     * for <tt>srcAddr</tt>.
+     */
+    private Connector getConnector(TransportAddress srcAddr)
+        throws IllegalArgumentException
+    {
         Connector ap = null;
 
         if(srcAddr.getTransport() == Transport.UDP)
@@ -372,7 +900,6 @@ class NetAccessManager
                         "No socket has been added for source address: "
                             + srcAddr);
         }
-
-        ap.sendMessage(bytes, remoteAddr);
+        return ap;
     }
 }
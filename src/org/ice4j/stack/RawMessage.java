@@ -6,17 +6,49 @@
  */
 package org.ice4j.stack;
 
+import java.util.concurrent.atomic.*;
+
 import org.ice4j.*;
 
 /**
  * The class represents a binary STUN message as well as the address and port
  * of the host that sent it and the address and port where it was received
  * (locally).
+ * <p>
+ * Received messages may borrow their bytes from a {@link ReceiveBufferPool}.
+ * Such messages are reference counted: they start with a single reference
+ * which is released once the message has been processed, and anyone who needs
+ * the bytes after that, such as a listener that keeps the message of a
+ * <tt>StunMessageEvent</tt> (e.g. to validate its MESSAGE-INTEGRITY on another
+ * thread), has to {@link #retain()} the message before returning and
+ * {@link #release()} it when done. The addresses of a message remain valid
+ * after its bytes have been returned to the pool.
+ * </p>
  *
  * @author Emil Ivov
  */
 public class RawMessage
 {
+    /**
+     * Updates {@link #references} without requiring an extra object per
+     * message.
+     */
+    private static final AtomicIntegerFieldUpdater<RawMessage>
+        referencesUpdater
+            = AtomicIntegerFieldUpdater.newUpdater(
+                    RawMessage.class, "references");
+
+    /**
+     * The pool that {@link #messageBytes} was borrowed from or <tt>null</tt>
+     * if the bytes belong to this message.
+     */
+    private final ReceiveBufferPool pool;
+
+    /**
+     * The number of references to this message. The bytes go back to
+     * {@link #pool} when it drops to zero.
+     */
+    private volatile int references = 1;
     /**
      * The message itself.
      */
@@ -67,12 +99,84 @@ public class RawMessage
         this.messageLength = messageLength;
         this.localAddress  = localAddress;
         this.remoteAddress = remoteAddress;
+        this.pool          = null;
+    }
+
+    /**
+     * Constructs a raw message around an array borrowed from <tt>pool</tt>
+     * without copying it. The array is returned to <tt>pool</tt> when the
+     * last reference to the new message is released.
+     *
+     * @param pool the pool that <tt>messageBytes</tt> was borrowed from.
+     * @param messageBytes the array that the message was received in.
+     * @param messageLength the number of bytes of the message at the
+     * beginning of <tt>messageBytes</tt>.
+     * @param remoteAddress the address where the message came from.
+     * @param localAddress the <tt>TransportAddress</tt> that the message was
+     * received on.
+     */
+    RawMessage(ReceiveBufferPool pool,
+               byte[]            messageBytes,
+               int               messageLength,
+               TransportAddress  remoteAddress,
+               TransportAddress  localAddress)
+    {
+        this.pool          = pool;
+        this.messageBytes  = messageBytes;
+        this.messageLength = messageLength;
+        this.localAddress  = localAddress;
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Adds a reference to this message so that its bytes remain valid until
+     * a matching call to {@link #release()}.
+     *
+     * @return this message.
+     *
+     * @throws IllegalStateException if all references to this message have
+     * already been released.
+     */
+    public RawMessage retain()
+        throws IllegalStateException
+    {
+        while (true)
+        {
+            int references = this.references;
+
+            if (references < 1)
+                throw new IllegalStateException("Message already released");
+            if (referencesUpdater.compareAndSet(
+                    this, references, references + 1))
+                return this;
+        }
+    }
+
+    /**
+     * Releases a reference to this message. Once the last one is gone the
+     * bytes of the message go back to the pool they were borrowed from and
+     * must no longer be accessed.
+     */
+    public void release()
+    {
+        int references = referencesUpdater.decrementAndGet(this);
+
+        if (references == 0 && pool != null)
+        {
+            byte[] messageBytes = this.messageBytes;
+
+            this.messageBytes = null;
+            pool.release(messageBytes);
+        }
     }
 
     /**
-     * Returns the message itself.
+     * Returns the message itself. Note that the array may be longer than the
+     * message (see {@link #getMessageLength()}).
      *
-     * @return a binary array containing the message data.
+     * @return a binary array containing the message data or <tt>null</tt> if
+     * the bytes were borrowed from a pool and all references to this message
+     * have been released.
      */
     byte[] getBytes()
     {
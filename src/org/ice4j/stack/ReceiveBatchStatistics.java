@@ -0,0 +1,158 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+/**
+ * A snapshot of the sizes of the batches in which the access points of a
+ * <tt>StunStack</tt> have handed received messages over to the message
+ * processors. Access points that read through a selector (see
+ * {@link StunStack#setSelectorThreadCount(int)}) drain all datagrams that are
+ * immediately available and publish them with a single wake-up, while
+ * blocking access points always publish batches of one.
+ * <p>
+ * Batch sizes are counted in power of two buckets: bucket <tt>0</tt> counts
+ * batches of one message, bucket <tt>1</tt> batches of two or three, bucket
+ * <tt>2</tt> batches of four to seven messages and so on, with the last bucket
+ * also counting all larger batches.
+ * </p>
+ *
+ * @author agent
+ */
+public class ReceiveBatchStatistics
+{
+    /**
+     * The number of buckets in the histogram.
+     */
+    static final int BUCKET_COUNT = 8;
+
+    /**
+     * The number of batches in each bucket.
+     */
+    private final long[] histogram;
+
+    /**
+     * The total number of batches.
+     */
+    private final long batches;
+
+    /**
+     * The total number of messages in all batches.
+     */
+    private final long messages;
+
+    /**
+     * Creates a snapshot.
+     *
+     * @param histogram the number of batches in each bucket. The array is
+     * not copied.
+     * @param messages the total number of messages in all batches.
+     */
+    ReceiveBatchStatistics(long[] histogram, long messages)
+    {
+        long batches = 0;
+
+        for (long count : histogram)
+            batches += count;
+
+        this.histogram = histogram;
+        this.batches = batches;
+        this.messages = messages;
+    }
+
+    /**
+     * Returns the index of the bucket that counts batches of <tt>size</tt>
+     * messages.
+     *
+     * @param size the size of a batch.
+     *
+     * @return the index of the bucket that counts batches of <tt>size</tt>
+     * messages.
+     */
+    static int getBucket(int size)
+    {
+        int bucket = 31 - Integer.numberOfLeadingZeros(Math.max(size, 1));
+
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Returns the smallest batch size counted in a bucket.
+     *
+     * @param bucket the index of the bucket.
+     *
+     * @return the smallest batch size counted in <tt>bucket</tt>.
+     */
+    public static int getBucketLowerBound(int bucket)
+    {
+        return 1 << bucket;
+    }
+
+    /**
+     * Returns the number of batches counted in each bucket.
+     *
+     * @return a copy of the histogram of batch sizes.
+     */
+    public long[] getHistogram()
+    {
+        return histogram.clone();
+    }
+
+    /**
+     * Returns the total number of batches.
+     *
+     * @return the total number of batches.
+     */
+    public long getBatches()
+    {
+        return batches;
+    }
+
+    /**
+     * Returns the total number of messages in all batches.
+     *
+     * @return the total number of messages in all batches.
+     */
+    public long getMessages()
+    {
+        return messages;
+    }
+
+    /**
+     * Returns the average number of messages per batch.
+     *
+     * @return the average number of messages per batch or <tt>0</tt> if there
+     * have been no batches.
+     */
+    public double getMeanBatchSize()
+    {
+        return (batches == 0) ? 0 : ((double) messages) / batches;
+    }
+
+    /**
+     * Returns a <tt>String</tt> representation of this snapshot.
+     *
+     * @return a <tt>String</tt> representation of this snapshot.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder s
+            = new StringBuilder("ReceiveBatchStatistics[batches=")
+                .append(batches)
+                .append(" messages=")
+                .append(messages);
+
+        for (int i = 0; i < histogram.length; i++)
+        {
+            s.append(' ').append(getBucketLowerBound(i));
+            if (i == histogram.length - 1)
+                s.append('+');
+            s.append(':').append(histogram[i]);
+        }
+        return s.append(']').toString();
+    }
+}
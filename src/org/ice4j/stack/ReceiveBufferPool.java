@@ -0,0 +1,153 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A bounded pool of the fixed size arrays that datagrams are received in.
+ * <tt>Connector</tt>s receive straight into an array borrowed from the pool
+ * and wrap it in a {@link RawMessage} without copying it. The array goes back
+ * to the pool once the last reference to the <tt>RawMessage</tt> has been
+ * released (see {@link RawMessage#release()}), which normally happens right
+ * after the message has been processed. In the steady state receiving
+ * messages therefore does not allocate any arrays.
+ * <p>
+ * If the pool is empty a new array is allocated and if it is full a returned
+ * array is simply left to the garbage collector, so a pool that is too small
+ * only costs us performance.
+ * </p>
+ *
+ * @author agent
+ */
+class ReceiveBufferPool
+{
+    /**
+     * The maximum number of arrays a pool keeps if no explicit value has been
+     * specified by {@link org.ice4j.StackProperties#RECEIVE_BUFFER_POOL_SIZE}.
+     */
+    public static final int DEFAULT_POOL_SIZE = 512;
+
+    /**
+     * The size of the arrays in the pool.
+     */
+    private final int bufferSize;
+
+    /**
+     * The arrays that are currently available. Only the first
+     * {@link #available} elements are valid.
+     */
+    private final byte[][] buffers;
+
+    /**
+     * The number of arrays currently available in {@link #buffers}.
+     */
+    private int available = 0;
+
+    /**
+     * The number of arrays that we had to allocate because the pool was empty.
+     */
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param bufferSize the size of the arrays in the pool.
+     * @param poolSize the maximum number of arrays to keep in the pool.
+     *
+     * @throws IllegalArgumentException if <tt>bufferSize</tt> is not positive
+     * or <tt>poolSize</tt> is negative.
+     */
+    ReceiveBufferPool(int bufferSize, int poolSize)
+        throws IllegalArgumentException
+    {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException(
+                    bufferSize + " is not a legal buffer size.");
+        if (poolSize < 0)
+            throw new IllegalArgumentException(
+                    poolSize + " is not a legal pool size.");
+
+        this.bufferSize = bufferSize;
+        this.buffers = new byte[poolSize][];
+    }
+
+    /**
+     * Returns the size of the arrays in this pool.
+     *
+     * @return the size of the arrays in this pool.
+     */
+    int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * Takes an array from the pool or allocates a new one if the pool is
+     * empty.
+     *
+     * @return an array of {@link #getBufferSize()} bytes.
+     */
+    byte[] acquire()
+    {
+        synchronized (buffers)
+        {
+            if (available > 0)
+            {
+                byte[] buffer = buffers[--available];
+
+                buffers[available] = null;
+                return buffer;
+            }
+        }
+
+        allocated.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Returns an array to the pool. Arrays of the wrong size and arrays that
+     * don't fit in the pool are dropped.
+     *
+     * @param buffer the array to return. The caller must not use it anymore.
+     */
+    void release(byte[] buffer)
+    {
+        if (buffer == null || buffer.length != bufferSize)
+            return;
+
+        synchronized (buffers)
+        {
+            if (available < buffers.length)
+                buffers[available++] = buffer;
+        }
+    }
+
+    /**
+     * Returns the number of arrays currently waiting in the pool.
+     *
+     * @return the number of arrays currently waiting in the pool.
+     */
+    int getAvailable()
+    {
+        synchronized (buffers)
+        {
+            return available;
+        }
+    }
+
+    /**
+     * Returns the number of arrays that had to be allocated because the pool
+     * was empty.
+     *
+     * @return the number of arrays allocated by this pool.
+     */
+    long getAllocated()
+    {
+        return allocated.get();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.util.*;
+
+import org.ice4j.*;
+
+/**
+ * Estimates the retransmission timeout (RTO) of client transactions for
+ * every destination from the round trip times of its previous transactions,
+ * as RFC 5389 section 7.2.1 suggests: the smoothed round trip time and its
+ * variation are computed as described in RFC 2988 and
+ * <tt>RTO = SRTT + max(G, 4 * RTTVAR)</tt>, where <tt>G</tt> is the
+ * granularity of the timer of the stack.
+ * <p>
+ * Estimates are kept for at most {@link #MAX_DESTINATIONS} destinations.
+ * Those of destinations that no transaction has used for
+ * {@link #IDLE_TIMEOUT} milliseconds (RFC 5389 recommends ten minutes) are
+ * discarded, as are the least recently used ones when there are too many.
+ * </p>
+ *
+ * @author agent
+ */
+class RtoEstimator
+{
+    /**
+     * The maximum number of destinations we keep estimates for.
+     */
+    static final int MAX_DESTINATIONS = 1024;
+
+    /**
+     * The number of milliseconds after which we discard the estimate of a
+     * destination that no transaction has used.
+     */
+    static final long IDLE_TIMEOUT = 10 * 60 * 1000;
+
+    /**
+     * The granularity of the timer that drives retransmissions, in
+     * microseconds.
+     */
+    private static final long GRANULARITY
+        = TimerWheel.DEFAULT_TICK_DURATION * 1000;
+
+    /**
+     * The smallest RTO we ever return, in milliseconds: two ticks of the
+     * timer that drives retransmissions.
+     */
+    static final int MIN_RTO = (int) (2 * TimerWheel.DEFAULT_TICK_DURATION);
+
+    /**
+     * The estimates of each destination, the least recently used first.
+     */
+    private final LinkedHashMap<TransportAddress, Estimate> estimates
+        = new LinkedHashMap<TransportAddress, Estimate>(16, 0.75f, true);
+
+    /**
+     * Returns the RTO that a new transaction to <tt>destination</tt> should
+     * start with.
+     *
+     * @param destination the destination of the transaction.
+     * @param defaultRto the RTO to return, in milliseconds, if we have no
+     * estimate for <tt>destination</tt>.
+     * @param maxRto the largest RTO to return, in milliseconds.
+     *
+     * @return the RTO for <tt>destination</tt> in milliseconds.
+     */
+    synchronized int getRto(TransportAddress destination,
+                            int              defaultRto,
+                            int              maxRto)
+    {
+        long now = System.nanoTime() / 1000000L;
+
+        evictIdle(now);
+
+        Estimate estimate = estimates.get(destination);
+
+        if (estimate == null)
+            return defaultRto;
+
+        estimate.lastUsed = now;
+
+        long rto
+            = estimate.srtt + Math.max(GRANULARITY, 4 * estimate.rttvar);
+
+        //round up to whole milliseconds
+        rto = (rto + 999) / 1000;
+        return (int) Math.max(MIN_RTO, Math.min(rto, maxRto));
+    }
+
+    /**
+     * Updates the estimate of <tt>destination</tt> with the round trip time
+     * of a transaction whose request was not retransmitted.
+     *
+     * @param destination the destination of the transaction.
+     * @param rtt the round trip time of the transaction in microseconds.
+     */
+    synchronized void update(TransportAddress destination, long rtt)
+    {
+        long now = System.nanoTime() / 1000000L;
+        Estimate estimate = estimates.get(destination);
+
+        if (estimate == null)
+        {
+            estimate = new Estimate();
+            estimate.srtt = rtt;
+            estimate.rttvar = rtt / 2;
+            estimates.put(destination, estimate);
+            if (estimates.size() > MAX_DESTINATIONS)
+            {
+                Iterator<Estimate> eldest = estimates.values().iterator();
+
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        else
+        {
+            estimate.rttvar
+                = (3 * estimate.rttvar + Math.abs(estimate.srtt - rtt)) / 4;
+            estimate.srtt = (7 * estimate.srtt + rtt) / 8;
+        }
+        estimate.lastUsed = now;
+        evictIdle(now);
+    }
+
+    /**
+     * Discards the estimate of <tt>destination</tt>, e.g. because one of its
+     * transactions timed out and the estimate can no longer be trusted.
+     *
+     * @param destination the destination whose estimate to discard.
+     */
+    synchronized void reset(TransportAddress destination)
+    {
+        estimates.remove(destination);
+    }
+
+    /**
+     * Returns the number of destinations we have estimates for.
+     *
+     * @return the number of destinations we have estimates for.
+     */
+    synchronized int size()
+    {
+        return estimates.size();
+    }
+
+    /**
+     * Discards the estimates that no transaction has used for
+     * {@link #IDLE_TIMEOUT} milliseconds. Estimates are kept in the order
+     * they were last used so we only have to look at the eldest ones.
+     *
+     * @param now the current time in milliseconds.
+     */
+    private void evictIdle(long now)
+    {
+        Iterator<Estimate> iter = estimates.values().iterator();
+
+        while (iter.hasNext())
+        {
+            if (now - iter.next().lastUsed < IDLE_TIMEOUT)
+                break;
+            iter.remove();
+        }
+    }
+
+    /**
+     * The round trip time estimate of a destination.
+     */
+    private static class Estimate
+    {
+        /**
+         * The smoothed round trip time in microseconds.
+         */
+        long srtt;
+
+        /**
+         * The round trip time variation in microseconds.
+         */
+        long rttvar;
+
+        /**
+         * The time, in milliseconds, this estimate was last used.
+         */
+        long lastUsed;
+    }
+}
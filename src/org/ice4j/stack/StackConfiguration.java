@@ -0,0 +1,314 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import org.ice4j.*;
+
+/**
+ * An immutable snapshot of the {@link StackProperties} that a
+ * <tt>StunStack</tt> consults while it sends and receives messages. The
+ * properties are read once, when the snapshot is created, so that encoding,
+ * receiving and retransmitting messages do not have to look them up in the
+ * system properties every time. A <tt>StunStack</tt> takes a new snapshot
+ * when it is created and whenever {@link StunStack#reloadConfiguration()} is
+ * called, so changes to the system properties only affect a running stack
+ * after a reload.
+ *
+ * @author agent
+ */
+public final class StackConfiguration
+{
+    /**
+     * The largest burst of requests we allow a source. Larger bursts would not
+     * fit in the token buckets of the <tt>AdmissionController</tt>.
+     */
+    private static final int MAX_REQUEST_BURST_SIZE = 1000000;
+
+    /**
+     * The value of {@link StackProperties#SOFTWARE} or <tt>null</tt> if it is
+     * not set or empty.
+     */
+    private final String software;
+
+    /**
+     * The value of {@link StackProperties#ALWAYS_SIGN}.
+     */
+    private final boolean alwaysSign;
+
+    /**
+     * The value of {@link StackProperties#PROPAGATE_RECEIVED_RETRANSMISSIONS}.
+     */
+    private final boolean propagateReceivedRetransmissions;
+
+    /**
+     * The value of {@link StackProperties#REQUIRE_MESSAGE_INTEGRITY}.
+     */
+    private final boolean requireMessageIntegrity;
+
+    /**
+     * The value of {@link StackProperties#KEEP_CRANS_AFTER_A_RESPONSE}.
+     */
+    private final boolean keepClientTransactionsAfterResponse;
+
+    /**
+     * The value of {@link StackProperties#MESSAGE_RECYCLING}.
+     */
+    private final boolean messageRecycling;
+
+    /**
+     * The value of {@link StackProperties#ADAPTIVE_RTO}.
+     */
+    private final boolean adaptiveRto;
+
+    /**
+     * The value of {@link StackProperties#MAX_CTRAN_RETRANSMISSIONS}.
+     */
+    private final int maxRetransmissions;
+
+    /**
+     * The value of {@link StackProperties#REQUEST_RATE_LIMIT}.
+     */
+    private final int requestRateLimit;
+
+    /**
+     * The value of {@link StackProperties#REQUEST_BURST_SIZE}.
+     */
+    private final int requestBurstSize;
+
+    /**
+     * The value of {@link StackProperties#MAX_SERVER_TRANSACTIONS}.
+     */
+    private final int maxServerTransactions;
+
+    /**
+     * The value of {@link StackProperties#FIRST_CTRAN_RETRANS_AFTER}.
+     */
+    private final int originalWaitInterval;
+
+    /**
+     * The value of {@link StackProperties#MAX_CTRAN_RETRANS_TIMER}.
+     */
+    private final int maxWaitInterval;
+
+    /**
+     * Creates a snapshot of the current values of the system properties that
+     * configure a <tt>StunStack</tt>. Properties that are not set or that
+     * cannot be parsed take their default values.
+     */
+    public StackConfiguration()
+    {
+        software = StackProperties.getString(StackProperties.SOFTWARE);
+        alwaysSign
+            = StackProperties.getBoolean(StackProperties.ALWAYS_SIGN, false);
+        propagateReceivedRetransmissions
+            = StackProperties.getBoolean(
+                    StackProperties.PROPAGATE_RECEIVED_RETRANSMISSIONS,
+                    false);
+        requireMessageIntegrity
+            = StackProperties.getBoolean(
+                    StackProperties.REQUIRE_MESSAGE_INTEGRITY,
+                    false);
+        keepClientTransactionsAfterResponse
+            = StackProperties.getBoolean(
+                    StackProperties.KEEP_CRANS_AFTER_A_RESPONSE,
+                    false);
+        messageRecycling
+            = StackProperties.getBoolean(
+                    StackProperties.MESSAGE_RECYCLING,
+                    false);
+        adaptiveRto
+            = StackProperties.getBoolean(StackProperties.ADAPTIVE_RTO, false);
+        maxRetransmissions
+            = StackProperties.getInt(
+                    StackProperties.MAX_CTRAN_RETRANSMISSIONS,
+                    StunClientTransaction.DEFAULT_MAX_RETRANSMISSIONS);
+        originalWaitInterval
+            = StackProperties.getInt(
+                    StackProperties.FIRST_CTRAN_RETRANS_AFTER,
+                    StunClientTransaction.DEFAULT_ORIGINAL_WAIT_INTERVAL);
+        maxWaitInterval
+            = StackProperties.getInt(
+                    StackProperties.MAX_CTRAN_RETRANS_TIMER,
+                    StunClientTransaction.DEFAULT_MAX_WAIT_INTERVAL);
+        requestRateLimit
+            = Math.max(
+                    0,
+                    StackProperties.getInt(
+                            StackProperties.REQUEST_RATE_LIMIT,
+                            0));
+
+        int requestBurstSize
+            = StackProperties.getInt(
+                    StackProperties.REQUEST_BURST_SIZE,
+                    requestRateLimit);
+
+        if (requestBurstSize < 1)
+            requestBurstSize = Math.max(1, requestRateLimit);
+        this.requestBurstSize
+            = Math.min(requestBurstSize, MAX_REQUEST_BURST_SIZE);
+        maxServerTransactions
+            = StackProperties.getInt(
+                    StackProperties.MAX_SERVER_TRANSACTIONS,
+                    AdmissionController.DEFAULT_MAX_SERVER_TRANSACTIONS);
+    }
+
+    /**
+     * Returns the value of the SOFTWARE attribute to add to outgoing
+     * messages.
+     *
+     * @return the value of the SOFTWARE attribute to add to outgoing messages
+     * or <tt>null</tt> if they should not get one.
+     */
+    public String getSoftware()
+    {
+        return software;
+    }
+
+    /**
+     * Determines whether all outgoing messages should carry a FINGERPRINT.
+     *
+     * @return <tt>true</tt> if all outgoing messages should carry a
+     * FINGERPRINT and <tt>false</tt> otherwise.
+     */
+    public boolean isAlwaysSign()
+    {
+        return alwaysSign;
+    }
+
+    /**
+     * Determines whether retransmissions of incoming requests should be
+     * delivered to the application.
+     *
+     * @return <tt>true</tt> if retransmissions of incoming requests should be
+     * delivered to the application and <tt>false</tt> otherwise.
+     */
+    public boolean isPropagateReceivedRetransmissions()
+    {
+        return propagateReceivedRetransmissions;
+    }
+
+    /**
+     * Determines whether incoming requests without a MESSAGE-INTEGRITY should
+     * be rejected.
+     *
+     * @return <tt>true</tt> if incoming requests without a MESSAGE-INTEGRITY
+     * should be rejected and <tt>false</tt> otherwise.
+     */
+    public boolean isRequireMessageIntegrity()
+    {
+        return requireMessageIntegrity;
+    }
+
+    /**
+     * Determines whether client transactions should be kept after they have
+     * received a response.
+     *
+     * @return <tt>true</tt> if client transactions should be kept after they
+     * have received a response and <tt>false</tt> if they should be
+     * cancelled.
+     */
+    public boolean isKeepClientTransactionsAfterResponse()
+    {
+        return keepClientTransactionsAfterResponse;
+    }
+
+    /**
+     * Determines whether incoming messages are decoded into pooled objects
+     * that are recycled once they have been dispatched.
+     *
+     * @return <tt>true</tt> if incoming messages are recycled after they have
+     * been dispatched and <tt>false</tt> otherwise.
+     */
+    public boolean isMessageRecycling()
+    {
+        return messageRecycling;
+    }
+
+    /**
+     * Determines whether client transactions start with a retransmission
+     * timeout estimated from the round trip times of the previous
+     * transactions to their destination.
+     *
+     * @return <tt>true</tt> if retransmission timeouts are estimated per
+     * destination and <tt>false</tt> if they are fixed.
+     */
+    public boolean isAdaptiveRto()
+    {
+        return adaptiveRto;
+    }
+
+    /**
+     * Returns the maximum number of times a client transaction retransmits
+     * its request.
+     *
+     * @return the maximum number of times a client transaction retransmits
+     * its request.
+     */
+    public int getMaxRetransmissions()
+    {
+        return maxRetransmissions;
+    }
+
+    /**
+     * Returns the number of milliseconds a client transaction waits before
+     * it retransmits its request for the first time.
+     *
+     * @return the number of milliseconds a client transaction waits before
+     * it retransmits its request for the first time.
+     */
+    public int getOriginalWaitInterval()
+    {
+        return originalWaitInterval;
+    }
+
+    /**
+     * Returns the maximum number of milliseconds a client transaction waits
+     * between two retransmissions.
+     *
+     * @return the maximum number of milliseconds a client transaction waits
+     * between two retransmissions.
+     */
+    public int getMaxWaitInterval()
+    {
+        return maxWaitInterval;
+    }
+
+    /**
+     * Returns the number of new requests per second that the stack accepts
+     * from a single remote address.
+     *
+     * @return the number of new requests per second that the stack accepts
+     * from a single remote address or <tt>0</tt> if there is no limit.
+     */
+    public int getRequestRateLimit()
+    {
+        return requestRateLimit;
+    }
+
+    /**
+     * Returns the number of new requests that a single remote address may
+     * send in a burst.
+     *
+     * @return the number of new requests that a single remote address may
+     * send in a burst.
+     */
+    public int getRequestBurstSize()
+    {
+        return requestBurstSize;
+    }
+
+    /**
+     * Returns the maximum number of live server transactions.
+     *
+     * @return the maximum number of live server transactions or <tt>0</tt>
+     * if there is no limit.
+     */
+    public int getMaxServerTransactions()
+    {
+        return maxServerTransactions;
+    }
+}
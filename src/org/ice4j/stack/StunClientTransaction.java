@@ -7,6 +7,7 @@
 package org.ice4j.stack;
 
 import java.io.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 import org.ice4j.*;
@@ -27,7 +28,11 @@ import org.ice4j.message.*;
  * would be sent at times 0ms, 100ms, 300ms, 700ms, 1500ms, 3100ms,
  * 4700ms, 6300ms, and 7900ms. At 9500ms, the client considers the
  * transaction to have failed if no response has been received.
- *
+ * <p>
+ * When {@link org.ice4j.StackProperties#ADAPTIVE_RTO} is set, the first
+ * interval is instead estimated from the round trip times of the previous
+ * transactions to the same destination (see <tt>RtoEstimator</tt>).
+ * </p>
  *
  * @author Emil Ivov.
  * @author Pascal Mogeri (contributed configuration of client transactions).
@@ -79,6 +84,32 @@ class StunClientTransaction
      */
     public int maxWaitInterval = DEFAULT_MAX_WAIT_INTERVAL;
 
+    /**
+     * Whether the transaction should be kept rather than cancelled after it
+     * has received a response.
+     */
+    private boolean keepAfterResponse = false;
+
+    /**
+     * Whether the retransmission timeout of this transaction is estimated
+     * from the round trip times of the previous transactions to its
+     * destination and this transaction measures its round trip time for
+     * future ones.
+     */
+    private boolean adaptiveRto = false;
+
+    /**
+     * The time, in nanoseconds, the request was first sent, which we measure
+     * the round trip time from.
+     */
+    private long requestSentTime;
+
+    /**
+     * Whether we have already measured the round trip time of this
+     * transaction.
+     */
+    private boolean rttMeasured = false;
+
     /**
      * Indicates how many times we have retransmitted so fat.
      */
@@ -99,6 +130,13 @@ class StunClientTransaction
      */
     private final Request request;
 
+    /**
+     * The bytes of {@link #request} as they were encoded for the first
+     * transmission. Retransmissions resend them as they are instead of
+     * encoding (and signing) the request again.
+     */
+    private byte[] encodedRequest;
+
     /**
      * The destination of the request.
      */
@@ -127,9 +165,18 @@ class StunClientTransaction
     private boolean cancelled = false;
 
     /**
-     * The thread that this transaction runs in.
+     * The timeout that is going to trigger our next retransmission or
+     * <tt>null</tt> if we have not yet sent the request.
      */
-    private Thread retransmissionsThread = null;
+    private TimerWheel.Timeout retransmissionTimeout = null;
+
+    /**
+     * The time (in milliseconds, as returned by <tt>System.nanoTime()</tt>)
+     * when the next retransmission is due. We schedule against it rather than
+     * against the moment the timer fired so that timer latency does not
+     * accumulate over retransmissions.
+     */
+    private long nextRetransmissionTime;
 
     /**
      * Creates a client transaction.
@@ -194,10 +241,6 @@ class StunClientTransaction
             throw new IllegalArgumentException("The TransactionID class "
                                       +"generated an invalid transaction ID");
         }
-
-        retransmissionsThread = new Thread(this,
-                        "StunClientTransaction@"+hashCode());
-        retransmissionsThread.setDaemon(true);
     }
 
     /**
@@ -207,24 +250,21 @@ class StunClientTransaction
      * until a response is received, or a total of 7 requests have been sent.
      * If no response is received by 1.6 seconds after the last request has been
      * sent, we consider the transaction to have failed.
+     * <p>
+     * The method is executed by the timer of the <tt>StunStack</tt> every time
+     * a retransmission is due, so rather than sleeping between retransmissions
+     * it simply schedules itself again.
      */
     public void run()
     {
-        retransmissionsThread.setName("ice4j.ClientTransaction");
-        nextWaitInterval = originalWaitInterval;
-
         synchronized(this)
         {
-            for (retransmissionCounter = 0;
-                 retransmissionCounter < maxRetransmissions;
-                 retransmissionCounter ++)
-            {
-                waitFor(nextWaitInterval);
-
-                //did someone tell us to get lost?
-                if(cancelled)
-                    return;
+            //did someone tell us to get lost?
+            if(cancelled)
+                return;
 
+            if(retransmissionCounter < maxRetransmissions)
+            {
                 if(nextWaitInterval < maxWaitInterval)
                     nextWaitInterval *= 2;
 
@@ -241,23 +281,46 @@ class StunClientTransaction
                     logger.log(Level.INFO,
                                "A client tran retransmission failed", ex);
                 }
-            }
 
-            //before stating that a transaction has timeout-ed we should first
-            //wait for a reception of the response
-            if(nextWaitInterval < maxWaitInterval)
-                    nextWaitInterval *= 2;
+                retransmissionCounter ++;
 
-            waitFor(nextWaitInterval);
+                //before stating that a transaction has timeout-ed we should
+                //first wait for a reception of the response
+                if(retransmissionCounter == maxRetransmissions
+                        && nextWaitInterval < maxWaitInterval)
+                    nextWaitInterval *= 2;
 
-            if(cancelled)
+                scheduleRetransmission(nextWaitInterval);
                 return;
+            }
+        }
+
+        stackCallback.removeClientTransaction(this);
 
-            stackCallback.removeClientTransaction(this);
-            responseCollector.processTimeout(
-                    new StunTimeoutEvent(
-                            stackCallback,
-                            this.request, getLocalAddress(), transactionID));
+        //the estimate for the destination failed us. start over.
+        if (adaptiveRto)
+            stackCallback.getRtoEstimator().reset(requestDestination);
+
+        Runnable timeout = new Runnable()
+        {
+            public void run()
+            {
+                responseCollector.processTimeout(
+                        new StunTimeoutEvent(
+                                stackCallback,
+                                request, getLocalAddress(), transactionID));
+            }
+        };
+
+        try
+        {
+            stackCallback.getCallbackExecutor().execute(timeout);
+        }
+        catch (RejectedExecutionException ree)
+        {
+            //all callback threads are busy or the stack has been shut down.
+            //the collector must hear about the timeout anyway.
+            timeout.run();
         }
     }
 
@@ -274,13 +337,56 @@ class StunClientTransaction
     void sendRequest()
         throws IllegalArgumentException, IOException
     {
-        sendRequest0();
+        //schedule before sending so that we never need our own lock after
+        //the request is out and a response may be coming in.
+        synchronized(this)
+        {
+            encodedRequest = request.encode(stackCallback);
+            retransmissionCounter = 0;
+            nextWaitInterval = originalWaitInterval;
+            requestSentTime = System.nanoTime();
+            nextRetransmissionTime = requestSentTime / 1000000L;
+            scheduleRetransmission(nextWaitInterval);
+        }
 
-        retransmissionsThread.start();
+        try
+        {
+            sendRequest0();
+        }
+        catch (IOException ex)
+        {
+            cancel();
+            throw ex;
+        }
+        catch (IllegalArgumentException ex)
+        {
+            cancel();
+            throw ex;
+        }
     }
 
     /**
-     * Simply calls the sendMessage method of the accessmanager.
+     * Asks the timer of the <tt>StunStack</tt> to call {@link #run()}
+     * <tt>millis</tt> milliseconds after the previous retransmission was due.
+     *
+     * @param millis the number of milliseconds to wait before the next
+     * retransmission (or before declaring a timeout).
+     */
+    private synchronized void scheduleRetransmission(long millis)
+    {
+        if(cancelled)
+            return;
+
+        nextRetransmissionTime += millis;
+        retransmissionTimeout
+            = stackCallback.getTimer().schedule(
+                    this,
+                    nextRetransmissionTime - System.nanoTime() / 1000000L);
+    }
+
+    /**
+     * Sends the bytes that the request was encoded into for its first
+     * transmission through the access manager.
      *
      * @throws IOException  if an error occurs while sending message bytes
      * through the network socket.
@@ -296,8 +402,15 @@ class StunClientTransaction
             return;
         }
 
+        byte[] encodedRequest;
+
+        synchronized (this)
+        {
+            encodedRequest = this.encodedRequest;
+        }
+
         stackCallback.getNetAccessManager().sendMessage(
-                this.request,
+                encodedRequest,
                 localAddress,
                 requestDestination);
     }
@@ -311,24 +424,6 @@ class StunClientTransaction
         return this.request;
     }
 
-    /**
-     * Waits until next retransmission is due or until the transaction is
-     * cancelled (whichever comes first).
-     *
-     * @param millis the number of milliseconds to wait for.
-     */
-    void waitFor(long millis)
-    {
-        try
-        {
-            wait(millis);
-        }
-        catch (InterruptedException ex)
-        {
-            logger.log(Level.FINE, "Interrupted", ex);
-        }
-    }
-
     /**
      * Cancels the transaction. Once this method is called the transaction is
      * considered terminated and will stop retransmissions.
@@ -340,8 +435,13 @@ class StunClientTransaction
     {
         this.cancelled = true;
 
-        if(!waitForResponse)
-            notifyAll();
+        //if we are to wait for a response we simply let the pending timeout
+        //expire. it would see that we've been cancelled and do nothing.
+        if(!waitForResponse && retransmissionTimeout != null)
+        {
+            retransmissionTimeout.cancel();
+            retransmissionTimeout = null;
+        }
     }
 
     /**
@@ -361,9 +461,19 @@ class StunClientTransaction
      */
     synchronized void handleResponse(StunMessageEvent evt)
     {
-        if( !Boolean.getBoolean(StackProperties.KEEP_CRANS_AFTER_A_RESPONSE) )
+        if( !keepAfterResponse )
             this.cancel();
 
+        //Karn's algorithm: the response of a retransmitted request could
+        //belong to any of its transmissions so it tells us nothing.
+        if (adaptiveRto && !rttMeasured && retransmissionCounter == 0)
+        {
+            rttMeasured = true;
+            stackCallback.getRtoEstimator().update(
+                    requestDestination,
+                    (System.nanoTime() - requestSentTime) / 1000L);
+        }
+
         this.responseCollector.processResponse(
                 new StunResponseEvent(
                         stackCallback,
@@ -389,60 +499,21 @@ class StunClientTransaction
      */
     private void initTransactionConfiguration()
     {
-        //Max Retransmissions
-        String maxRetransmissionsStr
-            = System.getProperty(StackProperties.MAX_CTRAN_RETRANSMISSIONS);
-
-        if(maxRetransmissionsStr != null
-           && maxRetransmissionsStr.trim().length() > 0){
-            try
-            {
-                maxRetransmissions = Integer.parseInt(maxRetransmissionsStr);
-            }
-            catch (NumberFormatException e)
-            {
-                logger.log(Level.FINE,
-                           "Failed to parse MAX_RETRANSMISSIONS",
-                           e);
-                maxRetransmissions = DEFAULT_MAX_RETRANSMISSIONS;
-            }
-        }
-
-        //Original Wait Interval
-        String originalWaitIntervalStr
-            = System.getProperty(StackProperties.FIRST_CTRAN_RETRANS_AFTER);
-
-        if(originalWaitIntervalStr != null
-           && originalWaitIntervalStr.trim().length() > 0){
-            try
-            {
-                originalWaitInterval
-                    = Integer.parseInt(originalWaitIntervalStr);
-            }
-            catch (NumberFormatException e)
-            {
-                logger.log(Level.FINE,
-                           "Failed to parse ORIGINAL_WAIT_INTERVAL",
-                           e);
-                originalWaitInterval = DEFAULT_ORIGINAL_WAIT_INTERVAL;
-            }
-        }
-
-        //Max Wait Interval
-        String maxWaitIntervalStr
-                = System.getProperty(StackProperties.MAX_CTRAN_RETRANS_TIMER);
-
-        if(maxWaitIntervalStr != null
-           && maxWaitIntervalStr.trim().length() > 0){
-            try
-            {
-                maxWaitInterval = Integer.parseInt(maxWaitIntervalStr);
-            }
-            catch (NumberFormatException e)
-            {
-                logger.log(Level.FINE, "Failed to parse MAX_WAIT_INTERVAL", e);
-                maxWaitInterval = DEFAULT_MAX_WAIT_INTERVAL;
-            }
+        StackConfiguration configuration = stackCallback.getConfiguration();
+
+        maxRetransmissions = configuration.getMaxRetransmissions();
+        originalWaitInterval = configuration.getOriginalWaitInterval();
+        maxWaitInterval = configuration.getMaxWaitInterval();
+        keepAfterResponse
+            = configuration.isKeepClientTransactionsAfterResponse();
+        adaptiveRto = configuration.isAdaptiveRto();
+        if (adaptiveRto)
+        {
+            originalWaitInterval
+                = stackCallback.getRtoEstimator().getRto(
+                        requestDestination,
+                        originalWaitInterval,
+                        maxWaitInterval);
         }
     }
 
@@ -7,6 +7,7 @@
 package org.ice4j.stack;
 
 import java.io.*;
+import java.nio.*;
 
 import org.ice4j.*;
 import org.ice4j.message.*;
@@ -36,9 +37,10 @@ class StunServerTransaction
     implements Runnable
 {
     /**
-     * The time that we keep server transactions active.
+     * The time, in milliseconds, that we keep server transactions active
+     * unless the stack says otherwise.
      */
-    private long transactionLifetime = 16000;
+    static final long DEFAULT_TRANSACTION_LIFETIME = 16000;
 
     /**
      * The <tt>StunStack</tt> that created us.
@@ -60,6 +62,22 @@ class StunServerTransaction
      */
     private Response response = null;
 
+    /**
+     * The bytes that {@link #response} was encoded into when it was first
+     * sent, or <tt>null</tt> if the response cache of the stack was full.
+     * Retransmissions resend them as they are so that we don't recompute
+     * MESSAGE-INTEGRITY and FINGERPRINT for every retransmitted request.
+     */
+    private byte[] encodedResponse = null;
+
+    /**
+     * The template that the response was rendered from, if it was sent with
+     * {@link #sendResponse(BindingResponseTemplate, TransportAddress,
+     * TransportAddress)}. Used to render retransmissions when we were not
+     * allowed to keep {@link #encodedResponse}.
+     */
+    private BindingResponseTemplate responseTemplate = null;
+
     /**
      * The <tt>TransportAddress</tt> that we received our request on.
      */
@@ -76,14 +94,9 @@ class StunServerTransaction
     private TransactionID transactionID = null;
 
     /**
-     * The date (in milliseconds) when the next retransmission should follow.
+     * The timeout that is going to expire this transaction.
      */
-    private long expirationDate = -1;
-
-    /**
-     * The thread that this transaction runs in.
-     */
-    private Thread runningThread = null;
+    private TimerWheel.Timeout expirationTimeout = null;
 
     /**
      * Determines whether or not the transaction has expired.
@@ -97,6 +110,24 @@ class StunServerTransaction
      */
     private boolean isRetransmitting = false;
 
+    /**
+     * The live transaction that was used right before this one. Guarded by
+     * the <tt>AdmissionController</tt> of the stack.
+     */
+    StunServerTransaction admissionPrevious = null;
+
+    /**
+     * The live transaction that was used right after this one. Guarded by
+     * the <tt>AdmissionController</tt> of the stack.
+     */
+    StunServerTransaction admissionNext = null;
+
+    /**
+     * Whether this transaction is in the list of live transactions of the
+     * <tt>AdmissionController</tt> of the stack, which guards it.
+     */
+    boolean admissionLinked = false;
+
     /**
      * Creates a server transaction
      * @param stackCallback the stack that created us.
@@ -117,32 +148,28 @@ class StunServerTransaction
         this.requestSource  = requestSource;
         this.localListeningAddress = localListeningAddress;
         this.requestSource = requestSource;
-
-        runningThread = new Thread(this, "StunServerTransaction@"+hashCode());
-        runningThread.setDaemon(true);
     }
 
     /**
      * Start the transaction. This launches the countdown to the moment the
-     * transaction would expire.
+     * transaction would expire. The countdown is kept by the timer of the
+     * <tt>StunStack</tt> so starting a transaction does not cost a thread.
      */
-    public void start()
+    public synchronized void start()
     {
         expired = false;
-        runningThread.start();
+        expirationTimeout
+            = stackCallback.getTimer().schedule(
+                    this,
+                    stackCallback.getServerTransactionLifetime());
     }
 
     /**
-     * Actually this method is simply a timer waiting for the server transaction
-     * lifetime to come to an end.
+     * Called by the timer of the <tt>StunStack</tt> when the server
+     * transaction lifetime has come to an end.
      */
     public void run()
     {
-        runningThread.setName("ServTran");
-
-        schedule(transactionLifetime);
-        waitNextScheduledDate();
-
         //let's get lost
         expire();
         stackCallback.removeServerTransaction(this);
@@ -171,77 +198,173 @@ class StunServerTransaction
                IOException,
                IllegalArgumentException
     {
-        if(!isRetransmitting){
-            this.response = response;
-            //the transaction id might already have been set, but its our job
-            //to make sure of that
-            response.setTransactionID(this.transactionID.getBytes());
-            this.localSendingAddress   = sendThrough;
-            this.responseDestination   = sendTo;
+        byte[] encodedResponse = null;
+
+        synchronized (this)
+        {
+            if(!isRetransmitting){
+                this.response = response;
+                //the transaction id might already have been set, but its our
+                //job to make sure of that
+                response.setTransactionID(this.transactionID.getBytes());
+                this.localSendingAddress   = sendThrough;
+                this.responseDestination   = sendTo;
+
+                if (!expired)
+                {
+                    encodedResponse = response.encode(stackCallback);
+                    if (stackCallback.reserveResponseCache(
+                            encodedResponse.length))
+                        this.encodedResponse = encodedResponse;
+                }
+            }
+
+            isRetransmitting = true;
         }
 
-        isRetransmitting = true;
-        retransmitResponse();
+        if (encodedResponse == null)
+        {
+            retransmitResponse();
+        }
+        else
+        {
+            //send the bytes we have just encoded even if we can't keep them.
+            stackCallback.getNetAccessManager().sendMessage(
+                    encodedResponse,
+                    localSendingAddress,
+                    responseDestination);
+        }
     }
 
     /**
-     * Retransmits the response that was originally sent to the request that
-     * caused this transaction.
+     * Sends a Binding success response rendered from <tt>template</tt> with
+     * the ID of this transaction and <tt>sendTo</tt> as XOR-MAPPED-ADDRESS,
+     * and changes the transaction's state to retransmitting. The response is
+     * rendered into the send buffer of the current thread so no
+     * <tt>Response</tt> is created and nothing is allocated unless the
+     * response cache of the stack has room for a copy of the bytes.
+     *
+     * @param template the template to render the response from.
+     * @param sendThrough the local address through which responses are to
+     * be sent
+     * @param sendTo the destination for responses of this transaction.
      *
      * @throws IOException  if an error occurs while sending message bytes
      * through the network socket.
      * @throws IllegalArgumentException if the apDescriptor references an
-     * access point that had not been installed,
-     * @throws StunException if message encoding fails,
+     * access point that had not been installed or the template cannot be
+     * rendered for this transaction.
      */
-    protected void retransmitResponse()
-        throws StunException,
-               IOException,
+    public void sendResponse(BindingResponseTemplate template,
+                             TransportAddress        sendThrough,
+                             TransportAddress        sendTo)
+        throws IOException,
                IllegalArgumentException
     {
-        //don't retransmit if we are expired or if the user application
-        //hasn't yet transmitted a first response
-        if(expired || !isRetransmitting)
-            return;
+        synchronized (this)
+        {
+            if (isRetransmitting)
+                return;
+
+            this.responseTemplate      = template;
+            this.localSendingAddress   = sendThrough;
+            this.responseDestination   = sendTo;
+            isRetransmitting = true;
+        }
+
+        ByteBuffer buffer = render(template);
+
+        synchronized (this)
+        {
+            int length = buffer.remaining();
+
+            if (!expired
+                    && encodedResponse == null
+                    && stackCallback.reserveResponseCache(length))
+            {
+                encodedResponse = new byte[length];
+                System.arraycopy(buffer.array(), 0, encodedResponse, 0,
+                        length);
+            }
+        }
 
         stackCallback.getNetAccessManager().sendMessage(
-                response,
+                buffer,
                 localSendingAddress,
                 responseDestination);
     }
 
     /**
-     * Waits until next retransmission is due or until the transaction is
-     * canceled (whichever comes first).
+     * Renders the response of this transaction from <tt>template</tt> into
+     * the send buffer of the current thread.
+     *
+     * @param template the template to render.
+     *
+     * @return the send buffer of the current thread holding the response.
      */
-    private synchronized void waitNextScheduledDate()
+    private ByteBuffer render(BindingResponseTemplate template)
     {
-        long current = System.currentTimeMillis();
-        while(expirationDate - current > 0)
-        {
-            try
-            {
-                wait(expirationDate - current);
-            }
-            catch (InterruptedException ex)
-            {
-            }
-
-            //did someone ask us to get lost?
-            if(expired)
-                return;
-            current = System.currentTimeMillis();
-        }
+        ByteBuffer buffer = NetAccessManager.getSendBuffer();
+
+        buffer.clear();
+        buffer.limit(
+                template.render(
+                        transactionID.getBytes(),
+                        responseDestination,
+                        buffer.array(),
+                        0));
+        return buffer;
     }
 
     /**
-     * Sets the expiration date for this server transaction.
+     * Retransmits the response that was originally sent to the request that
+     * caused this transaction, using the bytes it was first encoded into if
+     * we were allowed to keep them.
      *
-     * @param timeout the number of milliseconds to wait before expiration.
+     * @throws IOException  if an error occurs while sending message bytes
+     * through the network socket.
+     * @throws IllegalArgumentException if the apDescriptor references an
+     * access point that had not been installed,
+     * @throws StunException if message encoding fails,
      */
-    private void schedule(long timeout)
+    protected void retransmitResponse()
+        throws StunException,
+               IOException,
+               IllegalArgumentException
     {
-        this.expirationDate = System.currentTimeMillis() + timeout;
+        byte[] encodedResponse;
+
+        synchronized (this)
+        {
+            //don't retransmit if we are expired or if the user application
+            //hasn't yet transmitted a first response
+            if(expired || !isRetransmitting)
+                return;
+
+            encodedResponse = this.encodedResponse;
+        }
+
+        if (encodedResponse != null)
+        {
+            stackCallback.getNetAccessManager().sendMessage(
+                    encodedResponse,
+                    localSendingAddress,
+                    responseDestination);
+        }
+        else if (responseTemplate != null)
+        {
+            stackCallback.getNetAccessManager().sendMessage(
+                    render(responseTemplate),
+                    localSendingAddress,
+                    responseDestination);
+        }
+        else
+        {
+            stackCallback.getNetAccessManager().sendMessage(
+                    response,
+                    localSendingAddress,
+                    responseDestination);
+        }
     }
 
     /**
@@ -251,7 +374,18 @@ class StunServerTransaction
     public synchronized void expire()
     {
         this.expired = true;
-        notifyAll();
+
+        if (encodedResponse != null)
+        {
+            stackCallback.releaseResponseCache(encodedResponse.length);
+            encodedResponse = null;
+        }
+
+        if(expirationTimeout != null)
+        {
+            expirationTimeout.cancel();
+            expirationTimeout = null;
+        }
     }
 
 
@@ -10,6 +10,8 @@ import java.io.*;
 import java.net.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
 import javax.crypto.*;
@@ -68,17 +70,93 @@ public class StunStack
     /**
      * Stores active client transactions mapped against TransactionID-s.
      */
-    private final Hashtable<TransactionID, StunClientTransaction>
-        clientTransactions
-            = new Hashtable<TransactionID, StunClientTransaction>();
+    private final TransactionIndex<StunClientTransaction> clientTransactions
+        = new TransactionIndex<StunClientTransaction>();
 
     /**
-     * Currently open server transactions. The vector contains transaction ids
+     * Currently open server transactions. The index contains transaction ids
      * for transactions corresponding to all non-answered received requests.
      */
-    private final Hashtable<TransactionID, StunServerTransaction>
-        serverTransactions
-            = new Hashtable<TransactionID, StunServerTransaction>();
+    private final TransactionIndex<StunServerTransaction> serverTransactions
+        = new TransactionIndex<StunServerTransaction>();
+
+    /**
+     * The time, in milliseconds, that server transactions of this stack live.
+     */
+    private volatile long serverTransactionLifetime
+        = StunServerTransaction.DEFAULT_TRANSACTION_LIFETIME;
+
+    /**
+     * Decides which new requests get a server transaction and bounds the
+     * number of live server transactions.
+     */
+    private final AdmissionController admissionController
+        = new AdmissionController();
+
+    /**
+     * Estimates the retransmission timeouts of the client transactions of
+     * this stack for every destination.
+     */
+    private final RtoEstimator rtoEstimator = new RtoEstimator();
+
+    /**
+     * The timer that drives retransmissions and timeouts of all client
+     * transactions of this stack as well as the expiration of its server
+     * transactions.
+     */
+    private final TimerWheel timer = new TimerWheel("ice4j.StunStack.timer");
+
+    /**
+     * The maximum number of threads that deliver transaction timeouts to
+     * <tt>ResponseCollector</tt>s at the same time.
+     */
+    private static final int MAX_CALLBACK_THREADS = 8;
+
+    /**
+     * The executor that delivers transaction timeouts to
+     * <tt>ResponseCollector</tt>s so that slow collectors would not delay the
+     * {@link #timer}. Its threads are reused across transactions and idle
+     * ones die after a minute. It rejects timeouts when all of its
+     * {@link #MAX_CALLBACK_THREADS} threads are busy or once the stack has
+     * been shut down, in which case the timer thread delivers them itself.
+     */
+    private final ExecutorService callbackExecutor
+        = new ThreadPoolExecutor(
+                0, MAX_CALLBACK_THREADS,
+                60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "ice4j.StunStack.callback");
+
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+    /**
+     * The default maximum number of bytes that server transactions may use to
+     * keep the encoded responses they retransmit.
+     */
+    public static final long DEFAULT_RESPONSE_CACHE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The maximum number of bytes that server transactions may use to keep
+     * the encoded responses they retransmit. Transactions that can't get room
+     * encode their response again for every retransmission.
+     */
+    private volatile long responseCacheSize
+        = StackProperties.getLong(
+                StackProperties.RESPONSE_CACHE_SIZE,
+                DEFAULT_RESPONSE_CACHE_SIZE);
+
+    /**
+     * The number of bytes currently used by server transactions to keep
+     * encoded responses.
+     */
+    private final AtomicLong responseCacheBytes = new AtomicLong();
 
     /**
      * A dispatcher for incoming requests event;
@@ -95,6 +173,13 @@ public class StunStack
      */
     private final CompatibilityMode mode;
 
+    /**
+     * The snapshot of the {@link StackProperties} that this stack currently
+     * uses.
+     */
+    private volatile StackConfiguration configuration
+        = new StackConfiguration();
+
     /**
      * Sets the number of Message processors running in the same time.
      *
@@ -107,6 +192,83 @@ public class StunStack
         netAccessManager.setThreadPoolSize(threadPoolSize);
     }
 
+    /**
+     * Enables or disables partitioned message processing. In partitioned mode
+     * every message processor has a queue of its own and messages are
+     * assigned to queues by hashing their local and remote addresses, so all
+     * messages of a flow (e.g. a request and its retransmissions) are
+     * processed in the order they were received, while different flows are
+     * processed in parallel without contending on a shared queue. The number
+     * of partitions defaults to the number of available processors and can be
+     * changed with {@link #setThreadPoolSize(int)}.
+     *
+     * @param partitioned <tt>true</tt> to process messages in partitions and
+     * <tt>false</tt> to have all message processors share a single queue.
+     */
+    public void setPartitionedProcessing(boolean partitioned)
+    {
+        netAccessManager.setPartitioned(partitioned);
+    }
+
+    /**
+     * Sets the maximum number of selector threads that this stack uses to read
+     * sockets backed by a <tt>DatagramChannel</tt> (e.g. sockets obtained
+     * through <tt>DatagramChannel.open().socket()</tt>). Such sockets are put
+     * in non-blocking mode and share a small number of threads instead of
+     * having one each. Only affects sockets added after the call.
+     *
+     * @param selectorThreadCount the maximum number of selector threads
+     * between <tt>1</tt> and the number of available processors, or
+     * <tt>0</tt> to read every socket with a thread of its own.
+     * @throws IllegalArgumentException if <tt>selectorThreadCount</tt> is
+     * negative or larger than the number of available processors.
+     */
+    public void setSelectorThreadCount(int selectorThreadCount)
+        throws IllegalArgumentException
+    {
+        netAccessManager.setSelectorThreadCount(selectorThreadCount);
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the queue where received
+     * messages wait to be processed by the message processors of this stack.
+     * The enqueue rate is computed over the time since the previous call.
+     *
+     * @return a snapshot of the statistics of the message queue.
+     */
+    public MessageQueueStatistics getMessageQueueStatistics()
+    {
+        return netAccessManager.getMessageQueueStatistics();
+    }
+
+    /**
+     * Returns a snapshot of the sizes of the batches in which received
+     * messages have been handed over to the message processors of this stack.
+     * Sockets read through selectors (see
+     * {@link #setSelectorThreadCount(int)}) drain every datagram that is
+     * immediately available into a single batch.
+     *
+     * @return a snapshot of the sizes of received message batches.
+     */
+    public ReceiveBatchStatistics getReceiveBatchStatistics()
+    {
+        return netAccessManager.getReceiveBatchStatistics();
+    }
+
+    /**
+     * Returns a snapshot of the counters of the admission control that this
+     * stack applies to new incoming requests: the requests dropped because
+     * their source exceeded {@link StackProperties#REQUEST_RATE_LIMIT} and
+     * the server transactions evicted because there were more than
+     * {@link StackProperties#MAX_SERVER_TRANSACTIONS}.
+     *
+     * @return a snapshot of the admission control counters.
+     */
+    public AdmissionStatistics getAdmissionStatistics()
+    {
+        return admissionController.getStatistics();
+    }
+
     /**
      * Creates and starts the specified Network Access Point based on the
      * specified socket and returns a relevant descriptor.
@@ -141,18 +303,25 @@ public class StunStack
      */
     protected StunClientTransaction getClientTransaction(byte[] transactionID)
     {
-        synchronized (clientTransactions)
-        {
-            Collection<StunClientTransaction> cTrans
-                = clientTransactions.values();
+        return clientTransactions.get(transactionID);
+    }
 
-            for (StunClientTransaction tran : cTrans)
-            {
-                if (tran.getTransactionID().equals(transactionID))
-                    return tran;
-            }
-        }
-        return null;
+    /**
+     * Returns the client transaction whose ID is stored in <tt>buffer</tt>
+     * (e.g. in the header of a response that was just received) or
+     * <tt>null</tt> if no such transaction exists.
+     *
+     * @param buffer the array that contains the transaction ID.
+     * @param offset the index of the transaction ID in <tt>buffer</tt>.
+     * @param length the length of the transaction ID.
+     *
+     * @return the {@link StunClientTransaction} we are looking for.
+     */
+    StunClientTransaction getClientTransaction(byte[] buffer,
+                                               int    offset,
+                                               int    length)
+    {
+        return clientTransactions.get(buffer, offset, length);
     }
 
     /**
@@ -165,18 +334,7 @@ public class StunStack
      */
     protected StunServerTransaction getServerTransaction(byte[] transactionID)
     {
-        synchronized (serverTransactions)
-        {
-            Collection<StunServerTransaction> sTrans
-                = serverTransactions.values();
-
-            for (StunServerTransaction tran : sTrans)
-            {
-                if (tran.getTransactionID().equals(transactionID))
-                    return tran;
-            }
-        }
-        return null;
+        return serverTransactions.get(transactionID);
     }
 
     /**
@@ -208,49 +366,27 @@ public class StunStack
      */
     private void cancelTransactionsForAddress(TransportAddress localAddr)
     {
-        synchronized(clientTransactions)
+        for (StunClientTransaction tran : clientTransactions.values())
         {
-            Iterator<Map.Entry<TransactionID, StunClientTransaction>>
-                clientTransactionsIter = clientTransactions.entrySet()
-                    .iterator();
-
-            while (clientTransactionsIter.hasNext())
-            {
-                Map.Entry<TransactionID, StunClientTransaction> entry
-                    = clientTransactionsIter.next();
-
-                StunClientTransaction tran = entry.getValue();
-                if (tran.getLocalAddress().equals(localAddr))
-                    clientTransactionsIter.remove();
+            if (tran.getLocalAddress().equals(localAddr))
+                clientTransactions.remove(tran.getTransactionID());
 
-                tran.cancel();
-            }
+            tran.cancel();
         }
 
-        synchronized(serverTransactions)
+        for (StunServerTransaction tran : serverTransactions.values())
         {
-            Iterator<Map.Entry<TransactionID, StunServerTransaction>>
-                serverTransactionsIter = serverTransactions.entrySet()
-                    .iterator();
+            TransportAddress listenAddr = tran.getLocalListeningAddress();
+            TransportAddress sendingAddr = tran.getSendingAddress();
 
-            while (serverTransactionsIter.hasNext())
+            if ( listenAddr.equals(localAddr)
+                 || (sendingAddr != null && sendingAddr.equals(localAddr)) )
             {
-                Map.Entry<TransactionID, StunServerTransaction> entry
-                    = serverTransactionsIter.next();
-
-                StunServerTransaction tran = entry.getValue();
-
-                TransportAddress listenAddr = tran.getLocalListeningAddress();
-                TransportAddress sendingAddr = tran.getSendingAddress();
-
-                if ( listenAddr.equals(localAddr)
-                     || (sendingAddr != null && sendingAddr.equals(localAddr)) )
-                {
-                    serverTransactionsIter.remove();
-                }
-
-                tran.expire();
+                serverTransactions.remove(tran.getTransactionID());
+                admissionController.remove(tran);
             }
+
+            tran.expire();
         }
     }
 
@@ -309,6 +445,128 @@ public class StunStack
         return netAccessManager;
     }
 
+    /**
+     * Returns the timer that drives the retransmissions and the timeouts of the
+     * transactions of this stack.
+     *
+     * @return the timer of this stack.
+     */
+    TimerWheel getTimer()
+    {
+        return timer;
+    }
+
+    /**
+     * Returns the time that server transactions of this stack live.
+     *
+     * @return the lifetime of server transactions in milliseconds.
+     */
+    long getServerTransactionLifetime()
+    {
+        return serverTransactionLifetime;
+    }
+
+    /**
+     * Sets the time that server transactions of this stack started after the
+     * call live. Tests use it so they don't have to wait for the default.
+     *
+     * @param lifetime the lifetime of server transactions in milliseconds.
+     */
+    void setServerTransactionLifetime(long lifetime)
+    {
+        serverTransactionLifetime = lifetime;
+    }
+
+    /**
+     * Sets the maximum number of bytes that server transactions of this stack
+     * may use to keep the encoded responses that they retransmit when a
+     * request is received again. Responses that don't fit are encoded (and
+     * signed) again for every retransmission. Only affects responses sent
+     * after the call.
+     *
+     * @param responseCacheSize the maximum number of bytes used for encoded
+     * responses or <tt>0</tt> to never keep them.
+     * @throws IllegalArgumentException if <tt>responseCacheSize</tt> is
+     * negative.
+     */
+    public void setResponseCacheSize(long responseCacheSize)
+        throws IllegalArgumentException
+    {
+        if (responseCacheSize < 0)
+            throw new IllegalArgumentException(
+                    responseCacheSize + " is not a legal response cache size.");
+        this.responseCacheSize = responseCacheSize;
+    }
+
+    /**
+     * Tries to reserve room for an encoded response of <tt>length</tt> bytes
+     * in the response cache of this stack.
+     *
+     * @param length the number of bytes to reserve.
+     *
+     * @return <tt>true</tt> if the bytes have been reserved and must later be
+     * given back with {@link #releaseResponseCache(int)}, or <tt>false</tt> if
+     * the cache is full.
+     */
+    boolean reserveResponseCache(int length)
+    {
+        while (true)
+        {
+            long used = responseCacheBytes.get();
+
+            if (used + length > responseCacheSize)
+                return false;
+            if (responseCacheBytes.compareAndSet(used, used + length))
+                return true;
+        }
+    }
+
+    /**
+     * Gives back room reserved with {@link #reserveResponseCache(int)}.
+     *
+     * @param length the number of bytes to give back.
+     */
+    void releaseResponseCache(int length)
+    {
+        responseCacheBytes.addAndGet(-length);
+    }
+
+    /**
+     * Returns the number of bytes that server transactions of this stack
+     * currently use to keep encoded responses.
+     *
+     * @return the number of bytes in the response cache.
+     */
+    long getResponseCacheBytes()
+    {
+        return responseCacheBytes.get();
+    }
+
+    /**
+     * Returns the executor that should be used to deliver transaction events
+     * that do not need to be handled on the timer thread. The executor
+     * rejects events when it is saturated or the stack has been shut down
+     * and the caller has to deliver them itself then.
+     *
+     * @return the executor used to deliver transaction events.
+     */
+    Executor getCallbackExecutor()
+    {
+        return callbackExecutor;
+    }
+
+    /**
+     * Returns the estimator of the retransmission timeouts of the client
+     * transactions of this stack.
+     *
+     * @return the estimator of the retransmission timeouts of our client
+     * transactions.
+     */
+    RtoEstimator getRtoEstimator()
+    {
+        return rtoEstimator;
+    }
+
     /**
      * Sends a specific STUN <tt>Indication</tt> to a specific destination
      * <tt>TransportAddress</tt> through a socket registered with this
@@ -507,6 +765,57 @@ public class StunStack
         }
     }
 
+    /**
+     * Sends a Binding success response rendered from a pre-encoded template
+     * through the specified access point. The XOR-MAPPED-ADDRESS of the
+     * response is <tt>sendTo</tt>.
+     *
+     * @param transactionID the id of the transaction to use when sending the
+     * response.
+     * @param template      the template to render the response from.
+     * @param sendThrough   the local address to use when sending the message.
+     * @param sendTo        the destination of the message.
+     *
+     * @throws IOException  if an error occurs while sending message bytes
+     * through the network socket.
+     * @throws IllegalArgumentException if the apDescriptor references an
+     * access point that had not been installed or the template cannot be
+     * rendered for <tt>sendTo</tt> and <tt>transactionID</tt>.
+     * @throws StunException if the transaction does not exist or has already
+     * been answered.
+     */
+    public void sendResponse(byte[]                  transactionID,
+                             BindingResponseTemplate template,
+                             TransportAddress        sendThrough,
+                             TransportAddress        sendTo)
+        throws StunException,
+               IOException,
+               IllegalArgumentException
+    {
+        TransactionID tid
+            = TransactionID.createTransactionID(this, transactionID);
+        StunServerTransaction sTran = serverTransactions.get(tid);
+
+        if(sTran == null)
+        {
+            throw new StunException(StunException.TRANSACTION_DOES_NOT_EXIST,
+                                "The transaction specified in the response "
+                                + "(tid="+ tid.toString() +") "
+                                + "object does not exist.");
+        }
+        else if( sTran.isRetransmitting())
+        {
+            throw new StunException(StunException.TRANSACTION_ALREADY_ANSWERED,
+                                    "The transaction specified in the response "
+                                    + "(tid="+ tid.toString() +") "
+                                    + "has already seen a previous response.");
+        }
+        else
+        {
+            sTran.sendResponse(template, sendThrough, sendTo);
+        }
+    }
+
     /**
      * Adds a new <tt>MessageEventHandler</tt> which is to be notified about
      * STUN indications received at a specific local <tt>TransportAddress</tt>.
@@ -601,7 +910,7 @@ public class StunStack
      * Method is used by StunClientTransaction-s themselves when a timeout occurs.
      * @param tran the transaction to remove.
      */
-    synchronized void removeClientTransaction(StunClientTransaction tran)
+    void removeClientTransaction(StunClientTransaction tran)
     {
         clientTransactions.remove(tran.getTransactionID());
     }
@@ -612,9 +921,10 @@ public class StunStack
      * Method is used by StunServerTransaction-s themselves when they expire.
      * @param tran the transaction to remove.
      */
-    synchronized void removeServerTransaction(StunServerTransaction tran)
+    void removeServerTransaction(StunServerTransaction tran)
     {
         serverTransactions.remove(tran.getTransactionID());
+        admissionController.remove(tran);
     }
 
     /**
@@ -645,6 +955,7 @@ public class StunStack
                 //requests from this transaction have already been seen
                 //retransmit the response if there was any
                 logger.finest("found an existing transaction");
+                admissionController.touch(sTran);
 
                 try
                 {
@@ -658,8 +969,7 @@ public class StunStack
                                "Failed to retransmit a stun response", ex);
                 }
 
-                if(!Boolean.getBoolean(
-                        StackProperties.PROPAGATE_RECEIVED_RETRANSMISSIONS))
+                if(!configuration.isPropagateReceivedRetransmissions())
                 {
                     return;
                 }
@@ -667,23 +977,36 @@ public class StunStack
             else
             {
                 logger.finest("existing transaction not found");
-                sTran = new StunServerTransaction(this, serverTid,
-                             event.getLocalAddress(), event.getRemoteAddress());
 
-                // if there is an OOM error here, it will lead to
-                // NetAccessManager.handleFatalError that will stop the
-                // MessageProcessor thread and restart it that will lead again
-                // to an OOM error and so on... So stop here right now
-                try
+                if (!admissionController.admit(
+                        event.getRemoteAddress(), configuration))
                 {
-                    sTran.start();
-                }
-                catch(OutOfMemoryError t)
-                {
-                    logger.info("STUN transaction thread start failed:" + t);
+                    if (logger.isLoggable(Level.FINEST))
+                    {
+                        logger.finest("Dropped a request from "
+                                        + event.getRemoteAddress()
+                                        + " - request rate exceeded.");
+                    }
                     return;
                 }
+
+                sTran = new StunServerTransaction(this, serverTid,
+                             event.getLocalAddress(), event.getRemoteAddress());
+
+                //the expiration of the transaction is kept by our timer so
+                //this costs no thread.
+                sTran.start();
                 serverTransactions.put(serverTid, sTran);
+
+                //make room for the new transaction if there are too many.
+                StunServerTransaction evicted
+                    = admissionController.add(sTran, configuration);
+
+                if (evicted != null)
+                {
+                    serverTransactions.remove(evicted.getTransactionID());
+                    evicted.expire();
+                }
             }
 
             //validate attributes that need validation.
@@ -792,25 +1115,28 @@ public class StunStack
     {
         eventDispatcher.removeAllListeners();
 
-        Enumeration<TransactionID> tids = clientTransactions.keys();
-        while (tids.hasMoreElements())
+        for (StunClientTransaction item : clientTransactions.values())
         {
-            TransactionID item = tids.nextElement();
-            StunClientTransaction tran = clientTransactions.remove(item);
+            StunClientTransaction tran
+                = clientTransactions.remove(item.getTransactionID());
             if(tran != null)
                 tran.cancel();
         }
 
-        tids = serverTransactions.keys();
-        while (tids.hasMoreElements())
+        for (StunServerTransaction item : serverTransactions.values())
         {
-            TransactionID item = tids.nextElement();
-            StunServerTransaction tran = serverTransactions.remove(item);
+            StunServerTransaction tran
+                = serverTransactions.remove(item.getTransactionID());
             if(tran != null)
+            {
+                admissionController.remove(tran);
                 tran.expire();
+            }
         }
 
         netAccessManager.stop();
+        timer.stop();
+        callbackExecutor.shutdown();
     }
 
     /**
@@ -900,7 +1226,7 @@ public class StunStack
                     "Wrong MESSAGE-INTEGRITY value.");
             }
         }
-        else if(Boolean.getBoolean(StackProperties.REQUIRE_MESSAGE_INTEGRITY))
+        else if(configuration.isRequireMessageIntegrity())
         {
             // no message integrity
             Response error = MessageFactory.createBindingErrorResponse(
@@ -992,29 +1318,16 @@ public class StunStack
          * MessageIntegrityAttribute because the value of the
          * MessageIntegrityAttribute is calculated on a STUN "Message Length"
          * upto and including the MESSAGE-INTEGRITY and excluding any Attributes
-         * after it.
+         * after it. calculateHmacSha1ForValidation substitutes that length
+         * while it reads the bytes of the RawMessage in place.
          */
-        byte[] binMsg = new byte[msgInt.getLocationInMessage()];
-
-        System.arraycopy(message.getBytes(), 0, binMsg, 0, binMsg.length);
-
-        char messageLength
-            = (char)
-                (binMsg.length
-                    + Attribute.HEADER_LENGTH
-                    + msgInt.getDataLength()
-                    - Message.HEADER_LENGTH);
-
-        binMsg[2] = (byte) (messageLength >> 8);
-        binMsg[3] = (byte) (messageLength & 0xFF);
-
         byte[] expectedMsgIntHmacSha1Content;
 
         try
         {
             expectedMsgIntHmacSha1Content
-                = MessageIntegrityAttribute.calculateHmacSha1(
-                        binMsg, 0, binMsg.length,
+                = MessageIntegrityAttribute.calculateHmacSha1ForValidation(
+                        message.getBytes(), 0, msgInt.getLocationInMessage(),
                         key);
         }
         catch (IllegalArgumentException iaex)
@@ -1137,6 +1450,28 @@ public class StunStack
         return packetLogger != null && packetLogger.isEnabled();
     }
 
+    /**
+     * Returns the snapshot of the {@link StackProperties} that this stack
+     * currently uses.
+     *
+     * @return the configuration of this stack.
+     */
+    public StackConfiguration getConfiguration()
+    {
+        return configuration;
+    }
+
+    /**
+     * Takes a new snapshot of the {@link StackProperties} so that changes made
+     * to the system properties since this stack was created, or since the
+     * last reload, take effect. Client transactions that have already been
+     * started keep the retransmission settings they were created with.
+     */
+    public void reloadConfiguration()
+    {
+        configuration = new StackConfiguration();
+    }
+
     /**
      * Returns compatibility mode.
      *
@@ -0,0 +1,436 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.util.logging.*;
+
+/**
+ * A hashed timer wheel that allows a large number of short lived timeouts
+ * (such as STUN transaction retransmissions and expirations) to be driven by a
+ * single thread. Scheduling and cancelling a timeout are both O(1) operations.
+ * <p>
+ * The wheel advances one bucket every <tt>tickDuration</tt> milliseconds and
+ * fires all timeouts in that bucket whose round count has run out. Timeouts
+ * therefore never fire early but may fire up to one tick late.
+ * </p><p>
+ * Expired tasks are executed on the timer thread itself so they are expected
+ * to be short and must never block. Anything that may take longer (e.g.
+ * delivering events to application listeners) should be handed off to another
+ * thread.
+ * </p>
+ *
+ * @author agent
+ */
+class TimerWheel
+    implements Runnable
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(TimerWheel.class.getName());
+
+    /**
+     * The default number of milliseconds between two ticks of the wheel.
+     */
+    public static final long DEFAULT_TICK_DURATION = 10;
+
+    /**
+     * The default number of buckets in the wheel.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * The number of milliseconds between two ticks of the wheel.
+     */
+    private final long tickDuration;
+
+    /**
+     * The buckets of the wheel. Each bucket is the head of a doubly linked
+     * list of the timeouts hashed to it.
+     */
+    private final Timeout[] wheel;
+
+    /**
+     * The mask we use to map a tick to a bucket in {@link #wheel}.
+     */
+    private final int mask;
+
+    /**
+     * The name to give to the timer thread.
+     */
+    private final String name;
+
+    /**
+     * The moment (in milliseconds, as returned by <tt>System.nanoTime()</tt>)
+     * that ticks are counted from.
+     */
+    private final long startTime;
+
+    /**
+     * The next tick that the timer thread is going to process.
+     */
+    private long tick = 0;
+
+    /**
+     * The number of timeouts currently scheduled in the wheel.
+     */
+    private int pendingTimeouts = 0;
+
+    /**
+     * The thread that advances the wheel or <tt>null</tt> if it is not
+     * currently running.
+     */
+    private Thread timerThread = null;
+
+    /**
+     * Creates a timer wheel with the default tick duration and wheel size.
+     *
+     * @param name the name of the thread that is going to run the wheel.
+     */
+    TimerWheel(String name)
+    {
+        this(name, DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Creates a timer wheel.
+     *
+     * @param name the name of the thread that is going to run the wheel.
+     * @param tickDuration the number of milliseconds between two ticks.
+     * @param wheelSize the number of buckets in the wheel. Rounded up to the
+     * closest power of two.
+     *
+     * @throws IllegalArgumentException if <tt>tickDuration</tt> or
+     * <tt>wheelSize</tt> is not positive.
+     */
+    TimerWheel(String name, long tickDuration, int wheelSize)
+        throws IllegalArgumentException
+    {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException(
+                    "tickDuration must be positive: " + tickDuration);
+        if (wheelSize <= 0 || wheelSize > (1 << 30))
+            throw new IllegalArgumentException(
+                    "wheelSize out of range: " + wheelSize);
+
+        int size = 1;
+        while (size < wheelSize)
+            size <<= 1;
+
+        this.name = name;
+        this.tickDuration = tickDuration;
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+        this.startTime = currentTime();
+    }
+
+    /**
+     * Schedules <tt>task</tt> for execution on the timer thread after
+     * <tt>delay</tt> milliseconds. Starts the timer thread if necessary.
+     *
+     * @param task the task to execute.
+     * @param delay the number of milliseconds to wait before executing
+     * <tt>task</tt>.
+     *
+     * @return a handle that can be used to cancel the timeout.
+     */
+    Timeout schedule(Runnable task, long delay)
+    {
+        if (task == null)
+            throw new NullPointerException("task");
+
+        Timeout timeout = new Timeout(task);
+
+        synchronized (this)
+        {
+            long elapsedTicks = (currentTime() - startTime) / tickDuration;
+
+            //the wheel is idle so we can safely skip the ticks we slept over.
+            if (pendingTimeouts == 0 && tick < elapsedTicks)
+                tick = elapsedTicks;
+
+            long calculated
+                = (currentTime() - startTime + Math.max(delay, 0))
+                    / tickDuration;
+            long ticks = Math.max(calculated, tick);
+
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            timeout.bucket = (int) (ticks & mask);
+
+            Timeout head = wheel[timeout.bucket];
+
+            timeout.next = head;
+            if (head != null)
+                head.prev = timeout;
+            wheel[timeout.bucket] = timeout;
+            pendingTimeouts++;
+
+            if (timerThread == null)
+            {
+                timerThread = new Thread(this, name);
+                timerThread.setDaemon(true);
+                timerThread.start();
+            }
+            else if (pendingTimeouts == 1)
+            {
+                notifyAll();
+            }
+        }
+
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread and discards all pending timeouts without
+     * executing them. The wheel would restart if a new timeout is scheduled.
+     */
+    synchronized void stop()
+    {
+        for (int i = 0; i < wheel.length; i++)
+        {
+            Timeout timeout = wheel[i];
+
+            while (timeout != null)
+            {
+                Timeout next = timeout.next;
+
+                timeout.unlink();
+                timeout = next;
+            }
+            wheel[i] = null;
+        }
+        pendingTimeouts = 0;
+        timerThread = null;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of timeouts that are currently scheduled.
+     *
+     * @return the number of timeouts that are currently scheduled.
+     */
+    synchronized int getPendingTimeouts()
+    {
+        return pendingTimeouts;
+    }
+
+    /**
+     * Advances the wheel and runs expired tasks until {@link #stop()} is
+     * called.
+     */
+    public void run()
+    {
+        Thread thisThread = Thread.currentThread();
+
+        while (true)
+        {
+            Timeout expired = null;
+
+            synchronized (this)
+            {
+                if (timerThread != thisThread)
+                    return;
+
+                if (pendingTimeouts == 0)
+                {
+                    waitFor(0);
+                    continue;
+                }
+
+                long sleep
+                    = startTime + (tick + 1) * tickDuration - currentTime();
+
+                if (sleep > 0)
+                {
+                    waitFor(sleep);
+                    continue;
+                }
+
+                expired = expireBucket((int) (tick & mask));
+                tick++;
+            }
+
+            //run the tasks outside the lock so that they could reschedule.
+            while (expired != null)
+            {
+                Timeout next = expired.next;
+
+                expired.next = null;
+                if (!expired.cancelled)
+                {
+                    try
+                    {
+                        expired.task.run();
+                    }
+                    catch (Throwable t)
+                    {
+                        if (t instanceof ThreadDeath)
+                            throw (ThreadDeath) t;
+                        logger.log(Level.WARNING,
+                                   "A timer task failed: " + expired.task, t);
+                    }
+                }
+                expired = next;
+            }
+        }
+    }
+
+    /**
+     * Removes from bucket <tt>index</tt> all timeouts whose rounds have run
+     * out and decrements the round count of the rest.
+     *
+     * @param index the index of the bucket to process.
+     *
+     * @return a singly linked (through {@link Timeout#next}) list of the
+     * timeouts that have expired or <tt>null</tt> if there are none.
+     */
+    private Timeout expireBucket(int index)
+    {
+        Timeout expired = null;
+        Timeout timeout = wheel[index];
+
+        while (timeout != null)
+        {
+            Timeout next = timeout.next;
+
+            if (timeout.remainingRounds <= 0)
+            {
+                timeout.unlink();
+                timeout.next = expired;
+                expired = timeout;
+            }
+            else
+            {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+        return expired;
+    }
+
+    /**
+     * Waits on this wheel's monitor for <tt>millis</tt> milliseconds or until
+     * notified. Must be called while holding the monitor.
+     *
+     * @param millis the number of milliseconds to wait for or <tt>0</tt> to
+     * wait until notified.
+     */
+    private void waitFor(long millis)
+    {
+        try
+        {
+            wait(millis);
+        }
+        catch (InterruptedException ex)
+        {
+            logger.log(Level.FINE, "Interrupted", ex);
+        }
+    }
+
+    /**
+     * Returns the current time in milliseconds as measured by a monotonic
+     * clock.
+     *
+     * @return the current time in milliseconds.
+     */
+    private static long currentTime()
+    {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /**
+     * A handle to a task scheduled in a <tt>TimerWheel</tt>.
+     */
+    class Timeout
+    {
+        /**
+         * The task to run when this timeout expires.
+         */
+        private final Runnable task;
+
+        /**
+         * The number of full turns of the wheel remaining before expiration.
+         */
+        private long remainingRounds;
+
+        /**
+         * The index of the bucket this timeout is in or <tt>-1</tt> if it is
+         * no longer in the wheel.
+         */
+        private int bucket = -1;
+
+        /**
+         * The next timeout in the same bucket.
+         */
+        private Timeout next;
+
+        /**
+         * The previous timeout in the same bucket.
+         */
+        private Timeout prev;
+
+        /**
+         * Determines whether this timeout has been cancelled.
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Creates a timeout for <tt>task</tt>.
+         *
+         * @param task the task to run when the timeout expires.
+         */
+        private Timeout(Runnable task)
+        {
+            this.task = task;
+        }
+
+        /**
+         * Cancels this timeout so that its task will not be executed unless it
+         * is already running.
+         */
+        void cancel()
+        {
+            cancelled = true;
+
+            synchronized (TimerWheel.this)
+            {
+                if (bucket != -1)
+                    unlink();
+            }
+        }
+
+        /**
+         * Determines whether this timeout has been cancelled.
+         *
+         * @return <tt>true</tt> if this timeout has been cancelled.
+         */
+        boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        /**
+         * Removes this timeout from its bucket. Must be called while holding
+         * the monitor of the wheel.
+         */
+        private void unlink()
+        {
+            if (prev != null)
+                prev.next = next;
+            else
+                wheel[bucket] = next;
+            if (next != null)
+                next.prev = prev;
+
+            prev = null;
+            next = null;
+            bucket = -1;
+            pendingTimeouts--;
+        }
+    }
+}
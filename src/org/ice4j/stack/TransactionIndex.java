@@ -0,0 +1,531 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A concurrent hash table that maps STUN transaction IDs to transactions.
+ * Keys are the raw 96-bit (RFC 5389) or 128-bit (RFC 3489) transaction IDs
+ * packed into two primitive <tt>long</tt>s so that the table can be probed
+ * directly with the bytes of a received message without allocating a
+ * {@link TransactionID}.
+ * <p>
+ * Lookups never lock. Modifications lock one of a fixed number of segments
+ * so that they only contend with modifications of keys that hash to the
+ * same segment. Lookup cost does not depend on the number of transactions in
+ * the table.
+ * </p>
+ *
+ * @param <T> the type of the transactions stored in the table.
+ *
+ * @author agent
+ */
+class TransactionIndex<T>
+{
+    /**
+     * The number of segments we split the table in. Must be a power of two.
+     */
+    private static final int SEGMENT_COUNT = 16;
+
+    /**
+     * The initial number of buckets in each segment. Must be a power of two.
+     */
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    /**
+     * The segments of this table.
+     */
+    private final Segment<T>[] segments;
+
+    /**
+     * Creates an empty index.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TransactionIndex()
+    {
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new Segment<T>();
+    }
+
+    /**
+     * Returns the transaction mapped to the transaction ID that is
+     * <tt>length</tt> bytes long and starts at <tt>offset</tt> in
+     * <tt>buffer</tt>. The method does not allocate.
+     *
+     * @param buffer the array that contains the transaction ID (e.g. the
+     * bytes of a received message).
+     * @param offset the offset of the transaction ID in <tt>buffer</tt>.
+     * @param length the length of the ID. Must be either
+     * {@link TransactionID#RFC5389_TRANSACTION_ID_LENGTH} or
+     * {@link TransactionID#RFC3489_TRANSACTION_ID_LENGTH} for the lookup to
+     * succeed.
+     *
+     * @return the transaction mapped to the specified ID or <tt>null</tt> if
+     * there is no such transaction.
+     */
+    T get(byte[] buffer, int offset, int length)
+    {
+        if (!isValidLength(length))
+            return null;
+
+        long high = packHigh(buffer, offset);
+        long low = packLow(buffer, offset, length);
+        int hash = hash(high, low, length);
+
+        return segmentFor(hash).get(high, low, length, hash);
+    }
+
+    /**
+     * Returns the transaction mapped to the specified raw transaction ID.
+     *
+     * @param transactionID the bytes of the transaction ID.
+     *
+     * @return the transaction mapped to <tt>transactionID</tt> or
+     * <tt>null</tt> if there is no such transaction.
+     */
+    T get(byte[] transactionID)
+    {
+        return get(transactionID, 0, transactionID.length);
+    }
+
+    /**
+     * Returns the transaction mapped to the specified transaction ID.
+     *
+     * @param transactionID the ID of the transaction we are looking for.
+     *
+     * @return the transaction mapped to <tt>transactionID</tt> or
+     * <tt>null</tt> if there is no such transaction.
+     */
+    T get(TransactionID transactionID)
+    {
+        return get(transactionID.getBytes());
+    }
+
+    /**
+     * Maps <tt>transaction</tt> to <tt>transactionID</tt>, replacing any
+     * previous mapping.
+     *
+     * @param transactionID the ID of the transaction.
+     * @param transaction the transaction.
+     *
+     * @return the transaction that was previously mapped to
+     * <tt>transactionID</tt> or <tt>null</tt> if there was none.
+     *
+     * @throws IllegalArgumentException if <tt>transactionID</tt> is neither
+     * 12 nor 16 bytes long.
+     */
+    T put(TransactionID transactionID, T transaction)
+        throws IllegalArgumentException
+    {
+        if (transaction == null)
+            throw new NullPointerException("transaction");
+
+        byte[] id = transactionID.getBytes();
+
+        if (!isValidLength(id.length))
+            throw new IllegalArgumentException(
+                    "Invalid transaction ID length: " + id.length);
+
+        long high = packHigh(id, 0);
+        long low = packLow(id, 0, id.length);
+        int hash = hash(high, low, id.length);
+
+        return segmentFor(hash).put(high, low, id.length, hash, transaction);
+    }
+
+    /**
+     * Removes the mapping for <tt>transactionID</tt>.
+     *
+     * @param transactionID the ID of the transaction to remove.
+     *
+     * @return the transaction that was mapped to <tt>transactionID</tt> or
+     * <tt>null</tt> if there was none.
+     */
+    T remove(TransactionID transactionID)
+    {
+        byte[] id = transactionID.getBytes();
+
+        if (!isValidLength(id.length))
+            return null;
+
+        long high = packHigh(id, 0);
+        long low = packLow(id, 0, id.length);
+        int hash = hash(high, low, id.length);
+
+        return segmentFor(hash).remove(high, low, id.length, hash);
+    }
+
+    /**
+     * Returns the number of transactions in this index.
+     *
+     * @return the number of transactions in this index.
+     */
+    int size()
+    {
+        int size = 0;
+
+        for (Segment<T> segment : segments)
+            size += segment.count;
+        return size;
+    }
+
+    /**
+     * Returns a snapshot of the transactions currently in this index.
+     *
+     * @return a newly allocated list with the transactions in this index.
+     */
+    List<T> values()
+    {
+        List<T> values = new ArrayList<T>();
+
+        for (Segment<T> segment : segments)
+            segment.addValuesTo(values);
+        return values;
+    }
+
+    /**
+     * Returns a <tt>String</tt> representation of the transactions in this
+     * index.
+     *
+     * @return a <tt>String</tt> representation of the transactions in this
+     * index.
+     */
+    @Override
+    public String toString()
+    {
+        return values().toString();
+    }
+
+    /**
+     * Returns the segment that is responsible for keys with the specified
+     * hash.
+     *
+     * @param hash the hash of the key.
+     *
+     * @return the segment responsible for <tt>hash</tt>.
+     */
+    private Segment<T> segmentFor(int hash)
+    {
+        return segments[(hash >>> 28) & (SEGMENT_COUNT - 1)];
+    }
+
+    /**
+     * Determines whether <tt>length</tt> is a valid transaction ID length.
+     *
+     * @param length the length to check.
+     *
+     * @return <tt>true</tt> if <tt>length</tt> is the length of an RFC 5389 or
+     * an RFC 3489 transaction ID.
+     */
+    private static boolean isValidLength(int length)
+    {
+        return length == TransactionID.RFC5389_TRANSACTION_ID_LENGTH
+            || length == TransactionID.RFC3489_TRANSACTION_ID_LENGTH;
+    }
+
+    /**
+     * Packs the first 8 bytes of a transaction ID into a <tt>long</tt>.
+     *
+     * @param id the array containing the transaction ID.
+     * @param offset the offset of the ID in <tt>id</tt>.
+     *
+     * @return the first 8 bytes of the ID in network order.
+     */
+    private static long packHigh(byte[] id, int offset)
+    {
+        long high = 0;
+
+        for (int i = offset; i < offset + 8; i++)
+            high = (high << 8) | (id[i] & 0xFFL);
+        return high;
+    }
+
+    /**
+     * Packs the bytes following the first 8 bytes of a transaction ID (4 for
+     * RFC 5389 and 8 for RFC 3489 IDs) into a <tt>long</tt>.
+     *
+     * @param id the array containing the transaction ID.
+     * @param offset the offset of the ID in <tt>id</tt>.
+     * @param length the length of the transaction ID.
+     *
+     * @return the remaining bytes of the ID in network order.
+     */
+    private static long packLow(byte[] id, int offset, int length)
+    {
+        long low = 0;
+
+        for (int i = offset + 8; i < offset + length; i++)
+            low = (low << 8) | (id[i] & 0xFFL);
+        return low;
+    }
+
+    /**
+     * Computes the hash of a packed transaction ID. All bits of the ID
+     * contribute to the hash because generated IDs share most of their
+     * leading (time based) bytes.
+     *
+     * @param high the first 8 bytes of the ID.
+     * @param low the remaining bytes of the ID.
+     * @param length the length of the ID.
+     *
+     * @return the hash of the ID.
+     */
+    private static int hash(long high, long low, int length)
+    {
+        long h = high * 0x9E3779B97F4A7C15L ^ low ^ length;
+
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * An entry of the table. Entries are never modified once published except
+     * for their value so that they could be read without locking.
+     */
+    private static class Node<T>
+    {
+        /**
+         * The first 8 bytes of the transaction ID.
+         */
+        final long high;
+
+        /**
+         * The remaining bytes of the transaction ID.
+         */
+        final long low;
+
+        /**
+         * The length of the transaction ID.
+         */
+        final int length;
+
+        /**
+         * The hash of the transaction ID.
+         */
+        final int hash;
+
+        /**
+         * The next entry in the same bucket.
+         */
+        final Node<T> next;
+
+        /**
+         * The transaction mapped to the ID.
+         */
+        volatile T value;
+
+        /**
+         * Creates an entry.
+         *
+         * @param high the first 8 bytes of the transaction ID.
+         * @param low the remaining bytes of the transaction ID.
+         * @param length the length of the transaction ID.
+         * @param hash the hash of the transaction ID.
+         * @param next the next entry in the same bucket.
+         * @param value the transaction mapped to the ID.
+         */
+        Node(long high, long low, int length, int hash, Node<T> next, T value)
+        {
+            this.high = high;
+            this.low = low;
+            this.length = length;
+            this.hash = hash;
+            this.next = next;
+            this.value = value;
+        }
+
+        /**
+         * Determines whether this entry is for the specified key.
+         *
+         * @param high the first 8 bytes of the transaction ID.
+         * @param low the remaining bytes of the transaction ID.
+         * @param length the length of the transaction ID.
+         *
+         * @return <tt>true</tt> if this entry is for the specified key.
+         */
+        boolean matches(long high, long low, int length)
+        {
+            return this.high == high
+                && this.low == low
+                && this.length == length;
+        }
+    }
+
+    /**
+     * A part of the table that is modified under its own lock.
+     */
+    private static class Segment<T>
+    {
+        /**
+         * The buckets of this segment.
+         */
+        private volatile AtomicReferenceArray<Node<T>> table
+            = new AtomicReferenceArray<Node<T>>(INITIAL_SEGMENT_CAPACITY);
+
+        /**
+         * The number of entries in this segment.
+         */
+        private volatile int count = 0;
+
+        /**
+         * Returns the value mapped to the specified key without locking.
+         *
+         * @param high the first 8 bytes of the transaction ID.
+         * @param low the remaining bytes of the transaction ID.
+         * @param length the length of the transaction ID.
+         * @param hash the hash of the transaction ID.
+         *
+         * @return the value mapped to the key or <tt>null</tt>.
+         */
+        T get(long high, long low, int length, int hash)
+        {
+            AtomicReferenceArray<Node<T>> tab = table;
+
+            for (Node<T> e = tab.get(hash & (tab.length() - 1));
+                    e != null;
+                    e = e.next)
+            {
+                if (e.hash == hash && e.matches(high, low, length))
+                    return e.value;
+            }
+            return null;
+        }
+
+        /**
+         * Maps a value to the specified key.
+         *
+         * @param high the first 8 bytes of the transaction ID.
+         * @param low the remaining bytes of the transaction ID.
+         * @param length the length of the transaction ID.
+         * @param hash the hash of the transaction ID.
+         * @param value the value to map to the key.
+         *
+         * @return the value previously mapped to the key or <tt>null</tt>.
+         */
+        synchronized T put(
+                long high, long low, int length, int hash, T value)
+        {
+            AtomicReferenceArray<Node<T>> tab = table;
+            int index = hash & (tab.length() - 1);
+            Node<T> first = tab.get(index);
+
+            for (Node<T> e = first; e != null; e = e.next)
+            {
+                if (e.hash == hash && e.matches(high, low, length))
+                {
+                    T oldValue = e.value;
+
+                    e.value = value;
+                    return oldValue;
+                }
+            }
+
+            tab.set(index, new Node<T>(high, low, length, hash, first, value));
+            count++;
+            if (count > (tab.length() * 3) / 4)
+                rehash();
+            return null;
+        }
+
+        /**
+         * Removes the value mapped to the specified key. The entries that
+         * precede the removed one in its bucket are cloned so that concurrent
+         * readers always see a consistent chain.
+         *
+         * @param high the first 8 bytes of the transaction ID.
+         * @param low the remaining bytes of the transaction ID.
+         * @param length the length of the transaction ID.
+         * @param hash the hash of the transaction ID.
+         *
+         * @return the value that was mapped to the key or <tt>null</tt>.
+         */
+        synchronized T remove(long high, long low, int length, int hash)
+        {
+            AtomicReferenceArray<Node<T>> tab = table;
+            int index = hash & (tab.length() - 1);
+            Node<T> first = tab.get(index);
+            Node<T> e = first;
+
+            while (e != null
+                    && !(e.hash == hash && e.matches(high, low, length)))
+                e = e.next;
+
+            if (e == null)
+                return null;
+
+            Node<T> newFirst = e.next;
+
+            for (Node<T> p = first; p != e; p = p.next)
+            {
+                newFirst
+                    = new Node<T>(
+                            p.high, p.low, p.length, p.hash, newFirst, p.value);
+            }
+            tab.set(index, newFirst);
+            count--;
+            return e.value;
+        }
+
+        /**
+         * Adds all values in this segment to <tt>values</tt>.
+         *
+         * @param values the list to add values to.
+         */
+        void addValuesTo(List<T> values)
+        {
+            AtomicReferenceArray<Node<T>> tab = table;
+
+            for (int i = 0; i < tab.length(); i++)
+            {
+                for (Node<T> e = tab.get(i); e != null; e = e.next)
+                {
+                    T value = e.value;
+
+                    if (value != null)
+                        values.add(value);
+                }
+            }
+        }
+
+        /**
+         * Doubles the number of buckets in this segment. Must be called while
+         * holding the lock of the segment. Readers keep using the old table
+         * until the new one is published.
+         */
+        private void rehash()
+        {
+            AtomicReferenceArray<Node<T>> oldTab = table;
+            int newLength = oldTab.length() << 1;
+
+            if (newLength <= 0)
+                return;
+
+            AtomicReferenceArray<Node<T>> newTab
+                = new AtomicReferenceArray<Node<T>>(newLength);
+
+            for (int i = 0; i < oldTab.length(); i++)
+            {
+                for (Node<T> e = oldTab.get(i); e != null; e = e.next)
+                {
+                    int index = e.hash & (newLength - 1);
+
+                    newTab.set(
+                            index,
+                            new Node<T>(
+                                    e.high, e.low, e.length, e.hash,
+                                    newTab.get(index), e.value));
+                }
+            }
+            table = newTab;
+        }
+    }
+}
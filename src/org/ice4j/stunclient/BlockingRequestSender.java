@@ -110,6 +110,8 @@ class BlockingRequestSender
     {
         synchronized(sendLock)
         {
+            //the discoverer thread reads the response after we return
+            evt.getMessage().retain();
             this.responseEvent = evt;
             ended = true;
             notifyAll();
@@ -142,6 +142,7 @@ public class MessageEventDispatchingTest extends TestCase
         String oldRetransValue = System.getProperty(
                         StackProperties.MAX_CTRAN_RETRANSMISSIONS);
         System.setProperty(StackProperties.MAX_CTRAN_RETRANSMISSIONS, "1");
+        stunStack.reloadConfiguration();
         stunStack.sendRequest(bindingRequest, serverAddress, clientAddress,
                         responseCollector);
         responseCollector.waitForTimeout();
@@ -55,13 +55,40 @@ public class StunTestSuite
         suite.addTestSuite(org.ice4j.attribute.UsernameAttributeTest.class);
         suite.addTestSuite(org.ice4j.attribute.NonceAttributeTest.class);
         suite.addTestSuite(org.ice4j.attribute.RealmAttributeTest.class);
+        suite.addTestSuite(org.ice4j.attribute.
+                           MessageIntegrityAttributeTest.class);
 
         //messages
         suite.addTestSuite(org.ice4j.message.MessageFactoryTest.class);
         suite.addTestSuite(org.ice4j.message.MessageTest.class);
+        suite.addTestSuite(org.ice4j.message.
+                           BindingResponseTemplateTest.class);
+        suite.addTestSuite(org.ice4j.message.MessagePoolTest.class);
 
         //stack
         suite.addTestSuite(org.ice4j.stack.ShallowStackTest.class);
+        suite.addTestSuite(org.ice4j.stack.TimerWheelTest.class);
+        suite.addTestSuite(org.ice4j.stack.
+                           ServerTransactionExpiryTest.class);
+        suite.addTestSuite(org.ice4j.stack.TransactionIndexTest.class);
+        suite.addTestSuite(org.ice4j.stack.MessageQueueTest.class);
+        suite.addTestSuite(org.ice4j.stack.ChannelConnectorTest.class);
+        suite.addTestSuite(org.ice4j.stack.PartitionedProcessingTest.class);
+        suite.addTestSuite(org.ice4j.stack.ReceiveBufferPoolTest.class);
+        suite.addTestSuite(org.ice4j.stack.ResponseCacheTest.class);
+        suite.addTestSuite(org.ice4j.stack.ResponseRoutingTest.class);
+        suite.addTestSuite(org.ice4j.stack.RtoEstimatorTest.class);
+        suite.addTestSuite(org.ice4j.stack.StackConfigurationTest.class);
+        suite.addTestSuite(org.ice4j.stack.AdmissionControllerTest.class);
+
+        //sockets
+        suite.addTestSuite(org.ice4j.socket.DatagramPacketQueueTest.class);
+        suite.addTestSuite(org.ice4j.socket.
+                           MultiplexingDatagramSocketTest.class);
+        suite.addTestSuite(org.ice4j.socket.IceUdpChannelWrapperTest.class);
+        suite.addTestSuite(org.ice4j.socket.TCPFramingTest.class);
+        suite.addTestSuite(org.ice4j.socket.TCPInputStreamTest.class);
+        suite.addTestSuite(org.ice4j.socket.MultiplexingSocketTest.class);
 
         //event dispatching
         suite.addTestSuite(org.ice4j.MessageEventDispatchingTest.class);
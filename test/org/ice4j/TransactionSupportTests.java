@@ -111,6 +111,7 @@ public class TransactionSupportTests extends TestCase
         System.setProperty(
                 StackProperties.FIRST_CTRAN_RETRANS_AFTER,
                 "");
+        stunStack.reloadConfiguration();
     }
 
     /**
@@ -168,6 +169,7 @@ public class TransactionSupportTests extends TestCase
         System.setProperty(StackProperties.PROPAGATE_RECEIVED_RETRANSMISSIONS,
                            "true");
 
+        stunStack.reloadConfiguration();
         stunStack.addRequestListener(serverAddress, requestCollector);
         //send
         stunStack.sendRequest(
@@ -217,6 +219,7 @@ public class TransactionSupportTests extends TestCase
                 StackProperties.MAX_CTRAN_RETRANSMISSIONS);
         System.setProperty(StackProperties.MAX_CTRAN_RETRANSMISSIONS, "2");
         //prepare to listen
+        stunStack.reloadConfiguration();
         stunStack.addRequestListener(serverAddress, requestCollector);
         //send
         stunStack.sendRequest(
@@ -264,6 +267,7 @@ public class TransactionSupportTests extends TestCase
         System.setProperty(
                 StackProperties.KEEP_CRANS_AFTER_A_RESPONSE,
                 "true");
+        stunStack.reloadConfiguration();
         stunStack.addRequestListener(serverAddress, requestCollector);
         //send
         stunStack.sendRequest(
@@ -377,6 +381,7 @@ public class TransactionSupportTests extends TestCase
         System.setProperty(
                 StackProperties.PROPAGATE_RECEIVED_RETRANSMISSIONS,
                 "true");
+        stunStack.reloadConfiguration();
         stunStack.addRequestListener(
                         serverAddress, requestCollector);
         //send
@@ -417,6 +422,7 @@ public class TransactionSupportTests extends TestCase
         System.setProperty(
                 StackProperties.PROPAGATE_RECEIVED_RETRANSMISSIONS,
                 "true");
+        stunStack.reloadConfiguration();
         stunStack.addRequestListener(serverAddress, requestCollector);
         //send
         stunStack.sendRequest(
@@ -462,6 +468,7 @@ public class TransactionSupportTests extends TestCase
                            "true");
         System.setProperty(StackProperties.MAX_CTRAN_RETRANSMISSIONS,
                            "11");
+        stunStack.reloadConfiguration();
         stunStack.addRequestListener(serverAddress, requestCollector);
         //send
         stunStack.sendRequest(
@@ -494,6 +501,141 @@ public class TransactionSupportTests extends TestCase
                     reqs.size());
     }
 
+    /**
+     * Tests that the timer of the stack sends retransmissions with the
+     * doubling intervals of RFC 5389 (100, 200, 400 ... 1600 ms by default,
+     * scaled down here to 40, 80, 160 and 320 ms) and declares the
+     * transaction timed out one maximum interval after the last one.
+     *
+     * @throws Exception if the gods so decide.
+     */
+    public void testRetransmissionScheduleAndTimeout()
+        throws Exception
+    {
+        System.setProperty(StackProperties.FIRST_CTRAN_RETRANS_AFTER, "40");
+        System.setProperty(StackProperties.MAX_CTRAN_RETRANS_TIMER, "320");
+        System.setProperty(StackProperties.MAX_CTRAN_RETRANSMISSIONS, "4");
+        //make sure we see retransmissions so that we may time them
+        System.setProperty(
+                StackProperties.PROPAGATE_RECEIVED_RETRANSMISSIONS,
+                "true");
+        stunStack.reloadConfiguration();
+
+        final List<Long> sendTimes = new Vector<Long>();
+        final long[] timeoutTime = new long[1];
+
+        stunStack.addRequestListener(
+                serverAddress,
+                new RequestListener()
+                {
+                    public void processRequest(StunMessageEvent evt)
+                    {
+                        sendTimes.add(System.nanoTime() / 1000000L);
+                    }
+                });
+        stunStack.sendRequest(
+                bindingRequest,
+                serverAddress,
+                clientAddress,
+                new AbstractResponseCollector()
+                {
+                    protected void processFailure(BaseStunMessageEvent event)
+                    {
+                        synchronized (timeoutTime)
+                        {
+                            if (event instanceof StunTimeoutEvent)
+                                timeoutTime[0] = System.nanoTime() / 1000000L;
+                            timeoutTime.notifyAll();
+                        }
+                    }
+
+                    public void processResponse(StunResponseEvent response)
+                    {
+                    }
+                });
+
+        synchronized (timeoutTime)
+        {
+            long deadline = System.currentTimeMillis() + 3000;
+
+            while (timeoutTime[0] == 0
+                    && System.currentTimeMillis() < deadline)
+            {
+                timeoutTime.wait(100);
+            }
+        }
+
+        assertTrue("The transaction did not time out", timeoutTime[0] != 0);
+        assertEquals("Wrong number of transmissions", 5, sendTimes.size());
+
+        //the stack timer ticks every 10 ms so events may come a tick early
+        long[] expected = new long[] { 0, 40, 120, 280, 600, 920 };
+        long start = sendTimes.get(0);
+
+        for (int i = 1; i < expected.length; i++)
+        {
+            long actual
+                = ((i < sendTimes.size()) ? sendTimes.get(i) : timeoutTime[0])
+                    - start;
+
+            assertTrue(
+                    "Event " + i + " came after " + actual + " ms instead of "
+                        + expected[i],
+                    actual >= expected[i] - 10
+                        && actual <= expected[i] + 150);
+        }
+    }
+
+    /**
+     * Tests that a transaction which times out after the stack has been shut
+     * down, and its callback threads with it, still reports the timeout to
+     * its collector.
+     *
+     * @throws Exception if the gods so decide.
+     */
+    public void testTimeoutAfterShutDown()
+        throws Exception
+    {
+        System.setProperty(StackProperties.FIRST_CTRAN_RETRANS_AFTER, "20");
+        System.setProperty(StackProperties.MAX_CTRAN_RETRANS_TIMER, "40");
+        System.setProperty(StackProperties.MAX_CTRAN_RETRANSMISSIONS, "1");
+        stunStack.reloadConfiguration();
+        stunStack.shutDown();
+
+        final boolean[] timedOut = new boolean[1];
+
+        stunStack.sendRequest(
+                bindingRequest,
+                serverAddress,
+                clientAddress,
+                new AbstractResponseCollector()
+                {
+                    protected void processFailure(BaseStunMessageEvent event)
+                    {
+                        synchronized (timedOut)
+                        {
+                            if (event instanceof StunTimeoutEvent)
+                                timedOut[0] = true;
+                            timedOut.notifyAll();
+                        }
+                    }
+
+                    public void processResponse(StunResponseEvent response)
+                    {
+                    }
+                });
+
+        synchronized (timedOut)
+        {
+            long deadline = System.currentTimeMillis() + 3000;
+
+            while (!timedOut[0] && System.currentTimeMillis() < deadline)
+                timedOut.wait(100);
+        }
+
+        assertTrue("The timeout was not delivered", timedOut[0]);
+    }
+
     /**
      * A simply utility for asynchronous collection of requests.
      */
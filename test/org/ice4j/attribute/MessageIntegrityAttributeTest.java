@@ -0,0 +1,150 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.attribute;
+
+import java.util.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+import junit.framework.*;
+
+import org.ice4j.message.*;
+import org.ice4j.security.*;
+
+/**
+ * Tests the HMAC-SHA1 calculations of the MESSAGE-INTEGRITY attribute and
+ * the keys they use.
+ *
+ * @author agent
+ */
+public class MessageIntegrityAttributeTest extends TestCase
+{
+    /**
+     * Calculates an HMAC-SHA1 the slow way.
+     *
+     * @param message the data to sign.
+     * @param offset the index where data starts in <tt>message</tt>.
+     * @param length the number of bytes to sign.
+     * @param key the key.
+     *
+     * @return the HMAC-SHA1 of the data.
+     *
+     * @throws Exception if HMAC-SHA1 is not available.
+     */
+    private static byte[] hmacSha1(byte[] message,
+                                   int    offset,
+                                   int    length,
+                                   byte[] key)
+        throws Exception
+    {
+        Mac mac = Mac.getInstance(MessageIntegrityAttribute.HMAC_SHA1_ALGORITHM);
+        byte[] input = new byte[length];
+
+        mac.init(
+                new SecretKeySpec(
+                        key, MessageIntegrityAttribute.HMAC_SHA1_ALGORITHM));
+        System.arraycopy(message, offset, input, 0, length);
+        return mac.doFinal(input);
+    }
+
+    /**
+     * Makes sure that HMACs calculated with cached engines are correct for
+     * parts of arrays and while more keys are in use than are cached.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testCalculateHmacSha1()
+        throws Exception
+    {
+        Random random = new Random(5389);
+        byte[] message = new byte[200];
+
+        random.nextBytes(message);
+
+        for (int i = 0; i < 40; i++)
+        {
+            byte[] key = ("key" + (i % 11)).getBytes();
+            int offset = i;
+            int length = 100 + i;
+
+            assertTrue(Arrays.equals(
+                    hmacSha1(message, offset, length, key),
+                    MessageIntegrityAttribute.calculateHmacSha1(
+                            message, offset, length, key)));
+        }
+
+        try
+        {
+            MessageIntegrityAttribute.calculateHmacSha1(
+                    message, 0, 20, new byte[0]);
+            fail("Calculated an HMAC with an empty key");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            //expected
+        }
+    }
+
+    /**
+     * Makes sure that the HMAC used to validate a received message is
+     * calculated over a "Message Length" that ends with MESSAGE-INTEGRITY and
+     * that the message itself is left untouched.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testCalculateHmacSha1ForValidation()
+        throws Exception
+    {
+        //header, one 8 byte attribute, MESSAGE-INTEGRITY and FINGERPRINT
+        byte[] message = new byte[Message.HEADER_LENGTH + 12 + 24 + 8];
+        int miOffset = Message.HEADER_LENGTH + 12;
+        byte[] key = "password".getBytes();
+
+        new Random(5389).nextBytes(message);
+        message[2] = 0;
+        message[3] = (byte) (message.length - Message.HEADER_LENGTH);
+
+        byte[] original = message.clone();
+        byte[] patched = new byte[miOffset];
+
+        System.arraycopy(message, 0, patched, 0, miOffset);
+        patched[3] = (byte) (miOffset + 24 - Message.HEADER_LENGTH);
+
+        assertTrue(Arrays.equals(
+                hmacSha1(patched, 0, patched.length, key),
+                MessageIntegrityAttribute.calculateHmacSha1ForValidation(
+                        message, 0, miOffset, key)));
+        assertTrue(Arrays.equals(original, message));
+    }
+
+    /**
+     * Makes sure that the long-term credential key is the one given as an
+     * example by RFC 5389 and that callers can't change the cached copy.
+     */
+    public void testLongTermCredentialKey()
+    {
+        LongTermCredentialSession session
+            = new LongTermCredentialSession(
+                    new LongTermCredential("user", "pass"),
+                    "realm".getBytes());
+        byte[] expected
+            = new byte[]
+            {
+                (byte) 0x84, (byte) 0x93, (byte) 0xfb, (byte) 0xc5,
+                (byte) 0x3b, (byte) 0xa5, (byte) 0x82, (byte) 0xfb,
+                (byte) 0x4c, (byte) 0x04, (byte) 0x4c, (byte) 0x45,
+                (byte) 0x6b, (byte) 0xdc, (byte) 0x40, (byte) 0xeb
+            };
+        byte[] key = session.getLocalKey("user");
+
+        assertTrue(Arrays.equals(expected, key));
+        key[0] = 0;
+        assertTrue(Arrays.equals(expected, session.getLocalKey("user")));
+        assertNull(session.getLocalKey("someone else"));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.message;
+
+import java.util.*;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.security.*;
+import org.ice4j.stack.*;
+
+/**
+ * Tests that responses rendered from a {@link BindingResponseTemplate} are
+ * identical to the ones encoded from the equivalent <tt>Response</tt>.
+ *
+ * @author agent
+ */
+public class BindingResponseTemplateTest extends TestCase
+{
+    /**
+     * The USERNAME of the checks we respond to.
+     */
+    private static final String USERNAME = "local:remote";
+
+    /**
+     * The local password.
+     */
+    private static final byte[] PASSWORD = "localpassword".getBytes();
+
+    /**
+     * The stack that provides the local password to encoded responses.
+     */
+    private StunStack stunStack;
+
+    /**
+     * The values of the SOFTWARE and ALWAYS_SIGN properties before the test.
+     */
+    private String software, alwaysSign;
+
+    /**
+     * Creates the stack and saves the properties that the tests change.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        software = System.getProperty(StackProperties.SOFTWARE);
+        alwaysSign = System.getProperty(StackProperties.ALWAYS_SIGN);
+
+        stunStack = new StunStack();
+        stunStack.getCredentialsManager().registerAuthority(
+                new CredentialsAuthority()
+                {
+                    public byte[] getLocalKey(String username)
+                    {
+                        return USERNAME.equals(username) ? PASSWORD : null;
+                    }
+
+                    public byte[] getRemoteKey(String username, String media)
+                    {
+                        return null;
+                    }
+
+                    public boolean checkLocalUserName(String username)
+                    {
+                        return USERNAME.startsWith(username);
+                    }
+                });
+    }
+
+    /**
+     * Shuts the stack down and restores the properties.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void tearDown()
+        throws Exception
+    {
+        stunStack.shutDown();
+        restoreProperty(StackProperties.SOFTWARE, software);
+        restoreProperty(StackProperties.ALWAYS_SIGN, alwaysSign);
+
+        super.tearDown();
+    }
+
+    /**
+     * Sets or clears a system property.
+     *
+     * @param name the name of the property.
+     * @param value the value to set or <tt>null</tt> to clear the property.
+     */
+    private static void restoreProperty(String name, String value)
+    {
+        if (value == null)
+            System.clearProperty(name);
+        else
+            System.setProperty(name, value);
+    }
+
+    /**
+     * Encodes the response to a check with the <tt>Response</tt> API the way
+     * <tt>ConnectivityCheckServer</tt> used to.
+     *
+     * @param transactionID the transaction ID of the check.
+     * @param mappedAddress the address the check came from.
+     *
+     * @return the encoded response.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    private byte[] encodeResponse(byte[]           transactionID,
+                                  TransportAddress mappedAddress)
+        throws Exception
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        request.setTransactionID(transactionID);
+
+        Response response
+            = MessageFactory.createBindingResponse(request, mappedAddress);
+
+        response.setTransactionID(transactionID);
+        response.addAttribute(
+                AttributeFactory.createUsernameAttribute(USERNAME));
+        response.addAttribute(
+                AttributeFactory.createMessageIntegrityAttribute(USERNAME));
+        return response.encode(stunStack);
+    }
+
+    /**
+     * Renders and encodes responses for IPv4 and IPv6 addresses with the
+     * current system properties and compares them.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    private void assertRenderMatchesEncode()
+        throws Exception
+    {
+        stunStack.reloadConfiguration();
+
+        TransportAddress[] addresses
+            = new TransportAddress[]
+            {
+                new TransportAddress("192.168.1.20", 50123, Transport.UDP),
+                new TransportAddress(
+                        "2001:db8::1:2:3:4", 61000, Transport.UDP)
+            };
+        byte[] buffer = new byte[1500];
+
+        for (TransportAddress address : addresses)
+        {
+            BindingResponseTemplate template
+                = new BindingResponseTemplate(
+                        USERNAME.getBytes(), PASSWORD, address.isIPv6(),
+                        stunStack.getConfiguration());
+
+            for (int i = 0; i < 3; i++)
+            {
+                byte[] tid = TransactionID.createNewTransactionID().getBytes();
+                byte[] expected = encodeResponse(tid, address);
+                int length = template.render(tid, address, buffer, i);
+                byte[] actual = new byte[length];
+
+                System.arraycopy(buffer, i, actual, 0, length);
+                assertEquals(template.getLength(), length);
+                assertTrue(
+                        "Response for " + address,
+                        Arrays.equals(expected, actual));
+            }
+        }
+    }
+
+    /**
+     * Compares rendered and encoded responses without SOFTWARE and
+     * FINGERPRINT.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testRenderWithoutSoftwareAndFingerprint()
+        throws Exception
+    {
+        System.clearProperty(StackProperties.SOFTWARE);
+        System.setProperty(StackProperties.ALWAYS_SIGN, "false");
+        assertRenderMatchesEncode();
+    }
+
+    /**
+     * Compares rendered and encoded responses with SOFTWARE and FINGERPRINT.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testRenderWithSoftwareAndFingerprint()
+        throws Exception
+    {
+        System.setProperty(StackProperties.SOFTWARE, "ice4j.org test");
+        System.setProperty(StackProperties.ALWAYS_SIGN, "true");
+        assertRenderMatchesEncode();
+    }
+
+    /**
+     * Makes sure that templates refuse transaction IDs and addresses that
+     * they cannot render.
+     */
+    public void testRenderRejectsMismatches()
+    {
+        BindingResponseTemplate template
+            = new BindingResponseTemplate(
+                    USERNAME.getBytes(), PASSWORD, false,
+                    stunStack.getConfiguration());
+        byte[] buffer = new byte[1500];
+
+        try
+        {
+            template.render(
+                    new byte[16],
+                    new TransportAddress("10.0.0.1", 1, Transport.UDP),
+                    buffer, 0);
+            fail("Rendered an RFC 3489 transaction ID");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            //expected
+        }
+        try
+        {
+            template.render(
+                    new byte[Message.TRANSACTION_ID_LENGTH],
+                    new TransportAddress("::1", 1, Transport.UDP),
+                    buffer, 0);
+            fail("Rendered an IPv6 address with an IPv4 template");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            //expected
+        }
+    }
+}
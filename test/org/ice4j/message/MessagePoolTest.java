@@ -0,0 +1,293 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.message;
+
+import java.util.*;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.security.*;
+import org.ice4j.stack.*;
+
+/**
+ * Tests that messages decoded from a {@link MessagePool} are reused once they
+ * have been recycled, unless they have been retained.
+ *
+ * @author agent
+ */
+public class MessagePoolTest extends TestCase
+{
+    /**
+     * The USERNAME of the requests we decode.
+     */
+    private static final String USERNAME = "local:remote";
+
+    /**
+     * An encoded binding request with USERNAME, PRIORITY and FINGERPRINT.
+     */
+    private byte[] request;
+
+    /**
+     * Encodes {@link #request}.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        StunStack stunStack = new StunStack();
+
+        try
+        {
+            Request message = MessageFactory.createBindingRequest();
+
+            message.setTransactionID(
+                    TransactionID.createNewTransactionID().getBytes());
+
+            message.addAttribute(
+                    AttributeFactory.createUsernameAttribute(USERNAME));
+            message.addAttribute(
+                    AttributeFactory.createPriorityAttribute(1845494271L));
+            message.addAttribute(
+                    AttributeFactory.createFingerprintAttribute());
+            request = message.encode(stunStack);
+        }
+        finally
+        {
+            stunStack.shutDown();
+        }
+    }
+
+    /**
+     * Decodes {@link #request} from the pool of the current thread.
+     *
+     * @param lazily whether to decode the request lazily.
+     *
+     * @return the decoded request.
+     *
+     * @throws StunException if decoding fails.
+     */
+    private Message decode(boolean lazily)
+        throws StunException
+    {
+        MessagePool pool = MessagePool.getInstance();
+
+        return lazily
+            ? Message.decodeLazily(request, 0, request.length, pool)
+            : Message.decode(request, (char) 0, (char) request.length, pool);
+    }
+
+    /**
+     * Makes sure that the values of a decoded request are right.
+     *
+     * @param message the decoded request.
+     */
+    private void assertDecoded(Message message)
+    {
+        assertTrue(message instanceof Request);
+        assertEquals(Message.BINDING_REQUEST, message.getMessageType());
+        assertTrue(Arrays.equals(
+                new byte[]
+                {
+                    request[8], request[9], request[10], request[11],
+                    request[12], request[13], request[14], request[15],
+                    request[16], request[17], request[18], request[19]
+                },
+                message.getTransactionID()));
+        assertEquals(
+                USERNAME,
+                new String(
+                        ((UsernameAttribute)
+                            message.getAttribute(Attribute.USERNAME))
+                        .getUsername()));
+        assertEquals(
+                1845494271L,
+                ((PriorityAttribute) message.getAttribute(Attribute.PRIORITY))
+                    .getPriority());
+        assertNotNull(message.getAttribute(Attribute.FINGERPRINT));
+    }
+
+    /**
+     * Makes sure that recycled messages and attributes are decoded into
+     * again, both eagerly and lazily.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testRecycle()
+        throws Exception
+    {
+        for (boolean lazily : new boolean[] { false, true })
+        {
+            Message message = decode(lazily);
+
+            assertDecoded(message);
+
+            Attribute username = message.getAttribute(Attribute.USERNAME);
+            Attribute priority = message.getAttribute(Attribute.PRIORITY);
+
+            MessagePool.recycle(message);
+            assertEquals(0, message.getAttributeCount());
+
+            Message reused = decode(lazily);
+
+            assertSame(message, reused);
+            assertDecoded(reused);
+            assertSame(username, reused.getAttribute(Attribute.USERNAME));
+            assertSame(priority, reused.getAttribute(Attribute.PRIORITY));
+            MessagePool.recycle(reused);
+        }
+    }
+
+    /**
+     * Makes sure that retained messages are left alone when they are
+     * recycled and that messages that were not decoded from a pool are never
+     * reused.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testRetain()
+        throws Exception
+    {
+        Message retained = decode(true);
+
+        assertSame(retained, retained.retain());
+        MessagePool.recycle(retained);
+        assertDecoded(retained);
+
+        Message notPooled
+            = Message.decode(request, (char) 0, (char) request.length);
+
+        MessagePool.recycle(notPooled);
+        assertDecoded(notPooled);
+
+        Message message = decode(false);
+
+        assertNotSame(retained, message);
+        assertNotSame(notPooled, message);
+        assertNotSame(
+                retained.getAttribute(Attribute.USERNAME),
+                message.getAttribute(Attribute.USERNAME));
+        assertDecoded(retained);
+        MessagePool.recycle(message);
+    }
+
+    /**
+     * Makes sure that a lazily decoded message that has been retained no
+     * longer depends on the array it was decoded from, so that the array can
+     * be reused.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testRetainDetachesLazilyDecodedMessage()
+        throws Exception
+    {
+        for (int i = 0; i < 2; i++)
+        {
+            MessagePool pool = (i == 0) ? null : MessagePool.getInstance();
+            byte[] buffer = new byte[1500];
+
+            System.arraycopy(request, 0, buffer, 0, request.length);
+
+            Message message
+                = Message.decodeLazily(buffer, 0, request.length, pool);
+
+            //decode one of the attributes before retaining the message.
+            assertNotNull(message.getAttribute(Attribute.USERNAME));
+            assertSame(message, message.retain());
+            Arrays.fill(buffer, (byte) 0);
+
+            assertDecoded(message);
+            assertFalse(MessagePool.recycle(message));
+        }
+    }
+
+    /**
+     * Makes sure that a MESSAGE-INTEGRITY which is decoded after its lazily
+     * decoded message has been retained reports its location in the original
+     * message, so that the HMAC is validated over the right bytes.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testRetainKeepsLocationInMessage()
+        throws Exception
+    {
+        final byte[] key = "password".getBytes();
+        StunStack stunStack = new StunStack();
+        byte[] signed;
+
+        try
+        {
+            stunStack.getCredentialsManager().registerAuthority(
+                    new CredentialsAuthority()
+                    {
+                        public byte[] getLocalKey(String username)
+                        {
+                            return key;
+                        }
+
+                        public byte[] getRemoteKey(String username,
+                                                   String media)
+                        {
+                            return key;
+                        }
+
+                        public boolean checkLocalUserName(String username)
+                        {
+                            return true;
+                        }
+                    });
+
+            Request message = MessageFactory.createBindingRequest();
+
+            message.setTransactionID(
+                    TransactionID.createNewTransactionID().getBytes());
+            message.addAttribute(
+                    AttributeFactory.createUsernameAttribute(USERNAME));
+            message.addAttribute(
+                    AttributeFactory.createPriorityAttribute(1845494271L));
+            message.addAttribute(
+                    AttributeFactory.createMessageIntegrityAttribute(
+                            USERNAME));
+            message.addAttribute(
+                    AttributeFactory.createFingerprintAttribute());
+            signed = message.encode(stunStack);
+        }
+        finally
+        {
+            stunStack.shutDown();
+        }
+
+        int location
+            = Message.decode(signed, (char) 0, (char) signed.length)
+                .getAttribute(Attribute.MESSAGE_INTEGRITY)
+                    .getLocationInMessage();
+        byte[] buffer = new byte[1500];
+
+        System.arraycopy(signed, 0, buffer, 0, signed.length);
+
+        Message message = Message.decodeLazily(buffer, 0, signed.length);
+
+        //decode one of the attributes before retaining the message.
+        assertNotNull(message.getAttribute(Attribute.USERNAME));
+        message.retain();
+        Arrays.fill(buffer, (byte) 0);
+
+        MessageIntegrityAttribute msgInt
+            = (MessageIntegrityAttribute)
+                message.getAttribute(Attribute.MESSAGE_INTEGRITY);
+
+        assertEquals(location, msgInt.getLocationInMessage());
+        assertTrue(Arrays.equals(
+                MessageIntegrityAttribute.calculateHmacSha1ForValidation(
+                        signed, 0, msgInt.getLocationInMessage(), key),
+                msgInt.getHmacSha1Content()));
+    }
+}
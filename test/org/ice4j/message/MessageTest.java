@@ -6,6 +6,7 @@
  */
 package org.ice4j.message;
 
+import java.nio.*;
 import java.util.*;
 
 import junit.framework.*;
@@ -155,6 +156,44 @@ public class MessageTest extends TestCase
                      Arrays.equals(  expectedReturn, actualReturn ) );
     }
 
+    /**
+     * Encodes a binding response into a reused, dirty buffer at a non-zero
+     * position and checks that the bytes match the binary array.
+     *
+     * @throws StunException java.lang.Exception if we fail
+     */
+    public void testEncodeIntoBuffer()
+        throws StunException
+    {
+        byte[] expectedReturn = msgFixture.bindingResponse;
+        ByteBuffer buffer = ByteBuffer.allocate(expectedReturn.length + 8);
+
+        Arrays.fill(buffer.array(), (byte) 0x55);
+        buffer.position(3);
+        bindingResponse.encode(stunStack, buffer);
+
+        assertEquals(3 + expectedReturn.length, buffer.position());
+
+        byte[] actualReturn = new byte[expectedReturn.length];
+
+        System.arraycopy(buffer.array(), 3, actualReturn, 0,
+                actualReturn.length);
+        assertTrue("A binding response was not properly encoded",
+                   Arrays.equals(expectedReturn, actualReturn));
+
+        buffer.clear();
+        buffer.limit(expectedReturn.length - 1);
+        try
+        {
+            bindingResponse.encode(stunStack, buffer);
+            fail("Encoded a message into a buffer that is too small");
+        }
+        catch (BufferOverflowException ex)
+        {
+            assertEquals(0, buffer.position());
+        }
+    }
+
     /**
      * Encodes a bindingRequest and then a binding response and checks whether
      * they match the corresponding binary arrays.
@@ -185,6 +224,109 @@ public class MessageTest extends TestCase
                      expectedReturn, actualReturn );
     }
 
+    /**
+     * Decodes a binding response lazily and checks that it is equal to the
+     * same response decoded eagerly and that attributes can be looked up
+     * before and after the message has been modified.
+     *
+     * @throws Exception java.lang.Exception if we fail
+     */
+    public void testDecodeLazily()
+        throws Exception
+    {
+        byte[] bytes = new byte[msgFixture.bindingResponse.length + 4];
+
+        System.arraycopy(msgFixture.bindingResponse, 0, bytes, 4,
+                msgFixture.bindingResponse.length);
+
+        Message message = Message.decodeLazily(bytes, 4,
+                msgFixture.bindingResponse.length);
+
+        assertEquals(3, message.getAttributeCount());
+        assertTrue(message.containsAttribute(Attribute.SOURCE_ADDRESS));
+        assertFalse(message.containsAttribute(Attribute.USERNAME));
+        assertEquals(mappedAddress,
+                message.getAttribute(Attribute.MAPPED_ADDRESS));
+        assertNull(message.getAttribute(Attribute.USERNAME));
+
+        assertEquals("A binding response was not properly decoded lazily",
+                     bindingResponse, message);
+
+        message.removeAttribute(Attribute.SOURCE_ADDRESS);
+        assertEquals(2, message.getAttributeCount());
+        assertEquals(changedAddress,
+                message.getAttribute(Attribute.CHANGED_ADDRESS));
+    }
+
+    /**
+     * Makes sure that the FINGERPRINT of a lazily decoded message is
+     * validated right away.
+     *
+     * @throws Exception java.lang.Exception if we fail
+     */
+    public void testDecodeLazilyValidatesFingerprint()
+        throws Exception
+    {
+        bindingRequest.addAttribute(
+                AttributeFactory.createFingerprintAttribute());
+
+        byte[] bytes = bindingRequest.encode(stunStack);
+        Message message = Message.decodeLazily(bytes, 0, bytes.length);
+
+        assertNotNull(message.getAttribute(Attribute.FINGERPRINT));
+        assertEquals(changeRequest,
+                message.getAttribute(Attribute.CHANGE_REQUEST));
+
+        //corrupt the CHANGE-REQUEST attribute
+        bytes[Message.HEADER_LENGTH + Attribute.HEADER_LENGTH + 3] ^= 0x02;
+        try
+        {
+            Message.decodeLazily(bytes, 0, bytes.length);
+            fail("Decoded a message with a wrong FINGERPRINT");
+        }
+        catch (StunException ex)
+        {
+            //expected
+        }
+    }
+
+    /**
+     * Makes sure that an attribute of a lazily decoded message that fails to
+     * decode is neither counted nor reported as present.
+     *
+     * @throws Exception java.lang.Exception if we fail
+     */
+    public void testDecodeLazilyDropsMalformedAttributes()
+        throws Exception
+    {
+        byte[] bytes = new byte[]
+            {
+                0x00, 0x03, 0x00, 0x14, //Allocate request, length 20
+                0x21, 0x12, (byte) 0xA4, 0x42, //magic cookie
+                0x01, 0x02, 0x03, 0x04, //transaction ID
+                0x05, 0x06, 0x07, 0x08,
+                0x09, 0x0a, 0x0b, 0x0c,
+                0x00, 0x0d, 0x00, 0x08, //LIFETIME with a wrong length
+                0x00, 0x00, 0x02, 0x58,
+                0x00, 0x00, 0x00, 0x00,
+                0x00, 0x19, 0x00, 0x04, //REQUESTED-TRANSPORT
+                0x11, 0x00, 0x00, 0x00
+            };
+
+        Message message = Message.decodeLazily(bytes, 0, bytes.length);
+
+        assertFalse(message.containsAttribute(Attribute.LIFETIME));
+        assertNull(message.getAttribute(Attribute.LIFETIME));
+        assertTrue(message.containsAttribute(Attribute.REQUESTED_TRANSPORT));
+        assertEquals(1, message.getAttributeCount());
+        assertEquals(1, message.getAttributes().size());
+
+        message = Message.decodeLazily(bytes, 0, bytes.length);
+
+        assertEquals(1, message.getAttributeCount());
+        assertFalse(message.containsAttribute(Attribute.LIFETIME));
+    }
+
     /**
      * Tests the equals method against a null, a different and an identical
      * object.
@@ -237,6 +379,41 @@ public class MessageTest extends TestCase
                         expectedReturn, actualReturn);
     }
 
+    /**
+     * Makes sure that attributes keep the position they were first added at
+     * when they are replaced, that removing one shifts the ones after it and
+     * that FINGERPRINT is always encoded last.
+     *
+     * @throws Exception java.lang.Exception if we fail
+     */
+    public void testAttributeOrder()
+        throws Exception
+    {
+        bindingResponse.addAttribute(
+                AttributeFactory.createFingerprintAttribute());
+        bindingResponse.addAttribute(
+                AttributeFactory.createSoftwareAttribute("test".getBytes()));
+        bindingResponse.addAttribute(mappedAddress);
+        bindingResponse.removeAttribute(Attribute.SOURCE_ADDRESS);
+
+        List<Attribute> attributes = bindingResponse.getAttributes();
+
+        assertEquals(4, attributes.size());
+        assertSame(mappedAddress, attributes.get(0));
+        assertSame(changedAddress, attributes.get(1));
+        assertEquals(Attribute.FINGERPRINT,
+                attributes.get(2).getAttributeType());
+
+        byte[] bytes = bindingResponse.encode(stunStack);
+        Message message
+            = Message.decode(bytes, (char) 0, (char) bytes.length);
+
+        attributes = message.getAttributes();
+        assertEquals(Attribute.SOFTWARE, attributes.get(2).getAttributeType());
+        assertEquals(Attribute.FINGERPRINT,
+                attributes.get(3).getAttributeType());
+    }
+
     /**
      * Tests  whether attributes are properly counted
      */
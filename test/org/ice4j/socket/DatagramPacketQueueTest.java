@@ -0,0 +1,125 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+import java.net.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the bounded queues that <tt>MultiplexingDatagramSocket</tt>s keep
+ * received packets in.
+ *
+ * @author agent
+ */
+public class DatagramPacketQueueTest extends TestCase
+{
+    /**
+     * Creates a packet with a single byte of payload in the middle of a
+     * larger array.
+     *
+     * @param value the payload.
+     *
+     * @return the new packet.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    private static DatagramPacket createPacket(int value)
+        throws Exception
+    {
+        byte[] data = new byte[16];
+
+        data[4] = (byte) value;
+        return
+            new DatagramPacket(
+                    data, 4, 1, InetAddress.getByName("127.0.0.1"), 5000);
+    }
+
+    /**
+     * Removes the oldest packet from <tt>queue</tt> and returns its payload.
+     *
+     * @param queue the queue.
+     *
+     * @return the payload of the oldest packet in the queue.
+     */
+    private static int poll(DatagramPacketQueue queue)
+    {
+        DatagramPacket p = new DatagramPacket(new byte[8], 8);
+
+        assertTrue(queue.poll(p));
+        assertEquals(1, p.getLength());
+        assertEquals(5000, p.getPort());
+        return p.getData()[0];
+    }
+
+    /**
+     * Makes sure that a queue returns its packets in order and that it only
+     * keeps their payloads.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testOrder()
+        throws Exception
+    {
+        DatagramPacketQueue queue
+            = new DatagramPacketQueue(
+                    4, DatagramPacketQueue.OverflowPolicy.DROP_NEWEST);
+
+        for (int round = 0; round < 3; round++)
+        {
+            for (int i = 0; i < 3; i++)
+                assertTrue(queue.add(createPacket(i)));
+            assertEquals(3, queue.size());
+            for (int i = 0; i < 3; i++)
+                assertEquals(i, poll(queue));
+            assertTrue(queue.isEmpty());
+        }
+        assertFalse(queue.poll(new DatagramPacket(new byte[8], 8)));
+    }
+
+    /**
+     * Makes sure that a full queue with the <tt>DROP_NEWEST</tt> policy drops
+     * new packets.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testDropNewest()
+        throws Exception
+    {
+        DatagramPacketQueue queue
+            = new DatagramPacketQueue(
+                    2, DatagramPacketQueue.OverflowPolicy.DROP_NEWEST);
+
+        assertTrue(queue.add(createPacket(1)));
+        assertTrue(queue.add(createPacket(2)));
+        assertFalse(queue.add(createPacket(3)));
+        assertEquals(1, queue.getDropped());
+        assertEquals(1, poll(queue));
+        assertEquals(2, poll(queue));
+    }
+
+    /**
+     * Makes sure that a full queue with the <tt>DROP_OLDEST</tt> policy makes
+     * room for new packets.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testDropOldest()
+        throws Exception
+    {
+        DatagramPacketQueue queue
+            = new DatagramPacketQueue(
+                    2, DatagramPacketQueue.OverflowPolicy.DROP_OLDEST);
+
+        for (int i = 1; i <= 5; i++)
+            assertTrue(queue.add(createPacket(i)));
+        assertEquals(3, queue.getDropped());
+        assertEquals(2, queue.size());
+        assertEquals(4, poll(queue));
+        assertEquals(5, poll(queue));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+import java.net.*;
+import java.nio.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the <tt>ByteBuffer</tt> and <tt>DatagramPacket</tt> I/O of
+ * <tt>IceUdpChannelWrapper</tt>s.
+ *
+ * @author agent
+ */
+public class IceUdpChannelWrapperTest extends TestCase
+{
+    /**
+     * The wrapper that sends.
+     */
+    private IceUdpChannelWrapper sender;
+
+    /**
+     * The wrapper that receives.
+     */
+    private IceUdpChannelWrapper receiver;
+
+    /**
+     * Binds the wrappers on the loopback address.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        sender
+            = new IceUdpChannelWrapper(new InetSocketAddress("127.0.0.1", 0));
+        receiver
+            = new IceUdpChannelWrapper(new InetSocketAddress("127.0.0.1", 0));
+        receiver.getUDPSocket().setSoTimeout(2000);
+    }
+
+    /**
+     * Closes the wrappers.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void tearDown()
+        throws Exception
+    {
+        sender.close();
+        receiver.close();
+
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure that datagrams go through direct buffers in non-blocking
+     * mode and that an empty channel returns no datagram.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testDirectBuffers()
+        throws Exception
+    {
+        receiver.configureBlocking(false);
+        assertFalse(receiver.isBlocking());
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(1500);
+
+        assertNull(receiver.receive(dst));
+
+        ByteBuffer src = ByteBuffer.allocateDirect(3);
+
+        src.put(new byte[] { 1, 2, 3 }).flip();
+        assertEquals(3, sender.send(src, receiver.getLocalSocketAddress()));
+
+        SocketAddress from = null;
+
+        for (int i = 0; i < 200 && from == null; i++)
+        {
+            from = receiver.receive(dst);
+            if (from == null)
+                Thread.sleep(10);
+        }
+        assertEquals(sender.getLocalSocketAddress(), from);
+        dst.flip();
+        assertEquals(3, dst.remaining());
+        assertEquals(1, dst.get());
+        assertEquals(2, dst.get());
+        assertEquals(3, dst.get());
+    }
+
+    /**
+     * Makes sure that <tt>DatagramPacket</tt>s still go through the
+     * <tt>MultiplexingDatagramSocket</tt> of the wrapper and that its
+     * multiplexed sockets do not expose the channel.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testDatagramPackets()
+        throws Exception
+    {
+        MultiplexingDatagramSocket multiplexing
+            = (MultiplexingDatagramSocket) receiver.getUDPSocket();
+
+        assertSame(receiver.getChannel(), multiplexing.getChannel());
+
+        DatagramSocket multiplexed
+            = multiplexing.getSocket(
+                    new DatagramPacketFilter()
+                    {
+                        public boolean accept(DatagramPacket p)
+                        {
+                            return true;
+                        }
+                    });
+
+        assertNull(multiplexed.getChannel());
+        multiplexed.setSoTimeout(2000);
+
+        sender.send(
+                new DatagramPacket(
+                        new byte[] { 0, 4, 5, 0 }, 1, 2,
+                        receiver.getLocalSocketAddress()));
+
+        DatagramPacket p = new DatagramPacket(new byte[1500], 1500);
+
+        multiplexed.receive(p);
+        assertEquals(2, p.getLength());
+        assertEquals(4, p.getData()[0]);
+        assertEquals(5, p.getData()[1]);
+        assertEquals(sender.getLocalSocketAddress(), p.getSocketAddress());
+    }
+}
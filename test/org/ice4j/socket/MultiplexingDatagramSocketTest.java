@@ -0,0 +1,211 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+import java.net.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+
+/**
+ * Tests that <tt>MultiplexingDatagramSocket</tt>s hand packets to the right
+ * sockets, only ask the filters which may accept a packet about it and that packets nobody reads only take a bounded amount of memory.
+ *
+ * @author agent
+ */
+public class MultiplexingDatagramSocketTest extends TestCase
+{
+    /**
+     * The capacity of the queues in the test.
+     */
+    private static final int CAPACITY = 4;
+
+    /**
+     * The value of {@link StackProperties#MULTIPLEXED_QUEUE_CAPACITY} before
+     * the test.
+     */
+    private String oldCapacity;
+
+    /**
+     * The socket we are testing.
+     */
+    private MultiplexingDatagramSocket multiplexing;
+
+    /**
+     * The socket that sends the packets.
+     */
+    private DatagramSocket sender;
+
+    /**
+     * Creates the sockets with queues of {@link #CAPACITY} packets.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        oldCapacity
+            = System.getProperty(StackProperties.MULTIPLEXED_QUEUE_CAPACITY);
+        System.setProperty(
+                StackProperties.MULTIPLEXED_QUEUE_CAPACITY,
+                Integer.toString(CAPACITY));
+
+        multiplexing
+            = new MultiplexingDatagramSocket(
+                    new InetSocketAddress("127.0.0.1", 0));
+        multiplexing.setSoTimeout(2000);
+        sender = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    /**
+     * Closes the sockets and restores the property.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void tearDown()
+        throws Exception
+    {
+        multiplexing.close();
+        sender.close();
+        if (oldCapacity == null)
+            System.clearProperty(StackProperties.MULTIPLEXED_QUEUE_CAPACITY);
+        else
+        {
+            System.setProperty(
+                    StackProperties.MULTIPLEXED_QUEUE_CAPACITY,
+                    oldCapacity);
+        }
+
+        super.tearDown();
+    }
+
+    /**
+     * Sends a packet whose only byte is <tt>value</tt> to
+     * {@link #multiplexing}.
+     *
+     * @param value the payload of the packet.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    private void send(int value)
+        throws Exception
+    {
+        sender.send(
+                new DatagramPacket(
+                        new byte[] { (byte) value }, 1,
+                        multiplexing.getLocalSocketAddress()));
+    }
+
+    /**
+     * Makes sure that packets for a multiplexed socket that is not being read
+     * are queued up to the capacity of its queue, that the oldest ones are
+     * dropped and that the other packets still get through.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testBoundedQueue()
+        throws Exception
+    {
+        MultiplexedDatagramSocket filtered
+            = multiplexing.getSocket(
+                    new DatagramPacketFilter()
+                    {
+                        public boolean accept(DatagramPacket p)
+                        {
+                            return p.getData()[p.getOffset()] < 100;
+                        }
+                    });
+
+        filtered.setSoTimeout(2000);
+
+        int count = 3 * CAPACITY;
+
+        for (int i = 0; i < count; i++)
+            send(i);
+        send(100);
+
+        DatagramPacket p = new DatagramPacket(new byte[1500], 1500);
+
+        multiplexing.receive(p);
+        assertEquals(1, p.getLength());
+        assertEquals(100, p.getData()[0]);
+
+        assertEquals(CAPACITY, filtered.getReceiveQueueDepth());
+        assertEquals(count - CAPACITY, filtered.getReceiveQueueDropped());
+        for (int i = count - CAPACITY; i < count; i++)
+        {
+            filtered.receive(p);
+            assertEquals(1, p.getLength());
+            assertEquals(i, p.getData()[0]);
+        }
+        assertEquals(0, filtered.getReceiveQueueDepth());
+    }
+
+    /**
+     * Makes sure that a <tt>FirstByteRangeFilter</tt> is only asked about the
+     * packets in its ranges and that other filters are asked about every
+     * packet.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testFirstByteDispatch()
+        throws Exception
+    {
+        final int[] rtpAccepts = new int[1];
+        MultiplexedDatagramSocket rtp
+            = multiplexing.getSocket(
+                    new FirstByteRangeFilter()
+                    {
+                        public Set<FirstByteRange> getFirstByteRanges()
+                        {
+                            return EnumSet.of(FirstByteRange.RTP);
+                        }
+
+                        public boolean accept(DatagramPacket p)
+                        {
+                            rtpAccepts[0]++;
+                            return true;
+                        }
+                    });
+        MultiplexedDatagramSocket dtls
+            = multiplexing.getSocket(
+                    new DatagramPacketFilter()
+                    {
+                        public boolean accept(DatagramPacket p)
+                        {
+                            return p.getData()[p.getOffset()] == 20;
+                        }
+                    });
+
+        rtp.setSoTimeout(2000);
+        dtls.setSoTimeout(2000);
+
+        send(130);
+        send(20);
+        send(1);
+
+        DatagramPacket p = new DatagramPacket(new byte[1500], 1500);
+
+        multiplexing.receive(p);
+        assertEquals(1, p.getData()[0]);
+        rtp.receive(p);
+        assertEquals(130, p.getData()[0] & 0xFF);
+        dtls.receive(p);
+        assertEquals(20, p.getData()[0]);
+        assertEquals(1, rtpAccepts[0]);
+
+        rtp.close();
+        send(131);
+        multiplexing.receive(p);
+        assertEquals(131, p.getData()[0] & 0xFF);
+        assertEquals(1, rtpAccepts[0]);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+import java.net.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the demultiplexing of the packets received by a
+ * <tt>MultiplexingSocket</tt>.
+ *
+ * @author agent
+ */
+public class MultiplexingSocketTest
+    extends TestCase
+{
+    /**
+     * The length of the packets that we send to the <tt>InputStream</tt> of
+     * the socket.
+     */
+    private static final int PACKET_LENGTH = 1500;
+
+    /**
+     * The number of packets of {@link #PACKET_LENGTH} bytes that fit in the
+     * <tt>InputStream</tt> of the socket, which keeps two bytes per packet
+     * for its length.
+     */
+    private static final int PACKETS_THAT_FIT
+        = TCPInputStream.DEFAULT_CAPACITY / (PACKET_LENGTH + 2);
+
+    /**
+     * The socket that the peer writes to.
+     */
+    private Socket peer;
+
+    /**
+     * The socket under test.
+     */
+    private MultiplexingSocket socket;
+
+    /**
+     * Connects {@link #socket} and {@link #peer} over the loopback
+     * interface.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        ServerSocket server
+            = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+
+        try
+        {
+            socket
+                = new MultiplexingSocket(
+                        new Socket(
+                                server.getInetAddress(),
+                                server.getLocalPort()));
+            peer = server.accept();
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+
+    /**
+     * Closes the sockets.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        socket.close();
+        peer.close();
+
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure that a filtered socket keeps receiving when the application
+     * does not read from the <tt>InputStream</tt> of the multiplexing socket
+     * and that the packets which do not fit in the stream are dropped whole.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testFullStreamDoesNotBlockFilteredSocket()
+        throws Exception
+    {
+        final MultiplexedSocket stunSocket
+            = socket.getSocket(new StunDatagramPacketFilter());
+        final DatagramPacket stunPacket
+            = new DatagramPacket(new byte[1500], 1500);
+        Thread receiver
+            = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        stunSocket.receive(stunPacket);
+                    }
+                    catch (Exception e)
+                    {
+                        stunPacket.setLength(0);
+                    }
+                }
+            };
+
+        receiver.setDaemon(true);
+        receiver.start();
+
+        TCPFrameWriter writer = new TCPFrameWriter(peer.getOutputStream());
+        byte[] packet = new byte[PACKET_LENGTH];
+
+        //packets which are not STUN, three more than fit.
+        for (int i = 0; i < PACKETS_THAT_FIT + 3; i++)
+        {
+            packet[0] = (byte) (0x80 | (i & 0x3F));
+            writer.writeFrame(packet, 0, packet.length);
+        }
+
+        byte[] bindingRequest
+            = new byte[]
+            {
+                0x00, 0x01, 0x00, 0x00,
+                0x21, 0x12, (byte) 0xA4, 0x42,
+                0x01, 0x02, 0x03, 0x04,
+                0x05, 0x06, 0x07, 0x08,
+                0x09, 0x0a, 0x0b, 0x0c
+            };
+
+        writer.writeFrame(bindingRequest, 0, bindingRequest.length);
+
+        receiver.join(5000);
+        assertFalse("The filtered socket was blocked", receiver.isAlive());
+        assertEquals(bindingRequest.length, stunPacket.getLength());
+        assertEquals(0x0c, stunPacket.getData()[19]);
+
+        TCPInputStream inputStream
+            = (TCPInputStream) socket.getInputStream();
+        byte[] b = new byte[2 * PACKET_LENGTH];
+
+        assertEquals(3, inputStream.getDroppedPacketCount());
+        for (int i = 0; i < PACKETS_THAT_FIT; i++)
+        {
+            assertEquals(PACKET_LENGTH, inputStream.read(b));
+            assertEquals((byte) (0x80 | (i & 0x3F)), b[0]);
+        }
+        assertEquals(0, inputStream.available());
+    }
+}
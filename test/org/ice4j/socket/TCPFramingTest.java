@@ -0,0 +1,208 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+import java.io.*;
+import java.net.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the RFC 4571 framing of ICE-TCP by <tt>TCPFrameWriter</tt>,
+ * <tt>TCPFrameReader</tt> and <tt>DelegatingSocket.receiveFromNetwork</tt>.
+ *
+ * @author agent
+ */
+public class TCPFramingTest extends TestCase
+{
+    /**
+     * The address set on received packets.
+     */
+    private static final InetAddress ADDRESS;
+
+    static
+    {
+        try
+        {
+            ADDRESS = InetAddress.getByName("127.0.0.1");
+        }
+        catch (UnknownHostException uhe)
+        {
+            throw new ExceptionInInitializerError(uhe);
+        }
+    }
+
+    /**
+     * An <tt>InputStream</tt> which returns at most one byte per read, the
+     * worst a TCP stream can do.
+     */
+    private static class TrickleInputStream
+        extends FilterInputStream
+    {
+        /**
+         * Creates a stream which trickles the bytes of <tt>bytes</tt>.
+         *
+         * @param bytes the bytes of the stream.
+         */
+        TrickleInputStream(byte[] bytes)
+        {
+            super(new ByteArrayInputStream(bytes));
+        }
+
+        /**
+         * Reads at most one byte.
+         *
+         * @param b the array to read into.
+         * @param off the offset to read to.
+         * @param len ignored beyond being positive.
+         *
+         * @return the number of bytes read or -1 at the end of the stream.
+         *
+         * @throws IOException never.
+         */
+        @Override
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    /**
+     * Writes frames with the payloads <tt>payloads</tt>.
+     *
+     * @param payloads the payloads of the frames.
+     *
+     * @return the bytes of the frames.
+     *
+     * @throws IOException if something goes wrong.
+     */
+    private static byte[] frame(byte[]... payloads)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TCPFrameWriter writer = new TCPFrameWriter(out);
+
+        for (byte[] payload : payloads)
+            writer.writeFrame(payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Makes sure that frames are written as a length and a payload.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testWriteFrame()
+        throws Exception
+    {
+        byte[] bytes = frame(new byte[] { 7, 8, 9 }, new byte[300]);
+
+        assertEquals(2 + 3 + 2 + 300, bytes.length);
+        assertEquals(0, bytes[0]);
+        assertEquals(3, bytes[1]);
+        assertEquals(7, bytes[2]);
+        assertEquals(1, bytes[5]);
+        assertEquals(44, bytes[6]);
+
+        try
+        {
+            frame(new byte[TCPFrameReader.MAX_FRAME_LENGTH + 1]);
+            fail("A frame too long for its length field was written.");
+        }
+        catch (IOException ioe)
+        {
+        }
+    }
+
+    /**
+     * Makes sure that several frames in one read and frames split across
+     * many reads come out whole, at the offset of the packet and with their
+     * own lengths.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testReadFrames()
+        throws Exception
+    {
+        byte[] large = new byte[5000];
+
+        for (int i = 0; i < large.length; i++)
+            large[i] = (byte) i;
+
+        byte[] bytes = frame(new byte[] { 1 }, new byte[] { 2, 3 }, large);
+        InputStream[] streams
+            = new InputStream[]
+            {
+                new ByteArrayInputStream(bytes),
+                new TrickleInputStream(bytes)
+            };
+
+        for (InputStream stream : streams)
+        {
+            TCPFrameReader reader = new TCPFrameReader(stream, 16);
+            DatagramPacket p = new DatagramPacket(new byte[6000], 10, 5990);
+
+            reader.readFrame(p, ADDRESS, 5000);
+            assertEquals(1, p.getLength());
+            assertEquals(1, p.getData()[10]);
+            assertEquals(ADDRESS, p.getAddress());
+            assertEquals(5000, p.getPort());
+
+            reader.readFrame(p, ADDRESS, 5000);
+            assertEquals(2, p.getLength());
+            assertEquals(3, p.getData()[11]);
+
+            reader.readFrame(p, ADDRESS, 5000);
+            assertEquals(large.length, p.getLength());
+            for (int i = 0; i < large.length; i++)
+                assertEquals(large[i], p.getData()[10 + i]);
+
+            try
+            {
+                reader.readFrame(p, ADDRESS, 5000);
+                fail("A frame was read past the end of the stream.");
+            }
+            catch (SocketException se)
+            {
+            }
+        }
+    }
+
+    /**
+     * Makes sure that frames which do not fit in the packet are truncated
+     * without losing the frames that follow them.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testTruncation()
+        throws Exception
+    {
+        byte[] bytes
+            = frame(new byte[] { 1, 2, 3, 4, 5 }, new byte[] { 6 });
+        DatagramPacket p = new DatagramPacket(new byte[3], 3);
+        TCPFrameReader reader
+            = new TCPFrameReader(new ByteArrayInputStream(bytes));
+
+        reader.readFrame(p, ADDRESS, 5000);
+        assertEquals(3, p.getLength());
+        assertEquals(3, p.getData()[2]);
+        reader.readFrame(p, ADDRESS, 5000);
+        assertEquals(1, p.getLength());
+        assertEquals(6, p.getData()[0]);
+
+        InputStream stream = new TrickleInputStream(bytes);
+
+        p = new DatagramPacket(new byte[4], 1, 3);
+        DelegatingSocket.receiveFromNetwork(p, stream, ADDRESS, 5000);
+        assertEquals(3, p.getLength());
+        assertEquals(3, p.getData()[3]);
+        DelegatingSocket.receiveFromNetwork(p, stream, ADDRESS, 5000);
+        assertEquals(1, p.getLength());
+        assertEquals(6, p.getData()[1]);
+    }
+}
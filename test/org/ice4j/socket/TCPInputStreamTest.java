@@ -0,0 +1,136 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.socket;
+
+import junit.framework.*;
+
+/**
+ * Tests the bounded ring of packets of <tt>TCPInputStream</tt>s.
+ *
+ * @author agent
+ */
+public class TCPInputStreamTest extends TestCase
+{
+    /**
+     * Makes sure that packets come out in order, across the end of the ring
+     * as well, that a read never returns bytes of two packets and that
+     * <tt>available()</tt> follows them.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testPacketBoundaries()
+        throws Exception
+    {
+        TCPInputStream stream = new TCPInputStream(16);
+        byte[] b = new byte[8];
+
+        assertEquals(0, stream.available());
+        stream.addPacket(new byte[] { 1, 2, 3, 4, 5 });
+        stream.addPacket(new byte[] { 0, 6, 7, 0 }, 1, 2);
+        assertEquals(7, stream.available());
+
+        assertEquals(5, stream.read(b, 0, 8));
+        assertEquals(5, b[4]);
+        assertEquals(2, stream.available());
+        assertEquals(6, stream.read());
+        assertEquals(1, stream.read(b));
+        assertEquals(7, b[0]);
+        assertEquals(0, stream.available());
+
+        //the third packet wraps around the end of the ring
+        stream.addPacket(new byte[] { 1, 2, 3, 4, 5 });
+        stream.addPacket(new byte[] { 6, 7, 8, 9, 10 });
+        assertEquals(5, stream.read(b));
+        stream.addPacket(new byte[] { 11, 12, 13, 14, 15, 16 });
+        assertEquals(11, stream.available());
+        assertEquals(5, stream.read(b));
+        assertEquals(10, b[4]);
+        assertEquals(2, stream.skip(2));
+        assertEquals(4, stream.read(b));
+        assertEquals(13, b[0]);
+        assertEquals(16, b[3]);
+        assertEquals(0, stream.available());
+
+        stream.addPacket(new byte[] { (byte) 200 });
+        assertEquals(200, stream.read());
+    }
+
+    /**
+     * Makes sure that offering a packet to a full stream drops all of it and
+     * that adding it blocks until the reader has made room.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testBackpressure()
+        throws Exception
+    {
+        final TCPInputStream stream = new TCPInputStream(8);
+
+        assertTrue(stream.offerPacket(new byte[6], 0, 6));
+        assertFalse(stream.offerPacket(new byte[1], 0, 1));
+        assertEquals(1, stream.getDroppedPacketCount());
+
+        Thread writer
+            = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    stream.addPacket(new byte[] { 1, 2, 3 });
+                }
+            };
+
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive());
+
+        byte[] b = new byte[4];
+
+        assertEquals(4, stream.read(b));
+        writer.join(2000);
+        assertFalse(writer.isAlive());
+        assertEquals(5, stream.available());
+        assertEquals(2, stream.read(b));
+        assertEquals(3, stream.read(b));
+        assertEquals(3, b[2]);
+    }
+
+    /**
+     * Makes sure that closing a stream wakes its writers and ends it for its
+     * readers.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testClose()
+        throws Exception
+    {
+        final TCPInputStream stream = new TCPInputStream(4);
+
+        stream.addPacket(new byte[2]);
+
+        Thread writer
+            = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    stream.addPacket(new byte[2]);
+                }
+            };
+
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive());
+
+        stream.close();
+        writer.join(2000);
+        assertFalse(writer.isAlive());
+        assertEquals(0, stream.available());
+        assertEquals(-1, stream.read());
+        assertEquals(-1, stream.read(new byte[2], 0, 2));
+    }
+}
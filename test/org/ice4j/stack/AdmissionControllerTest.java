@@ -0,0 +1,207 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+
+/**
+ * Tests the per-source rate limits and the cap on live server transactions
+ * that a <tt>StunStack</tt> applies to new incoming requests.
+ *
+ * @author agent
+ */
+public class AdmissionControllerTest extends TestCase
+{
+    /**
+     * The properties that the tests change.
+     */
+    private static final String[] PROPERTIES
+        = new String[]
+        {
+            StackProperties.REQUEST_RATE_LIMIT,
+            StackProperties.REQUEST_BURST_SIZE,
+            StackProperties.MAX_SERVER_TRANSACTIONS
+        };
+
+    /**
+     * The address requests are received on.
+     */
+    private static final TransportAddress LOCAL_ADDRESS
+        = new TransportAddress("127.0.0.1", 3478, Transport.UDP);
+
+    /**
+     * The address most requests come from.
+     */
+    private static final TransportAddress REMOTE_ADDRESS
+        = new TransportAddress("127.0.0.1", 5000, Transport.UDP);
+
+    /**
+     * The values of {@link #PROPERTIES} before the test.
+     */
+    private final String[] oldValues = new String[PROPERTIES.length];
+
+    /**
+     * The stack we are testing.
+     */
+    private StunStack stunStack;
+
+    /**
+     * Saves the properties, limits sources to 1 request per second with
+     * bursts of 3 and the stack to 4 live server transactions and creates the
+     * stack.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        for (int i = 0; i < PROPERTIES.length; i++)
+            oldValues[i] = System.getProperty(PROPERTIES[i]);
+        System.setProperty(StackProperties.REQUEST_RATE_LIMIT, "1");
+        System.setProperty(StackProperties.REQUEST_BURST_SIZE, "3");
+        System.setProperty(StackProperties.MAX_SERVER_TRANSACTIONS, "4");
+        stunStack = new StunStack();
+    }
+
+    /**
+     * Shuts the stack down and restores the properties.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void tearDown()
+        throws Exception
+    {
+        stunStack.shutDown();
+        for (int i = 0; i < PROPERTIES.length; i++)
+        {
+            if (oldValues[i] == null)
+                System.clearProperty(PROPERTIES[i]);
+            else
+                System.setProperty(PROPERTIES[i], oldValues[i]);
+        }
+
+        super.tearDown();
+    }
+
+    /**
+     * Hands a new binding request from <tt>source</tt> to the stack.
+     *
+     * @param source the address the request comes from.
+     *
+     * @return the ID of the transaction of the request.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    private TransactionID receiveRequest(TransportAddress source)
+        throws Exception
+    {
+        Request request = MessageFactory.createBindingRequest();
+        TransactionID tid = TransactionID.createNewTransactionID();
+
+        request.setTransactionID(tid.getBytes());
+
+        byte[] bytes = request.encode(stunStack);
+        RawMessage rawMessage
+            = new RawMessage(bytes, bytes.length, source, LOCAL_ADDRESS);
+
+        stunStack.handleMessageEvent(
+                new StunMessageEvent(
+                        stunStack,
+                        rawMessage,
+                        Message.decode(bytes, (char) 0, (char) bytes.length)));
+        return tid;
+    }
+
+    /**
+     * Makes sure that a source only gets transactions for its burst and that
+     * other sources are not affected.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testRateLimit()
+        throws Exception
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            TransactionID tid = receiveRequest(REMOTE_ADDRESS);
+
+            assertNotNull(stunStack.getServerTransaction(tid.getBytes()));
+        }
+
+        TransactionID rejected = receiveRequest(REMOTE_ADDRESS);
+
+        assertNull(stunStack.getServerTransaction(rejected.getBytes()));
+
+        TransactionID other
+            = receiveRequest(
+                    new TransportAddress("127.0.0.2", 5000, Transport.UDP));
+
+        assertNotNull(stunStack.getServerTransaction(other.getBytes()));
+
+        AdmissionStatistics statistics = stunStack.getAdmissionStatistics();
+
+        assertEquals(1, statistics.getRateLimited());
+        assertEquals(0, statistics.getEvicted());
+        assertEquals(4, statistics.getServerTransactions());
+    }
+
+    /**
+     * Makes sure that the least recently used transaction is evicted when
+     * there are too many and that retransmissions count as a use.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testEviction()
+        throws Exception
+    {
+        TransactionID[] tids = new TransactionID[4];
+
+        for (int i = 0; i < tids.length; i++)
+        {
+            tids[i]
+                = receiveRequest(
+                        new TransportAddress(
+                                "127.0.0." + (i + 1), 5000, Transport.UDP));
+        }
+
+        //a retransmission of the first request makes the second one the
+        //least recently used.
+        Request retransmission = MessageFactory.createBindingRequest();
+
+        retransmission.setTransactionID(tids[0].getBytes());
+
+        byte[] bytes = retransmission.encode(stunStack);
+
+        stunStack.handleMessageEvent(
+                new StunMessageEvent(
+                        stunStack,
+                        new RawMessage(
+                                bytes, bytes.length,
+                                new TransportAddress(
+                                        "127.0.0.1", 5000, Transport.UDP),
+                                LOCAL_ADDRESS),
+                        Message.decode(bytes, (char) 0, (char) bytes.length)));
+
+        TransactionID last
+            = receiveRequest(
+                    new TransportAddress("127.0.0.5", 5000, Transport.UDP));
+
+        assertNotNull(stunStack.getServerTransaction(tids[0].getBytes()));
+        assertNull(stunStack.getServerTransaction(tids[1].getBytes()));
+        assertNotNull(stunStack.getServerTransaction(last.getBytes()));
+
+        AdmissionStatistics statistics = stunStack.getAdmissionStatistics();
+
+        assertEquals(1, statistics.getEvicted());
+        assertEquals(4, statistics.getServerTransactions());
+    }
+}
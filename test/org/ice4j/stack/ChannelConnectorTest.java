@@ -0,0 +1,205 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+import org.ice4j.socket.*;
+
+/**
+ * Runs a STUN transaction between two sockets that are backed by
+ * <tt>DatagramChannel</tt>s and read through selectors.
+ *
+ * @author agent
+ */
+public class ChannelConnectorTest extends TestCase
+{
+    /**
+     * The stack we are testing.
+     */
+    private StunStack stunStack;
+
+    /**
+     * The channel of the client socket.
+     */
+    private DatagramChannel clientChannel;
+
+    /**
+     * The channel of the server socket.
+     */
+    private DatagramChannel serverChannel;
+
+    /**
+     * Creates a stack that reads channel backed sockets through a selector.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        stunStack = new StunStack();
+        stunStack.setSelectorThreadCount(1);
+
+        clientChannel = DatagramChannel.open();
+        clientChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        serverChannel = DatagramChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    /**
+     * Shuts down the stack and closes the channels.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void tearDown()
+        throws Exception
+    {
+        stunStack.shutDown();
+        clientChannel.close();
+        serverChannel.close();
+        super.tearDown();
+    }
+
+    /**
+     * Sends a binding request from one channel to the other and makes sure
+     * that the response makes it back.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testTransactionThroughSelector()
+        throws Exception
+    {
+        IceSocketWrapper clientSock
+            = new IceUdpSocketWrapper(clientChannel.socket());
+        IceSocketWrapper serverSock
+            = new IceUdpSocketWrapper(serverChannel.socket());
+        final TransportAddress clientAddress
+            = new TransportAddress(
+                    "127.0.0.1", clientSock.getLocalPort(), Transport.UDP);
+        final TransportAddress serverAddress
+            = new TransportAddress(
+                    "127.0.0.1", serverSock.getLocalPort(), Transport.UDP);
+
+        stunStack.addSocket(clientSock);
+        stunStack.addSocket(serverSock);
+
+        stunStack.addRequestListener(serverAddress, new RequestListener()
+        {
+            public void processRequest(StunMessageEvent evt)
+                throws IllegalArgumentException
+            {
+                try
+                {
+                    stunStack.sendResponse(
+                            evt.getMessage().getTransactionID(),
+                            MessageFactory.createBindingResponse(
+                                    (Request) evt.getMessage(),
+                                    evt.getRemoteAddress()),
+                            serverAddress,
+                            evt.getRemoteAddress());
+                }
+                catch (Exception ex)
+                {
+                    throw new IllegalArgumentException(ex.getMessage());
+                }
+            }
+        });
+
+        final Object[] result = new Object[1];
+        ResponseCollector collector = new ResponseCollector()
+        {
+            public void processResponse(StunResponseEvent response)
+            {
+                synchronized (result)
+                {
+                    result[0] = response.getResponse();
+                    result.notifyAll();
+                }
+            }
+
+            public void processTimeout(StunTimeoutEvent event)
+            {
+                synchronized (result)
+                {
+                    result[0] = event;
+                    result.notifyAll();
+                }
+            }
+        };
+
+        stunStack.sendRequest(
+                MessageFactory.createBindingRequest(),
+                serverAddress,
+                clientAddress,
+                collector);
+
+        synchronized (result)
+        {
+            if (result[0] == null)
+                result.wait(5000);
+        }
+
+        assertTrue("no response received: " + result[0],
+                   result[0] instanceof Response);
+        assertFalse(clientChannel.isBlocking());
+    }
+
+    /**
+     * Sends a burst of datagrams to a channel and makes sure that they are
+     * all counted in the receive batch statistics of the stack.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testReceiveBatches()
+        throws Exception
+    {
+        IceSocketWrapper serverSock
+            = new IceUdpSocketWrapper(serverChannel.socket());
+        InetSocketAddress serverAddress
+            = new InetSocketAddress(
+                    "127.0.0.1", serverSock.getLocalPort());
+        int count = 32;
+
+        //fill the socket buffer before the channel is registered so that the
+        //selector finds more than one datagram waiting.
+        for (int i = 0; i < count; i++)
+            clientChannel.send(ByteBuffer.wrap(new byte[20]), serverAddress);
+
+        stunStack.addSocket(serverSock);
+
+        ReceiveBatchStatistics statistics = null;
+
+        for (int i = 0; i < 50; i++)
+        {
+            statistics = stunStack.getReceiveBatchStatistics();
+            if (statistics.getMessages() >= count)
+                break;
+            Thread.sleep(100);
+        }
+
+        assertEquals(count, statistics.getMessages());
+        assertTrue(statistics.toString(), statistics.getBatches() < count);
+
+        long batches = 0;
+
+        for (long b : statistics.getHistogram())
+            batches += b;
+        assertEquals(statistics.getBatches(), batches);
+        assertEquals(0, ReceiveBatchStatistics.getBucket(1));
+        assertEquals(1, ReceiveBatchStatistics.getBucket(3));
+        assertEquals(6, ReceiveBatchStatistics.getBucket(64));
+        assertEquals(7, ReceiveBatchStatistics.getBucket(100000));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.util.*;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+
+/**
+ * Tests the bounded <tt>MessageQueue</tt> and its overflow policies.
+ *
+ * @author agent
+ */
+public class MessageQueueTest extends TestCase
+{
+    /**
+     * The address we pretend messages are coming from and arriving on.
+     */
+    private final TransportAddress address
+        = new TransportAddress("127.0.0.1", 5000, Transport.UDP);
+
+    /**
+     * Creates a raw message with the specified STUN message type.
+     *
+     * @param type the STUN message type.
+     *
+     * @return a raw message of the specified type.
+     */
+    private RawMessage createMessage(int type)
+    {
+        byte[] bytes = new byte[20];
+
+        bytes[0] = (byte) (type >> 8);
+        bytes[1] = (byte) type;
+        return new RawMessage(bytes, bytes.length, address, address);
+    }
+
+    /**
+     * Makes sure that messages come out in order and that new messages are
+     * dropped and counted when the queue is full.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testDropNewest()
+        throws Exception
+    {
+        MessageQueue queue
+            = new MessageQueue(4, MessageQueue.OverflowPolicy.DROP_NEWEST);
+        RawMessage[] messages = new RawMessage[5];
+
+        for (int i = 0; i < messages.length; i++)
+        {
+            messages[i] = createMessage(0x0001);
+            assertEquals(i < 4, queue.add(messages[i]));
+        }
+        assertEquals(4, queue.getSize());
+
+        for (int i = 0; i < 4; i++)
+            assertSame(messages[i], queue.remove());
+        assertNull(queue.poll());
+
+        MessageQueueStatistics stats = queue.getStatistics();
+
+        assertEquals(4, stats.getEnqueued());
+        assertEquals(1, stats.getDroppedNewest());
+        assertEquals(4, stats.getMaxDepth());
+    }
+
+    /**
+     * Makes sure that responses make room for themselves and that other
+     * messages are dropped with <tt>DROP_NON_RESPONSES_FIRST</tt>.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testDropNonResponsesFirst()
+        throws Exception
+    {
+        MessageQueue queue
+            = new MessageQueue(
+                    2, MessageQueue.OverflowPolicy.DROP_NON_RESPONSES_FIRST);
+        RawMessage request1 = createMessage(0x0001);
+        RawMessage request2 = createMessage(0x0001);
+        RawMessage request3 = createMessage(0x0001);
+        RawMessage response = createMessage(0x0101);
+
+        assertTrue(queue.add(request1));
+        assertTrue(queue.add(request2));
+        assertFalse(queue.add(request3));
+        assertTrue(queue.add(response));
+
+        assertSame(request2, queue.remove());
+        assertSame(response, queue.remove());
+
+        MessageQueueStatistics stats = queue.getStatistics();
+
+        assertEquals(1, stats.getDroppedNonResponses());
+        assertEquals(1, stats.getDroppedOldest());
+    }
+
+    /**
+     * Makes sure that a response arriving at a full queue with
+     * <tt>DROP_NON_RESPONSES_FIRST</tt> evicts a queued request rather than
+     * an older response, and the oldest response only if there is nothing
+     * else to evict.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testResponsesEvictRequestsFirst()
+        throws Exception
+    {
+        MessageQueue queue
+            = new MessageQueue(
+                    4, MessageQueue.OverflowPolicy.DROP_NON_RESPONSES_FIRST);
+        RawMessage response1 = createMessage(0x0101);
+        RawMessage request1 = createMessage(0x0001);
+        RawMessage response2 = createMessage(0x0111);
+        RawMessage request2 = createMessage(0x0001);
+        RawMessage response3 = createMessage(0x0101);
+        RawMessage response4 = createMessage(0x0101);
+
+        assertTrue(queue.add(response1));
+        assertTrue(queue.add(request1));
+        assertTrue(queue.add(response2));
+        assertTrue(queue.add(request2));
+
+        //request1 is the oldest message that is not a response.
+        assertTrue(queue.add(response3));
+        assertEquals(1, queue.getStatistics().getDroppedOldest());
+
+        //request2 is the only message left that is not a response.
+        assertTrue(queue.add(response4));
+
+        List<RawMessage> removed = new ArrayList<RawMessage>();
+
+        while (!queue.isEmpty())
+            removed.add(queue.remove());
+
+        assertEquals(4, removed.size());
+        assertTrue(removed.contains(response1));
+        assertTrue(removed.contains(response2));
+        assertTrue(removed.contains(response3));
+        assertTrue(removed.contains(response4));
+        assertTrue(removed.indexOf(response1) < removed.indexOf(response3));
+        assertTrue(removed.indexOf(response3) < removed.indexOf(response4));
+
+        //only responses are left, so the oldest one has to go.
+        for (RawMessage response : removed)
+            assertTrue(queue.add(response));
+
+        RawMessage response5 = createMessage(0x0101);
+
+        assertTrue(queue.add(response5));
+        assertSame(removed.get(1), queue.remove());
+
+        MessageQueueStatistics stats = queue.getStatistics();
+
+        assertEquals(0, stats.getDroppedNonResponses());
+        assertEquals(3, stats.getDroppedOldest());
+    }
+
+    /**
+     * Makes sure that a consumer blocked on an empty queue is woken up when a
+     * message is added.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testBlockingRemove()
+        throws Exception
+    {
+        final MessageQueue queue
+            = new MessageQueue(8, MessageQueue.OverflowPolicy.DROP_OLDEST);
+        final RawMessage[] removed = new RawMessage[1];
+        Thread consumer = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    removed[0] = queue.remove();
+                }
+                catch (InterruptedException ex)
+                {
+                }
+            }
+        };
+
+        consumer.start();
+        Thread.sleep(100);
+
+        RawMessage message = createMessage(0x0011);
+
+        queue.add(message);
+        consumer.join(1000);
+        assertSame(message, removed[0]);
+    }
+}
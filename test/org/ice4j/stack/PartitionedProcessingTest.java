@@ -0,0 +1,225 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.net.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+import org.ice4j.socket.*;
+
+/**
+ * Tests the routing of incoming messages to partitions when a
+ * <tt>StunStack</tt> runs in partitioned mode.
+ *
+ * @author agent
+ */
+public class PartitionedProcessingTest extends TestCase
+{
+    /**
+     * The stack we are testing.
+     */
+    private StunStack stunStack;
+
+    /**
+     * The local address that messages are received on.
+     */
+    private TransportAddress localAddress;
+
+    /**
+     * Creates a stack in partitioned mode.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        stunStack = new StunStack();
+        stunStack.setPartitionedProcessing(true);
+        stunStack.setThreadPoolSize(4);
+        localAddress = new TransportAddress("127.0.0.1", 5000, Transport.UDP);
+    }
+
+    /**
+     * Shuts down the stack.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void tearDown()
+        throws Exception
+    {
+        stunStack.shutDown();
+        super.tearDown();
+    }
+
+    /**
+     * Creates a message received on {@link #localAddress} from 127.0.0.1 at
+     * <tt>port</tt>.
+     *
+     * @param port the port of the remote address.
+     *
+     * @return the message.
+     */
+    private RawMessage createMessage(int port)
+    {
+        return new RawMessage(
+                new byte[20],
+                20,
+                new TransportAddress("127.0.0.1", port, Transport.UDP),
+                localAddress);
+    }
+
+    /**
+     * Makes sure that messages of the same flow always end up in the same
+     * partition and that different flows are spread over the partitions.
+     */
+    public void testRouting()
+    {
+        NetAccessManager netAccessManager = stunStack.getNetAccessManager();
+        Set<MessageQueue> queues = new HashSet<MessageQueue>();
+
+        for (int port = 6000; port < 6064; port++)
+        {
+            MessageQueue queue
+                = netAccessManager.getMessageQueue(createMessage(port));
+
+            assertSame(queue,
+                       netAccessManager.getMessageQueue(createMessage(port)));
+            assertNotSame(netAccessManager.getMessageQueue(), queue);
+            queues.add(queue);
+        }
+
+        assertEquals(4, queues.size());
+
+        stunStack.setPartitionedProcessing(false);
+        assertSame(netAccessManager.getMessageQueue(),
+                   netAccessManager.getMessageQueue(createMessage(6000)));
+    }
+
+    /**
+     * Makes sure that the statistics of all partitions are added up.
+     */
+    public void testStatistics()
+    {
+        NetAccessManager netAccessManager = stunStack.getNetAccessManager();
+
+        for (int port = 6000; port < 6064; port++)
+        {
+            RawMessage rawMessage = createMessage(port);
+
+            netAccessManager.getMessageQueue(rawMessage).add(rawMessage);
+        }
+
+        MessageQueueStatistics statistics
+            = stunStack.getMessageQueueStatistics();
+
+        assertEquals(64, statistics.getEnqueued());
+        assertEquals(4 * MessageQueue.DEFAULT_CAPACITY,
+                     statistics.getCapacity());
+    }
+
+    /**
+     * Runs a binding transaction through a stack in partitioned mode.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testTransaction()
+        throws Exception
+    {
+        IceSocketWrapper clientSock
+            = new IceUdpSocketWrapper(
+                    new DatagramSocket(
+                            new InetSocketAddress("127.0.0.1", 0)));
+        IceSocketWrapper serverSock
+            = new IceUdpSocketWrapper(
+                    new DatagramSocket(
+                            new InetSocketAddress("127.0.0.1", 0)));
+        TransportAddress clientAddress
+            = new TransportAddress(
+                    "127.0.0.1", clientSock.getLocalPort(), Transport.UDP);
+        final TransportAddress serverAddress
+            = new TransportAddress(
+                    "127.0.0.1", serverSock.getLocalPort(), Transport.UDP);
+
+        stunStack.addSocket(clientSock);
+        stunStack.addSocket(serverSock);
+
+        stunStack.addRequestListener(serverAddress, new RequestListener()
+        {
+            public void processRequest(StunMessageEvent evt)
+                throws IllegalArgumentException
+            {
+                try
+                {
+                    stunStack.sendResponse(
+                            evt.getMessage().getTransactionID(),
+                            MessageFactory.createBindingResponse(
+                                    (Request) evt.getMessage(),
+                                    evt.getRemoteAddress()),
+                            serverAddress,
+                            evt.getRemoteAddress());
+                }
+                catch (Exception ex)
+                {
+                    throw new IllegalArgumentException(ex.getMessage());
+                }
+            }
+        });
+
+        final Object[] result = new Object[1];
+        ResponseCollector collector = new ResponseCollector()
+        {
+            public void processResponse(StunResponseEvent response)
+            {
+                synchronized (result)
+                {
+                    result[0] = response.getResponse();
+                    result.notifyAll();
+                }
+            }
+
+            public void processTimeout(StunTimeoutEvent event)
+            {
+                synchronized (result)
+                {
+                    result[0] = event;
+                    result.notifyAll();
+                }
+            }
+        };
+
+        try
+        {
+            stunStack.sendRequest(
+                    MessageFactory.createBindingRequest(),
+                    serverAddress,
+                    clientAddress,
+                    collector);
+
+            synchronized (result)
+            {
+                if (result[0] == null)
+                    result.wait(5000);
+            }
+
+            assertTrue("no response received: " + result[0],
+                       result[0] instanceof Response);
+        }
+        finally
+        {
+            stunStack.removeSocket(clientAddress);
+            stunStack.removeSocket(serverAddress);
+            clientSock.close();
+            serverSock.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+
+/**
+ * Tests the reuse of receive arrays by <tt>ReceiveBufferPool</tt> and the
+ * reference counting of the <tt>RawMessage</tt>s that borrow them.
+ *
+ * @author agent
+ */
+public class ReceiveBufferPoolTest extends TestCase
+{
+    /**
+     * The address the test messages are received on.
+     */
+    private final TransportAddress localAddress
+        = new TransportAddress("127.0.0.1", 5000, Transport.UDP);
+
+    /**
+     * The address the test messages are received from.
+     */
+    private final TransportAddress remoteAddress
+        = new TransportAddress("127.0.0.1", 6000, Transport.UDP);
+
+    /**
+     * Makes sure that released arrays are handed out again and that the pool
+     * doesn't grow past its size.
+     */
+    public void testReuse()
+    {
+        ReceiveBufferPool pool = new ReceiveBufferPool(1500, 2);
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+        byte[] third = pool.acquire();
+
+        assertEquals(3, pool.getAllocated());
+        assertEquals(1500, first.length);
+
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        assertEquals(2, pool.getAvailable());
+
+        pool.release(new byte[10]);
+        assertEquals(2, pool.getAvailable());
+
+        assertSame(second, pool.acquire());
+        assertSame(first, pool.acquire());
+        assertEquals(3, pool.getAllocated());
+    }
+
+    /**
+     * Makes sure that a message only returns its array to the pool once all
+     * of its references have been released.
+     */
+    public void testReferenceCounting()
+    {
+        ReceiveBufferPool pool = new ReceiveBufferPool(1500, 4);
+        byte[] bytes = pool.acquire();
+        RawMessage rawMessage
+            = new RawMessage(pool, bytes, 20, remoteAddress, localAddress);
+
+        assertSame(rawMessage, rawMessage.retain());
+        rawMessage.release();
+        assertEquals(0, pool.getAvailable());
+        assertSame(bytes, rawMessage.getBytes());
+
+        rawMessage.release();
+        assertEquals(1, pool.getAvailable());
+        assertNull(rawMessage.getBytes());
+        assertSame(remoteAddress, rawMessage.getRemoteAddress());
+
+        try
+        {
+            rawMessage.retain();
+            fail("Retained a released message");
+        }
+        catch (IllegalStateException ex)
+        {
+            //expected
+        }
+    }
+
+    /**
+     * Makes sure that messages dropped by a full queue are released.
+     */
+    public void testDroppedMessagesAreReleased()
+    {
+        ReceiveBufferPool pool = new ReceiveBufferPool(1500, 4);
+        MessageQueue queue
+            = new MessageQueue(2, MessageQueue.OverflowPolicy.DROP_NEWEST);
+
+        assertTrue(queue.add(
+                new RawMessage(
+                        pool, pool.acquire(), 20, remoteAddress,
+                        localAddress)));
+        assertTrue(queue.add(
+                new RawMessage(
+                        pool, pool.acquire(), 20, remoteAddress,
+                        localAddress)));
+        assertFalse(queue.add(
+                new RawMessage(
+                        pool, pool.acquire(), 20, remoteAddress,
+                        localAddress)));
+        assertEquals(1, pool.getAvailable());
+
+        queue.poll().release();
+        assertEquals(2, pool.getAvailable());
+        assertEquals(3, pool.getAllocated());
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.net.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+import org.ice4j.socket.*;
+
+/**
+ * Tests that server transactions retransmit the bytes of their first response
+ * and that the memory they use for it is bounded.
+ *
+ * @author agent
+ */
+public class ResponseCacheTest extends TestCase
+{
+    /**
+     * The stack we are testing.
+     */
+    private StunStack stunStack;
+
+    /**
+     * The socket the stack sends responses through.
+     */
+    private DatagramSocket serverSocket;
+
+    /**
+     * The socket that receives the responses.
+     */
+    private DatagramSocket clientSocket;
+
+    /**
+     * The address of {@link #serverSocket}.
+     */
+    private TransportAddress serverAddress;
+
+    /**
+     * The address of {@link #clientSocket}.
+     */
+    private TransportAddress clientAddress;
+
+    /**
+     * Creates the stack and the sockets.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        stunStack = new StunStack();
+        serverSocket = new DatagramSocket(
+                new InetSocketAddress("127.0.0.1", 0));
+        clientSocket = new DatagramSocket(
+                new InetSocketAddress("127.0.0.1", 0));
+        clientSocket.setSoTimeout(2000);
+        serverAddress = new TransportAddress(
+                "127.0.0.1", serverSocket.getLocalPort(), Transport.UDP);
+        clientAddress = new TransportAddress(
+                "127.0.0.1", clientSocket.getLocalPort(), Transport.UDP);
+
+        stunStack.addSocket(new IceUdpSocketWrapper(serverSocket));
+    }
+
+    /**
+     * Shuts down the stack and closes the sockets.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void tearDown()
+        throws Exception
+    {
+        stunStack.removeSocket(serverAddress);
+        stunStack.shutDown();
+        serverSocket.close();
+        clientSocket.close();
+        super.tearDown();
+    }
+
+    /**
+     * Creates and starts a server transaction for a request from
+     * {@link #clientAddress}.
+     *
+     * @return the new transaction.
+     */
+    private StunServerTransaction createTransaction()
+    {
+        StunServerTransaction transaction
+            = new StunServerTransaction(
+                    stunStack,
+                    TransactionID.createNewTransactionID(),
+                    serverAddress,
+                    clientAddress);
+
+        transaction.start();
+        return transaction;
+    }
+
+    /**
+     * Creates a binding response for the request of <tt>transaction</tt>.
+     *
+     * @param transaction the transaction to create a response for.
+     *
+     * @return the new response.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    private Response createResponse(StunServerTransaction transaction)
+        throws Exception
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        request.setTransactionID(transaction.getTransactionID().getBytes());
+        return MessageFactory.createBindingResponse(request, clientAddress);
+    }
+
+    /**
+     * Receives a datagram on {@link #clientSocket}.
+     *
+     * @return the bytes of the datagram.
+     *
+     * @throws Exception if nothing is received.
+     */
+    private byte[] receive()
+        throws Exception
+    {
+        DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+
+        clientSocket.receive(packet);
+
+        byte[] bytes = new byte[packet.getLength()];
+
+        System.arraycopy(packet.getData(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Makes sure that a retransmitted response is identical to the original
+     * one and that the cache is emptied when the transaction expires.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testRetransmitCachedResponse()
+        throws Exception
+    {
+        StunServerTransaction transaction = createTransaction();
+
+        transaction.sendResponse(
+                createResponse(transaction), serverAddress, clientAddress);
+
+        byte[] original = receive();
+
+        assertEquals(original.length, stunStack.getResponseCacheBytes());
+
+        transaction.retransmitResponse();
+        assertTrue(Arrays.equals(original, receive()));
+
+        transaction.expire();
+        assertEquals(0, stunStack.getResponseCacheBytes());
+    }
+
+    /**
+     * Makes sure that responses are still sent and retransmitted when they
+     * don't fit in the cache.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testCacheLimit()
+        throws Exception
+    {
+        stunStack.setResponseCacheSize(0);
+
+        StunServerTransaction transaction = createTransaction();
+
+        transaction.sendResponse(
+                createResponse(transaction), serverAddress, clientAddress);
+
+        byte[] original = receive();
+
+        assertEquals(0, stunStack.getResponseCacheBytes());
+
+        transaction.retransmitResponse();
+        assertTrue(Arrays.equals(original, receive()));
+        transaction.expire();
+    }
+
+    /**
+     * Makes sure that responses rendered from a template are retransmitted
+     * unchanged whether or not they fit in the cache.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testRetransmitTemplateResponse()
+        throws Exception
+    {
+        BindingResponseTemplate template
+            = new BindingResponseTemplate(
+                    "local:remote".getBytes(), "password".getBytes(), false,
+                    stunStack.getConfiguration());
+
+        for (int cacheSize = 1024; cacheSize >= 0; cacheSize -= 1024)
+        {
+            stunStack.setResponseCacheSize(cacheSize);
+
+            StunServerTransaction transaction = createTransaction();
+
+            transaction.sendResponse(template, serverAddress, clientAddress);
+
+            byte[] original = receive();
+
+            assertEquals(template.getLength(), original.length);
+            assertEquals(
+                    (cacheSize == 0) ? 0 : original.length,
+                    stunStack.getResponseCacheBytes());
+
+            transaction.retransmitResponse();
+            assertTrue(Arrays.equals(original, receive()));
+            transaction.expire();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.net.*;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+import org.ice4j.socket.*;
+
+/**
+ * Tests the pre-classification of received messages by their STUN header and
+ * the direct delivery of responses to their client transactions.
+ *
+ * @author agent
+ */
+public class ResponseRoutingTest extends TestCase
+{
+    /**
+     * The stack we are testing.
+     */
+    private StunStack stunStack;
+
+    /**
+     * The socket the stack sends requests through.
+     */
+    private DatagramSocket clientSocket;
+
+    /**
+     * The socket that answers the requests.
+     */
+    private DatagramSocket serverSocket;
+
+    /**
+     * The address of {@link #clientSocket}.
+     */
+    private TransportAddress clientAddress;
+
+    /**
+     * The address of {@link #serverSocket}.
+     */
+    private TransportAddress serverAddress;
+
+    /**
+     * Creates the stack and the sockets.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        stunStack = new StunStack();
+        clientSocket = new DatagramSocket(
+                new InetSocketAddress("127.0.0.1", 0));
+        serverSocket = new DatagramSocket(
+                new InetSocketAddress("127.0.0.1", 0));
+        serverSocket.setSoTimeout(2000);
+        clientAddress = new TransportAddress(
+                "127.0.0.1", clientSocket.getLocalPort(), Transport.UDP);
+        serverAddress = new TransportAddress(
+                "127.0.0.1", serverSocket.getLocalPort(), Transport.UDP);
+
+        stunStack.addSocket(new IceUdpSocketWrapper(clientSocket));
+    }
+
+    /**
+     * Shuts down the stack and closes the sockets.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void tearDown()
+        throws Exception
+    {
+        stunStack.removeSocket(clientAddress);
+        stunStack.shutDown();
+        clientSocket.close();
+        serverSocket.close();
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure that only datagrams that start with a well-formed STUN
+     * header are recognized as such.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testIsStunHeader()
+        throws Exception
+    {
+        Request request = MessageFactory.createBindingRequest();
+
+        request.setTransactionID(
+                TransactionID.createNewTransactionID().getBytes());
+
+        byte[] bytes = request.encode(stunStack);
+
+        assertTrue(Connector.isStunHeader(bytes, bytes.length));
+
+        //too short for a header
+        assertFalse(Connector.isStunHeader(bytes, Message.HEADER_LENGTH - 1));
+
+        //shorter than the length in the header says
+        assertFalse(Connector.isStunHeader(bytes, bytes.length - 1));
+
+        //RTP and other protocols set the most significant bits
+        byte[] rtp = bytes.clone();
+
+        rtp[0] = (byte) 0x80;
+        assertFalse(Connector.isStunHeader(rtp, rtp.length));
+    }
+
+    /**
+     * Makes sure that a response to one of our requests reaches its
+     * collector on the thread that received it, without going through the
+     * message queues or another thread.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testDirectResponseRouting()
+        throws Exception
+    {
+        final String[] threadName = new String[1];
+        final Object lock = new Object();
+        ResponseCollector collector
+            = new ResponseCollector()
+            {
+                public void processResponse(StunResponseEvent response)
+                {
+                    synchronized (lock)
+                    {
+                        threadName[0] = Thread.currentThread().getName();
+                        lock.notifyAll();
+                    }
+                }
+
+                public void processTimeout(StunTimeoutEvent event)
+                {
+                }
+            };
+
+        stunStack.sendRequest(
+                MessageFactory.createBindingRequest(),
+                serverAddress,
+                clientAddress,
+                collector);
+
+        DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+
+        serverSocket.receive(packet);
+
+        Request request
+            = (Request) Message.decode(
+                    packet.getData(), (char) 0, (char) packet.getLength());
+        Response response
+            = MessageFactory.createBindingResponse(request, clientAddress);
+
+        response.setTransactionID(request.getTransactionID());
+
+        byte[] bytes = response.encode(stunStack);
+
+        serverSocket.send(
+                new DatagramPacket(bytes, bytes.length, clientAddress));
+
+        synchronized (lock)
+        {
+            long deadline = System.currentTimeMillis() + 2000;
+
+            while (threadName[0] == null)
+            {
+                long timeout = deadline - System.currentTimeMillis();
+
+                if (timeout <= 0)
+                    break;
+                lock.wait(timeout);
+            }
+        }
+
+        assertNotNull("no response", threadName[0]);
+        assertTrue(threadName[0], threadName[0].startsWith("IceConnector@"));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+
+/**
+ * Tests the estimation of retransmission timeouts per destination.
+ *
+ * @author agent
+ */
+public class RtoEstimatorTest extends TestCase
+{
+    /**
+     * The destination most tests use.
+     */
+    private static final TransportAddress DESTINATION
+        = new TransportAddress("127.0.0.1", 3478, Transport.UDP);
+
+    /**
+     * The estimator we are testing.
+     */
+    private RtoEstimator estimator;
+
+    /**
+     * Creates the estimator.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+        estimator = new RtoEstimator();
+    }
+
+    /**
+     * Makes sure that unknown destinations get the default RTO and that
+     * measured ones get <tt>SRTT + max(G, 4 * RTTVAR)</tt>.
+     */
+    public void testEstimate()
+    {
+        assertEquals(100, estimator.getRto(DESTINATION, 100, 1600));
+
+        //the first sample sets SRTT = R and RTTVAR = R / 2
+        estimator.update(DESTINATION, 200000);
+        assertEquals(200 + 4 * 100, estimator.getRto(DESTINATION, 100, 1600));
+
+        //RTTVAR = 3/4 * 100 + 1/4 * 0 and SRTT stays at 200
+        estimator.update(DESTINATION, 200000);
+        assertEquals(200 + 4 * 75, estimator.getRto(DESTINATION, 100, 1600));
+
+        //long round trips are capped
+        estimator.update(DESTINATION, 5000000);
+        assertEquals(1600, estimator.getRto(DESTINATION, 100, 1600));
+    }
+
+    /**
+     * Makes sure that fast paths never get an RTO below the granularity of
+     * the timer.
+     */
+    public void testMinimum()
+    {
+        for (int i = 0; i < 32; i++)
+            estimator.update(DESTINATION, 100);
+
+        assertEquals(
+                RtoEstimator.MIN_RTO,
+                estimator.getRto(DESTINATION, 100, 1600));
+    }
+
+    /**
+     * Makes sure that a reset destination goes back to the default RTO.
+     */
+    public void testReset()
+    {
+        estimator.update(DESTINATION, 1000);
+        estimator.reset(DESTINATION);
+        assertEquals(100, estimator.getRto(DESTINATION, 100, 1600));
+        assertEquals(0, estimator.size());
+    }
+
+    /**
+     * Makes sure that the number of destinations is bounded and that the
+     * least recently used ones are discarded first.
+     */
+    public void testCapacity()
+    {
+        for (int i = 0; i < RtoEstimator.MAX_DESTINATIONS + 10; i++)
+        {
+            estimator.update(
+                    new TransportAddress(
+                            "127.0.0.1", 1024 + i, Transport.UDP),
+                    1000000);
+
+            //keep using the first destination
+            estimator.getRto(
+                    new TransportAddress("127.0.0.1", 1024, Transport.UDP),
+                    100, 1600);
+        }
+
+        assertEquals(RtoEstimator.MAX_DESTINATIONS, estimator.size());
+        assertEquals(
+                1000 + 4 * 500,
+                estimator.getRto(
+                        new TransportAddress("127.0.0.1", 1024, Transport.UDP),
+                        100, 4000));
+        assertEquals(
+                100,
+                estimator.getRto(
+                        new TransportAddress("127.0.0.1", 1025, Transport.UDP),
+                        100, 4000));
+    }
+}
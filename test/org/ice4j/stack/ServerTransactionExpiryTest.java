@@ -0,0 +1,118 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+
+/**
+ * Tests that server transactions expire and leave their stack when their
+ * lifetime, which the timer of the stack keeps, is over.
+ *
+ * @author agent
+ */
+public class ServerTransactionExpiryTest extends TestCase
+{
+    /**
+     * The address requests are received on.
+     */
+    private static final TransportAddress LOCAL_ADDRESS
+        = new TransportAddress("127.0.0.1", 3478, Transport.UDP);
+
+    /**
+     * The address requests come from.
+     */
+    private static final TransportAddress REMOTE_ADDRESS
+        = new TransportAddress("127.0.0.1", 5000, Transport.UDP);
+
+    /**
+     * The stack we are testing.
+     */
+    private StunStack stunStack;
+
+    /**
+     * Creates the stack.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        stunStack = new StunStack();
+    }
+
+    /**
+     * Shuts the stack down.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void tearDown()
+        throws Exception
+    {
+        stunStack.shutDown();
+
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure that a server transaction is removed from its stack once
+     * its lifetime is over and not before.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testExpiry()
+        throws Exception
+    {
+        stunStack.setServerTransactionLifetime(200);
+
+        Request request = MessageFactory.createBindingRequest();
+        TransactionID tid = TransactionID.createNewTransactionID();
+
+        request.setTransactionID(tid.getBytes());
+
+        byte[] bytes = request.encode(stunStack);
+
+        stunStack.handleMessageEvent(
+                new StunMessageEvent(
+                        stunStack,
+                        new RawMessage(
+                                bytes, bytes.length,
+                                REMOTE_ADDRESS, LOCAL_ADDRESS),
+                        Message.decode(bytes, (char) 0, (char) bytes.length)));
+
+        long start = System.currentTimeMillis();
+        StunServerTransaction transaction
+            = stunStack.getServerTransaction(tid.getBytes());
+
+        assertNotNull(transaction);
+        assertEquals(
+                1,
+                stunStack.getAdmissionStatistics().getServerTransactions());
+
+        while (stunStack.getServerTransaction(tid.getBytes()) != null
+                && System.currentTimeMillis() - start < 2000)
+        {
+            Thread.sleep(10);
+        }
+
+        long lifetime = System.currentTimeMillis() - start;
+
+        assertNull(
+                "The transaction did not expire",
+                stunStack.getServerTransaction(tid.getBytes()));
+        assertTrue(
+                "The transaction expired after " + lifetime + " ms",
+                lifetime >= 190);
+        assertEquals(
+                0,
+                stunStack.getAdmissionStatistics().getServerTransactions());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import junit.framework.*;
+
+import org.ice4j.*;
+
+/**
+ * Tests that a <tt>StunStack</tt> only sees changes to the system properties
+ * after it reloads its configuration.
+ *
+ * @author agent
+ */
+public class StackConfigurationTest extends TestCase
+{
+    /**
+     * The properties that the tests change.
+     */
+    private static final String[] PROPERTIES
+        = new String[]
+        {
+            StackProperties.SOFTWARE,
+            StackProperties.ALWAYS_SIGN,
+            StackProperties.MAX_CTRAN_RETRANSMISSIONS,
+            StackProperties.FIRST_CTRAN_RETRANS_AFTER
+        };
+
+    /**
+     * The values of {@link #PROPERTIES} before the test.
+     */
+    private final String[] oldValues = new String[PROPERTIES.length];
+
+    /**
+     * The stack we are testing.
+     */
+    private StunStack stunStack;
+
+    /**
+     * Saves and clears the properties and creates the stack.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        for (int i = 0; i < PROPERTIES.length; i++)
+        {
+            oldValues[i] = System.getProperty(PROPERTIES[i]);
+            System.clearProperty(PROPERTIES[i]);
+        }
+        stunStack = new StunStack();
+    }
+
+    /**
+     * Shuts the stack down and restores the properties.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void tearDown()
+        throws Exception
+    {
+        stunStack.shutDown();
+        for (int i = 0; i < PROPERTIES.length; i++)
+        {
+            if (oldValues[i] == null)
+                System.clearProperty(PROPERTIES[i]);
+            else
+                System.setProperty(PROPERTIES[i], oldValues[i]);
+        }
+
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure that unset properties take their defaults.
+     */
+    public void testDefaults()
+    {
+        StackConfiguration configuration = stunStack.getConfiguration();
+
+        assertNull(configuration.getSoftware());
+        assertFalse(configuration.isAlwaysSign());
+        assertEquals(
+                StunClientTransaction.DEFAULT_MAX_RETRANSMISSIONS,
+                configuration.getMaxRetransmissions());
+        assertEquals(
+                StunClientTransaction.DEFAULT_ORIGINAL_WAIT_INTERVAL,
+                configuration.getOriginalWaitInterval());
+    }
+
+    /**
+     * Makes sure that property changes are ignored until the configuration
+     * is reloaded and that invalid numbers fall back to their defaults.
+     */
+    public void testReload()
+    {
+        StackConfiguration configuration = stunStack.getConfiguration();
+
+        System.setProperty(StackProperties.SOFTWARE, " ice4j.org ");
+        System.setProperty(StackProperties.ALWAYS_SIGN, "true");
+        System.setProperty(StackProperties.MAX_CTRAN_RETRANSMISSIONS, "2");
+        System.setProperty(StackProperties.FIRST_CTRAN_RETRANS_AFTER, "x");
+
+        assertSame(configuration, stunStack.getConfiguration());
+        assertNull(stunStack.getConfiguration().getSoftware());
+
+        stunStack.reloadConfiguration();
+        configuration = stunStack.getConfiguration();
+
+        assertEquals("ice4j.org", configuration.getSoftware());
+        assertTrue(configuration.isAlwaysSign());
+        assertEquals(2, configuration.getMaxRetransmissions());
+        assertEquals(
+                StunClientTransaction.DEFAULT_ORIGINAL_WAIT_INTERVAL,
+                configuration.getOriginalWaitInterval());
+    }
+}
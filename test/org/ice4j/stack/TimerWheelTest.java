@@ -0,0 +1,109 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the <tt>TimerWheel</tt> that drives STUN transaction timers.
+ *
+ * @author agent
+ */
+public class TimerWheelTest extends TestCase
+{
+    /**
+     * The wheel we are testing.
+     */
+    private TimerWheel timer;
+
+    /**
+     * Creates the wheel used by the tests.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+        timer = new TimerWheel("TimerWheelTest", 5, 8);
+    }
+
+    /**
+     * Stops the wheel used by the tests.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    protected void tearDown()
+        throws Exception
+    {
+        timer.stop();
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure that timeouts are never fired before their delay and that
+     * timeouts spanning several turns of the wheel fire in order.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testExpirationOrder()
+        throws Exception
+    {
+        final List<Long> fired = Collections.synchronizedList(
+                        new ArrayList<Long>());
+        final long start = System.nanoTime() / 1000000L;
+        long[] delays = new long[]{ 120, 20, 70, 45 };
+
+        for (final long delay : delays)
+        {
+            timer.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    long elapsed = System.nanoTime() / 1000000L - start;
+
+                    assertTrue("fired early: " + elapsed, elapsed >= delay);
+                    fired.add(delay);
+                }
+            }, delay);
+        }
+
+        Thread.sleep(400);
+
+        assertEquals(Arrays.asList(20L, 45L, 70L, 120L), fired);
+        assertEquals(0, timer.getPendingTimeouts());
+    }
+
+    /**
+     * Makes sure that cancelled timeouts do not fire.
+     *
+     * @throws Exception if something goes wrong.
+     */
+    public void testCancel()
+        throws Exception
+    {
+        final boolean[] fired = new boolean[1];
+
+        TimerWheel.Timeout timeout = timer.schedule(new Runnable()
+        {
+            public void run()
+            {
+                fired[0] = true;
+            }
+        }, 50);
+
+        assertEquals(1, timer.getPendingTimeouts());
+        timeout.cancel();
+        assertTrue(timeout.isCancelled());
+        assertEquals(0, timer.getPendingTimeouts());
+
+        Thread.sleep(150);
+        assertFalse("a cancelled timeout fired", fired[0]);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * ice4j, the OpenSource Java Solution for NAT and Firewall Traversal.
+ * Maintained by the SIP Communicator community (http://sip-communicator.org).
+ *
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.ice4j.stack;
+
+import junit.framework.*;
+
+/**
+ * Tests the <tt>TransactionIndex</tt> used by the <tt>StunStack</tt> to map
+ * transaction IDs to transactions.
+ *
+ * @author agent
+ */
+public class TransactionIndexTest extends TestCase
+{
+    /**
+     * Makes sure that transactions can be found from the raw bytes of a
+     * message, for both RFC 5389 and RFC 3489 IDs.
+     */
+    public void testLookupFromRawBytes()
+    {
+        TransactionIndex<String> index = new TransactionIndex<String>();
+        TransactionID tid5389 = TransactionID.createNewTransactionID();
+        TransactionID tid3489 = TransactionID.createNewRFC3489TransactionID();
+
+        index.put(tid5389, "rfc5389");
+        index.put(tid3489, "rfc3489");
+
+        //embed the IDs in a message the way they'd be on the wire.
+        byte[] message = new byte[20];
+
+        System.arraycopy(tid5389.getBytes(), 0, message, 8, 12);
+        assertEquals("rfc5389", index.get(message, 8, 12));
+
+        System.arraycopy(tid3489.getBytes(), 0, message, 4, 16);
+        assertEquals("rfc3489", index.get(message, 4, 16));
+
+        //same leading bytes but a different length must not match.
+        assertNull(index.get(message, 4, 12));
+        assertNull(index.get(message, 4, 5));
+    }
+
+    /**
+     * Makes sure that the index grows and shrinks properly with a large
+     * number of transactions.
+     */
+    public void testPutAndRemove()
+    {
+        TransactionIndex<TransactionID> index
+            = new TransactionIndex<TransactionID>();
+        TransactionID[] tids = new TransactionID[10000];
+
+        for (int i = 0; i < tids.length; i++)
+        {
+            tids[i] = TransactionID.createNewTransactionID();
+            assertNull(index.put(tids[i], tids[i]));
+        }
+        assertEquals(tids.length, index.size());
+        assertEquals(tids.length, index.values().size());
+
+        for (int i = 0; i < tids.length; i += 2)
+            assertSame(tids[i], index.remove(tids[i]));
+
+        assertEquals(tids.length / 2, index.size());
+        for (int i = 0; i < tids.length; i++)
+        {
+            TransactionID found = index.get(tids[i].getBytes());
+
+            if (i % 2 == 0)
+                assertNull(found);
+            else
+                assertSame(tids[i], found);
+        }
+        assertNull(index.remove(tids[0]));
+    }
+}
@@ -69,6 +69,9 @@ public class StunAddressDiscovererTest_v4v6 extends TestCase
     {
         super.setUp();
 
+        System.setProperty(StackProperties.MAX_CTRAN_RETRANS_TIMER , "100");
+        System.setProperty(StackProperties.MAX_CTRAN_RETRANSMISSIONS, "2");
+
         StunStack stunStack = new StunStack();
 
         responseServer_v6
@@ -89,9 +92,6 @@ public class StunAddressDiscovererTest_v4v6 extends TestCase
         stunAddressDiscoverer_v4.start();
         responseServer_v6.start();
         responseServer_v4.start();
-
-        System.setProperty(StackProperties.MAX_CTRAN_RETRANS_TIMER , "100");
-        System.setProperty(StackProperties.MAX_CTRAN_RETRANSMISSIONS, "2");
     }
 
     protected void tearDown()